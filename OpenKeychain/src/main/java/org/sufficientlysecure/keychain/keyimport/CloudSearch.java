@@ -18,6 +18,7 @@
 package org.sufficientlysecure.keychain.keyimport;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import org.sufficientlysecure.keychain.util.ParcelableProxy;
 import org.sufficientlysecure.keychain.util.Preferences;
@@ -25,22 +26,67 @@ import timber.log.Timber;
 
 import java.net.Proxy;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Search two or more types of server for online keys.
+ * <p/>
+ * All sources are searched in parallel on a shared pool of threads, and their results are
+ * merged as they come in. A {@link ResultListener} is told about every batch of results, so the
+ * first results can be shown while slow sources, often WKD or Keybase over Tor, are still busy.
  */
 public class CloudSearch {
 
     private final static long SECONDS = 1000;
 
+    // enough for all sources of two searches running at the same time
+    private static final int MAX_THREADS = 8;
+    // results of a keyserver are passed on in batches of this size while they are parsed
+    private static final int RESULT_BATCH_SIZE = 25;
+
+    private static final ThreadPoolExecutor sSearchExecutor = new ThreadPoolExecutor(
+            MAX_THREADS, MAX_THREADS, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sSearchExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public interface ResultListener {
+        /**
+         * Called on a search thread whenever a source has delivered results. The list contains
+         * all results found so far, with duplicates merged.
+         */
+        void onResults(ArrayList<ImportKeysListEntry> results);
+    }
+
+    private final String mQuery;
+    private final ParcelableProxy mProxy;
+    private final ResultListener mListener;
+    private final ArrayList<KeyserverClient> mServers;
+    private final ImportKeysList mResults;
+    // it's a Vector for sync, multiple threads might report problems
+    private final Vector<KeyserverClient.CloudSearchFailureException> mProblems = new Vector<>();
+    private final ArrayList<Future<?>> mSearches = new ArrayList<>();
+    private volatile boolean mCancelled;
+
     public static ArrayList<ImportKeysListEntry> search(
             @NonNull final String query, Preferences.CloudSearchPrefs cloudPrefs, @NonNull final ParcelableProxy proxy)
             throws KeyserverClient.CloudSearchFailureException {
+        return start(query, cloudPrefs, proxy, null).getResults();
+    }
 
+    /**
+     * Starts searching all enabled sources, and returns right away. The results are available
+     * through the listener while the search runs, and from {@link #getResults()} once it is done.
+     */
+    public static CloudSearch start(@NonNull String query, Preferences.CloudSearchPrefs cloudPrefs,
+            @NonNull ParcelableProxy proxy, @Nullable ResultListener listener) {
         final ArrayList<KeyserverClient> servers = new ArrayList<>();
-        // it's a Vector for sync, multiple threads might report problems
-        final Vector<KeyserverClient.CloudSearchFailureException> problems = new Vector<>();
 
         if (cloudPrefs.isKeyserverEnabled()) {
             servers.add(HkpKeyserverClient.fromHkpKeyserverAddress(cloudPrefs.getKeyserver()));
@@ -55,60 +101,108 @@ public class CloudSearch {
             servers.add(WebKeyDirectoryClient.getInstance());
         }
 
-        int numberOfServers = servers.size();
-        final ImportKeysList results = new ImportKeysList(numberOfServers);
-
-        if (numberOfServers > 0) {
-            ArrayList<Thread> searchThreads = new ArrayList<>();
-            for (final KeyserverClient keyserverClient : servers) {
-                Runnable r = new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            results.addAll(keyserverClient.search(query, proxy));
-                        } catch (KeyserverClient.CloudSearchFailureException e) {
-                            problems.add(e);
-                        }
-                        results.finishedAdding(); // notifies if all searchers done
-                    }
-                };
-                Thread searchThread = new Thread(r);
-                searchThreads.add(searchThread);
-                searchThread.start();
-            }
-
-            // wait for either all the searches to come back, or 10 seconds. If using proxy, wait 30 seconds.
-            synchronized (results) {
-                try {
-                    results.wait((proxy.getProxy() == Proxy.NO_PROXY ? 30 : 10) * SECONDS);
-                    for (Thread thread : searchThreads) {
-                        // kill threads that haven't returned yet
-                        thread.interrupt();
-                    }
-                } catch (InterruptedException ignored) {
+        final CloudSearch cloudSearch = new CloudSearch(query, proxy, listener, servers);
+        for (final KeyserverClient keyserverClient : servers) {
+            cloudSearch.mSearches.add(sSearchExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    cloudSearch.searchServer(keyserverClient);
                 }
-            }
+            }));
+        }
+        return cloudSearch;
+    }
+
+    private CloudSearch(String query, ParcelableProxy proxy, ResultListener listener,
+            ArrayList<KeyserverClient> servers) {
+        mQuery = query;
+        mProxy = proxy;
+        mListener = listener;
+        mServers = servers;
+        mResults = new ImportKeysList(servers.size());
+    }
 
-            if (results.outstandingSuppliers() > 0) {
-                String message = "Launched " + servers.size() + " cloud searchers, but " +
-                        results.outstandingSuppliers() + "failed to complete.";
-                problems.add(new KeyserverClient.QueryFailedException(message));
+    private void searchServer(KeyserverClient keyserverClient) {
+        try {
+            if (keyserverClient instanceof HkpKeyserverClient) {
+                final ArrayList<ImportKeysListEntry> batch = new ArrayList<>();
+                ((HkpKeyserverClient) keyserverClient).search(mQuery, mProxy,
+                        new KeyserverClient.SearchResultListener() {
+                            @Override
+                            public void onSearchResult(ImportKeysListEntry entry) {
+                                batch.add(entry);
+                                if (batch.size() >= RESULT_BATCH_SIZE) {
+                                    addResults(batch);
+                                    batch.clear();
+                                }
+                            }
+                        });
+                addResults(batch);
+            } else {
+                addResults(keyserverClient.search(mQuery, mProxy));
             }
-        } else {
-            problems.add(new KeyserverClient.QueryNoEnabledSourceException());
+        } catch (KeyserverClient.CloudSearchFailureException e) {
+            mProblems.add(e);
+        } finally {
+            mResults.finishedAdding(); // notifies if all searchers done
+        }
+    }
+
+    // NOTE: synchronized, so listeners see the results in the order they were added
+    private synchronized void addResults(List<ImportKeysListEntry> entries) {
+        if (mCancelled || entries.isEmpty()) {
+            return;
+        }
+        mResults.addAll(entries);
+        if (mListener != null) {
+            mListener.onResults(mResults.snapshot());
+        }
+    }
+
+    /**
+     * Waits for all searches to come back, up to a timeout, and returns the merged results.
+     * Searches which haven't returned by then are cancelled.
+     */
+    public ArrayList<ImportKeysListEntry> getResults() throws KeyserverClient.CloudSearchFailureException {
+        if (mServers.isEmpty()) {
+            throw new KeyserverClient.QueryNoEnabledSourceException();
         }
 
-        if (!problems.isEmpty()) {
-            for (KeyserverClient.CloudSearchFailureException e : problems) {
+        // wait for either all the searches to come back, or 10 seconds. If using proxy, wait 30 seconds.
+        try {
+            mResults.awaitFinishedAdding((mProxy.getProxy() == Proxy.NO_PROXY ? 30 : 10) * SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        int outstandingSuppliers = mResults.outstandingSuppliers();
+        if (outstandingSuppliers > 0) {
+            // cancel searches that haven't returned yet
+            cancel();
+            String message = "Launched " + mServers.size() + " cloud searchers, but " +
+                    outstandingSuppliers + " failed to complete.";
+            mProblems.add(new KeyserverClient.QueryFailedException(message));
+        }
+
+        if (!mProblems.isEmpty()) {
+            for (KeyserverClient.CloudSearchFailureException e : mProblems) {
                 Timber.d("Cloud search exception: " + e.getLocalizedMessage());
             }
 
             // only throw exception if we didn’t get any results
-            if (results.isEmpty()) {
-                throw problems.get(0);
+            if (mResults.isEmpty()) {
+                throw mProblems.get(0);
             }
         }
 
-        return results;
+        return mResults.snapshot();
+    }
+
+    /** Cancels all searches which are still running. Results which arrive later are dropped. */
+    public void cancel() {
+        mCancelled = true;
+        for (Future<?> search : mSearches) {
+            search.cancel(true);
+        }
     }
 }
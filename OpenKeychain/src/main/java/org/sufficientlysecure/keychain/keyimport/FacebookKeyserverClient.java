@@ -19,6 +19,7 @@ package org.sufficientlysecure.keychain.keyimport;
 
 
 import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.net.Proxy;
 import java.net.URL;
 import java.util.ArrayList;
@@ -32,6 +33,7 @@ import android.support.annotation.Nullable;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import org.sufficientlysecure.keychain.network.NotFoundCache;
 import org.sufficientlysecure.keychain.network.OkHttpClientFactory;
 import org.sufficientlysecure.keychain.pgp.PgpHelper;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
@@ -100,6 +102,12 @@ public class FacebookKeyserverClient implements KeyserverClient {
             URL url = new URL(String.format(FB_KEY_URL_FORMAT, fbUsername));
             Timber.d("fetching from Facebook with: " + url + " proxy: " + proxy.getProxy());
 
+            NotFoundCache notFoundCache = NotFoundCache.getInstance();
+            if (notFoundCache.isNotFound(url.toString())) {
+                Timber.d("Facebook query answered from not found cache");
+                throw new QueryNotFoundException("key for " + fbUsername + " not found on Facebook.");
+            }
+
             /*
              * For some URLs such as https://www.facebook.com/adithya.abraham/publickey/download
              * Facebook redirects to a mobile version (302) and then errors out (500).
@@ -108,6 +116,7 @@ public class FacebookKeyserverClient implements KeyserverClient {
             Request request = new Request.Builder()
                     .url(url)
                     .header("User-Agent", "Mozilla/5.0 (X11; Linux x86_64; rv:49.0) Gecko/20100101 Firefox/49.0")
+                    .cacheControl(OkHttpClientFactory.CACHE_CONTROL_KEY_DATA)
                     .build();
 
             OkHttpClient client = OkHttpClientFactory.getClientPinnedIfAvailable(url, proxy.getProxy());
@@ -118,6 +127,9 @@ public class FacebookKeyserverClient implements KeyserverClient {
 
             if (response.isSuccessful()) {
                 return responseBody;
+            } else if (response.code() == HttpURLConnection.HTTP_NOT_FOUND) {
+                notFoundCache.putNotFound(url.toString());
+                throw new QueryNotFoundException("key for " + fbUsername + " not found on Facebook.");
             } else {
                 // probably a 404 indicating that the key does not exist
                 throw new QueryFailedException("key for " + fbUsername + " not found on Facebook." +
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import timber.log.Timber;
+
+
+/**
+ * Parses the machine readable index returned by an HKP search, one line at a time. Each entry
+ * is handed out as soon as its uid lines have been read, so only a single entry is held in
+ * memory no matter how large the index is.
+ *
+ * @see <a href="http://tools.ietf.org/html/draft-shaw-openpgp-hkp-00#section-5.2">
+ * 5.2. Machine Readable Indexes</a>
+ */
+class HkpIndexParser {
+
+    private static final Pattern INFO_LINE = Pattern
+            .compile("^info:1:([0-9]*)$", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * uid:%escaped uid string%:%creationdate%:%expirationdate%:%flags%
+     * <ul>
+     * <li>%<b>escaped uid string</b>% = the user ID string, with HTTP %-escaping for anything that
+     * isn't 7-bit safe as well as for the ":" character.  Any other characters may be escaped, as
+     * desired.</li>
+     * <li>%<b>creationdate</b>% = creation date of the key in standard
+     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
+     * seconds since 1/1/1970 UTC time)</li>
+     * <li>%<b>expirationdate</b>% = expiration date of the key in standard
+     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
+     * seconds since 1/1/1970 UTC time)</li>
+     * <li>%<b>flags</b>% = letter codes to indicate details of the key, if any. Flags may be in any
+     * order. The meaning of "disabled" is implementation-specific. Note that individual flags may
+     * be unimplemented, so the absence of a given flag does not necessarily mean the absence of
+     * the detail.
+     * <ul>
+     * <li>r == revoked</li>
+     * <li>d == disabled</li>
+     * <li>e == expired</li>
+     * </ul>
+     * </li>
+     * </ul>
+     */
+    private static final Pattern UID_LINE = Pattern
+            .compile("(?<uid>uid:" +              // group 1
+                            "(?<uidID>[^:\n]*)" +       // group 2
+                            "(?::(?<uidCreate>[0-9]*)" +  // group 3
+                            "(?::(?<uidExpire>[0-9]*)" +  // group 4
+                            "(?::(?<uidFlags>((?=(r(?!(.?r))|d(?!(.?d))|e(?!(.?e))))[rde]){0,3})" + // group 5
+                            ")?)?)?)",
+                    Pattern.CASE_INSENSITIVE);
+
+    /**
+     * pub:%keyid%:%algo%:%keylen%:%creationdate%:%expirationdate%:%flags%
+     * <ul>
+     * <li>%<b>keyid</b>% = this is either the fingerprint or the key ID of the key.
+     * Either the 16-digit or 8-digit key IDs are acceptable, but obviously the fingerprint is best.
+     * </li>
+     * <li>%<b>algo</b>% = the algorithm number, (i.e. 1==RSA, 17==DSA, etc).
+     * See <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a></li>
+     * <li>%<b>keylen</b>% = the key length (i.e. 1024, 2048, 4096, etc.)</li>
+     * <li>%<b>creationdate</b>% = creation date of the key in standard
+     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
+     * seconds since 1/1/1970 UTC time)</li>
+     * <li>%<b>expirationdate</b>% = expiration date of the key in standard
+     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
+     * seconds since 1/1/1970 UTC time)</li>
+     * <li>%<b>flags</b>% = letter codes to indicate details of the key, if any. Flags may be in any
+     * order. The meaning of "disabled" is implementation-specific. Note that individual flags may
+     * be unimplemented, so the absence of a given flag does not necessarily mean the absence of the
+     * detail.
+     * <ul>
+     * <li>r == revoked</li>
+     * <li>d == disabled</li>
+     * <li>e == expired</li>
+     * </ul>
+     * </li>
+     * </ul>
+     *
+     * @see <a href="http://tools.ietf.org/html/draft-shaw-openpgp-hkp-00#section-5.2">
+     * 5.2. Machine Readable Indexes</a>
+     * in Internet-Draft OpenPGP HTTP Keyserver Protocol Document
+     */
+    private static final Pattern PUB_LINE = Pattern
+            .compile("(?<pub>pub:" +                  // group 1
+                            "(?<pubKeyID>[0-9a-fA-F]+)" +   // group 2
+                            "(?::(?<pubAlgo>[0-9]*)" +        // group 3
+                            "(?::(?<pubKeyLen>[0-9]*)" +      // group 4
+                            "(?::(?<pubCreate>[0-9]*)" +      // group 5
+                            "(?::(?<pubExpire>[0-9]*)" +      // group 6
+                            "(?::(?<pubFlags>(?:(?=(?:r(?!(.?r))|d(?!(.?d))|e(?!(.?e))))[rde]){0,3})" + // group 7
+                            ")?)?)?)?)?)",
+                    Pattern.CASE_INSENSITIVE
+            );
+
+    private final BufferedReader reader;
+    private final String query;
+    private final HkpKeyserverAddress keyserver;
+
+    private String nextLine;
+
+    HkpIndexParser(Reader reader, String query, HkpKeyserverAddress keyserver) {
+        this.reader = new BufferedReader(reader);
+        this.query = query;
+        this.keyserver = keyserver;
+    }
+
+    /** Returns the next entry of the index, or null once the end is reached. */
+    ImportKeysListEntry next() throws IOException {
+        String line;
+        while ((line = readLine()) != null) {
+            Matcher pubMatcher = PUB_LINE.matcher(line);
+            if (!pubMatcher.matches()) {
+                Matcher infoMatcher = INFO_LINE.matcher(line);
+                if (infoMatcher.matches()) {
+                    Timber.d("Server returned " + infoMatcher.group(1) + " public key(s)");
+                }
+                continue;
+            }
+
+            ImportKeysListEntry entry = parsePubLine(pubMatcher);
+
+            // the uid lines of a key directly follow its pub line
+            ArrayList<String> userIds = new ArrayList<>();
+            while ((line = readLine()) != null) {
+                Matcher uidMatcher = UID_LINE.matcher(line);
+                if (!uidMatcher.matches()) {
+                    nextLine = line;
+                    break;
+                }
+                String userId = decodeUserId(uidMatcher.group(2).trim());
+                if (userId != null) {
+                    userIds.add(userId);
+                }
+            }
+
+            if (entry == null || userIds.isEmpty()) {
+                // skip this key
+                continue;
+            }
+
+            entry.setUserIds(userIds);
+            entry.setPrimaryUserId(userIds.get(0));
+            entry.setKeyserver(keyserver);
+            return entry;
+        }
+        return null;
+    }
+
+    private String readLine() throws IOException {
+        if (nextLine != null) {
+            String line = nextLine;
+            nextLine = null;
+            return line;
+        }
+        return reader.readLine();
+    }
+
+    private ImportKeysListEntry parsePubLine(Matcher matcher) {
+        final ImportKeysListEntry entry = new ImportKeysListEntry();
+        entry.setQuery(query);
+
+        // group 2 contains the full fingerprint (v4) or the long key id if available
+        // see https://bitbucket.org/skskeyserver/sks-keyserver/pull-request/12/fixes-for-machine-readable-indexes/diff
+        String fingerprintOrKeyId = matcher.group(2).toLowerCase(Locale.ENGLISH);
+        if (fingerprintOrKeyId.length() == 40) {
+            byte[] fingerprint = KeyFormattingUtils.convertFingerprintHexFingerprint(fingerprintOrKeyId);
+            entry.setFingerprint(fingerprint);
+            entry.setKeyIdHex("0x" + fingerprintOrKeyId.substring(fingerprintOrKeyId.length()
+                    - 16, fingerprintOrKeyId.length()));
+        } else if (fingerprintOrKeyId.length() == 16) {
+            // set key id only
+            entry.setKeyIdHex("0x" + fingerprintOrKeyId);
+        } else {
+            Timber.e("Wrong length for fingerprint/long key id.");
+            return null;
+        }
+
+        try {
+            int bitSize = -1;
+            if (!matcher.group(4).isEmpty()) {   // empty fields are allowed
+                bitSize = Integer.parseInt(matcher.group(4));
+                entry.setBitStrength(bitSize);
+            }
+
+            if (!matcher.group(3).isEmpty()) {   // empty fields are allowed
+                int algorithmId = Integer.decode(matcher.group(3));
+                entry.setAlgorithm(KeyFormattingUtils
+                        .getAlgorithmInfo(algorithmId, bitSize, null));
+            }
+
+            if (!matcher.group(5).isEmpty()) {  // empty fields are allowed
+                long creationDate = Long.parseLong(matcher.group(5));
+                GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+                calendar.setTimeInMillis(creationDate * 1000);
+                entry.setDate(calendar.getTime());
+            }
+        } catch (NumberFormatException e) {
+            Timber.e(e, "Conversation for bit size, algorithm, or creation date failed.");
+            return null;
+        }
+
+        try {
+            entry.setRevoked(matcher.group(7).contains("r"));
+            boolean expired = matcher.group(7).contains("e");
+
+            // It may be expired even without flag, thus check expiration date
+            String expiration;
+            if (!expired && !(expiration = matcher.group(6)).isEmpty()) {
+                long expirationDate = Long.parseLong(expiration);
+                TimeZone timeZoneUTC = TimeZone.getTimeZone("UTC");
+                GregorianCalendar calendar = new GregorianCalendar(timeZoneUTC);
+                calendar.setTimeInMillis(expirationDate * 1000);
+                expired = new GregorianCalendar(timeZoneUTC).compareTo(calendar) >= 0;
+            }
+            entry.setExpired(expired);
+        } catch (NullPointerException e) {
+            Timber.e(e, "Check for revocation or expiry failed.");
+            return null;
+        }
+
+        return entry;
+    }
+
+    private static String decodeUserId(String userId) {
+        if (userId.contains("%")) {
+            if (userId.contains("%%")) {
+                // The server encodes a percent sign as %%, so it is swapped out with its
+                // urlencoded counterpart to prevent errors
+                userId = userId.replace("%%", "%25");
+            }
+            try {
+                // converts Strings like "Universit%C3%A4t" to a proper encoding form "Universität".
+                userId = URLDecoder.decode(userId, "UTF8");
+            } catch (UnsupportedEncodingException ignored) {
+                // will never happen, because "UTF8" is supported
+            } catch (IllegalArgumentException e) {
+                Timber.e(e, "User ID encoding broken");
+                // skip this user id
+                return null;
+            }
+        }
+        return userId;
+    }
+
+}
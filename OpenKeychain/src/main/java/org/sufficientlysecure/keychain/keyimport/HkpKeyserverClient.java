@@ -20,11 +20,13 @@ package org.sufficientlysecure.keychain.keyimport;
 
 import android.support.annotation.NonNull;
 
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.MediaType;
 import okhttp3.ResponseBody;
+import org.sufficientlysecure.keychain.network.NotFoundCache;
 import org.sufficientlysecure.keychain.network.OkHttpClientFactory;
 import org.sufficientlysecure.keychain.pgp.PgpHelper;
-import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.ParcelableProxy;
 import timber.log.Timber;
 import okhttp3.FormBody;
@@ -34,105 +36,23 @@ import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStreamReader;
 import java.net.Proxy;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URLDecoder;
 import java.nio.charset.Charset;
 import java.nio.charset.UnsupportedCharsetException;
 import java.util.ArrayList;
-import java.util.GregorianCalendar;
-import java.util.Locale;
-import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static java.util.Locale.ENGLISH;
 
 
 public class HkpKeyserverClient implements KeyserverClient {
 
-    private static final Pattern INFO_LINE = Pattern
-            .compile("^info:1:([0-9]*)\n", Pattern.CASE_INSENSITIVE);
-
-    /**
-     * uid:%escaped uid string%:%creationdate%:%expirationdate%:%flags%
-     * <ul>
-     * <li>%<b>escaped uid string</b>% = the user ID string, with HTTP %-escaping for anything that
-     * isn't 7-bit safe as well as for the ":" character.  Any other characters may be escaped, as
-     * desired.</li>
-     * <li>%<b>creationdate</b>% = creation date of the key in standard
-     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
-     * seconds since 1/1/1970 UTC time)</li>
-     * <li>%<b>expirationdate</b>% = expiration date of the key in standard
-     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
-     * seconds since 1/1/1970 UTC time)</li>
-     * <li>%<b>flags</b>% = letter codes to indicate details of the key, if any. Flags may be in any
-     * order. The meaning of "disabled" is implementation-specific. Note that individual flags may
-     * be unimplemented, so the absence of a given flag does not necessarily mean the absence of
-     * the detail.
-     * <ul>
-     * <li>r == revoked</li>
-     * <li>d == disabled</li>
-     * <li>e == expired</li>
-     * </ul>
-     * </li>
-     * </ul>
-     */
-    private static final Pattern UID_LINE = Pattern
-            .compile("(?<uid>uid:" +              // group 1
-                            "(?<uidID>[^:\n]*)" +       // group 2
-                            "(?::(?<uidCreate>[0-9]*)" +  // group 3
-                            "(?::(?<uidExpire>[0-9]*)" +  // group 4
-                            "(?::(?<uidFlags>((?=(r(?!(.?r))|d(?!(.?d))|e(?!(.?e))))[rde]){0,3})" + // group 5
-                            ")?)?)?\n)",
-                    Pattern.CASE_INSENSITIVE);
-
-    /**
-     * pub:%keyid%:%algo%:%keylen%:%creationdate%:%expirationdate%:%flags%
-     * <ul>
-     * <li>%<b>keyid</b>% = this is either the fingerprint or the key ID of the key.
-     * Either the 16-digit or 8-digit key IDs are acceptable, but obviously the fingerprint is best.
-     * </li>
-     * <li>%<b>algo</b>% = the algorithm number, (i.e. 1==RSA, 17==DSA, etc).
-     * See <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a></li>
-     * <li>%<b>keylen</b>% = the key length (i.e. 1024, 2048, 4096, etc.)</li>
-     * <li>%<b>creationdate</b>% = creation date of the key in standard
-     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
-     * seconds since 1/1/1970 UTC time)</li>
-     * <li>%<b>expirationdate</b>% = expiration date of the key in standard
-     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
-     * seconds since 1/1/1970 UTC time)</li>
-     * <li>%<b>flags</b>% = letter codes to indicate details of the key, if any. Flags may be in any
-     * order. The meaning of "disabled" is implementation-specific. Note that individual flags may
-     * be unimplemented, so the absence of a given flag does not necessarily mean the absence of the
-     * detail.
-     * <ul>
-     * <li>r == revoked</li>
-     * <li>d == disabled</li>
-     * <li>e == expired</li>
-     * </ul>
-     * </li>
-     * </ul>
-     *
-     * @see <a href="http://tools.ietf.org/html/draft-shaw-openpgp-hkp-00#section-5.2">
-     * 5.2. Machine Readable Indexes</a>
-     * in Internet-Draft OpenPGP HTTP Keyserver Protocol Document
-     */
-    private static final Pattern PUB_KEY_LINE = Pattern
-            .compile( "(?<pub>pub:" +                 // group 1
-                            "(?<pubKeyID>[0-9a-fA-F]+)" +   // group 2
-                            "(?::(?<pubAlgo>[0-9]*)" +        // group 3
-                            "(?::(?<pubKeyLen>[0-9]*)" +      // group 4
-                            "(?::(?<pubCreate>[0-9]*)" +      // group 5
-                            "(?::(?<pubExpire>[0-9]*)" +      // group 6
-                            "(?::(?<pubFlags>(?:(?=(?:r(?!(.?r))|d(?!(.?d))|e(?!(.?e))))[rde]){0,3})" + // group 7
-                            ")?)?)?)?)?\n)"// pub line
-                            + "(?<pubUids>" + UID_LINE.pattern() + // group 11
-                            "+)", // one or more uid lines
-                    Pattern.CASE_INSENSITIVE
-            );
+    // broader searches are cut off here, to bound memory use
+    private static final int MAX_SEARCH_RESULTS = 1000;
 
     private static final Charset UTF_8 = Charset.forName("utf-8");
 
@@ -152,13 +72,28 @@ public class HkpKeyserverClient implements KeyserverClient {
     @Override
     public ArrayList<ImportKeysListEntry> search(String query, ParcelableProxy proxy)
             throws KeyserverClient.QueryFailedException, KeyserverClient.QueryNeedsRepairException {
-        ArrayList<ImportKeysListEntry> results = new ArrayList<>();
+        final ArrayList<ImportKeysListEntry> results = new ArrayList<>();
+        search(query, proxy, new SearchResultListener() {
+            @Override
+            public void onSearchResult(ImportKeysListEntry entry) {
+                results.add(entry);
+            }
+        });
+        return results;
+    }
 
+    /**
+     * Searches like {@link #search(String, ParcelableProxy)}, but parses the index while it is
+     * downloaded and hands out each entry as soon as it is complete. At most
+     * {@link #MAX_SEARCH_RESULTS} entries are handed out, the rest of the index is discarded.
+     */
+    public void search(String query, ParcelableProxy proxy, SearchResultListener listener)
+            throws KeyserverClient.QueryFailedException, KeyserverClient.QueryNeedsRepairException {
         if (query.length() < 3) {
             throw new KeyserverClient.QueryTooShortException();
         }
 
-        String data;
+        Response response;
         try {
             HttpUrl url = getHttpUrl(proxy).newBuilder()
                     .addPathSegment("lookup")
@@ -169,7 +104,7 @@ public class HkpKeyserverClient implements KeyserverClient {
 
             Timber.d("Keyserver search: " + url + " using Proxy: " + proxy.getProxy());
 
-            data = query(url, proxy);
+            response = openQuery(url, proxy);
         } catch (URISyntaxException e) {
             throw new IllegalStateException("Unsupported keyserver URI");
         } catch (HttpError e) {
@@ -183,7 +118,7 @@ public class HkpKeyserverClient implements KeyserverClient {
                 // "If any [...] searching is not supported, [...] error code such as 501
                 throw new KeyserverClient.QueryNotImplementedException();
             } else if (e.code == 404 || errData.contains("no keys found")) {
-                return results;
+                return;
             } else if (errData.contains("too many")) {
                 throw new KeyserverClient.TooManyResponsesException();
             } else if (errData.contains("insufficient")) {
@@ -194,137 +129,157 @@ public class HkpKeyserverClient implements KeyserverClient {
             }
         }
 
-        final Matcher infoMatcher = INFO_LINE.matcher(data);
-        if (infoMatcher.find()) {
-            int numFound = Integer.parseInt(infoMatcher.group(1));
-            Timber.d("Server returned " + numFound + " public key(s)");
-        } else {
-            Timber.w("Server using non-standard hkp");
-        }
-
-        final Matcher matcher = PUB_KEY_LINE.matcher(data);
-        while (matcher.find()) {
-            final ImportKeysListEntry entry = new ImportKeysListEntry();
-            entry.setQuery(query);
-
-            // group 2 contains the full fingerprint (v4) or the long key id if available
-            // see https://bitbucket.org/skskeyserver/sks-keyserver/pull-request/12/fixes-for-machine-readable-indexes/diff
-            String fingerprintOrKeyId = matcher.group(2).toLowerCase(Locale.ENGLISH);
-            if (fingerprintOrKeyId.length() == 40) {
-                byte[] fingerprint = KeyFormattingUtils.convertFingerprintHexFingerprint(fingerprintOrKeyId);
-                entry.setFingerprint(fingerprint);
-                entry.setKeyIdHex("0x" + fingerprintOrKeyId.substring(fingerprintOrKeyId.length()
-                        - 16, fingerprintOrKeyId.length()));
-            } else if (fingerprintOrKeyId.length() == 16) {
-                // set key id only
-                entry.setKeyIdHex("0x" + fingerprintOrKeyId);
-            } else {
-                Timber.e("Wrong length for fingerprint/long key id.");
-                // skip this key
-                continue;
-            }
-
-            try {
-                int bitSize = -1;
-                if (!matcher.group(4).isEmpty()){   // empty fields are allowed
-                    bitSize = Integer.parseInt(matcher.group(4));
-                    entry.setBitStrength(bitSize);
-                }
-
-                if (!matcher.group(3).isEmpty()){   // empty fields are allowed
-                    int algorithmId = Integer.decode(matcher.group(3));
-                    entry.setAlgorithm(KeyFormattingUtils
-                            .getAlgorithmInfo(algorithmId, bitSize, null));
-                }
-
-                if (!matcher.group(5).isEmpty()) {  // empty fields are allowed
-                    long creationDate = Long.parseLong(matcher.group(5));
-                    GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
-                    calendar.setTimeInMillis(creationDate * 1000);
-                    entry.setDate(calendar.getTime());
-                }
-            } catch (NumberFormatException e) {
-                Timber.e(e, "Conversation for bit size, algorithm, or creation date failed.");
-                // skip this key
-                continue;
-            }
-
-            try {
-                entry.setRevoked(matcher.group(7).contains("r"));
-                boolean expired = matcher.group(7).contains("e");
-
-                // It may be expired even without flag, thus check expiration date
-                String expiration;
-                if (!expired && !(expiration = matcher.group(6)).isEmpty()) {
-                    long expirationDate = Long.parseLong(expiration);
-                    TimeZone timeZoneUTC = TimeZone.getTimeZone("UTC");
-                    GregorianCalendar calendar = new GregorianCalendar(timeZoneUTC);
-                    calendar.setTimeInMillis(expirationDate * 1000);
-                    expired = new GregorianCalendar(timeZoneUTC).compareTo(calendar) >= 0;
-                }
-                entry.setExpired(expired);
-            } catch (NullPointerException e) {
-                Timber.e(e, "Check for revocation or expiry failed.");
-                // skip this key
-                continue;
-            }
-
-            ArrayList<String> userIds = new ArrayList<>();
-            final String uidLines = matcher.group(11);
-            final Matcher uidMatcher = UID_LINE.matcher(uidLines);
-            while (uidMatcher.find()) {
-                String tmp = uidMatcher.group(2).trim();
-                if (tmp.contains("%")) {
-                    if (tmp.contains("%%")) {
-                        // The server encodes a percent sign as %%, so it is swapped out with its
-                        // urlencoded counterpart to prevent errors
-                        tmp = tmp.replace("%%", "%25");
-                    }
-                    try {
-                        // converts Strings like "Universit%C3%A4t" to a proper encoding form "Universität".
-                        tmp = URLDecoder.decode(tmp, "UTF8");
-                    } catch (UnsupportedEncodingException ignored) {
-                        // will never happen, because "UTF8" is supported
-                    } catch (IllegalArgumentException e) {
-                        Timber.e(e, "User ID encoding broken");
-                        // skip this user id
-                        continue;
-                    }
+        try {
+            ResponseBody body = getResponseBody(response);
+            HkpIndexParser parser = new HkpIndexParser(
+                    new InputStreamReader(body.byteStream(), getCharset(body)), query, hkpKeyserver);
+
+            int numResults = 0;
+            ImportKeysListEntry entry;
+            while ((entry = parser.next()) != null) {
+                if (numResults == MAX_SEARCH_RESULTS) {
+                    Timber.w("Server returned more than " + MAX_SEARCH_RESULTS + " keys, ignoring the rest");
+                    break;
                 }
-                userIds.add(tmp);
+                listener.onSearchResult(entry);
+                numResults += 1;
             }
-            entry.setUserIds(userIds);
-            entry.setPrimaryUserId(userIds.get(0));
-            entry.setKeyserver(hkpKeyserver);
-
-            results.add(entry);
+        } catch (IOException e) {
+            throw toQueryFailedException(e, proxy);
+        } finally {
+            response.close();
         }
-        return results;
     }
 
     @Override
     public String get(String keyIdHex, ParcelableProxy proxy) throws KeyserverClient.QueryFailedException {
         String data;
         try {
-            HttpUrl url = getHttpUrl(proxy).newBuilder()
-                    .addPathSegment("lookup")
-                    .addQueryParameter("op", "get")
-                    .addQueryParameter("options", "mr")
-                    .addQueryParameter("search", keyIdHex)
-                    .build();
-
+            HttpUrl url = getKeyUrl(keyIdHex, proxy);
             Timber.d("Keyserver get: " + url + " using Proxy: " + proxy.getProxy());
 
             data = query(url, proxy);
         } catch (URISyntaxException e) {
             throw new IllegalStateException("Unsupported keyserver URI");
         } catch (HttpError httpError) {
-            Timber.d(httpError, "Failed to get key at HkpKeyserver");
-            if (httpError.getCode() == 404) {
-                throw new KeyserverClient.QueryNotFoundException("not found");
+            throw toGetException(httpError);
+        }
+        return extractArmoredKey(data);
+    }
+
+    /**
+     * Starts retrieving a key like {@link #get(String, ParcelableProxy)}, but returns right away.
+     * Any number of retrievals may be started like this. Over HTTP/1.1 each one in flight needs a
+     * connection of its own, there is no pipelining. If the keyserver speaks HTTP/2, they are
+     * multiplexed over a single connection. Either way the dispatcher of
+     * {@link OkHttpClientFactory} keeps a limited number in flight per host and queues the rest.
+     */
+    public PendingGet getAsync(String keyIdHex, ParcelableProxy proxy) {
+        HttpUrl url;
+        try {
+            url = getKeyUrl(keyIdHex, proxy);
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException("Unsupported keyserver URI");
+        }
+        Timber.d("Keyserver get (async): " + url + " using Proxy: " + proxy.getProxy());
+
+        PendingGet pendingGet = new PendingGet(url, proxy);
+        if (NotFoundCache.getInstance().isNotFound(url.toString())) {
+            pendingGet.httpError = new HttpError(404, null);
+            pendingGet.done.countDown();
+        } else {
+            OkHttpClient client = OkHttpClientFactory.getClientPinnedIfAvailable(url.url(), proxy.getProxy());
+            Request request = new Request.Builder()
+                    .url(url)
+                    .cacheControl(OkHttpClientFactory.CACHE_CONTROL_KEY_DATA)
+                    .build();
+            pendingGet.call = client.newCall(request);
+            pendingGet.call.enqueue(pendingGet);
+        }
+        return pendingGet;
+    }
+
+    /** A key retrieval started by {@link #getAsync(String, ParcelableProxy)}. */
+    public class PendingGet implements Callback {
+        private final HttpUrl url;
+        private final ParcelableProxy proxy;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private Call call;
+        private String data;
+        private HttpError httpError;
+        private IOException ioException;
+
+        private PendingGet(HttpUrl url, ParcelableProxy proxy) {
+            this.url = url;
+            this.proxy = proxy;
+        }
+
+        /** Waits for the retrieval to finish, and returns or throws the same as a blocking get. */
+        public String get() throws KeyserverClient.QueryFailedException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                cancel();
+                Thread.currentThread().interrupt();
+                throw new KeyserverClient.QueryFailedException("interrupted");
+            }
+
+            if (ioException != null) {
+                throw toQueryFailedException(ioException, proxy);
+            }
+            if (httpError != null) {
+                throw toGetException(httpError);
             }
-            throw new KeyserverClient.QueryFailedException("not found");
+            return extractArmoredKey(data);
+        }
+
+        public void cancel() {
+            if (call != null) {
+                call.cancel();
+            }
+        }
+
+        @Override
+        public void onFailure(@NonNull Call call, @NonNull IOException e) {
+            ioException = e;
+            done.countDown();
+        }
+
+        @Override
+        public void onResponse(@NonNull Call call, @NonNull Response response) {
+            try {
+                if (response.isSuccessful()) {
+                    data = getResponseBodyAsUtf8(response);
+                } else {
+                    httpError = toHttpError(url, response);
+                }
+            } catch (IOException e) {
+                ioException = e;
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+    private HttpUrl getKeyUrl(String keyIdHex, ParcelableProxy proxy) throws URISyntaxException {
+        return getHttpUrl(proxy).newBuilder()
+                .addPathSegment("lookup")
+                .addQueryParameter("op", "get")
+                .addQueryParameter("options", "mr")
+                .addQueryParameter("search", keyIdHex)
+                .build();
+    }
+
+    private static KeyserverClient.QueryFailedException toGetException(HttpError httpError) {
+        Timber.d(httpError, "Failed to get key at HkpKeyserver");
+        if (httpError.getCode() == 404) {
+            return new KeyserverClient.QueryNotFoundException("not found");
         }
+        return new KeyserverClient.QueryFailedException("not found");
+    }
+
+    private static String extractArmoredKey(String data) throws KeyserverClient.QueryFailedException {
         if (data == null) {
             throw new KeyserverClient.QueryFailedException("data is null");
         }
@@ -367,6 +322,9 @@ public class HkpKeyserverClient implements KeyserverClient {
                 throw new KeyserverClient.AddKeyException();
             }
 
+            // the key may have been looked up before it was uploaded
+            NotFoundCache.getInstance().clear();
+
         } catch (IOException e) {
             Timber.e(e, "IOException");
             throw new KeyserverClient.AddKeyException();
@@ -388,54 +346,83 @@ public class HkpKeyserverClient implements KeyserverClient {
     }
 
     private String query(HttpUrl url, @NonNull ParcelableProxy proxy) throws KeyserverClient.QueryFailedException, HttpError {
+        Response response = openQuery(url, proxy);
+        try {
+            return getResponseBodyAsUtf8(response);
+        } catch (IOException e) {
+            throw toQueryFailedException(e, proxy);
+        }
+    }
+
+    /** Returns the response to a successful query, which must be closed by the caller. */
+    private Response openQuery(HttpUrl url, @NonNull ParcelableProxy proxy)
+            throws KeyserverClient.QueryFailedException, HttpError {
+        if (NotFoundCache.getInstance().isNotFound(url.toString())) {
+            Timber.d("Keyserver query answered from not found cache");
+            throw new HttpError(404, null);
+        }
+
         try {
             OkHttpClient client = OkHttpClientFactory.getClientPinnedIfAvailable(url.url(), proxy.getProxy());
 
             Request request = new Request.Builder()
                     .url(url)
+                    .cacheControl(OkHttpClientFactory.CACHE_CONTROL_KEY_DATA)
                     .build();
 
             Response response = client
                     .newCall(request)
                     .execute();
 
-            // contains body both in case of success or failure
-            String responseBody = getResponseBodyAsUtf8(response);
-
-            if (response.isSuccessful()) {
-                return responseBody;
-            } else {
-                throw new HttpError(response.code(), responseBody);
+            if (!response.isSuccessful()) {
+                throw toHttpError(url, response);
             }
+            return response;
         } catch (IOException e) {
-            Timber.e(e, "IOException at HkpKeyserver");
-            String proxyInfo = proxy.getProxy() == Proxy.NO_PROXY ? "" : " Using proxy " + proxy.getProxy();
-            Throwable cause = e.getCause();
-            String causeName = cause != null ? cause.getClass().getSimpleName() : "generic";
-            throw new KeyserverClient.QueryFailedException(String.format(
-                    "Network error (%s) for '%s'. Check your Internet connection! %s",
-                    causeName, hkpKeyserver.getUrl(), proxyInfo));
+            throw toQueryFailedException(e, proxy);
         }
     }
 
+    private HttpError toHttpError(HttpUrl url, Response response) throws IOException {
+        // some keyservers explain the error in the body
+        String responseBody = getResponseBodyAsUtf8(response);
+        if (response.code() == 404) {
+            NotFoundCache.getInstance().putNotFound(url.toString());
+        }
+        return new HttpError(response.code(), responseBody);
+    }
+
+    private KeyserverClient.QueryFailedException toQueryFailedException(IOException e, ParcelableProxy proxy) {
+        Timber.e(e, "IOException at HkpKeyserver");
+        String proxyInfo = proxy.getProxy() == Proxy.NO_PROXY ? "" : " Using proxy " + proxy.getProxy();
+        Throwable cause = e.getCause();
+        String causeName = cause != null ? cause.getClass().getSimpleName() : "generic";
+        return new KeyserverClient.QueryFailedException(String.format(
+                "Network error (%s) for '%s'. Check your Internet connection! %s",
+                causeName, hkpKeyserver.getUrl(), proxyInfo));
+    }
+
     private String getResponseBodyAsUtf8(Response response) throws IOException {
-        String responseBody;
+        ResponseBody body = getResponseBody(response);
+        return new String(body.bytes(), getCharset(body));
+    }
+
+    private ResponseBody getResponseBody(Response response) throws IOException {
         ResponseBody body = response.body();
         if (body == null) {
             throw new IOException("Response from keyserver was empty");
         }
+        return body;
+    }
+
+    private Charset getCharset(ResponseBody body) {
         try {
             MediaType mediaType = body.contentType();
             Charset charset = mediaType != null ? mediaType.charset(UTF_8) : UTF_8;
-            if (charset == null) {
-                charset = UTF_8;
-            }
-            responseBody = new String(body.bytes(), charset);
+            return charset != null ? charset : UTF_8;
         } catch (UnsupportedCharsetException e) {
-            responseBody = new String(body.bytes(), UTF_8);
+            return UTF_8;
         }
-
-        return responseBody;
     }
 
     private static class HttpError extends Exception {
@@ -19,13 +19,18 @@ package org.sufficientlysecure.keychain.keyimport;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 
 /**
- * Just an ArrayList, only with a synchronized dupe-merging add/addAll, and a sign-off method
+ * Just an ArrayList, only with a synchronized dupe-merging add/addAll, and a sign-off method.
+ * Entries are indexed by fingerprint, so finding dupes doesn't get slower as the list grows.
  */
 public class ImportKeysList extends ArrayList<ImportKeysListEntry> {
 
     private int mSupplierCount;
+    private final HashMap<String, ImportKeysListEntry> mEntriesByFingerprint = new HashMap<>();
 
     public ImportKeysList(int supplierCount) {
         mSupplierCount = supplierCount;
@@ -38,7 +43,7 @@ public class ImportKeysList extends ArrayList<ImportKeysListEntry> {
     }
 
     @Override
-    public boolean addAll(Collection<? extends ImportKeysListEntry> addThese) {
+    public synchronized boolean addAll(Collection<? extends ImportKeysListEntry> addThese) {
         boolean modified = false;
         for (ImportKeysListEntry toAdd : addThese) {
             modified = addOrMerge(toAdd) || modified;
@@ -49,14 +54,32 @@ public class ImportKeysList extends ArrayList<ImportKeysListEntry> {
     // NOTE: side-effects
     // NOTE: synchronized
     private synchronized boolean addOrMerge(ImportKeysListEntry toAdd) {
-        for (ImportKeysListEntry existing : this) {
-            if (toAdd.hasSameKeyAs(existing)) {
-                return mergeDupes(toAdd, existing);
-            }
+        // entries without fingerprint can't be matched with others
+        if (toAdd.getFingerprint() == null) {
+            return super.add(toAdd);
+        }
+
+        String fingerprint = KeyFormattingUtils.convertFingerprintToHex(toAdd.getFingerprint());
+        ImportKeysListEntry existing = mEntriesByFingerprint.get(fingerprint);
+        if (existing != null) {
+            return mergeDupes(toAdd, existing);
         }
+        mEntriesByFingerprint.put(fingerprint, toAdd);
         return super.add(toAdd);
     }
 
+    /**
+     * Returns a copy of the entries added so far, which is safe to use while adding continues.
+     * The entries are copied as well, since merging dupes modifies the ones in this list.
+     */
+    public synchronized ArrayList<ImportKeysListEntry> snapshot() {
+        ArrayList<ImportKeysListEntry> entries = new ArrayList<>(size());
+        for (ImportKeysListEntry entry : this) {
+            entries.add(new ImportKeysListEntry(entry));
+        }
+        return entries;
+    }
+
     // being a little anal about the ArrayList#addAll contract here
     private boolean mergeDupes(ImportKeysListEntry incoming, ImportKeysListEntry existing) {
         boolean modified = false;
@@ -101,11 +124,28 @@ public class ImportKeysList extends ArrayList<ImportKeysListEntry> {
     public synchronized void finishedAdding() {
         mSupplierCount--;
         if (mSupplierCount == 0) {
-            this.notify();
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until all suppliers have signed off, or the timeout has passed.
+     *
+     * @return true if all suppliers have signed off
+     */
+    public synchronized boolean awaitFinishedAdding(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (mSupplierCount > 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            this.wait(remaining);
         }
+        return true;
     }
 
-    public int outstandingSuppliers() {
+    public synchronized int outstandingSuppliers() {
         return mSupplierCount;
     }
 }
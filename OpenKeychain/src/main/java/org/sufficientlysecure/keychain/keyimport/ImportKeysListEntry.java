@@ -276,6 +276,32 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
         mUserIds = new ArrayList<>();
     }
 
+    /**
+     * Copy constructor. The copy doesn't share any mutable state with the original, so either
+     * may be modified while the other is in use on a different thread.
+     */
+    public ImportKeysListEntry(ImportKeysListEntry other) {
+        mParcelableKeyRing = other.mParcelableKeyRing;
+        mKeyIdHex = other.mKeyIdHex;
+        mSecretKey = other.mSecretKey;
+        mRevoked = other.mRevoked;
+        mExpired = other.mExpired;
+        mSecure = other.mSecure;
+        mUpdated = other.mUpdated;
+        mDate = other.mDate != null ? new Date(other.mDate.getTime()) : null;
+        mFingerprint = other.mFingerprint != null ? other.mFingerprint.clone() : null;
+        mBitStrength = other.mBitStrength;
+        mCurveOid = other.mCurveOid;
+        mAlgorithm = other.mAlgorithm;
+        mPrimaryUserId = other.mPrimaryUserId;
+        mKeyserver = other.mKeyserver;
+        mKeybaseName = other.mKeybaseName;
+        mFbUsername = other.mFbUsername;
+        mQuery = other.mQuery;
+        mHashCode = other.mHashCode;
+        setUserIds(new ArrayList<>(other.mUserIds));
+    }
+
     /**
      * Constructor based on key object, used for import from NFC, QR Codes, files
      */
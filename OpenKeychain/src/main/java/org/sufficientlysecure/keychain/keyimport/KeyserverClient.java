@@ -81,6 +81,11 @@ public interface KeyserverClient {
         private static final long serialVersionUID = -507574859137295530L;
     }
 
+    /** Receives search results one at a time, as soon as they are available. */
+    interface SearchResultListener {
+        void onSearchResult(ImportKeysListEntry entry);
+    }
+
     List<ImportKeysListEntry> search(String query, ParcelableProxy proxy)
             throws QueryFailedException, QueryNeedsRepairException;
 
@@ -22,6 +22,7 @@ import android.support.annotation.Nullable;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import org.sufficientlysecure.keychain.network.NotFoundCache;
 import org.sufficientlysecure.keychain.network.OkHttpClientFactory;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
@@ -92,18 +93,33 @@ public class WebKeyDirectoryClient implements KeyserverClient {
         try {
             Timber.d("fetching from Web Key Directory with: %s proxy: %s", url, proxy);
 
-            Request request = new Request.Builder().url(url).build();
+            NotFoundCache notFoundCache = NotFoundCache.getInstance();
+            if (notFoundCache.isNotFound(url.toString())) {
+                Timber.d("Web Key Directory query answered from not found cache");
+                return null;
+            }
+
+            Request request = new Request.Builder()
+                    .url(url)
+                    .cacheControl(OkHttpClientFactory.CACHE_CONTROL_KEY_DATA)
+                    .build();
 
             OkHttpClient client = OkHttpClientFactory.getClientPinnedIfAvailableWithRedirects(url, proxy);
             Response response = client.newCall(request).execute();
 
-            if (response.isSuccessful()) {
-                return response.body().bytes();
-            } else if (response.code() == HttpURLConnection.HTTP_NOT_FOUND) {
-                return null;
-            } else {
-                throw new QueryFailedException("Error while fetching key from Web Key Directory. " +
-                        "Response:" + response);
+            // the connection is only reused if the response is closed
+            try {
+                if (response.isSuccessful()) {
+                    return response.body().bytes();
+                } else if (response.code() == HttpURLConnection.HTTP_NOT_FOUND) {
+                    notFoundCache.putNotFound(url.toString());
+                    return null;
+                } else {
+                    throw new QueryFailedException("Error while fetching key from Web Key Directory. " +
+                            "Response:" + response);
+                }
+            } finally {
+                response.close();
             }
 
         } catch (UnknownHostException e) {
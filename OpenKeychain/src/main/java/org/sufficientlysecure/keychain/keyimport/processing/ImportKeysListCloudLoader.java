@@ -18,6 +18,8 @@
 package org.sufficientlysecure.keychain.keyimport.processing;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.Nullable;
 import android.support.v4.content.AsyncTaskLoader;
 import org.sufficientlysecure.keychain.keyimport.CloudSearch;
@@ -46,6 +48,10 @@ public class ImportKeysListCloudLoader
     private ArrayList<ImportKeysListEntry> mEntryList = new ArrayList<>();
     private AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> mEntryListWrapper;
 
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private volatile CloudSearch mCloudSearch;
+    private volatile boolean mLoadFinished;
+
     /**
      * Searches a keyserver as specified in cloudPrefs, using an explicit proxy if passed
      *
@@ -66,6 +72,7 @@ public class ImportKeysListCloudLoader
 
     @Override
     public AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> loadInBackground() {
+        mLoadFinished = false;
         mEntryListWrapper = new AsyncTaskResultWrapper<>(mEntryList, null);
 
         if (mState.mServerQuery == null) {
@@ -81,16 +88,47 @@ public class ImportKeysListCloudLoader
         }
 
         // Now we have all the data needed to build the parcelable key ring for this key
-        for (ImportKeysListEntry e : mEntryList) {
-            if (e.getParcelableKeyRing() == null) {
-                e.setParcelableKeyRing(ParcelableKeyRing.createFromReference(e.getFingerprint(), e.getKeyIdHex(),
-                        e.getKeybaseName(), e.getFbUsername()));
-            }
-        }
+        setParcelableKeyRings(mEntryList);
 
+        mLoadFinished = true;
         return mEntryListWrapper;
     }
 
+    @Override
+    public void cancelLoadInBackground() {
+        CloudSearch cloudSearch = mCloudSearch;
+        if (cloudSearch != null) {
+            cloudSearch.cancel();
+        }
+    }
+
+    private static void setParcelableKeyRings(ArrayList<ImportKeysListEntry> entries) {
+        // entries may have been merged with results of other sources since the last time
+        for (ImportKeysListEntry e : entries) {
+            e.setParcelableKeyRing(ParcelableKeyRing.createFromReference(e.getFingerprint(), e.getKeyIdHex(),
+                    e.getKeybaseName(), e.getFbUsername()));
+        }
+    }
+
+    /**
+     * Shows the results found so far, while other sources are still being searched. These are
+     * delivered on the main thread like a finished load, and superseded by the final result.
+     */
+    private void deliverPartialResults(final ArrayList<ImportKeysListEntry> entries) {
+        setParcelableKeyRings(entries);
+        final AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> partialResult =
+                new AsyncTaskResultWrapper<>(entries, new GetKeyResult(GetKeyResult.RESULT_OK, null));
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mLoadFinished && isStarted() && !isAbandoned()) {
+                    deliverResult(partialResult);
+                }
+            }
+        });
+    }
+
     @Override
     protected void onReset() {
         super.onReset();
@@ -137,12 +175,23 @@ public class ImportKeysListCloudLoader
             proxy = mParcelableProxy;
         }
 
+        // a fingerprint search must come up with a single result, so there's nothing to show before
+        CloudSearch.ResultListener partialResultListener = enforceFingerprint ? null :
+                new CloudSearch.ResultListener() {
+                    @Override
+                    public void onResults(ArrayList<ImportKeysListEntry> results) {
+                        deliverPartialResults(results);
+                    }
+                };
+
         try {
-            ArrayList<ImportKeysListEntry> searchResult = CloudSearch.search(
+            mCloudSearch = CloudSearch.start(
                     mState.mServerQuery,
                     mState.mCloudPrefs,
-                    proxy
+                    proxy,
+                    partialResultListener
             );
+            ArrayList<ImportKeysListEntry> searchResult = mCloudSearch.getResults();
 
             mEntryList.clear();
             // add result to data
@@ -17,6 +17,8 @@
 
 package org.sufficientlysecure.keychain.keyimport.processing;
 
+import android.net.Uri;
+
 import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
 
 import java.util.List;
@@ -27,4 +29,6 @@ public interface ImportKeysListener extends ImportKeysResultListener {
 
     void importKeys(List<ImportKeysListEntry> entries);
 
+    void importKeysFromFile(Uri dataUri);
+
 }
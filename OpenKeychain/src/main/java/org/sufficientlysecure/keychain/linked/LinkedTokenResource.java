@@ -272,6 +272,8 @@ public abstract class LinkedTokenResource extends LinkedResource {
         String reason = response.message();
 
         if (statusCode != 200) {
+            // the connection is only reused if the response is closed
+            response.close();
             throw new HttpStatusException(statusCode, reason);
         }
 
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.network;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
+
+
+/**
+ * A process-wide cache of lookups which were answered with "not found", keyed by url.
+ * <p/>
+ * Most keys are not on every keyserver, WKD host, Keybase or Facebook, so a keyserver sync
+ * or a repeated search asks for the same missing key over and over. Those negative answers carry no
+ * cache headers, so they are remembered here for a limited time instead. Positive answers
+ * are cached by OkHttp's disk cache, see {@link OkHttpClientFactory}.
+ */
+public class NotFoundCache {
+
+    private static final int MAX_ENTRIES = 1000;
+    private static final long EXPIRY_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    private static NotFoundCache sInstance;
+
+    private final int mMaxEntries;
+    private final long mExpiryMillis;
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long mHitCount;
+    private long mMissCount;
+
+    public static synchronized NotFoundCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new NotFoundCache(MAX_ENTRIES, EXPIRY_MILLIS);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    NotFoundCache(int maxEntries, long expiryMillis) {
+        mMaxEntries = maxEntries;
+        mExpiryMillis = expiryMillis;
+    }
+
+    /** Returns true if the given url was recently answered with "not found". */
+    public synchronized boolean isNotFound(String url) {
+        Long expiry = mEntries.get(url);
+        if (expiry != null && expiry > SystemClock.elapsedRealtime()) {
+            mHitCount++;
+            return true;
+        }
+        if (expiry != null) {
+            mEntries.remove(url);
+        }
+        mMissCount++;
+        return false;
+    }
+
+    public synchronized void putNotFound(String url) {
+        mEntries.put(url, SystemClock.elapsedRealtime() + mExpiryMillis);
+        if (mEntries.size() > mMaxEntries) {
+            // evict the least recently used entry
+            Map.Entry<String, Long> eldest = mEntries.entrySet().iterator().next();
+            mEntries.remove(eldest.getKey());
+        }
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+}
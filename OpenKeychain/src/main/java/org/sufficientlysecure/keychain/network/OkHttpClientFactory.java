@@ -18,19 +18,124 @@
 package org.sufficientlysecure.keychain.network;
 
 
+import java.io.File;
+import java.io.IOException;
 import java.net.Proxy;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.concurrent.TimeUnit;
 
+import android.support.annotation.VisibleForTesting;
+
+import okhttp3.Cache;
+import okhttp3.CacheControl;
 import okhttp3.CertificatePinner;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import timber.log.Timber;
 
+/**
+ * Hands out the OkHttpClients used for all network requests.
+ * <p/>
+ * All clients are derived from a single root client, so they share its connection pool and
+ * dispatcher. Connections to keyservers are kept alive and reused between requests, which
+ * matters a lot for key refreshes over Tor, where each new connection needs a new circuit.
+ * Clients for a given proxy, redirect policy and pinned host are created once and reused,
+ * so pinned hosts also keep their TLS session cache.
+ * <p/>
+ * Once a cache directory is set, the root client also has a size-bounded disk cache, which
+ * honors caching headers and revalidates stale entries with conditional requests. Key data
+ * must not be served from it unchecked: a heuristically fresh copy of a key could hide a
+ * revocation. So requests for keys and keyserver searches use {@link #CACHE_CONTROL_KEY_DATA},
+ * which revalidates the cached copy on every request. The full response is only downloaded
+ * again if it changed since.
+ * <p/>
+ * Asynchronous requests may be issued in bulk, the shared dispatcher keeps up to
+ * {@link #MAX_REQUESTS_PER_HOST} of them in flight per host and queues the rest.
+ */
 public class OkHttpClientFactory {
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+    private static final long KEEP_ALIVE_DURATION_MINUTES = 5;
+    // asynchronous requests in flight per host, e.g. for batched key retrieval
+    private static final int MAX_REQUESTS_PER_HOST = 16;
+
+    private static final long HTTP_CACHE_SIZE = 10 * 1024 * 1024;
+    private static final String HTTP_CACHE_DIRECTORY = "http";
+
+    /**
+     * Cache control for requests of key data. Responses are stored, but always revalidated
+     * with the server using their ETag or Last-Modified date. Note that noCache() would skip
+     * the cache entirely in OkHttp, rather than revalidate.
+     */
+    public static final CacheControl CACHE_CONTROL_KEY_DATA = new CacheControl.Builder()
+            .maxAge(0, TimeUnit.SECONDS)
+            .build();
+
+    private static Cache httpCache;
+    private static OkHttpClient rootClient;
     private static OkHttpClient client;
+    private static final HashMap<ClientKey, OkHttpClient> derivedClients = new HashMap<>();
+
+    /**
+     * Sets up the disk cache for http responses in the given directory. This must be called
+     * before any client is requested, clients handed out before that are not cached.
+     */
+    public static synchronized void setCacheDirectory(File cacheDirectory) {
+        if (httpCache != null) {
+            return;
+        }
+        httpCache = new Cache(new File(cacheDirectory, HTTP_CACHE_DIRECTORY), HTTP_CACHE_SIZE);
+        if (rootClient != null) {
+            rootClient = null;
+            client = null;
+            derivedClients.clear();
+        }
+    }
+
+    /** Drops the cache and all clients, so the next test starts over with a cache of its own. */
+    @VisibleForTesting
+    public static synchronized void reset() {
+        if (httpCache != null) {
+            try {
+                httpCache.close();
+            } catch (IOException e) {
+                Timber.e(e, "error closing http cache");
+            }
+        }
+        httpCache = null;
+        rootClient = null;
+        client = null;
+        derivedClients.clear();
+    }
+
+    /** Returns the http response cache, which holds the hit counters, or null if there is none. */
+    public static synchronized Cache getHttpCache() {
+        return httpCache;
+    }
+
+    private static synchronized OkHttpClient getRootClient() {
+        if (rootClient == null) {
+            Dispatcher dispatcher = new Dispatcher();
+            dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
 
-    public static OkHttpClient getSimpleClient() {
+            rootClient = new OkHttpClient.Builder()
+                    .cache(httpCache)
+                    .dispatcher(dispatcher)
+                    .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS,
+                            KEEP_ALIVE_DURATION_MINUTES, TimeUnit.MINUTES))
+                    .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                    .retryOnConnectionFailure(true)
+                    .build();
+        }
+        return rootClient;
+    }
+
+    public static synchronized OkHttpClient getSimpleClient() {
         if (client == null) {
-            client = new OkHttpClient.Builder()
+            client = getRootClient().newBuilder()
                     .connectTimeout(5000, TimeUnit.MILLISECONDS)
                     .readTimeout(25000, TimeUnit.MILLISECONDS)
                     .build();
@@ -39,9 +144,7 @@ public class OkHttpClientFactory {
     }
 
     public static OkHttpClient getSimpleClientPinned(CertificatePinner pinner) {
-        return new OkHttpClient.Builder()
-                .connectTimeout(5000, TimeUnit.MILLISECONDS)
-                .readTimeout(25000, TimeUnit.MILLISECONDS)
+        return getSimpleClient().newBuilder()
                 .certificatePinner(pinner)
                 .build();
     }
@@ -55,8 +158,22 @@ public class OkHttpClientFactory {
         return getClientPinnedIfAvailable(url, proxy, true);
     }
 
-    private static OkHttpClient getClientPinnedIfAvailable(URL url, Proxy proxy, boolean followRedirects) {
-        OkHttpClient.Builder builder = new OkHttpClient.Builder();
+    private static synchronized OkHttpClient getClientPinnedIfAvailable(URL url, Proxy proxy,
+            boolean followRedirects) {
+        // If a pinned cert is available, use it!
+        // NOTE: this fails gracefully back to "no pinning" if no cert is available.
+        TlsCertificatePinning tlsCertificatePinning = new TlsCertificatePinning(url);
+        boolean isHttpsProtocol = "https".equals(url.getProtocol());
+        boolean isPinAvailable = tlsCertificatePinning.isPinAvailable();
+        String pinnedHost = isHttpsProtocol && isPinAvailable ? url.getHost() : null;
+
+        ClientKey key = new ClientKey(proxy, followRedirects, pinnedHost);
+        OkHttpClient derivedClient = derivedClients.get(key);
+        if (derivedClient != null) {
+            return derivedClient;
+        }
+
+        OkHttpClient.Builder builder = getRootClient().newBuilder();
 
         builder.followRedirects(followRedirects)
                 .followSslRedirects(false);
@@ -71,16 +188,47 @@ public class OkHttpClientFactory {
                     .readTimeout(25000, TimeUnit.MILLISECONDS);
         }
 
-        // If a pinned cert is available, use it!
-        // NOTE: this fails gracefully back to "no pinning" if no cert is available.
-        TlsCertificatePinning tlsCertificatePinning = new TlsCertificatePinning(url);
-        boolean isHttpsProtocol = "https".equals(url.getProtocol());
-        boolean isPinAvailable = tlsCertificatePinning.isPinAvailable();
-        if (isHttpsProtocol && isPinAvailable) {
+        if (pinnedHost != null) {
             tlsCertificatePinning.pinCertificate(builder);
         }
 
-        return builder.build();
+        derivedClient = builder.build();
+        derivedClients.put(key, derivedClient);
+        return derivedClient;
+    }
+
+    private static class ClientKey {
+        private final Proxy proxy;
+        private final boolean followRedirects;
+        private final String pinnedHost;
+
+        ClientKey(Proxy proxy, boolean followRedirects, String pinnedHost) {
+            this.proxy = proxy;
+            this.followRedirects = followRedirects;
+            this.pinnedHost = pinnedHost;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            ClientKey other = (ClientKey) o;
+            return followRedirects == other.followRedirects
+                    && (proxy == null ? other.proxy == null : proxy.equals(other.proxy))
+                    && (pinnedHost == null ? other.pinnedHost == null : pinnedHost.equals(other.pinnedHost));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = proxy != null ? proxy.hashCode() : 0;
+            result = 31 * result + (followRedirects ? 1 : 0);
+            result = 31 * result + (pinnedHost != null ? pinnedHost.hashCode() : 0);
+            return result;
+        }
     }
 
 }
@@ -18,13 +18,18 @@
 package org.sufficientlysecure.keychain.network;
 
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.net.Proxy;
 import java.net.URL;
+import java.util.Collections;
+import java.util.List;
 
 import com.textuality.keybase.lib.KeybaseUrlConnectionClient;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
+import timber.log.Timber;
 
 /**
  * Wrapper for Keybase Lib
@@ -33,6 +38,13 @@ public class OkHttpKeybaseClient implements KeybaseUrlConnectionClient {
 
     @Override
     public Response getUrlResponse(URL url, Proxy proxy, boolean isKeybase) throws IOException {
+        NotFoundCache notFoundCache = NotFoundCache.getInstance();
+        if (notFoundCache.isNotFound(url.toString())) {
+            Timber.d("Keybase query answered from not found cache");
+            return new Response(new ByteArrayInputStream(new byte[0]), HttpURLConnection.HTTP_NOT_FOUND,
+                    "Not Found", Collections.<String, List<String>>emptyMap());
+        }
+
         OkHttpClient client;
 
         if (proxy != null) {
@@ -41,9 +53,15 @@ public class OkHttpKeybaseClient implements KeybaseUrlConnectionClient {
             client = OkHttpClientFactory.getSimpleClient();
         }
 
+        // keys and proofs are revalidated on every request, see OkHttpClientFactory
         Request request = new Request.Builder()
-                .url(url).build();
+                .url(url)
+                .cacheControl(OkHttpClientFactory.CACHE_CONTROL_KEY_DATA)
+                .build();
         okhttp3.Response okResponse = client.newCall(request).execute();
+        if (okResponse.code() == HttpURLConnection.HTTP_NOT_FOUND) {
+            notFoundCache.putNotFound(url.toString());
+        }
         return new Response(okResponse.body().byteStream(), okResponse.code(), okResponse.message(), okResponse.headers().toMultimap());
     }
 
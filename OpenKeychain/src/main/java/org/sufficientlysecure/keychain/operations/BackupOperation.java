@@ -19,21 +19,33 @@ package org.sufficientlysecure.keychain.operations;
 
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 import android.content.Context;
 import android.database.Cursor;
-import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
@@ -45,8 +57,7 @@ import org.sufficientlysecure.keychain.operations.results.ExportResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
-import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
-import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptData;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
 import org.sufficientlysecure.keychain.pgp.Progressable;
@@ -56,14 +67,13 @@ import org.sufficientlysecure.keychain.provider.KeyRepository;
 import org.sufficientlysecure.keychain.provider.KeyRepository.NotFoundException;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
-import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
 import org.sufficientlysecure.keychain.service.BackupKeyringParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Numeric9x4PassphraseUtil;
-import org.sufficientlysecure.keychain.util.CountingOutputStream;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.StreamBufferPool;
 import timber.log.Timber;
 
 
@@ -89,6 +99,13 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
     // this is a very simple matcher, we only need basic sanitization
     private static final Pattern HEADER_PATTERN = Pattern.compile("[a-zA-Z0-9_-]+: [^\\n]+");
 
+    private static final int EXPORT_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    // how many keys may be encoded ahead of the writer
+    private static final int MAX_ENCODED_AHEAD = 4 * EXPORT_THREADS;
+
+    // how far the export may run ahead of the encryption
+    private static final int PIPE_BUFFER_SIZE = 1 << 16;
+
     public BackupOperation(Context context, KeyRepository keyRepository, Progressable
             progressable) {
         super(context, keyRepository, progressable);
@@ -116,64 +133,177 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
         }
 
         try {
-            Uri plainUri = null;
-            OutputStream plainOut;
             if (backupInput.getIsEncrypted()) {
                 if (cryptoInput == null) {
                     throw new IllegalStateException("Encrypted backup must supply cryptoInput parameter");
                 }
+                return executeEncrypted(log, backupInput, cryptoInput, outputStream);
+            }
 
-                plainUri = TemporaryFileProvider.createFile(mContext);
-                plainOut = mContext.getContentResolver().openOutputStream(plainUri);
-            } else {
-                if (backupInput.getOutputUri() == null || outputStream != null) {
-                    throw new IllegalArgumentException("Unencrypted export to output stream is not supported!");
-                } else {
-                    plainOut = mContext.getContentResolver().openOutputStream(backupInput.getOutputUri());
-                }
+            if (backupInput.getOutputUri() == null || outputStream != null) {
+                throw new IllegalArgumentException("Unencrypted export to output stream is not supported!");
             }
+            OutputStream plainOut = mContext.getContentResolver().openOutputStream(backupInput.getOutputUri());
 
-            CountingOutputStream outStream = new CountingOutputStream(new BufferedOutputStream(plainOut));
             boolean backupSuccess = exportKeysToStream(log, backupInput.getMasterKeyIds(),
-                    backupInput.getExportSecret(), backupInput.getExportPublic(), outStream, backupInput.getExtraHeaders());
+                    backupInput.getExportSecret(), backupInput.getExportPublic(),
+                    new BufferedOutputStream(plainOut), backupInput.getExtraHeaders());
 
             if (!backupSuccess) {
                 // if there was an error, it will be in the log so we just have to return
                 return new ExportResult(ExportResult.RESULT_ERROR, log);
             }
 
-            if (!backupInput.getIsEncrypted()) {
-                // log.add(LogType.MSG_EXPORT_NO_ENCRYPT, 1);
-                log.add(LogType.MSG_BACKUP_SUCCESS, 1);
-                return new ExportResult(ExportResult.RESULT_OK, log);
+            // log.add(LogType.MSG_EXPORT_NO_ENCRYPT, 1);
+            log.add(LogType.MSG_BACKUP_SUCCESS, 1);
+            return new ExportResult(ExportResult.RESULT_OK, log);
+
+        } catch (FileNotFoundException e) {
+            log.add(LogType.MSG_BACKUP_ERROR_URI_OPEN, 1);
+            return new ExportResult(ExportResult.RESULT_ERROR, log);
+        }
+
+    }
+
+    /**
+     * Exports the keys on a separate thread, and encrypts them on this one as they are written.
+     * The two are connected by a bounded pipe, so the plaintext never touches the disk, and the
+     * export can't run ahead of the encryption by more than the pipe's buffer.
+     */
+    @NonNull
+    private ExportResult executeEncrypted(final OperationLog log, final BackupKeyringParcel backupInput,
+            @NonNull CryptoInputParcel cryptoInput, @Nullable OutputStream outputStream)
+            throws FileNotFoundException {
+
+        OutputStream encryptedOut = openEncryptedOutputStream(backupInput, outputStream);
+
+        final PipedOutputStream pipeOut = new PipedOutputStream();
+        PipedInputStream pipeIn;
+        try {
+            pipeIn = new PipedInputStream(pipeOut, PIPE_BUFFER_SIZE);
+        } catch (IOException e) {
+            log.add(LogType.MSG_BACKUP_ERROR_IO, 1);
+            return new ExportResult(ExportResult.RESULT_ERROR, log);
+        }
+
+        // the log is only touched by the export until it is done, see getExportResult
+        final FutureTask<Boolean> exportTask = new FutureTask<>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                try {
+                    return exportKeysToStream(log, backupInput.getMasterKeyIds(),
+                            backupInput.getExportSecret(), backupInput.getExportPublic(),
+                            new BufferedOutputStream(pipeOut, StreamBufferPool.BUFFER_SIZE),
+                            backupInput.getExtraHeaders());
+                } finally {
+                    // the encryption waits for more data until the pipe is closed
+                    pipeOut.close();
+                }
             }
+        });
+        new Thread(exportTask, "BackupExport").start();
 
-            long exportedDataSize = outStream.getCount();
-            PgpSignEncryptResult encryptResult =
-                    encryptBackupData(backupInput, cryptoInput, outputStream, plainUri, exportedDataSize);
+        PgpSignEncryptResult encryptResult;
+        try {
+            // only hand the end of the data to the encryption if the export actually completed,
+            // a truncated backup must not end up as a valid encrypted file
+            InputStream plainIn = new FilterInputStream(pipeIn) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b == -1) {
+                        checkExportSucceeded(exportTask);
+                    }
+                    return b;
+                }
 
-            if (!encryptResult.success()) {
-                log.addByMerge(encryptResult, 1);
-                // log.add(LogType.MSG_EXPORT_ERROR_ENCRYPT, 1);
-                return new ExportResult(ExportResult.RESULT_ERROR, log);
+                @Override
+                public int read(@NonNull byte[] buffer, int offset, int count) throws IOException {
+                    int read = super.read(buffer, offset, count);
+                    if (read == -1) {
+                        checkExportSucceeded(exportTask);
+                    }
+                    return read;
+                }
+            };
+            encryptResult = encryptBackupData(backupInput, cryptoInput, plainIn, encryptedOut);
+        } finally {
+            // if the encryption stopped early, this makes the export fail instead of blocking
+            try {
+                pipeIn.close();
+            } catch (IOException e) {
+                Timber.e(e, "error closing pipe");
             }
+        }
 
-            log.add(encryptResult, 1);
-            log.add(LogType.MSG_BACKUP_SUCCESS, 1);
-            return new ExportResult(ExportResult.RESULT_OK, log);
+        if (!getExportResult(exportTask)) {
+            // if there was an error, it will be in the log so we just have to return
+            return new ExportResult(ExportResult.RESULT_ERROR, log);
+        }
 
-        } catch (FileNotFoundException e) {
-            log.add(LogType.MSG_BACKUP_ERROR_URI_OPEN, 1);
+        if (!encryptResult.success()) {
+            log.addByMerge(encryptResult, 1);
+            // log.add(LogType.MSG_EXPORT_ERROR_ENCRYPT, 1);
             return new ExportResult(ExportResult.RESULT_ERROR, log);
         }
 
+        log.add(encryptResult, 1);
+        log.add(LogType.MSG_BACKUP_SUCCESS, 1);
+        return new ExportResult(ExportResult.RESULT_OK, log);
+    }
+
+    private static void checkExportSucceeded(FutureTask<Boolean> exportTask) throws IOException {
+        try {
+            if (!exportTask.get()) {
+                throw new IOException("key export failed");
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException("key export failed", e.getCause());
+        }
+    }
+
+    /** Waits for the export to finish, and rethrows unchecked exceptions it threw. */
+    private static boolean getExportResult(FutureTask<Boolean> exportTask) {
+        try {
+            return exportTask.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new AssertionError(cause);
+        }
+    }
+
+    private OutputStream openEncryptedOutputStream(@NonNull BackupKeyringParcel backupInput,
+            @Nullable OutputStream outputStream) throws FileNotFoundException {
+        if (backupInput.getOutputUri() == null) {
+            if (outputStream == null) {
+                throw new IllegalArgumentException("If output uri is not set, outputStream must not be null!");
+            }
+            return outputStream;
+        } else {
+            if (outputStream != null) {
+                throw new IllegalArgumentException("If output uri is set, outputStream must null!");
+            }
+            return mContext.getContentResolver().openOutputStream(backupInput.getOutputUri());
+        }
     }
 
     @NonNull
     private PgpSignEncryptResult encryptBackupData(@NonNull BackupKeyringParcel backupInput,
-            @NonNull CryptoInputParcel cryptoInput, @Nullable OutputStream outputStream, Uri plainUri, long exportedDataSize)
-            throws FileNotFoundException {
-        PgpSignEncryptOperation signEncryptOperation = new PgpSignEncryptOperation(mContext, mKeyRepository, mProgressable, mCancelled);
+            @NonNull CryptoInputParcel cryptoInput, InputStream inStream, OutputStream outStream) {
+        // progress is reported by the export, which the encryption keeps pace with
+        PgpSignEncryptOperation signEncryptOperation =
+                new PgpSignEncryptOperation(mContext, mKeyRepository, null, mCancelled);
 
         PgpSignEncryptData.Builder builder = PgpSignEncryptData.builder();
         Passphrase passphrase = cryptoInput.getPassphrase();
@@ -187,8 +317,6 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
         }
         PgpSignEncryptData pgpSignEncryptData = builder.build();
 
-        InputStream inStream = mContext.getContentResolver().openInputStream(plainUri);
-
         String filename;
         long[] masterKeyIds = backupInput.getMasterKeyIds();
         if (masterKeyIds != null && masterKeyIds.length == 1) {
@@ -200,30 +328,15 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
         }
         filename += backupInput.getExportSecret() ? Constants.FILE_EXTENSION_BACKUP_SECRET : Constants.FILE_EXTENSION_BACKUP_PUBLIC;
 
-        InputData inputData = new InputData(inStream, exportedDataSize, filename);
-
-        OutputStream outStream;
-        if (backupInput.getOutputUri() == null) {
-            if (outputStream == null) {
-                throw new IllegalArgumentException("If output uri is not set, outputStream must not be null!");
-            }
-            outStream = outputStream;
-        } else {
-            if (outputStream != null) {
-                throw new IllegalArgumentException("If output uri is set, outputStream must null!");
-            }
-            outStream = mContext.getContentResolver().openOutputStream(backupInput.getOutputUri());
-        }
+        // the size isn't known until the export is done, it is only used for progress though
+        InputData inputData = new InputData(inStream, InputData.UNKNOWN_FILESIZE, filename);
 
         return signEncryptOperation.execute(
                 pgpSignEncryptData, CryptoInputParcel.createCryptoInputParcel(), inputData, outStream);
     }
 
-    boolean exportKeysToStream(OperationLog log, long[] masterKeyIds, boolean exportSecret, boolean exportPublic,
-            OutputStream outStream, List<String> extraSecretKeyHeaders) {
-        // noinspection unused TODO use these in a log entry
-        int okSecret = 0, okPublic = 0;
-
+    boolean exportKeysToStream(OperationLog log, long[] masterKeyIds, final boolean exportSecret,
+            final boolean exportPublic, OutputStream outStream, List<String> extraSecretKeyHeaders) {
         int progress = 0;
 
         Cursor cursor = queryForKeys(masterKeyIds);
@@ -233,6 +346,11 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
             return false; // new ExportResult(ExportResult.RESULT_ERROR, log);
         }
 
+        // keys are loaded and encoded in parallel, but written in the order of the cursor
+        ThreadPoolExecutor exportExecutor = new ThreadPoolExecutor(EXPORT_THREADS, EXPORT_THREADS,
+                30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        exportExecutor.allowCoreThreadTimeOut(true);
+        ArrayDeque<Future<EncodedKey>> encoding = new ArrayDeque<>();
         try {
 
             int numKeys = cursor.getCount();
@@ -240,33 +358,34 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
             updateProgress(mContext.getResources().getQuantityString(R.plurals.progress_exporting_key, numKeys),
                     0, numKeys);
 
-            // For each public masterKey id
-            while (!cursor.isAfterLast()) {
+            while (!cursor.isAfterLast() || !encoding.isEmpty()) {
 
-                long masterKeyId = cursor.getLong(INDEX_MASTER_KEY_ID);
-                log.add(LogType.MSG_BACKUP_PUBLIC, 1, KeyFormattingUtils.beautifyKeyId(masterKeyId));
+                // keep the workers busy, but don't encode arbitrarily far ahead of the writer
+                while (!cursor.isAfterLast() && encoding.size() < MAX_ENCODED_AHEAD) {
+                    final long masterKeyId = cursor.getLong(INDEX_MASTER_KEY_ID);
+                    boolean hasSecret = cursor.getInt(INDEX_HAS_ANY_SECRET) > 0;
+                    final boolean exportSecretKey = exportSecret && hasSecret;
 
-                boolean publicKeyWriteOk = false;
-                if (exportPublic) {
-                    publicKeyWriteOk = writePublicKeyToStream(masterKeyId, log, outStream);
-                    if (publicKeyWriteOk) {
-                        okPublic += 1;
+                    // extra headers only go into the first secret key
+                    final List<String> headers = exportSecretKey ? extraSecretKeyHeaders : null;
+                    if (exportSecretKey) {
+                        extraSecretKeyHeaders = null;
                     }
-                }
 
-                if (publicKeyWriteOk || !exportPublic) {
-                    boolean hasSecret = cursor.getInt(INDEX_HAS_ANY_SECRET) > 0;
-                    if (exportSecret && hasSecret) {
-                        log.add(LogType.MSG_BACKUP_SECRET, 2, KeyFormattingUtils.beautifyKeyId(masterKeyId));
-                        if (writeSecretKeyToStream(masterKeyId, log, outStream, extraSecretKeyHeaders)) {
-                            okSecret += 1;
+                    encoding.add(exportExecutor.submit(new Callable<EncodedKey>() {
+                        @Override
+                        public EncodedKey call() throws IOException {
+                            return encodeKey(masterKeyId, exportPublic, exportSecretKey, headers);
                         }
-                        extraSecretKeyHeaders = null;
-                    }
+                    }));
+                    cursor.moveToNext();
                 }
 
+                EncodedKey encodedKey = encoding.remove().get();
+                log.addAll(encodedKey.mLog.toList());
+                outStream.write(encodedKey.mData);
+
                 updateProgress(progress++, numKeys);
-                cursor.moveToNext();
             }
 
             updateProgress(R.string.progress_done, numKeys, numKeys);
@@ -274,7 +393,21 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
         } catch (IOException e) {
             log.add(LogType.MSG_BACKUP_ERROR_IO, 1);
             return false; // new ExportResult(ExportResult.RESULT_ERROR, log);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            log.add(LogType.MSG_BACKUP_ERROR_IO, 1);
+            return false;
+        } catch (InterruptedException e) {
+            Timber.e(e, "Interrupted during key export");
+            log.add(LogType.MSG_BACKUP_ERROR_IO, 1);
+            return false;
         } finally {
+            for (Future<EncodedKey> future : encoding) {
+                future.cancel(true);
+            }
+            exportExecutor.shutdown();
             // Make sure the stream is closed
             if (outStream != null) try {
                 outStream.close();
@@ -287,15 +420,45 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
         return true;
     }
 
-    private boolean writePublicKeyToStream(long masterKeyId, OperationLog log, OutputStream outStream) throws IOException {
+    private static class EncodedKey {
+        final byte[] mData;
+        final OperationLog mLog;
+
+        EncodedKey(byte[] data, OperationLog log) {
+            mData = data;
+            mLog = log;
+        }
+    }
+
+    /**
+     * Loads and armors the public and/or secret keyring of a key, as it will appear in the export.
+     * This runs on a worker thread, so log entries go to a log of its own which is merged by the writer.
+     */
+    private EncodedKey encodeKey(long masterKeyId, boolean exportPublic, boolean exportSecret,
+            List<String> extraSecretKeyHeaders) throws IOException {
+        OperationLog log = new OperationLog();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        log.add(LogType.MSG_BACKUP_PUBLIC, 1, KeyFormattingUtils.beautifyKeyId(masterKeyId));
+        if (exportPublic) {
+            writePublicKeyToStream(masterKeyId, log, out);
+        }
+
+        if (exportSecret) {
+            log.add(LogType.MSG_BACKUP_SECRET, 2, KeyFormattingUtils.beautifyKeyId(masterKeyId));
+            writeSecretKeyToStream(masterKeyId, log, out, extraSecretKeyHeaders);
+        }
+
+        return new EncodedKey(out.toByteArray(), log);
+    }
+
+    private void writePublicKeyToStream(long masterKeyId, OperationLog log, OutputStream outStream) throws IOException {
         ArmoredOutputStream arOutStream = null;
 
         try {
             arOutStream = new ArmoredOutputStream(outStream);
             byte[] data = mKeyRepository.loadPublicKeyRingData(masterKeyId);
-            UncachedKeyRing uncachedKeyRing = UncachedKeyRing.decodeFromData(data);
-            CanonicalizedPublicKeyRing ring = (CanonicalizedPublicKeyRing) uncachedKeyRing.canonicalize(log, 2, true);
-            ring.encode(arOutStream);
+            arOutStream.write(getExportableKeyRingData(data, log));
         } catch (PgpGeneralException | NotFoundException e) {
             log.add(LogType.MSG_UPLOAD_ERROR_IO, 2);
         } finally {
@@ -303,10 +466,9 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
                 arOutStream.close();
             }
         }
-        return true;
     }
 
-    private boolean writeSecretKeyToStream(long masterKeyId, OperationLog log, OutputStream outStream,
+    private void writeSecretKeyToStream(long masterKeyId, OperationLog log, OutputStream outStream,
             List<String> extraSecretKeyHeaders)
             throws IOException {
         ArmoredOutputStream arOutStream = null;
@@ -318,9 +480,7 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
             }
 
             byte[] data = mKeyRepository.loadSecretKeyRingData(masterKeyId);
-            UncachedKeyRing uncachedKeyRing = UncachedKeyRing.decodeFromData(data);
-            CanonicalizedSecretKeyRing ring = (CanonicalizedSecretKeyRing) uncachedKeyRing.canonicalize(log, 2, true);
-            ring.encode(arOutStream);
+            arOutStream.write(getExportableKeyRingData(data, log));
         } catch (PgpGeneralException | NotFoundException e) {
             log.add(LogType.MSG_UPLOAD_ERROR_IO, 2);
         } finally {
@@ -328,7 +488,25 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
                 arOutStream.close();
             }
         }
-        return true;
+    }
+
+    /**
+     * Returns the keyring data as it is exported. Stored keyrings are canonicalized already, so the
+     * only thing left to do for export is to strip non-exportable signatures. If there are none, the
+     * stored data is exported as is, which saves verifying every signature and re-encoding the ring.
+     */
+    private static byte[] getExportableKeyRingData(byte[] data, OperationLog log)
+            throws PgpGeneralException, IOException {
+        UncachedKeyRing uncachedKeyRing = UncachedKeyRing.decodeFromData(data);
+        if (!uncachedKeyRing.hasLocalSignatures()) {
+            return data;
+        }
+
+        CanonicalizedKeyRing ring = uncachedKeyRing.canonicalize(log, 2, true);
+        if (ring == null) {
+            throw new PgpGeneralException("keyring could not be canonicalized for export");
+        }
+        return ring.getEncoded();
     }
 
     private void addExtraHeadersToStream(ArmoredOutputStream arOutStream, List<String> headers) {
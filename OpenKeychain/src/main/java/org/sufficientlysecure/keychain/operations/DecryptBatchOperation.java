@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import org.sufficientlysecure.keychain.operations.results.DecryptBatchResult;
+import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
+import org.sufficientlysecure.keychain.pgp.DecryptBatchParcel;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
+import org.sufficientlysecure.keychain.pgp.Progressable;
+import org.sufficientlysecure.keychain.provider.KeyRepository;
+import org.sufficientlysecure.keychain.service.OperationScheduler;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.RequiredInputType;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.SecurityTokenDecryptOperationsBuilder;
+import org.sufficientlysecure.keychain.util.ParallelProgress;
+import timber.log.Timber;
+
+
+/**
+ * This is a high-level operation, which decrypts several inputs in parallel.
+ * <p/>
+ * The first input is processed on its own, so that a required passphrase is
+ * requested and the secret key unlocked only once. All other inputs are then
+ * decrypted concurrently, sharing the unlocked key and the session keys in the
+ * crypto input. Security token requests of all inputs are collected into a
+ * single required input, so the token only needs to be presented once.
+ * <p/>
+ * Unlike SignEncryptOperation, this operation is not fail-fast: the inputs are
+ * independent, and the result contains one DecryptVerifyResult for each.
+ */
+public class DecryptBatchOperation extends BaseOperation<DecryptBatchParcel> {
+
+    private static final int MAX_THREADS = Runtime.getRuntime().availableProcessors();
+
+    public DecryptBatchOperation(Context context, KeyRepository keyRepository,
+            Progressable progressable, AtomicBoolean cancelled) {
+        super(context, keyRepository, progressable, cancelled);
+    }
+
+    @NonNull
+    @Override
+    public DecryptBatchResult execute(DecryptBatchParcel input, CryptoInputParcel cryptoInput) {
+        OperationLog log = new OperationLog();
+
+        List<PgpDecryptVerifyInputParcel> inputParcels = input.getInputParcels();
+        int total = inputParcels.size();
+        log.add(LogType.MSG_DB, 0, Integer.toString(total));
+
+        ArrayList<DecryptVerifyResult> results = new ArrayList<>(total);
+        if (total == 0) {
+            log.add(LogType.MSG_DB_ERROR_NO_INPUT, 1);
+            return new DecryptBatchResult(DecryptBatchResult.RESULT_ERROR, log, results);
+        }
+
+        ParallelProgress parallelProgress = new ParallelProgress(mProgressable, total);
+        Map<Long, CanonicalizedSecretKey> unlockedKeys = new ConcurrentHashMap<>();
+
+        DecryptVerifyResult firstResult = new PgpDecryptVerifyOperation(mContext, mKeyRepository,
+                parallelProgress.getProgressable(0), mCancelled, unlockedKeys).execute(inputParcels.get(0), cryptoInput);
+        results.add(firstResult);
+        log.add(firstResult, 1);
+
+        if (firstResult.isPending()
+                && firstResult.getRequiredInputParcel().mType != RequiredInputType.SECURITY_TOKEN_DECRYPT) {
+            return new DecryptBatchResult(log, firstResult.getRequiredInputParcel(), results, cryptoInput);
+        }
+
+        // continue with the passphrase and session key which were used for the first input
+        CryptoInputParcel sharedCryptoInput = firstResult.success() && firstResult.getCachedCryptoInputParcel() != null
+                ? firstResult.getCachedCryptoInputParcel() : cryptoInput;
+
+        if (total > 1) {
+            try {
+                decryptParallel(inputParcels, sharedCryptoInput, parallelProgress, unlockedKeys, log, results);
+            } catch (InterruptedException e) {
+                Timber.e(e, "interrupted during parallel decryption");
+                return new DecryptBatchResult(DecryptBatchResult.RESULT_ERROR, log, results);
+            }
+        }
+
+        if (checkCancelled()) {
+            log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+            return new DecryptBatchResult(DecryptBatchResult.RESULT_CANCELLED, log, results);
+        }
+
+        // passphrases are requested one at a time, security token operations are aggregated
+        SecurityTokenDecryptOperationsBuilder pendingTokenBuilder = null;
+        boolean anyError = false;
+        for (DecryptVerifyResult result : results) {
+            if (!result.isPending()) {
+                anyError |= !result.success();
+                continue;
+            }
+
+            RequiredInputParcel requiredInput = result.getRequiredInputParcel();
+            if (requiredInput.mType != RequiredInputType.SECURITY_TOKEN_DECRYPT) {
+                return new DecryptBatchResult(log, requiredInput, results, sharedCryptoInput);
+            }
+            if (pendingTokenBuilder == null) {
+                pendingTokenBuilder = new SecurityTokenDecryptOperationsBuilder(
+                        requiredInput.getMasterKeyId(), requiredInput.getSubKeyId());
+            }
+            if (pendingTokenBuilder.canAdd(requiredInput)) {
+                pendingTokenBuilder.addAll(requiredInput);
+            }
+        }
+
+        if (pendingTokenBuilder != null) {
+            return new DecryptBatchResult(log, pendingTokenBuilder.build(), results, sharedCryptoInput);
+        }
+        if (anyError) {
+            return new DecryptBatchResult(DecryptBatchResult.RESULT_ERROR, log, results);
+        }
+
+        log.add(LogType.MSG_DB_SUCCESS, 1);
+        return new DecryptBatchResult(DecryptBatchResult.RESULT_OK, log, results);
+    }
+
+    private void decryptParallel(List<PgpDecryptVerifyInputParcel> inputParcels,
+            final CryptoInputParcel cryptoInput, final ParallelProgress parallelProgress,
+            final Map<Long, CanonicalizedSecretKey> unlockedKeys, OperationLog log,
+            ArrayList<DecryptVerifyResult> results) throws InterruptedException {
+
+        ArrayList<Callable<DecryptVerifyResult>> tasks = new ArrayList<>(inputParcels.size() - 1);
+        for (int i = 1; i < inputParcels.size(); i++) {
+            final int slot = i;
+            final PgpDecryptVerifyInputParcel inputParcel = inputParcels.get(i);
+
+            tasks.add(new Callable<DecryptVerifyResult>() {
+                @Override
+                public DecryptVerifyResult call() {
+                    if (checkCancelled()) {
+                        return null;
+                    }
+
+                    PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(mContext, mKeyRepository,
+                            parallelProgress.getProgressable(slot), mCancelled, unlockedKeys);
+                    return op.execute(inputParcel, cryptoInput);
+                }
+            });
+        }
+
+        // sub-tasks share the cpu budget of the operation scheduler with all other operations,
+        // results come back in input order
+        for (DecryptVerifyResult result : OperationScheduler.getInstance().invokeAll(tasks, MAX_THREADS)) {
+            // skipped after cancellation
+            if (result == null) {
+                continue;
+            }
+
+            results.add(result);
+            log.add(result, 1);
+        }
+    }
+
+}
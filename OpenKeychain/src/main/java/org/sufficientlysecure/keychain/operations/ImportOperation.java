@@ -18,20 +18,27 @@
 package org.sufficientlysecure.keychain.operations;
 
 
+import java.io.BufferedInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.Context;
+import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
@@ -39,6 +46,7 @@ import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.keyimport.FacebookKeyserverClient;
 import org.sufficientlysecure.keychain.keyimport.HkpKeyserverAddress;
 import org.sufficientlysecure.keychain.keyimport.HkpKeyserverClient;
+import org.sufficientlysecure.keychain.keyimport.HkpKeyserverClient.PendingGet;
 import org.sufficientlysecure.keychain.keyimport.KeybaseKeyserverClient;
 import org.sufficientlysecure.keychain.keyimport.KeyserverClient;
 import org.sufficientlysecure.keychain.keyimport.KeyserverClient.QueryNotFoundException;
@@ -53,19 +61,23 @@ import org.sufficientlysecure.keychain.operations.results.UpdateTrustResult;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing.IteratorWithIOThrow;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
+import org.sufficientlysecure.keychain.provider.KeyWritableRepository.PreparedKeyRing;
 import org.sufficientlysecure.keychain.provider.LastUpdateInteractor;
 import org.sufficientlysecure.keychain.service.ContactSyncAdapterService;
 import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.FileHelper;
 import org.sufficientlysecure.keychain.util.IteratorWithSize;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache;
 import org.sufficientlysecure.keychain.util.ParcelableProxy;
+import org.sufficientlysecure.keychain.util.PositionAwareInputStream;
 import org.sufficientlysecure.keychain.util.Preferences;
-import org.sufficientlysecure.keychain.util.ProgressScaler;
+import org.sufficientlysecure.keychain.util.StreamBufferPool;
 import timber.log.Timber;
 
 
@@ -87,6 +99,10 @@ import timber.log.Timber;
 public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel> {
 
     private static final int MAX_THREADS = 10;
+    // how many entries may be fetched and prepared ahead of the writer
+    private static final int MAX_PREPARED_AHEAD = 4 * MAX_THREADS;
+    // how many entries are written in a single transaction
+    private static final int WRITE_BATCH_SIZE = 100;
 
     public static final String CACHE_FILE_NAME = "key_import.pcl";
 
@@ -109,21 +125,21 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
     }
 
     // Overloaded functions for using progressable supplied in constructor during import
-    public ImportKeyResult serialKeyRingImport(Iterator<ParcelableKeyRing> entries, int num,
-                                               HkpKeyserverAddress keyserver, ParcelableProxy proxy, boolean skipSave) {
-        return serialKeyRingImport(entries, num, keyserver, mProgressable, proxy, skipSave);
+    public ImportKeyResult importKeyRings(Iterator<ParcelableKeyRing> entries, int num,
+                                          HkpKeyserverAddress keyserver, ParcelableProxy proxy, boolean skipSave) {
+        return importKeyRings(entries, num, keyserver, mProgressable, proxy, skipSave);
     }
 
     @NonNull
-    private ImportKeyResult serialKeyRingImport(ParcelableFileCache<ParcelableKeyRing> cache,
-                                                HkpKeyserverAddress keyserver, ParcelableProxy proxy, boolean skipSave) {
+    private ImportKeyResult importKeyRings(ParcelableFileCache<ParcelableKeyRing> cache,
+                                           HkpKeyserverAddress keyserver, ParcelableProxy proxy, boolean skipSave) {
 
         // get entries from cached file
         try {
             IteratorWithSize<ParcelableKeyRing> it = cache.readCache();
             int numEntries = it.getSize();
 
-            return serialKeyRingImport(it, numEntries, keyserver, mProgressable, proxy, skipSave);
+            return importKeyRings(it, numEntries, keyserver, mProgressable, proxy, skipSave);
         } catch (IOException e) {
 
             // Special treatment here, we need a lot
@@ -137,19 +153,23 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
     }
 
     /**
+     * Imports keyrings in two stages: Entries are fetched, merged with the database and
+     * canonicalized on a pool of worker threads, which is where nearly all of the time goes.
+     * The results are then written by the calling thread, in the original order and in batches
+     * of one transaction each.
+     * <p>
      * Since the introduction of multithreaded import, we expect calling functions to handle the
      * contact-to-key sync i.e ContactSyncAdapterService.requestContactsSync()
      *
      * @param entries      keys to import
      * @param numTotalKeys          number of keys to import
      * @param hkpKeyserver contains uri of keyserver to import from, if it is an import from cloud
-     * @param progressable Allows multi-threaded import to supply a progressable that ignores the
-     *                     progress of a single key being imported
+     * @param progressable progress of the import, updated whenever a batch has been written
      */
     @NonNull
-    private ImportKeyResult serialKeyRingImport(Iterator<ParcelableKeyRing> entries, int numTotalKeys,
-                                                HkpKeyserverAddress hkpKeyserver, Progressable progressable,
-                                                @NonNull ParcelableProxy proxy, boolean skipSave) {
+    private ImportKeyResult importKeyRings(final Iterator<ParcelableKeyRing> entries, int numTotalKeys,
+                                           final HkpKeyserverAddress hkpKeyserver, Progressable progressable,
+                                           @NonNull final ParcelableProxy proxy, boolean skipSave) {
         if (progressable != null) {
             progressable.setProgress(R.string.progress_importing, 0, 100);
         }
@@ -162,109 +182,142 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
             return new ImportKeyResult(ImportKeyResult.RESULT_FAIL_NOTHING, log);
         }
 
-        int newKeys = 0, updatedKeys = 0, missingKeys = 0, badKeys = 0;
-        ArrayList<Long> secretMasterKeyIds = new ArrayList<>();
-        ArrayList<Long> importedMasterKeyIds = new ArrayList<>();
-
-        ArrayList<CanonicalizedKeyRing> canKeyRings = new ArrayList<>();
+        // retrievals which were started, but whose entry was not prepared, e.g. after cancellation
+        final Set<PendingGet> unusedGets = Collections.synchronizedSet(new HashSet<PendingGet>());
+        Iterator<Callable<PreparedImport>> tasks = new Iterator<Callable<PreparedImport>>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
 
-        boolean cancelled = false;
-        int keyImportsFinished = 0;
+            @Override
+            public Callable<PreparedImport> next() {
+                final ParcelableKeyRing entry = entries.next();
+                // tasks are taken well ahead of the workers, so retrieval starts here already
+                final PendingGet pendingGet = startKeyserverGet(entry, hkpKeyserver, proxy);
+                if (pendingGet != null) {
+                    unusedGets.add(pendingGet);
+                }
+                return new Callable<PreparedImport>() {
+                    @Override
+                    public PreparedImport call() {
+                        unusedGets.remove(pendingGet);
+                        return prepareImport(entry, hkpKeyserver, proxy, pendingGet);
+                    }
+                };
+            }
 
-        // iterate over all entries
-        while (entries.hasNext()) {
-            ParcelableKeyRing entry = entries.next();
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
 
-            // Has this action been cancelled? If so, don't proceed any further
-            if (checkCancelled()) {
-                cancelled = true;
-                break;
+        ImportWriter writer = new ImportWriter(log, numTotalKeys, progressable, skipSave);
+        try {
+            return runImport(tasks, writer, log, progressable, skipSave);
+        } finally {
+            synchronized (unusedGets) {
+                for (PendingGet pendingGet : unusedGets) {
+                    pendingGet.cancel();
+                }
             }
+        }
+    }
 
-            boolean keyWasDownloaded = false;
+    /**
+     * Imports all keyrings from a file, which is parsed only as far as the import has progressed.
+     * Unlike imports through the cache file, memory use does not depend on the size of the file.
+     */
+    @NonNull
+    private ImportKeyResult importKeyRings(Uri sourceUri, Progressable progressable, boolean skipSave) {
+        if (progressable != null) {
+            progressable.setProgress(R.string.progress_importing, 0, 100);
+        }
 
-            try {
+        OperationLog log = new OperationLog();
+        log.add(LogType.MSG_IMPORT_STREAM, 0);
 
-                UncachedKeyRing key = null;
+        InputStream in;
+        try {
+            in = mContext.getContentResolver().openInputStream(sourceUri);
+            if (in == null) {
+                throw new FileNotFoundException("no input stream for " + sourceUri);
+            }
+        } catch (FileNotFoundException e) {
+            Timber.e(e, "Could not open file for import");
+            log.add(LogType.MSG_IMPORT_ERROR_IO, 1);
+            return new ImportKeyResult(ImportKeyResult.RESULT_ERROR, log);
+        }
 
-                // If there is already byte data, use that
-                if (entry.getBytes() != null) {
-                    key = UncachedKeyRing.decodeFromData(entry.getBytes());
-                } else {
-                    try {
-                        key = fetchKeyFromInternet(hkpKeyserver, proxy, log, entry, key);
-                    } catch (QueryNotFoundException e) {
-                        // note that this does NOT fire on network errors! those will be logged inline and return in null
-                        log.add(LogType.MSG_IMPORT_FETCH_ERROR_NOT_FOUND, 2);
-                        missingKeys += 1;
-
-                        byte[] fingerprintHex = entry.getExpectedFingerprint();
-                        if (fingerprintHex != null) {
-                            lastUpdateInteractor.renewKeyLastUpdatedTime(
-                                    KeyFormattingUtils.getKeyIdFromFingerprint(fingerprintHex), false);
-                        }
-                        continue;
-                    }
+        PositionAwareInputStream positionIn = new PositionAwareInputStream(in);
+        try {
+            KeyRingStreamTasks tasks = new KeyRingStreamTasks(positionIn,
+                    FileHelper.getFileSize(mContext, sourceUri, -1), progressable);
+            if (!tasks.hasNext()) {
+                return new ImportKeyResult(ImportKeyResult.RESULT_FAIL_NOTHING, log);
+            }
 
-                    if (key != null) {
-                        keyWasDownloaded = true;
+            // the number of keys isn't known in advance, progress is tracked by the stream instead
+            ImportWriter writer = new ImportWriter(log, 0, progressable, skipSave);
+            return runImport(tasks, writer, log, progressable, skipSave);
+        } finally {
+            try {
+                positionIn.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
 
-                        if (key.isSecret()) {
-                            log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER_SECRET, 2);
-                            badKeys += 1;
-                            continue;
-                        }
-                    }
-                }
+    @NonNull
+    private ImportKeyResult runImport(Iterator<Callable<PreparedImport>> tasks, ImportWriter writer,
+            OperationLog log, Progressable progressable, boolean skipSave) {
+        boolean cancelled = false;
 
-                if (key == null) {
-                    log.add(LogType.MSG_IMPORT_FETCH_ERROR, 2);
-                    badKeys += 1;
-                    continue;
+        // with an unbounded queue, a pool only grows beyond its core size once the queue is full
+        ThreadPoolExecutor importExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        importExecutor.allowCoreThreadTimeOut(true);
+        ArrayDeque<Future<PreparedImport>> preparing = new ArrayDeque<>();
+        try {
+            while (tasks.hasNext() || !preparing.isEmpty()) {
+                // Has this action been cancelled? If so, don't proceed any further
+                if (checkCancelled()) {
+                    cancelled = true;
+                    break;
                 }
 
-                SaveKeyringResult result;
-                // synchronizing prevents https://github.com/open-keychain/open-keychain/issues/1221
-                // and https://github.com/open-keychain/open-keychain/issues/1480
-                synchronized (mKeyRepository) {
-                    mKeyRepository.clearLog();
-                    if (key.isSecret()) {
-                        result = mKeyWritableRepository.saveSecretKeyRing(key, canKeyRings, skipSave);
-                    } else {
-                        result = mKeyWritableRepository.savePublicKeyRing(key, entry.getExpectedFingerprint(), canKeyRings,
-                                false, skipSave);
-                    }
+                // keep the workers busy, but don't read arbitrarily far ahead of the writer
+                while (tasks.hasNext() && preparing.size() < MAX_PREPARED_AHEAD) {
+                    preparing.add(importExecutor.submit(tasks.next()));
                 }
-                if (!result.success()) {
-                    badKeys += 1;
-                } else {
-                    if (result.updated()) {
-                        updatedKeys += 1;
-                        importedMasterKeyIds.add(key.getMasterKeyId());
-                    } else {
-                        newKeys += 1;
-                        if (key.isSecret()) {
-                            secretMasterKeyIds.add(key.getMasterKeyId());
-                        }
-                        importedMasterKeyIds.add(key.getMasterKeyId());
-                    }
 
-                    if (!skipSave) {
-                        lastUpdateInteractor.renewKeyLastUpdatedTime(key.getMasterKeyId(), keyWasDownloaded);
-                    }
+                try {
+                    writer.add(preparing.remove().get());
+                } catch (InterruptedException e) {
+                    Timber.e(e, "Interrupted during key import");
+                    cancelled = true;
+                    break;
+                } catch (ExecutionException e) {
+                    // prepareImport does not throw any exceptions, so this is a bug
+                    throw new RuntimeException(e);
                 }
-
-                log.add(result, 2);
-            } catch (IOException | PgpGeneralException e) {
-                Timber.e(e, "Encountered bad key on import!");
-                ++badKeys;
             }
 
-            // update progress
-            keyImportsFinished += 1;
-            progressable.setProgress(keyImportsFinished, numTotalKeys);
+            // whatever has been prepared up to here is written, even if cancelled
+            writer.flush();
+        } finally {
+            for (Future<PreparedImport> future : preparing) {
+                future.cancel(true);
+            }
+            importExecutor.shutdown();
         }
 
+        ArrayList<Long> secretMasterKeyIds = writer.secretMasterKeyIds;
+        int newKeys = writer.newKeys, updatedKeys = writer.updatedKeys;
+        int missingKeys = writer.missingKeys, badKeys = writer.badKeys;
+
         // Special: consolidate on secret key import (cannot be cancelled!)
         // synchronized on mProviderHelper to prevent
         // https://github.com/open-keychain/open-keychain/issues/1221 since a consolidate deletes
@@ -283,6 +336,7 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         // ContactSyncAdapterService.requestContactsSync();
 
         // convert to long array
+        ArrayList<Long> importedMasterKeyIds = writer.importedMasterKeyIds;
         long[] importedMasterKeyIdsArray = new long[importedMasterKeyIds.size()];
         for (int i = 0; i < importedMasterKeyIds.size(); ++i) {
             importedMasterKeyIdsArray[i] = importedMasterKeyIds.get(i);
@@ -331,12 +385,319 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
                 resultType, log, newKeys, updatedKeys, missingKeys, badKeys, secretMasterKeyIds.size(),
                 importedMasterKeyIdsArray);
 
-        result.setCanonicalizedKeyRings(canKeyRings);
+        result.setCanonicalizedKeyRings(writer.canKeyRings);
         return result;
     }
 
+    /**
+     * Starts retrieving an entry from the keyserver without waiting for it, so the retrievals
+     * of many entries run concurrently. Returns null if the entry isn't
+     * retrieved from the keyserver.
+     */
+    @Nullable
+    private PendingGet startKeyserverGet(ParcelableKeyRing entry, HkpKeyserverAddress hkpKeyserver,
+            @NonNull ParcelableProxy proxy) {
+        if (entry.getBytes() != null || hkpKeyserver == null) {
+            return null;
+        }
+        String keyserverQuery = getKeyserverQuery(entry);
+        if (keyserverQuery == null) {
+            return null;
+        }
+        return HkpKeyserverClient.fromHkpKeyserverAddress(hkpKeyserver).getAsync(keyserverQuery, proxy);
+    }
+
+    /**
+     * Fetches or decodes a single entry, and prepares it for saving. This runs on a worker
+     * thread, and must not write to the database.
+     */
+    @NonNull
+    private PreparedImport prepareImport(ParcelableKeyRing entry, HkpKeyserverAddress hkpKeyserver,
+            @NonNull ParcelableProxy proxy, @Nullable PendingGet pendingGet) {
+        PreparedImport preparedImport = new PreparedImport(entry.getExpectedFingerprint());
+        OperationLog log = preparedImport.log;
+
+        try {
+            UncachedKeyRing key = null;
+
+            // If there is already byte data, use that
+            if (entry.getBytes() != null) {
+                key = UncachedKeyRing.decodeFromData(entry.getBytes());
+            } else {
+                try {
+                    key = fetchKeyFromInternet(hkpKeyserver, proxy, log, entry, key, pendingGet);
+                } catch (QueryNotFoundException e) {
+                    // note that this does NOT fire on network errors! those will be logged inline and return in null
+                    log.add(LogType.MSG_IMPORT_FETCH_ERROR_NOT_FOUND, 2);
+                    preparedImport.missing = true;
+                    return preparedImport;
+                }
+
+                if (key != null) {
+                    preparedImport.keyWasDownloaded = true;
+
+                    if (key.isSecret()) {
+                        log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER_SECRET, 2);
+                        return preparedImport;
+                    }
+                }
+            }
+
+            if (key == null) {
+                log.add(LogType.MSG_IMPORT_FETCH_ERROR, 2);
+                return preparedImport;
+            }
+
+            preparedImport.key = key;
+            preparedImport.prepare();
+        } catch (IOException | PgpGeneralException e) {
+            Timber.e(e, "Encountered bad key on import!");
+        }
+
+        return preparedImport;
+    }
+
+    /**
+     * A single entry of an import, as fetched and prepared by a worker thread. If there is no
+     * prepared keyring, the entry is either missing or bad.
+     */
+    private class PreparedImport {
+        final byte[] expectedFingerprint;
+        final OperationLog log = new OperationLog();
+        final ArrayList<CanonicalizedKeyRing> canKeyRings = new ArrayList<>();
+
+        UncachedKeyRing key;
+        boolean keyWasDownloaded;
+        boolean missing;
+        PreparedKeyRing preparedKeyRing;
+
+        PreparedImport(byte[] expectedFingerprint) {
+            this.expectedFingerprint = expectedFingerprint;
+        }
+
+        void prepare() {
+            // each preparation keeps its own log, so it needs its own repository
+            KeyWritableRepository repository = mKeyWritableRepository.fork();
+
+            canKeyRings.clear();
+            if (key.isSecret()) {
+                preparedKeyRing = repository.prepareSecretKeyRing(key, canKeyRings);
+            } else {
+                preparedKeyRing = repository.preparePublicKeyRing(key, expectedFingerprint, canKeyRings, false);
+            }
+        }
+    }
+
+    /**
+     * Parses keyrings from a stream one at a time, whenever the import asks for the next one. A
+     * read error ends the stream with a single bad entry, so everything before it is imported.
+     */
+    private class KeyRingStreamTasks implements Iterator<Callable<PreparedImport>> {
+        private final IteratorWithIOThrow<UncachedKeyRing> keyRings;
+        private final PositionAwareInputStream positionIn;
+        private final long size;
+        private final Progressable progressable;
+
+        private boolean failed = false;
+
+        KeyRingStreamTasks(PositionAwareInputStream positionIn, long size, Progressable progressable) {
+            this.keyRings = UncachedKeyRing.fromStream(
+                    new BufferedInputStream(positionIn, StreamBufferPool.BUFFER_SIZE));
+            this.positionIn = positionIn;
+            this.size = size;
+            this.progressable = progressable;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (failed) {
+                return false;
+            }
+            try {
+                return keyRings.hasNext();
+            } catch (IOException e) {
+                Timber.e(e, "Error reading keyrings from stream");
+                // report the error as next entry
+                return true;
+            }
+        }
+
+        @Override
+        public Callable<PreparedImport> next() {
+            UncachedKeyRing next;
+            try {
+                next = keyRings.next();
+            } catch (IOException e) {
+                next = null;
+            }
+            final UncachedKeyRing key = next;
+
+            if (progressable != null && size > 0) {
+                progressable.setProgress((int) (100 * positionIn.position() / size), 100);
+            }
+
+            if (key == null) {
+                failed = true;
+                return new Callable<PreparedImport>() {
+                    @Override
+                    public PreparedImport call() {
+                        PreparedImport preparedImport = new PreparedImport(null);
+                        preparedImport.log.add(LogType.MSG_IMPORT_ERROR_IO, 2);
+                        return preparedImport;
+                    }
+                };
+            }
+
+            return new Callable<PreparedImport>() {
+                @Override
+                public PreparedImport call() {
+                    PreparedImport preparedImport = new PreparedImport(null);
+                    preparedImport.key = key;
+                    preparedImport.prepare();
+                    return preparedImport;
+                }
+            };
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * The writing stage of an import. Takes prepared entries in their original order, saves them
+     * in batches, and keeps count of the results.
+     */
+    private class ImportWriter {
+        private final OperationLog log;
+        private final int numTotalKeys;
+        private final Progressable progressable;
+        private final boolean skipSave;
+
+        int newKeys = 0, updatedKeys = 0, missingKeys = 0, badKeys = 0;
+        final ArrayList<Long> secretMasterKeyIds = new ArrayList<>();
+        final ArrayList<Long> importedMasterKeyIds = new ArrayList<>();
+        final ArrayList<CanonicalizedKeyRing> canKeyRings = new ArrayList<>();
+
+        private final ArrayList<PreparedImport> batch = new ArrayList<>();
+        private final HashSet<Long> batchMasterKeyIds = new HashSet<>();
+        private final HashSet<Long> writtenMasterKeyIds = new HashSet<>();
+        private int keyImportsFinished = 0;
+
+        ImportWriter(OperationLog log, int numTotalKeys, Progressable progressable, boolean skipSave) {
+            this.log = log;
+            this.numTotalKeys = numTotalKeys;
+            this.progressable = progressable;
+            this.skipSave = skipSave;
+        }
+
+        void add(PreparedImport preparedImport) {
+            if (preparedImport.key != null) {
+                long masterKeyId = preparedImport.key.getMasterKeyId();
+                if (batchMasterKeyIds.contains(masterKeyId)) {
+                    flush();
+                }
+                // the same key may come up several times, e.g. as public and secret key. in that case, the
+                // preparation may have missed what was saved before, so it's repeated here.
+                if (writtenMasterKeyIds.contains(masterKeyId)) {
+                    preparedImport.prepare();
+                }
+                batchMasterKeyIds.add(masterKeyId);
+            }
+
+            batch.add(preparedImport);
+            if (batch.size() >= WRITE_BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            ArrayList<PreparedKeyRing> preparedKeyRings = new ArrayList<>();
+            for (PreparedImport preparedImport : batch) {
+                if (preparedImport.preparedKeyRing != null) {
+                    preparedKeyRings.add(preparedImport.preparedKeyRing);
+                }
+            }
+
+            List<SaveKeyringResult> results;
+            // synchronizing prevents https://github.com/open-keychain/open-keychain/issues/1221
+            // and https://github.com/open-keychain/open-keychain/issues/1480
+            synchronized (mKeyRepository) {
+                if (skipSave) {
+                    results = new ArrayList<>();
+                    for (PreparedKeyRing preparedKeyRing : preparedKeyRings) {
+                        results.add(mKeyWritableRepository.savePreparedKeyRing(preparedKeyRing, true));
+                    }
+                } else {
+                    results = mKeyWritableRepository.savePreparedKeyRings(preparedKeyRings);
+                }
+            }
+
+            Iterator<SaveKeyringResult> resultIterator = results.iterator();
+            for (PreparedImport preparedImport : batch) {
+                log.addAll(preparedImport.log.toList());
+
+                if (preparedImport.missing) {
+                    missingKeys += 1;
+
+                    byte[] fingerprintHex = preparedImport.expectedFingerprint;
+                    if (fingerprintHex != null) {
+                        lastUpdateInteractor.renewKeyLastUpdatedTime(
+                                KeyFormattingUtils.getKeyIdFromFingerprint(fingerprintHex), false);
+                    }
+                    continue;
+                }
+
+                if (preparedImport.preparedKeyRing == null) {
+                    badKeys += 1;
+                    continue;
+                }
+
+                UncachedKeyRing key = preparedImport.key;
+                SaveKeyringResult result = resultIterator.next();
+                canKeyRings.addAll(preparedImport.canKeyRings);
+                if (!result.success()) {
+                    badKeys += 1;
+                } else {
+                    if (result.updated()) {
+                        updatedKeys += 1;
+                        importedMasterKeyIds.add(key.getMasterKeyId());
+                    } else {
+                        newKeys += 1;
+                        if (key.isSecret()) {
+                            secretMasterKeyIds.add(key.getMasterKeyId());
+                        }
+                        importedMasterKeyIds.add(key.getMasterKeyId());
+                    }
+
+                    if (!skipSave) {
+                        lastUpdateInteractor.renewKeyLastUpdatedTime(key.getMasterKeyId(),
+                                preparedImport.keyWasDownloaded);
+                    }
+                }
+
+                log.add(result, 2);
+            }
+
+            // update progress
+            keyImportsFinished += batch.size();
+            if (progressable != null && numTotalKeys > 0) {
+                progressable.setProgress(keyImportsFinished, numTotalKeys);
+            }
+
+            writtenMasterKeyIds.addAll(batchMasterKeyIds);
+            batchMasterKeyIds.clear();
+            batch.clear();
+        }
+    }
+
     private UncachedKeyRing fetchKeyFromInternet(HkpKeyserverAddress hkpKeyserver, @NonNull ParcelableProxy proxy,
-            OperationLog log, ParcelableKeyRing entry, UncachedKeyRing key)
+            OperationLog log, ParcelableKeyRing entry, UncachedKeyRing key, @Nullable PendingGet pendingGet)
             throws PgpGeneralException, IOException, QueryNotFoundException {
         QueryNotFoundException queryNotFoundException = null;
 
@@ -345,7 +706,7 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         if (canFetchFromKeyservers) {
             UncachedKeyRing keyserverKey = null;
             try {
-                keyserverKey = fetchKeyFromKeyserver(hkpKeyserver, proxy, log, entry);
+                keyserverKey = fetchKeyFromKeyserver(hkpKeyserver, proxy, log, entry, pendingGet);
             } catch (QueryNotFoundException e) {
                 queryNotFoundException = e;
             }
@@ -380,22 +741,26 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
 
     @Nullable
     private UncachedKeyRing fetchKeyFromKeyserver(HkpKeyserverAddress hkpKeyserver, @NonNull ParcelableProxy proxy,
-            OperationLog log, ParcelableKeyRing entry) throws PgpGeneralException, IOException, KeyserverClient.QueryNotFoundException {
+            OperationLog log, ParcelableKeyRing entry, @Nullable PendingGet pendingGet)
+            throws PgpGeneralException, IOException, KeyserverClient.QueryNotFoundException {
         try {
             byte[] data;
             log.add(LogType.MSG_IMPORT_KEYSERVER, 1, hkpKeyserver);
 
-            HkpKeyserverClient keyserverInteractor = HkpKeyserverClient.fromHkpKeyserverAddress(hkpKeyserver);
-
             // Download by fingerprint, or keyId - whichever is available
             if (entry.getExpectedFingerprint() != null) {
                 String fingerprintHex = KeyFormattingUtils.convertFingerprintToHex(entry.getExpectedFingerprint());
                 log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, "0x" +
                         fingerprintHex.substring(24));
-                data = keyserverInteractor.get("0x" + fingerprintHex, proxy).getBytes();
             } else {
                 log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, entry.getKeyIdHex());
-                data = keyserverInteractor.get(entry.getKeyIdHex(), proxy).getBytes();
+            }
+
+            if (pendingGet != null) {
+                data = pendingGet.get().getBytes();
+            } else {
+                HkpKeyserverClient keyserverInteractor = HkpKeyserverClient.fromHkpKeyserverAddress(hkpKeyserver);
+                data = keyserverInteractor.get(getKeyserverQuery(entry), proxy).getBytes();
             }
             UncachedKeyRing keyserverKey = UncachedKeyRing.decodeFromData(data);
             if (keyserverKey != null) {
@@ -414,6 +779,13 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         }
     }
 
+    private static String getKeyserverQuery(ParcelableKeyRing entry) {
+        if (entry.getExpectedFingerprint() != null) {
+            return "0x" + KeyFormattingUtils.convertFingerprintToHex(entry.getExpectedFingerprint());
+        }
+        return entry.getKeyIdHex();
+    }
+
     private UncachedKeyRing fetchKeyFromKeybase(@NonNull ParcelableProxy proxy, OperationLog log, ParcelableKeyRing entry)
             throws PgpGeneralException, IOException {
         if (keybaseServer == null) {
@@ -492,10 +864,12 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         boolean skipSave = importInput.isSkipSave();
 
         ImportKeyResult result;
-        if (keyList == null) {// import from file, do serially
+        if (importInput.getSourceUri() != null) {
+            result = importKeyRings(importInput.getSourceUri(), mProgressable, skipSave);
+        } else if (keyList == null) {// import from file
             ParcelableFileCache<ParcelableKeyRing> cache =
                     new ParcelableFileCache<>(mContext, CACHE_FILE_NAME);
-            result = serialKeyRingImport(cache, null, null, skipSave);
+            result = importKeyRings(cache, null, null, skipSave);
         } else {
             ParcelableProxy proxy;
             if (cryptoInput.getParcelableProxy() == null) {
@@ -510,7 +884,7 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
                 proxy = cryptoInput.getParcelableProxy();
             }
 
-            result = multiThreadedKeyImport(keyList, keyServer, proxy, skipSave);
+            result = importKeyRings(keyList.iterator(), keyList.size(), keyServer, mProgressable, proxy, skipSave);
         }
 
         if (!skipSave) {
@@ -519,64 +893,6 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         return result;
     }
 
-    @NonNull
-    private ImportKeyResult multiThreadedKeyImport(List<ParcelableKeyRing> keyList,
-                                                   final HkpKeyserverAddress keyServer, final ParcelableProxy proxy,
-                                                   final boolean skipSave) {
-        Timber.d("Multi-threaded key import starting");
-
-        final Iterator<ParcelableKeyRing> keyListIterator = keyList.iterator();
-        final int totKeys = keyList.size();
-
-        ExecutorService importExecutor = new ThreadPoolExecutor(0, MAX_THREADS, 30L, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<Runnable>());
-        ExecutorCompletionService<ImportKeyResult> importCompletionService =
-                new ExecutorCompletionService<>(importExecutor);
-
-        while (keyListIterator.hasNext()) { // submit all key rings to be imported
-
-            final ParcelableKeyRing pkRing = keyListIterator.next();
-
-            Callable<ImportKeyResult> importOperationCallable = new Callable<ImportKeyResult>
-                    () {
-
-                @Override
-                public ImportKeyResult call() {
-                    if (checkCancelled()) {
-                        return null;
-                    }
-
-                    ArrayList<ParcelableKeyRing> list = new ArrayList<>();
-                    list.add(pkRing);
-                    ProgressScaler ignoreProgressable = new ProgressScaler();
-
-                    return serialKeyRingImport(list.iterator(), 1, keyServer, ignoreProgressable,
-                            proxy, skipSave);
-                }
-            };
-
-            importCompletionService.submit(importOperationCallable);
-        }
-
-        KeyImportAccumulator accumulator = new KeyImportAccumulator(totKeys, mProgressable);
-        while (!accumulator.isImportFinished()) { // accumulate the results of each import
-            try {
-                accumulator.accumulateKeyImport(importCompletionService.take().get());
-            } catch (InterruptedException | ExecutionException e) {
-                Timber.e(e, "A key could not be imported during multi-threaded " +
-                        "import");
-                // do nothing?
-                if (e instanceof ExecutionException) {
-                    // Since serialKeyRingImport does not throw any exceptions, this is what
-                    // would have happened if
-                    // we were importing the key on this thread
-                    throw new RuntimeException(e);
-                }
-            }
-        }
-        return accumulator.getConsolidatedResult();
-    }
-
     /**
      * Used to accumulate the results of individual key imports
      */
@@ -691,10 +1007,6 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
             result.setCanonicalizedKeyRings(mCanonicalizedKeyRings);
             return result;
         }
-
-        boolean isImportFinished() {
-            return mTotalKeys == mImportedKeys;
-        }
     }
 
 }
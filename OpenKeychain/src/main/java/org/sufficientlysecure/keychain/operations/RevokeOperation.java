@@ -18,6 +18,8 @@
 package org.sufficientlysecure.keychain.operations;
 
 
+import java.util.Collections;
+
 import android.content.Context;
 import android.net.Uri;
 import android.support.annotation.NonNull;
@@ -25,6 +27,7 @@ import android.support.annotation.NonNull;
 import org.sufficientlysecure.keychain.operations.results.EditKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.operations.results.RevokeResult;
+import org.sufficientlysecure.keychain.operations.results.UpdateTrustResult;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 import org.sufficientlysecure.keychain.provider.CachedPublicKeyRing;
@@ -89,6 +92,11 @@ public class RevokeOperation extends BaseReadWriteOperation<RevokeKeyringParcel>
             log.add(revokeAndUploadResult, 1);
 
             if (revokeAndUploadResult.success()) {
+                // certifications by this key are no longer trusted
+                UpdateTrustResult trustResult = mKeyWritableRepository.updateTrustDb(
+                        Collections.singletonList(masterKeyId), mProgressable);
+                log.add(trustResult, 1);
+
                 log.add(OperationResult.LogType.MSG_REVOKE_OK, 1);
                 return new RevokeResult(RevokeResult.RESULT_OK, log, masterKeyId);
             } else {
@@ -20,6 +20,8 @@ package org.sufficientlysecure.keychain.operations;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.Context;
@@ -33,14 +35,18 @@ import org.sufficientlysecure.keychain.operations.results.SignEncryptResult;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptData;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptInputParcel;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation.ResolvedKeys;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.SignEncryptParcel;
 import org.sufficientlysecure.keychain.provider.KeyRepository;
+import org.sufficientlysecure.keychain.service.OperationScheduler;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.RequiredInputType;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.SecurityTokenSignOperationsBuilder;
+import org.sufficientlysecure.keychain.util.ParallelProgress;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
+import timber.log.Timber;
 
 
 /**
@@ -49,9 +55,14 @@ import org.sufficientlysecure.keychain.util.ProgressScaler;
  * <p/>
  * This operation is fail-fast: If any sign/encrypt sub-operation fails or returns
  * a pending result, it will terminate.
+ * <p/>
+ * Multiple input uris which all have an output uri are processed in parallel,
+ * with keys that are resolved and unlocked only once for all of them.
  */
 public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
 
+    private static final int MAX_THREADS = Runtime.getRuntime().availableProcessors();
+
     public SignEncryptOperation(Context context, KeyRepository keyRepository,
                                 Progressable progressable, AtomicBoolean cancelled) {
         super(context, keyRepository, progressable, cancelled);
@@ -64,6 +75,12 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
         OperationLog log = new OperationLog();
         log.add(LogType.MSG_SE, 0);
 
+        boolean isParallelizable = input.getBytes() == null && input.getInputUris().size() > 1
+                && input.getInputUris().size() == input.getOutputUris().size();
+        if (isParallelizable) {
+            return executeParallel(input, cryptoInput, log);
+        }
+
         ArrayDeque<Uri> inputUris = new ArrayDeque<>(input.getInputUris());
         ArrayDeque<Uri> outputUris = new ArrayDeque<>(input.getOutputUris());
         byte[] inputBytes = input.getBytes();
@@ -123,4 +140,114 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
                 results.get(results.size() - 1).getOutputBytes());
     }
 
+    @NonNull
+    private SignEncryptResult executeParallel(SignEncryptParcel input, final CryptoInputParcel cryptoInput,
+            OperationLog log) {
+        final PgpSignEncryptData data = input.getSignEncryptData();
+        List<Uri> inputUris = input.getInputUris();
+        List<Uri> outputUris = input.getOutputUris();
+        int total = inputUris.size();
+
+        ArrayList<PgpSignEncryptResult> results = new ArrayList<>();
+
+        // look up and unlock keys only once, and share them between all sub-operations
+        final ResolvedKeys resolvedKeys = new PgpSignEncryptOperation(mContext, mKeyRepository,
+                new ProgressScaler(mProgressable, 0, 5, 100), mCancelled).resolveKeys(data, cryptoInput);
+        PgpSignEncryptResult errorResult = resolvedKeys.getErrorResult();
+        if (errorResult != null) {
+            results.add(errorResult);
+            log.add(errorResult, 2);
+            if (errorResult.isPending()) {
+                return new SignEncryptResult(log, errorResult.getRequiredInputParcel(), results, cryptoInput);
+            }
+            return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
+        }
+        // the sub-operations don't log the lookup and unlock of the shared keys, so it's logged once here
+        log.add(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_OK, resolvedKeys.getLog()), 2);
+
+        final ParallelProgress parallelProgress =
+                new ParallelProgress(new ProgressScaler(mProgressable, 5, 100, 100), total);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+
+        ArrayList<Callable<PgpSignEncryptResult>> tasks = new ArrayList<>(total);
+        for (int i = 0; i < total; i++) {
+            final int slot = i;
+            final PgpSignEncryptInputParcel inputParcel = PgpSignEncryptInputParcel.createForInputUri(
+                    data, outputUris.get(i), inputUris.get(i));
+
+            tasks.add(new Callable<PgpSignEncryptResult>() {
+                @Override
+                public PgpSignEncryptResult call() {
+                    // fail fast: don't start any further work after an error
+                    if (failed.get() || checkCancelled()) {
+                        return null;
+                    }
+
+                    PgpSignEncryptOperation op = new PgpSignEncryptOperation(mContext, mKeyRepository,
+                            parallelProgress.getProgressable(slot), mCancelled);
+                    PgpSignEncryptResult result = op.execute(inputParcel, cryptoInput, resolvedKeys);
+                    if (!result.success() && !result.isPending()) {
+                        failed.set(true);
+                    }
+                    return result;
+                }
+            });
+        }
+
+        // sub-tasks share the cpu budget of the operation scheduler with all other operations
+        List<PgpSignEncryptResult> taskResults;
+        try {
+            taskResults = OperationScheduler.getInstance().invokeAll(tasks, MAX_THREADS);
+        } catch (InterruptedException e) {
+            Timber.e(e, "interrupted during parallel sign/encrypt");
+            return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
+        }
+
+        // collect results in input order
+        SecurityTokenSignOperationsBuilder pendingInputBuilder = null;
+        RequiredInputParcel pendingPassphrase = null;
+        for (PgpSignEncryptResult result : taskResults) {
+            // skipped after an error or cancellation
+            if (result == null) {
+                continue;
+            }
+
+            results.add(result);
+            log.add(result, 2);
+
+            if (result.isPending()) {
+                RequiredInputParcel requiredInput = result.getRequiredInputParcel();
+                // Passphrase returns immediately, nfc are aggregated
+                if (requiredInput.mType == RequiredInputType.PASSPHRASE) {
+                    if (pendingPassphrase == null) {
+                        pendingPassphrase = requiredInput;
+                    }
+                    continue;
+                }
+                if (pendingInputBuilder == null) {
+                    pendingInputBuilder = new SecurityTokenSignOperationsBuilder(requiredInput.mSignatureTime,
+                            requiredInput.getMasterKeyId(), requiredInput.getSubKeyId());
+                }
+                pendingInputBuilder.addAll(requiredInput);
+            }
+        }
+
+        if (checkCancelled()) {
+            log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+            return new SignEncryptResult(SignEncryptResult.RESULT_CANCELLED, log, results);
+        }
+        if (failed.get()) {
+            return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
+        }
+        if (pendingPassphrase != null) {
+            return new SignEncryptResult(log, pendingPassphrase, results, cryptoInput);
+        }
+        if (pendingInputBuilder != null && !pendingInputBuilder.isEmpty()) {
+            return new SignEncryptResult(log, pendingInputBuilder.build(), results, cryptoInput);
+        }
+
+        log.add(LogType.MSG_SE_SUCCESS, 1);
+        return new SignEncryptResult(SignEncryptResult.RESULT_OK, log, results, null);
+    }
+
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations.results;
+
+import android.os.Parcel;
+
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
+
+import java.util.ArrayList;
+
+public class DecryptBatchResult extends InputPendingResult {
+
+    ArrayList<DecryptVerifyResult> mResults;
+
+    public DecryptBatchResult(OperationLog log, RequiredInputParcel requiredInput,
+                              ArrayList<DecryptVerifyResult> results,
+                              CryptoInputParcel cryptoInputParcel) {
+        super(log, requiredInput, cryptoInputParcel);
+        mResults = results;
+    }
+
+    public DecryptBatchResult(int result, OperationLog log, ArrayList<DecryptVerifyResult> results) {
+        super(result, log);
+        mResults = results;
+    }
+
+    public DecryptBatchResult(Parcel source) {
+        super(source);
+        mResults = source.createTypedArrayList(DecryptVerifyResult.CREATOR);
+    }
+
+    /** Results for each input parcel, in input order. Inputs which were not processed are missing. */
+    public ArrayList<DecryptVerifyResult> getResults() {
+        return mResults;
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel dest, int flags) {
+        super.writeToParcel(dest, flags);
+        dest.writeTypedList(mResults);
+    }
+
+    public static final Creator<DecryptBatchResult> CREATOR = new Creator<DecryptBatchResult>() {
+        public DecryptBatchResult createFromParcel(final Parcel source) {
+            return new DecryptBatchResult(source);
+        }
+
+        public DecryptBatchResult[] newArray(final int size) {
+            return new DecryptBatchResult[size];
+        }
+    };
+
+}
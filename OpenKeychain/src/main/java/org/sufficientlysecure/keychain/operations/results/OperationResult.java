@@ -667,12 +667,18 @@ public abstract class OperationResult implements Parcelable {
         MSG_DC_TRAIL_SYM (LogLevel.DEBUG, R.string.msg_dc_trail_sym),
         MSG_DC_TRAIL_UNKNOWN (LogLevel.DEBUG, R.string.msg_dc_trail_unknown),
         MSG_DC_UNLOCKING (LogLevel.INFO, R.string.msg_dc_unlocking),
+        MSG_DC_UNLOCKED_SHARED (LogLevel.DEBUG, R.string.msg_dc_unlocked_shared),
         MSG_DC_INSECURE_ENCRYPTION_KEY (LogLevel.WARN, R.string.msg_dc_insecure_encryption_key),
         MSG_DC_INSECURE_SYMMETRIC_ENCRYPTION_ALGO(LogLevel.WARN, R.string.msg_dc_insecure_symmetric_encryption_algo),
         MSG_DC_INSECURE_HASH_ALGO(LogLevel.ERROR, R.string.msg_dc_insecure_hash_algo),
         MSG_DC_INSECURE_MDC_MISSING(LogLevel.ERROR, R.string.msg_dc_insecure_mdc_missing),
         MSG_DC_INSECURE_KEY(LogLevel.ERROR, R.string.msg_dc_insecure_key),
 
+        // decrypt batch
+        MSG_DB (LogLevel.START, R.string.msg_db),
+        MSG_DB_ERROR_NO_INPUT (LogLevel.ERROR, R.string.msg_db_error_no_input),
+        MSG_DB_SUCCESS (LogLevel.OK, R.string.msg_db_success),
+
         // verify signed literal data
         MSG_VL (LogLevel.INFO, R.string.msg_vl),
         MSG_VL_ERROR_MISSING_SIGLIST (LogLevel.ERROR, R.string.msg_vl_error_no_siglist),
@@ -753,6 +759,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_CRT_WARN_UPLOAD_FAILED (LogLevel.WARN, R.string.msg_crt_warn_upload_failed),
 
         MSG_IMPORT (LogLevel.START, R.plurals.msg_import),
+        MSG_IMPORT_STREAM (LogLevel.START, R.string.msg_import_stream),
 
         MSG_IMPORT_FETCH_ERROR (LogLevel.ERROR, R.string.msg_import_fetch_error),
         MSG_IMPORT_FETCH_ERROR_DECODE (LogLevel.ERROR, R.string.msg_import_fetch_error_decode),
@@ -928,7 +935,9 @@ public abstract class OperationResult implements Parcelable {
         MSG_TRUST_KEY (LogLevel.INFO, R.string.msg_trust_key),
         MSG_TRUST_INITIALIZE (LogLevel.INFO, R.string.msg_trust_initialize),
         MSG_TRUST_COUNT_NONE (LogLevel.DEBUG, R.string.msg_trust_count_none),
-        MSG_TRUST_COUNT (LogLevel.DEBUG, R.plurals.msg_trust_count);
+        MSG_TRUST_COUNT (LogLevel.DEBUG, R.plurals.msg_trust_count),
+        MSG_TRUST_KEY_CHANGED (LogLevel.DEBUG, R.string.msg_trust_key_changed),
+        MSG_TRUST_KEY_REORDER (LogLevel.DEBUG, R.string.msg_trust_key_reorder);
 
         public final int mMsgId;
         public final LogLevel mLevel;
@@ -50,7 +50,7 @@ public abstract class CanonicalizedKeyRing extends KeyRing {
     }
 
     public long getMasterKeyId() {
-        return getRing().getPublicKey().getKeyID();
+        return getCoreRing().getPublicKey().getKeyID();
     }
 
     public int getVerified() {
@@ -58,7 +58,7 @@ public abstract class CanonicalizedKeyRing extends KeyRing {
     }
 
     public byte[] getFingerprint() {
-        return getRing().getPublicKey().getFingerprint();
+        return getCoreRing().getPublicKey().getFingerprint();
     }
 
     public byte[] getRawPrimaryUserId() throws PgpKeyNotFoundException {
@@ -83,7 +83,7 @@ public abstract class CanonicalizedKeyRing extends KeyRing {
 
     public boolean isRevoked() {
         // Is the master key revoked?
-        return getRing().getPublicKey().hasRevocation();
+        return getCoreRing().getPublicKey().hasRevocation();
     }
 
     public boolean isSecure() {
@@ -108,7 +108,7 @@ public abstract class CanonicalizedKeyRing extends KeyRing {
     }
 
     public boolean canCertify() throws PgpKeyNotFoundException {
-        return getRing().getPublicKey().isEncryptionKey();
+        return getCoreRing().getPublicKey().isEncryptionKey();
     }
 
     public Set<Long> getEncryptIds() {
@@ -162,14 +162,28 @@ public abstract class CanonicalizedKeyRing extends KeyRing {
 
     abstract PGPKeyRing getRing();
 
+    /**
+     * Returns the keyring to look up keys and their properties in. This may lack third-party
+     * certificates and user attributes, which CanonicalizedPublicKey takes care of by going back
+     * to getCompletePublicKey where these are needed.
+     */
+    PGPKeyRing getCoreRing() {
+        return getRing();
+    }
+
+    /** Returns the key from getRing which corresponds to the given key from getCoreRing. */
+    PGPPublicKey getCompletePublicKey(PGPPublicKey key) {
+        return key;
+    }
+
     abstract public IterableIterator<CanonicalizedPublicKey> publicKeyIterator();
 
     public CanonicalizedPublicKey getPublicKey() {
-        return new CanonicalizedPublicKey(this, getRing().getPublicKey());
+        return new CanonicalizedPublicKey(this, getCoreRing().getPublicKey());
     }
 
     public CanonicalizedPublicKey getPublicKey(long id) {
-        PGPPublicKey pubKey = getRing().getPublicKey(id);
+        PGPPublicKey pubKey = getCoreRing().getPublicKey(id);
         if (pubKey == null) {
             return null;
         }
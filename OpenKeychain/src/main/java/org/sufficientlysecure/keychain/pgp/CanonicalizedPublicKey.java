@@ -21,6 +21,7 @@ package org.sufficientlysecure.keychain.pgp;
 import java.io.IOException;
 import java.security.PublicKey;
 import java.security.interfaces.ECPublicKey;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
@@ -71,6 +72,37 @@ public class CanonicalizedPublicKey extends UncachedPublicKey {
         return new IterableIterator<String>(mPublicKey.getUserIDs());
     }
 
+    /*
+     * mPublicKey may come from a keyring view which lacks third-party certificates and user
+     * attributes (see CanonicalizedPublicKeyRing), so methods which expose those go to the
+     * complete key. Everything else only needs self-certificates, which are always there.
+     */
+
+    @Override
+    PGPPublicKey getPublicKey() {
+        return mRing.getCompletePublicKey(mPublicKey);
+    }
+
+    @Override
+    public ArrayList<WrappedUserAttribute> getUnorderedUserAttributes() {
+        return new UncachedPublicKey(getPublicKey()).getUnorderedUserAttributes();
+    }
+
+    @Override
+    public Iterator<WrappedSignature> getSignatures() {
+        return new UncachedPublicKey(getPublicKey()).getSignatures();
+    }
+
+    @Override
+    public Iterator<WrappedSignature> getSignaturesForRawId(byte[] rawUserId) {
+        return new UncachedPublicKey(getPublicKey()).getSignaturesForRawId(rawUserId);
+    }
+
+    @Override
+    public Iterator<WrappedSignature> getSignaturesForUserAttribute(WrappedUserAttribute attribute) {
+        return new UncachedPublicKey(getPublicKey()).getSignaturesForUserAttribute(attribute);
+    }
+
     JcePublicKeyKeyEncryptionMethodGenerator getPubKeyEncryptionGenerator(boolean hiddenRecipients) {
         return new JcePublicKeyKeyEncryptionMethodGenerator(mPublicKey, hiddenRecipients);
     }
@@ -156,7 +188,8 @@ public class CanonicalizedPublicKey extends UncachedPublicKey {
 
             Date latestCreation = null;
             for (byte[] rawUserId : getUnorderedRawUserIds()) {
-                Iterator<WrappedSignature> sigs = getSignaturesForRawId(rawUserId);
+                // only self-certificates are of interest, no need for the complete key
+                Iterator<WrappedSignature> sigs = super.getSignaturesForRawId(rawUserId);
                 while (sigs.hasNext()) {
                     WrappedSignature sig = sigs.next();
                     if (sig.getKeyId() != masterKeyId) {
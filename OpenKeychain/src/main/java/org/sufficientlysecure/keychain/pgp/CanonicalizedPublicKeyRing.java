@@ -19,6 +19,7 @@ package org.sufficientlysecure.keychain.pgp;
 
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
@@ -39,40 +40,111 @@ import org.sufficientlysecure.keychain.util.IterableIterator;
 
 public class CanonicalizedPublicKeyRing extends CanonicalizedKeyRing {
 
-    private PGPPublicKeyRing mRing;
+    // decoded lazily if constructed from encoded data, see getCoreRing
+    private volatile PGPPublicKeyRing mRing;
+    // the encoded keyring, null if constructed from a PGPPublicKeyRing
+    private final byte[] mEncoded;
+    // the keyring without third-party certificates and user attributes, null if it's the same as mRing
+    private final PGPPublicKeyRing mCoreRing;
 
     CanonicalizedPublicKeyRing(PGPPublicKeyRing ring, int verified) {
         super(verified);
         mRing = ring;
+        mEncoded = null;
+        mCoreRing = null;
     }
 
+    /**
+     * Creates a keyring from its canonical encoding, as stored in the database.
+     * <p/>
+     * If the keyring carries third-party certificates or user attributes, only the part without
+     * them is decoded here. The full keyring is decoded once it's needed, which for most uses
+     * of a stored key (signature verification, selection of encryption keys) is never.
+     */
     public CanonicalizedPublicKeyRing(byte[] blob, int verified) {
         super(verified);
-        if(mRing == null) {
-            // get first object in block
-            PGPObjectFactory factory = new PGPObjectFactory(blob, new JcaKeyFingerprintCalculator());
-            try {
-                Object obj = factory.nextObject();
-                if (! (obj instanceof PGPPublicKeyRing)) {
-                    throw new RuntimeException("Error constructing CanonicalizedPublicKeyRing, should never happen!");
-                }
-                mRing = (PGPPublicKeyRing) obj;
-                if (factory.nextObject() != null) {
-                    throw new RuntimeException("Encountered trailing data after keyring, should never happen!");
-                }
-            } catch (IOException e) {
-                throw new RuntimeException("IO Error constructing CanonicalizedPublicKeyRing, should never happen!");
+        mEncoded = blob;
+
+        byte[] coreData = null;
+        try {
+            coreData = KeyRingPacketIndex.indexPackets(blob).encodeCorePackets();
+        } catch (IOException e) {
+            // decode the full ring below, which reports the problem
+        }
+
+        if (coreData != null) {
+            mCoreRing = decodeRing(coreData);
+        } else {
+            mCoreRing = null;
+            mRing = decodeRing(blob);
+        }
+    }
+
+    private static PGPPublicKeyRing decodeRing(byte[] blob) {
+        // get first object in block
+        PGPObjectFactory factory = new PGPObjectFactory(blob, new JcaKeyFingerprintCalculator());
+        try {
+            Object obj = factory.nextObject();
+            if (! (obj instanceof PGPPublicKeyRing)) {
+                throw new RuntimeException("Error constructing CanonicalizedPublicKeyRing, should never happen!");
+            }
+            if (factory.nextObject() != null) {
+                throw new RuntimeException("Encountered trailing data after keyring, should never happen!");
             }
+            return (PGPPublicKeyRing) obj;
+        } catch (IOException e) {
+            throw new RuntimeException("IO Error constructing CanonicalizedPublicKeyRing, should never happen!");
         }
     }
 
     PGPPublicKeyRing getRing() {
-        return mRing;
+        PGPPublicKeyRing ring = mRing;
+        if (ring == null) {
+            synchronized (this) {
+                ring = mRing;
+                if (ring == null) {
+                    ring = decodeRing(mEncoded);
+                    mRing = ring;
+                }
+            }
+        }
+        return ring;
+    }
+
+    @Override
+    PGPPublicKeyRing getCoreRing() {
+        return mCoreRing != null ? mCoreRing : getRing();
+    }
+
+    @Override
+    PGPPublicKey getCompletePublicKey(PGPPublicKey key) {
+        // only the primary key is affected by the omissions of the core ring
+        if (mCoreRing != null && key.isMasterKey()) {
+            return getRing().getPublicKey();
+        }
+        return key;
+    }
+
+    @Override
+    public void encode(OutputStream stream) throws IOException {
+        if (mEncoded != null) {
+            stream.write(mEncoded);
+            return;
+        }
+        super.encode(stream);
+    }
+
+    @Override
+    public byte[] getEncoded() throws IOException {
+        if (mEncoded != null) {
+            return mEncoded.clone();
+        }
+        return super.getEncoded();
     }
 
     public IterableIterator<CanonicalizedPublicKey> publicKeyIterator() {
         @SuppressWarnings("unchecked")
-        final Iterator<PGPPublicKey> it = getRing().getPublicKeys();
+        final Iterator<PGPPublicKey> it = getCoreRing().getPublicKeys();
         return new IterableIterator<>(new Iterator<CanonicalizedPublicKey>() {
             @Override
             public boolean hasNext() {
@@ -38,6 +38,7 @@ import org.bouncycastle.openpgp.PGPSignatureSubpacketGenerator;
 import org.bouncycastle.openpgp.operator.PBESecretKeyDecryptor;
 import org.bouncycastle.openpgp.operator.PGPContentSignerBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.CachingDataDecryptorFactory;
+import org.bouncycastle.openpgp.operator.jcajce.CachingDataDecryptorFactory.SessionKeyStore;
 import org.bouncycastle.openpgp.operator.jcajce.EdDsaAuthenticationContentSignerBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcaPGPKeyConverter;
@@ -337,15 +338,16 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
             throw new PrivateKeyNotUnlockedException();
         }
 
+        SessionKeyStore sessionKeyStore = SessionKeyCache.getInstance().forKey(getKeyId());
         if (mPrivateKeyState == PRIVATE_KEY_STATE_DIVERT_TO_CARD) {
             return new CachingDataDecryptorFactory(
                     Constants.BOUNCY_CASTLE_PROVIDER_NAME,
-                    cryptoInput.getCryptoData());
+                    cryptoInput.getCryptoData(), sessionKeyStore);
         } else {
             return new CachingDataDecryptorFactory(
                     new JcePublicKeyDataDecryptorFactoryBuilder()
                             .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(mPrivateKey),
-                    cryptoInput.getCryptoData());
+                    cryptoInput.getCryptoData(), sessionKeyStore);
         }
     }
 
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+
+import android.support.annotation.NonNull;
+
+import org.bouncycastle.openpgp.PGPSignature;
+
+
+/**
+ * A set of certificates, which are considered equal if their encodings are byte-identical.
+ * <p/>
+ * Certificates are kept as a SHA-256 digest of their encoding. The encoding is streamed into
+ * the digest rather than copied, and lookups are a hash lookup of 32 bytes, rather than a
+ * series of comparisons of whole certificates. SHA-256 is used so that no certificate can be
+ * crafted to collide with another one and have it dropped in a merge.
+ */
+class CertificateDigestSet {
+
+    private final HashSet<ByteBuffer> mDigests = new HashSet<>();
+    private final MessageDigest mDigest;
+    private final OutputStream mDigestStream;
+
+    CertificateDigestSet() {
+        try {
+            mDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is always available");
+        }
+        mDigestStream = new OutputStream() {
+            @Override
+            public void write(int b) {
+                mDigest.update((byte) b);
+            }
+
+            @Override
+            public void write(@NonNull byte[] b, int off, int len) {
+                mDigest.update(b, off, len);
+            }
+        };
+    }
+
+    /** Adds the certificate to the set. Returns false if an identical certificate was already in it. */
+    boolean add(PGPSignature cert) throws IOException {
+        mDigest.reset();
+        cert.encode(mDigestStream);
+        return mDigests.add(ByteBuffer.wrap(mDigest.digest()));
+    }
+
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.os.Parcelable;
+
+import com.google.auto.value.AutoValue;
+
+
+/**
+ * This parcel stores the input of several PgpDecryptVerify operations, which
+ * are processed together so that the secret key or security token input they
+ * need is only requested once.
+ */
+@AutoValue
+public abstract class DecryptBatchParcel implements Parcelable {
+    public abstract List<PgpDecryptVerifyInputParcel> getInputParcels();
+
+    public static DecryptBatchParcel createDecryptBatchParcel(List<PgpDecryptVerifyInputParcel> inputParcels) {
+        return new AutoValue_DecryptBatchParcel(
+                Collections.unmodifiableList(new ArrayList<>(inputParcels)));
+    }
+}
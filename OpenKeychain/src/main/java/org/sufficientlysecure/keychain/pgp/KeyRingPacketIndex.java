@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import android.support.annotation.Nullable;
+
+import org.bouncycastle.bcpg.PacketTags;
+import org.bouncycastle.bcpg.SignatureSubpacketTags;
+
+
+/**
+ * An index of the packets in an encoded keyring, by their offsets.
+ * <p/>
+ * Keys which are well connected in the web of trust can carry thousands of third-party
+ * certificates, and decoding those makes up most of the cost of loading such a key. Most uses
+ * of a stored keyring only look at the keys and their self-certificates though. With this index,
+ * an encoding of the keyring without third-party certificates and user attributes can be cut
+ * out of the original data, without decoding any of the packets that are left out.
+ * <p/>
+ * Only the packet headers, the primary key and the issuers of user id certificates are looked
+ * at here. Anything unexpected makes {@link #indexPackets} fail, in which case the keyring
+ * should simply be decoded in full.
+ */
+class KeyRingPacketIndex {
+
+    private static final int SIGNATURE_VERSION_3 = 3;
+    private static final int SIGNATURE_VERSION_4 = 4;
+    private static final int KEY_VERSION_4 = 4;
+
+    private final byte[] mData;
+    private int mPacketCount;
+    private int[] mTags = new int[16];
+    private int[] mHeaderOffsets = new int[16];
+    private int[] mBodyOffsets = new int[16];
+    private int[] mEndOffsets = new int[16];
+
+    private KeyRingPacketIndex(byte[] data) {
+        mData = data;
+    }
+
+    /** Indexes the packets of a single encoded keyring, throws IOException if that's not what data contains. */
+    static KeyRingPacketIndex indexPackets(byte[] data) throws IOException {
+        KeyRingPacketIndex index = new KeyRingPacketIndex(data);
+        int offset = 0;
+        while (offset < data.length) {
+            offset = index.readPacketHeader(offset);
+        }
+
+        if (index.mPacketCount == 0 || index.mTags[0] != PacketTags.PUBLIC_KEY) {
+            throw new IOException("data does not start with a public key");
+        }
+        for (int i = 1; i < index.mPacketCount; i++) {
+            if (index.mTags[i] == PacketTags.PUBLIC_KEY || index.mTags[i] == PacketTags.SECRET_KEY) {
+                throw new IOException("trailing data after keyring");
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns the keyring without certificates on user ids by other keys, and without user attributes
+     * and their certificates. Returns null if there is nothing to leave out, or if the primary key is of
+     * a version this index can't compute the key id of.
+     */
+    @Nullable
+    byte[] encodeCorePackets() {
+        Long primaryKeyId = getMasterKeyId();
+        if (primaryKeyId == null) {
+            return null;
+        }
+        long masterKeyId = primaryKeyId;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(mData.length);
+        boolean omittedAny = false;
+        int userPacketTag = 0;
+        boolean skipping = false;
+        for (int i = 0; i < mPacketCount; i++) {
+            switch (mTags[i]) {
+                case PacketTags.PUBLIC_KEY:
+                case PacketTags.PUBLIC_SUBKEY:
+                case PacketTags.USER_ID:
+                    userPacketTag = mTags[i];
+                    skipping = false;
+                    break;
+                case PacketTags.USER_ATTRIBUTE:
+                    userPacketTag = mTags[i];
+                    skipping = true;
+                    break;
+                case PacketTags.SIGNATURE:
+                    if (userPacketTag == PacketTags.USER_ID) {
+                        Long issuerKeyId = getIssuerKeyId(i);
+                        // certificates without an issuer are kept, to be on the safe side
+                        skipping = issuerKeyId != null && issuerKeyId.longValue() != masterKeyId;
+                    }
+                    break;
+                default:
+                    // trust packets and the like share the fate of the packet they belong to
+                    break;
+            }
+
+            if (skipping) {
+                omittedAny = true;
+                continue;
+            }
+            out.write(mData, mHeaderOffsets[i], mEndOffsets[i] - mHeaderOffsets[i]);
+        }
+
+        return omittedAny ? out.toByteArray() : null;
+    }
+
+    private int readPacketHeader(int offset) throws IOException {
+        int headerOffset = offset;
+        int header = readByte(offset++);
+        if ((header & 0x80) == 0) {
+            throw new IOException("invalid packet header");
+        }
+
+        int tag;
+        long length;
+        if ((header & 0x40) != 0) {
+            tag = header & 0x3f;
+            int first = readByte(offset++);
+            if (first < 192) {
+                length = first;
+            } else if (first <= 223) {
+                length = ((first - 192) << 8) + readByte(offset++) + 192;
+            } else if (first == 255) {
+                length = readInt(offset);
+                offset += 4;
+            } else {
+                // partial body lengths are only allowed for data packets
+                throw new IOException("partial body length in keyring");
+            }
+        } else {
+            tag = (header >> 2) & 0xf;
+            switch (header & 0x3) {
+                case 0:
+                    length = readByte(offset);
+                    offset += 1;
+                    break;
+                case 1:
+                    length = (readByte(offset) << 8) | readByte(offset + 1);
+                    offset += 2;
+                    break;
+                case 2:
+                    length = readInt(offset);
+                    offset += 4;
+                    break;
+                default:
+                    throw new IOException("indeterminate packet length in keyring");
+            }
+        }
+
+        if (length < 0 || offset + length > mData.length) {
+            throw new IOException("packet exceeds data");
+        }
+
+        if (mPacketCount == mTags.length) {
+            int newSize = mPacketCount * 2;
+            mTags = Arrays.copyOf(mTags, newSize);
+            mHeaderOffsets = Arrays.copyOf(mHeaderOffsets, newSize);
+            mBodyOffsets = Arrays.copyOf(mBodyOffsets, newSize);
+            mEndOffsets = Arrays.copyOf(mEndOffsets, newSize);
+        }
+        int end = offset + (int) length;
+        mTags[mPacketCount] = tag;
+        mHeaderOffsets[mPacketCount] = headerOffset;
+        mBodyOffsets[mPacketCount] = offset;
+        mEndOffsets[mPacketCount] = end;
+        mPacketCount += 1;
+
+        return end;
+    }
+
+    @Nullable
+    private Long getMasterKeyId() {
+        int bodyOffset = mBodyOffsets[0];
+        int bodyLength = mEndOffsets[0] - bodyOffset;
+        if (bodyLength < 1 || mData[bodyOffset] != KEY_VERSION_4) {
+            return null;
+        }
+
+        // the v4 key id is the low 64 bits of the fingerprint, see RFC 4880, section 12.2
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-1 is always available");
+        }
+        digest.update((byte) 0x99);
+        digest.update((byte) (bodyLength >> 8));
+        digest.update((byte) bodyLength);
+        digest.update(mData, bodyOffset, bodyLength);
+        byte[] fingerprint = digest.digest();
+        return readLong(fingerprint, fingerprint.length - 8);
+    }
+
+    /** Returns the issuer key id of the given signature packet, or null if none can be found. */
+    @Nullable
+    private Long getIssuerKeyId(int packet) {
+        int offset = mBodyOffsets[packet];
+        int end = mEndOffsets[packet];
+        if (offset >= end) {
+            return null;
+        }
+
+        int version = mData[offset];
+        if (version == SIGNATURE_VERSION_3) {
+            // version, hashed length (always 5), type, creation time, issuer
+            int issuerOffset = offset + 7;
+            return issuerOffset + 8 <= end ? readLong(mData, issuerOffset) : null;
+        }
+        if (version != SIGNATURE_VERSION_4) {
+            return null;
+        }
+
+        // version, type, public key algorithm, hash algorithm, then the hashed and unhashed subpackets
+        offset += 4;
+        for (int area = 0; area < 2; area++) {
+            if (offset + 2 > end) {
+                return null;
+            }
+            int areaEnd = offset + 2 + (((mData[offset] & 0xff) << 8) | (mData[offset + 1] & 0xff));
+            if (areaEnd > end) {
+                return null;
+            }
+            Long issuerKeyId = findIssuerSubpacket(offset + 2, areaEnd);
+            if (issuerKeyId != null) {
+                return issuerKeyId;
+            }
+            offset = areaEnd;
+        }
+        return null;
+    }
+
+    @Nullable
+    private Long findIssuerSubpacket(int offset, int end) {
+        while (offset < end) {
+            int first = mData[offset++] & 0xff;
+            long length;
+            if (first < 192) {
+                length = first;
+            } else if (first < 255) {
+                if (offset >= end) {
+                    return null;
+                }
+                length = ((first - 192) << 8) + (mData[offset++] & 0xff) + 192;
+            } else {
+                if (offset + 4 > end) {
+                    return null;
+                }
+                length = readInt(mData, offset);
+                offset += 4;
+            }
+            if (length < 1 || offset + length > end) {
+                return null;
+            }
+
+            int type = mData[offset] & 0x7f;
+            if (type == SignatureSubpacketTags.ISSUER_KEY_ID && length == 9) {
+                return readLong(mData, offset + 1);
+            }
+            offset += length;
+        }
+        return null;
+    }
+
+    private int readByte(int offset) throws IOException {
+        if (offset >= mData.length) {
+            throw new IOException("unexpected end of data");
+        }
+        return mData[offset] & 0xff;
+    }
+
+    private long readInt(int offset) throws IOException {
+        if (offset + 4 > mData.length) {
+            throw new IOException("unexpected end of data");
+        }
+        return readInt(mData, offset);
+    }
+
+    private static long readInt(byte[] data, int offset) {
+        return ((long) (data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result = (result << 8) | (data[offset + i] & 0xff);
+        }
+        return result;
+    }
+
+}
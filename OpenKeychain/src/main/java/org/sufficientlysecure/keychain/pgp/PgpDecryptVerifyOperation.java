@@ -31,6 +31,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
@@ -56,6 +57,7 @@ import org.bouncycastle.openpgp.operator.jcajce.CachingDataDecryptorFactory;
 import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcePBEDataDecryptorFactoryBuilder;
 import org.bouncycastle.util.encoders.DecoderException;
+import org.bouncycastle.util.io.TeeOutputStream;
 import org.openintents.openpgp.OpenPgpDecryptionResult;
 import org.openintents.openpgp.OpenPgpMetadata;
 import org.sufficientlysecure.keychain.Constants;
@@ -85,6 +87,8 @@ import org.sufficientlysecure.keychain.util.FileHelper;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
+import org.sufficientlysecure.keychain.util.SpillOverBuffer;
+import org.sufficientlysecure.keychain.util.StreamBufferPool;
 import timber.log.Timber;
 
 import static java.lang.String.format;
@@ -94,9 +98,24 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
     public static final int PROGRESS_STRIDE_MILLISECONDS = 200;
     public static final String PASSPHRASE_FORMAT_NUMERIC9X4 = "numeric9x4";
+    private static final int CLEARTEXT_MEMORY_THRESHOLD = 1024 * 1024;
+
+    // secret keys unlocked for decryption, shared between operations of a batch. may be null.
+    private final Map<Long, CanonicalizedSecretKey> mUnlockedKeys;
 
     public PgpDecryptVerifyOperation(Context context, KeyRepository keyRepository, Progressable progressable) {
-        super(context, keyRepository, progressable);
+        this(context, keyRepository, progressable, null, null);
+    }
+
+    /**
+     * Creates an operation which looks up decryption keys in, and adds keys it unlocks to, the given
+     * map, so operations on several inputs only need to unlock each key once. The map is keyed by
+     * subkey id and must be safe for concurrent access if operations run in parallel.
+     */
+    public PgpDecryptVerifyOperation(Context context, KeyRepository keyRepository, Progressable progressable,
+            AtomicBoolean cancelled, Map<Long, CanonicalizedSecretKey> unlockedKeys) {
+        super(context, keyRepository, progressable, cancelled);
+        mUnlockedKeys = unlockedKeys;
     }
 
     /** Decrypts and/or verifies data based on parameters of PgpDecryptVerifyInputParcel. */
@@ -485,7 +504,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         long wholeSize = inputData.getSize() - inputData.getStreamPosition();
         boolean sizeIsKnown = inputData.getSize() != InputData.UNKNOWN_FILESIZE && wholeSize > 0;
         int length;
-        byte[] buffer = new byte[8192];
+        byte[] buffer = StreamBufferPool.obtain();
         byte[] firstBytes = new byte[48];
         CharsetVerifier charsetVerifier = new CharsetVerifier(buffer, mimeType, charset);
 
@@ -493,35 +512,40 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
         long nextProgressTime = 0L;
         int lastReportedProgress = 1;
-        while ((length = dataIn.read(buffer)) > 0) {
-            // Log.d(Constants.TAG, "read bytes: " + length);
-            if (out != null) {
-                out.write(buffer, 0, length);
-            }
-
-            // update signature buffer if signature is also present
-            signatureChecker.updateSignatureData(buffer, 0, length);
+        try {
+            while ((length = dataIn.read(buffer)) > 0) {
+                // Log.d(Constants.TAG, "read bytes: " + length);
+                if (out != null) {
+                    out.write(buffer, 0, length);
+                }
 
-            charsetVerifier.readBytesFromBuffer(0, length);
+                // update signature buffer if signature is also present
+                signatureChecker.updateSignatureData(buffer, 0, length);
 
-            // note down first couple of bytes for "magic bytes" file type detection
-            if (alreadyWritten == 0) {
-                System.arraycopy(buffer, 0, firstBytes, 0, length > firstBytes.length ? firstBytes.length : length);
-            }
+                charsetVerifier.readBytesFromBuffer(0, length);
 
-            alreadyWritten += length;
-            if (sizeIsKnown && nextProgressTime < System.currentTimeMillis()) {
-                long progress = 100 * inputData.getStreamPosition() / wholeSize;
-                // stop at 100% for wrong file sizes...
-                if (progress > 100) {
-                    progress = 100;
+                // note down first couple of bytes for "magic bytes" file type detection
+                if (alreadyWritten == 0) {
+                    System.arraycopy(buffer, 0, firstBytes, 0,
+                            length > firstBytes.length ? firstBytes.length : length);
                 }
-                if (progress > lastReportedProgress) {
-                    updateProgress((int) progress, 100);
-                    lastReportedProgress = (int) progress;
-                    nextProgressTime = System.currentTimeMillis() + PROGRESS_STRIDE_MILLISECONDS;
+
+                alreadyWritten += length;
+                if (sizeIsKnown && nextProgressTime < System.currentTimeMillis()) {
+                    long progress = 100 * inputData.getStreamPosition() / wholeSize;
+                    // stop at 100% for wrong file sizes...
+                    if (progress > 100) {
+                        progress = 100;
+                    }
+                    if (progress > lastReportedProgress) {
+                        updateProgress((int) progress, 100);
+                        lastReportedProgress = (int) progress;
+                        nextProgressTime = System.currentTimeMillis() + PROGRESS_STRIDE_MILLISECONDS;
+                    }
                 }
             }
+        } finally {
+            StreamBufferPool.recycle(buffer);
         }
 
         if (signatureChecker.isInitialized()) {
@@ -562,6 +586,14 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             if (esResult.encryptedData.isIntegrityProtected()) {
                 if (esResult.encryptedData.verify()) {
                     log.add(LogType.MSG_DC_INTEGRITY_CHECK_OK, indent);
+
+                    // session keys supplied with the crypto input (e.g. by a security token) are only
+                    // added to the shared cache once they are known to be good
+                    if (esResult.encryptedData instanceof PGPPublicKeyEncryptedData && esResult.sessionKey != null) {
+                        SessionKeyCache.getInstance().put(
+                                ((PGPPublicKeyEncryptedData) esResult.encryptedData).getKeyID(),
+                                ByteBuffer.wrap(esResult.sessionKey), esResult.decryptedSessionKey);
+                    }
                 } else {
                     log.add(LogType.MSG_DC_ERROR_INTEGRITY_CHECK, indent);
                     return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
@@ -607,6 +639,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         PGPPublicKeyEncryptedData encryptedDataAsymmetric = null;
         PGPPBEEncryptedData encryptedDataSymmetric = null;
         CanonicalizedSecretKey decryptionKey = null;
+        boolean decryptionKeyUnlocked = false;
         CachingDataDecryptorFactory cachedKeyDecryptorFactory = new CachingDataDecryptorFactory(
                 Constants.BOUNCY_CASTLE_PROVIDER_NAME, cryptoInput.getCryptoData());
 
@@ -658,6 +691,23 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                         }
                     }
 
+                    CanonicalizedSecretKey unlockedKey = mUnlockedKeys != null ? mUnlockedKeys.get(subKeyId) : null;
+                    if (unlockedKey != null) {
+                        log.add(LogType.MSG_DC_UNLOCKED_SHARED, indent + 1);
+                        KeySecurityProblem keySecurityProblem =
+                                PgpSecurityConstants.checkForSecurityProblems(unlockedKey);
+                        if (keySecurityProblem != null) {
+                            log.add(LogType.MSG_DC_INSECURE_KEY, indent + 1);
+                            result.encryptionKeySecurityProblem = keySecurityProblem;
+                        }
+
+                        asymmetricPacketFound = true;
+                        encryptedDataAsymmetric = encData;
+                        decryptionKey = unlockedKey;
+                        decryptionKeyUnlocked = true;
+                        break;
+                    }
+
                     SecretKeyType secretKeyType = cachedPublicKeyRing.getSecretKeyType(subKeyId);
                     if (!secretKeyType.isUsable()) {
                         decryptionKey = null;
@@ -813,15 +863,21 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             if (decryptedSessionKeyAvailable) {
                 decryptorFactory = cachedKeyDecryptorFactory;
             } else {
-                try {
-                    log.add(LogType.MSG_DC_UNLOCKING, indent + 1);
-                    if (!decryptionKey.unlock(passphrase)) {
-                        log.add(LogType.MSG_DC_ERROR_BAD_PASSPHRASE, indent + 1);
+                if (!decryptionKeyUnlocked) {
+                    try {
+                        log.add(LogType.MSG_DC_UNLOCKING, indent + 1);
+                        if (!decryptionKey.unlock(passphrase)) {
+                            log.add(LogType.MSG_DC_ERROR_BAD_PASSPHRASE, indent + 1);
+                            return result.with(new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log));
+                        }
+                    } catch (PgpGeneralException e) {
+                        log.add(LogType.MSG_DC_ERROR_EXTRACT_KEY, indent + 1);
                         return result.with(new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log));
                     }
-                } catch (PgpGeneralException e) {
-                    log.add(LogType.MSG_DC_ERROR_EXTRACT_KEY, indent + 1);
-                    return result.with(new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log));
+
+                    if (mUnlockedKeys != null) {
+                        mUnlockedKeys.put(decryptionKey.getKeyId(), decryptionKey);
+                    }
                 }
 
                 decryptorFactory = decryptionKey.getCachingDecryptorFactory(cryptoInput);
@@ -892,9 +948,26 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
         OperationLog log = new OperationLog();
 
-        byte[] clearText;
-        { // read cleartext
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // the signature follows the cleartext, so we need to keep the text around until we
+        // know the signing key. large texts are moved out of memory into the cache dir.
+        SpillOverBuffer clearText = new SpillOverBuffer(mContext.getCacheDir(), CLEARTEXT_MEMORY_THRESHOLD);
+        try {
+            return verifyCleartextSignature(input, aIn, outputStream, clearText, log, indent);
+        } finally {
+            clearText.delete();
+        }
+    }
+
+    @NonNull
+    private DecryptVerifyResult verifyCleartextSignature(PgpDecryptVerifyInputParcel input, ArmoredInputStream aIn,
+            OutputStream outputStream, SpillOverBuffer clearText, OperationLog log, int indent)
+            throws IOException, PGPException {
+
+        { // read cleartext, and write it to the output stream at the same time
+            OutputStream out = clearText;
+            if (outputStream != null) {
+                out = new TeeOutputStream(clearText, outputStream);
+            }
 
             updateProgress(R.string.progress_reading_data, 0, 100);
 
@@ -914,12 +987,6 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             }
 
             out.close();
-            clearText = out.toByteArray();
-        }
-
-        if (outputStream != null) {
-            outputStream.write(clearText);
-            outputStream.close();
         }
 
         updateProgress(R.string.progress_processing_signature, 60, 100);
@@ -939,7 +1006,12 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             try {
                 updateProgress(R.string.progress_verifying_signature, 90, 100);
 
-                signatureChecker.updateSignatureWithCleartext(clearText);
+                InputStream clearTextIn = clearText.getInputStream();
+                try {
+                    signatureChecker.updateSignatureWithCleartext(clearTextIn);
+                } finally {
+                    clearTextIn.close();
+                }
                 signatureChecker.verifySignature(log, indent);
 
             } catch (SignatureException e) {
@@ -952,7 +1024,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
         log.add(LogType.MSG_DC_OK, indent);
 
-        OpenPgpMetadata metadata = new OpenPgpMetadata("", "text/plain", -1, clearText.length, "utf-8");
+        OpenPgpMetadata metadata = new OpenPgpMetadata("", "text/plain", -1, clearText.getSize(), "utf-8");
 
         DecryptVerifyResult result = new DecryptVerifyResult(DecryptVerifyResult.RESULT_OK, log);
         result.setSignatureResult(signatureChecker.getSignatureResult());
@@ -1000,25 +1072,29 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             long alreadyWritten = 0;
             long wholeSize = inputData.getSize() - inputData.getStreamPosition();
             int length;
-            byte[] buffer = new byte[1 << 16];
+            byte[] buffer = StreamBufferPool.obtain();
             InputStream in = inputData.getInputStream();
-            while ((length = in.read(buffer)) > 0) {
-                if (out != null) {
-                    out.write(buffer, 0, length);
-                }
+            try {
+                while ((length = in.read(buffer)) > 0) {
+                    if (out != null) {
+                        out.write(buffer, 0, length);
+                    }
 
-                // update signature buffer if signature is also present
-                signatureChecker.updateSignatureData(buffer, 0, length);
+                    // update signature buffer if signature is also present
+                    signatureChecker.updateSignatureData(buffer, 0, length);
 
-                alreadyWritten += length;
-                if (wholeSize > 0) {
-                    long progress = 100 * alreadyWritten / wholeSize;
-                    // stop at 100% for wrong file sizes...
-                    if (progress > 100) {
-                        progress = 100;
+                    alreadyWritten += length;
+                    if (wholeSize > 0) {
+                        long progress = 100 * alreadyWritten / wholeSize;
+                        // stop at 100% for wrong file sizes...
+                        if (progress > 100) {
+                            progress = 100;
+                        }
+                        progressScaler.setProgress((int) progress, 100);
                     }
-                    progressScaler.setProgress((int) progress, 100);
                 }
+            } finally {
+                StreamBufferPool.recycle(buffer);
             }
 
             updateProgress(R.string.progress_verifying_signature, 90, 100);
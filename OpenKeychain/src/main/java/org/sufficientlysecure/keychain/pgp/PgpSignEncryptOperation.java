@@ -30,6 +30,7 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Set;
@@ -38,6 +39,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import android.content.Context;
 import android.net.Uri;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import org.bouncycastle.bcpg.ArmoredOutputStream;
 import org.bouncycastle.bcpg.BCPGOutputStream;
@@ -116,6 +118,16 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
     @NonNull
     @Override
     public PgpSignEncryptResult execute(PgpSignEncryptInputParcel input, CryptoInputParcel cryptoInput) {
+        return execute(input, cryptoInput, null);
+    }
+
+    /**
+     * Signs and/or encrypts the input, using keys previously obtained from
+     * {@link #resolveKeys(PgpSignEncryptData, CryptoInputParcel)} if resolvedKeys is non-null.
+     */
+    @NonNull
+    public PgpSignEncryptResult execute(PgpSignEncryptInputParcel input, CryptoInputParcel cryptoInput,
+            ResolvedKeys resolvedKeys) {
         OperationLog log = new OperationLog();
 
         InputData inputData;
@@ -154,7 +166,7 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
             }
         }
 
-        PgpSignEncryptResult result = executeInternal(input.getData(), cryptoInput, inputData, outStream);
+        PgpSignEncryptResult result = executeInternal(input.getData(), cryptoInput, inputData, outStream, resolvedKeys);
         if (outStream instanceof ByteArrayOutputStream) {
             byte[] outputData = ((ByteArrayOutputStream) outStream).toByteArray();
             result.setOutputBytes(outputData);
@@ -166,57 +178,65 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
     @NonNull
     public PgpSignEncryptResult execute(PgpSignEncryptData data, CryptoInputParcel cryptoInput,
             InputData inputData, OutputStream outputStream) {
-        return executeInternal(data, cryptoInput, inputData, outputStream);
+        return executeInternal(data, cryptoInput, inputData, outputStream, null);
     }
 
     /**
-     * Signs and/or encrypts data based on parameters of class
+     * Keys for a sign/encrypt operation, which can be shared between several operations
+     * with the same parameters, e.g. for encrypting multiple files in parallel.
      */
-    private PgpSignEncryptResult executeInternal(PgpSignEncryptData data, CryptoInputParcel cryptoInput,
-            InputData inputData, OutputStream outputStream) {
-        int indent = 0;
-        OperationLog log = new OperationLog();
+    public static class ResolvedKeys {
 
-        log.add(LogType.MSG_PSE, indent);
-        indent += 1;
+        // this is non-null iff an error occurred or input is required, return directly
+        PgpSignEncryptResult errorResult;
+        // lookup and unlock of the keys
+        OperationLog log;
 
-        boolean enableSignature = data.getSignatureMasterKeyId() != Constants.key.none;
-        boolean enableEncryption = ((data.getEncryptionMasterKeyIds() != null && data.getEncryptionMasterKeyIds().length > 0)
-                || data.getSymmetricPassphrase() != null);
+        // unlocked, or null if no signature is requested
+        CanonicalizedSecretKey signingKey;
+        ArrayList<CanonicalizedPublicKey> encryptionKeys = new ArrayList<>();
 
-        int compressionAlgorithm = data.getCompressionAlgorithm();
-        if (compressionAlgorithm == OpenKeychainCompressionAlgorithmTags.USE_DEFAULT) {
-            compressionAlgorithm = PgpSecurityConstants.DEFAULT_COMPRESSION_ALGORITHM;
+        @Nullable
+        public PgpSignEncryptResult getErrorResult() {
+            return errorResult;
         }
 
-        Timber.d(data.toString());
+        public OperationLog getLog() {
+            return log;
+        }
 
-        ArmoredOutputStream armorOut = null;
-        OutputStream out;
-        if (data.isEnableAsciiArmorOutput()) {
-            armorOut = new ArmoredOutputStream(new BufferedOutputStream(outputStream, 1 << 16));
-            if (data.getVersionHeader() != null) {
-                armorOut.setHeader("Version", data.getVersionHeader());
-            }
-            // if we have a charset, put it in the header
-            if (data.getCharset() != null) {
-                armorOut.setHeader("Charset", data.getCharset());
-            }
-            String passphraseFormat = data.getPassphraseFormat();
-            if (passphraseFormat != null) {
-                armorOut.setHeader("Passphrase-Format", passphraseFormat);
-            }
-            String passphraseBegin = data.getPassphraseBegin();
-            if (passphraseBegin != null) {
-                armorOut.setHeader("Passphrase-Begin", passphraseBegin);
-            }
-            out = armorOut;
-        } else {
-            out = outputStream;
+        // convenience method to return with error
+        ResolvedKeys with(PgpSignEncryptResult result) {
+            errorResult = result;
+            return this;
         }
 
+    }
+
+    /**
+     * Looks up and unlocks the signing key and looks up all encryption keys
+     * for the given parameters. The returned keys can be passed into
+     * {@link #execute(PgpSignEncryptInputParcel, CryptoInputParcel, ResolvedKeys)}
+     * any number of times, from any thread.
+     */
+    @NonNull
+    public ResolvedKeys resolveKeys(PgpSignEncryptData data, CryptoInputParcel cryptoInput) {
+        OperationLog log = new OperationLog();
+        log.add(LogType.MSG_PSE, 0);
+        return resolveKeys(data, cryptoInput, log, 1);
+    }
+
+    @NonNull
+    private ResolvedKeys resolveKeys(PgpSignEncryptData data, CryptoInputParcel cryptoInput,
+            OperationLog log, int indent) {
+        ResolvedKeys resolvedKeys = new ResolvedKeys();
+        resolvedKeys.log = log;
+
+        boolean enableSignature = data.getSignatureMasterKeyId() != Constants.key.none;
+        boolean enableAsymmetricEncryption = data.getSymmetricPassphrase() == null
+                && data.getEncryptionMasterKeyIds() != null && data.getEncryptionMasterKeyIds().length > 0;
+
         /* Get keys for signature generation for later usage */
-        CanonicalizedSecretKey signingKey = null;
         if (enableSignature) {
 
             updateProgress(R.string.progress_extracting_signature_key, 0, 100);
@@ -229,32 +249,32 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                         signingSubKeyId = mKeyRepository.getCachedPublicKeyRing(signingMasterKeyId).getSecretSignId();
                     } catch (PgpKeyNotFoundException e) {
                         log.add(LogType.MSG_PSE_ERROR_KEY_SIGN, indent);
-                        return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                        return resolvedKeys.with(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
                     }
                 }
 
                 CanonicalizedSecretKeyRing signingKeyRing =
                         mKeyRepository.getCanonicalizedSecretKeyRing(signingMasterKeyId);
-                signingKey = signingKeyRing.getSecretKey(signingSubKeyId);
+                CanonicalizedSecretKey signingKey = signingKeyRing.getSecretKey(signingSubKeyId);
 
                 Collection<Long> allowedSigningKeyIds = data.getAllowedSigningKeyIds();
                 if (allowedSigningKeyIds != null && !allowedSigningKeyIds.contains(signingMasterKeyId)) {
                     // this key is in our db, but NOT allowed!
                     log.add(LogType.MSG_PSE_ERROR_KEY_NOT_ALLOWED, indent + 1);
-                    return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_KEY_DISALLOWED, log);
+                    return resolvedKeys.with(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_KEY_DISALLOWED, log));
                 }
 
                 // Make sure key is not expired or revoked
                 if (signingKeyRing.isExpired() || signingKeyRing.isRevoked()
                         || signingKey.isExpired() || signingKey.isRevoked()) {
                     log.add(LogType.MSG_PSE_ERROR_REVOKED_OR_EXPIRED, indent);
-                    return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                    return resolvedKeys.with(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
                 }
 
                 // Make sure we are allowed to sign here!
                 if (!signingKey.canSign()) {
                     log.add(LogType.MSG_PSE_ERROR_KEY_SIGN, indent);
-                    return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                    return resolvedKeys.with(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
                 }
 
                 switch (mKeyRepository.getCachedPublicKeyRing(signingMasterKeyId).getSecretKeyType(signingSubKeyId)) {
@@ -278,20 +298,21 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                         }
                         if (localPassphrase == null) {
                             log.add(LogType.MSG_PSE_PENDING_PASSPHRASE, indent + 1);
-                            return new PgpSignEncryptResult(log, RequiredInputParcel.createRequiredSignPassphrase(
-                                    signingMasterKeyId, signingKey.getKeyId(),
-                                    cryptoInput.getSignatureTime()), cryptoInput);
+                            return resolvedKeys.with(new PgpSignEncryptResult(log,
+                                    RequiredInputParcel.createRequiredSignPassphrase(
+                                            signingMasterKeyId, signingKey.getKeyId(),
+                                            cryptoInput.getSignatureTime()), cryptoInput));
                         }
                         if (!signingKey.unlock(localPassphrase)) {
                             log.add(LogType.MSG_PSE_ERROR_BAD_PASSPHRASE, indent);
-                            return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                            return resolvedKeys.with(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
                         }
                         break;
                     }
 
                     case GNU_DUMMY: {
                         log.add(LogType.MSG_PSE_ERROR_UNLOCK, indent);
-                        return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                        return resolvedKeys.with(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
                     }
                     default: {
                         throw new AssertionError("Unhandled SecretKeyType! (should not happen)");
@@ -299,14 +320,96 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
 
                 }
 
+                resolvedKeys.signingKey = signingKey;
+
             } catch (KeyWritableRepository.NotFoundException e) {
                 log.add(LogType.MSG_PSE_ERROR_SIGN_KEY, indent);
-                return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                return resolvedKeys.with(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
             } catch (PgpGeneralException e) {
                 log.add(LogType.MSG_PSE_ERROR_UNLOCK, indent);
-                return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                return resolvedKeys.with(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
             }
         }
+
+        /* Get keys for encryption for later usage */
+        if (enableAsymmetricEncryption) {
+            long additionalEncryptId = data.getAdditionalEncryptId();
+            for (long encryptMasterKeyId : data.getEncryptionMasterKeyIds()) {
+                if (encryptMasterKeyId == additionalEncryptId) {
+                    continue;
+                }
+
+                boolean success = processEncryptionMasterKeyId(indent, log, resolvedKeys, encryptMasterKeyId);
+                if (!success) {
+                    return resolvedKeys.with(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
+                }
+            }
+
+            if (additionalEncryptId != Constants.key.none) {
+                boolean success = processEncryptionMasterKeyId(indent, log, resolvedKeys, additionalEncryptId);
+                if (!success) {
+                    return resolvedKeys.with(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
+                }
+            }
+        }
+
+        return resolvedKeys;
+    }
+
+    /**
+     * Signs and/or encrypts data based on parameters of class
+     */
+    private PgpSignEncryptResult executeInternal(PgpSignEncryptData data, CryptoInputParcel cryptoInput,
+            InputData inputData, OutputStream outputStream, ResolvedKeys resolvedKeys) {
+        int indent = 0;
+        OperationLog log = new OperationLog();
+
+        log.add(LogType.MSG_PSE, indent);
+        indent += 1;
+
+        boolean enableSignature = data.getSignatureMasterKeyId() != Constants.key.none;
+        boolean enableEncryption = ((data.getEncryptionMasterKeyIds() != null && data.getEncryptionMasterKeyIds().length > 0)
+                || data.getSymmetricPassphrase() != null);
+
+        int compressionAlgorithm = data.getCompressionAlgorithm();
+        if (compressionAlgorithm == OpenKeychainCompressionAlgorithmTags.USE_DEFAULT) {
+            compressionAlgorithm = PgpSecurityConstants.DEFAULT_COMPRESSION_ALGORITHM;
+        }
+
+        Timber.d(data.toString());
+
+        ArmoredOutputStream armorOut = null;
+        OutputStream out;
+        if (data.isEnableAsciiArmorOutput()) {
+            armorOut = new ArmoredOutputStream(new BufferedOutputStream(outputStream, 1 << 16));
+            if (data.getVersionHeader() != null) {
+                armorOut.setHeader("Version", data.getVersionHeader());
+            }
+            // if we have a charset, put it in the header
+            if (data.getCharset() != null) {
+                armorOut.setHeader("Charset", data.getCharset());
+            }
+            String passphraseFormat = data.getPassphraseFormat();
+            if (passphraseFormat != null) {
+                armorOut.setHeader("Passphrase-Format", passphraseFormat);
+            }
+            String passphraseBegin = data.getPassphraseBegin();
+            if (passphraseBegin != null) {
+                armorOut.setHeader("Passphrase-Begin", passphraseBegin);
+            }
+            out = armorOut;
+        } else {
+            out = outputStream;
+        }
+
+        if (resolvedKeys == null) {
+            resolvedKeys = resolveKeys(data, cryptoInput, log, indent);
+            if (resolvedKeys.errorResult != null) {
+                return resolvedKeys.errorResult;
+            }
+        }
+        CanonicalizedSecretKey signingKey = resolvedKeys.signingKey;
+
         updateProgress(R.string.progress_preparing_streams, 2, 100);
 
         /* Initialize PGPEncryptedDataGenerator for later usage */
@@ -335,23 +438,8 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
             } else {
                 log.add(LogType.MSG_PSE_ASYMMETRIC, indent);
 
-                long additionalEncryptId = data.getAdditionalEncryptId();
-                for (long encryptMasterKeyId : data.getEncryptionMasterKeyIds()) {
-                    if (encryptMasterKeyId == additionalEncryptId) {
-                        continue;
-                    }
-
-                    boolean success = processEncryptionMasterKeyId(indent, log, data, cPk, encryptMasterKeyId);
-                    if (!success) {
-                        return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
-                    }
-                }
-
-                if (additionalEncryptId != Constants.key.none) {
-                    boolean success = processEncryptionMasterKeyId(indent, log, data, cPk, additionalEncryptId);
-                    if (!success) {
-                        return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
-                    }
+                for (CanonicalizedPublicKey key : resolvedKeys.encryptionKeys) {
+                    cPk.addMethod(key.getPubKeyEncryptionGenerator(data.isHiddenRecipients()));
                 }
             }
         }
@@ -648,15 +736,14 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
         return result;
     }
 
-    private boolean processEncryptionMasterKeyId(int indent, OperationLog log, PgpSignEncryptData data,
-            PGPEncryptedDataGenerator cPk, long encryptMasterKeyId) {
+    private boolean processEncryptionMasterKeyId(int indent, OperationLog log, ResolvedKeys resolvedKeys,
+            long encryptMasterKeyId) {
         try {
             CanonicalizedPublicKeyRing keyRing = mKeyRepository.getCanonicalizedPublicKeyRing(
                     KeyRings.buildUnifiedKeyRingUri(encryptMasterKeyId));
             Set<Long> encryptSubKeyIds = keyRing.getEncryptIds();
             for (Long subKeyId : encryptSubKeyIds) {
-                CanonicalizedPublicKey key = keyRing.getPublicKey(subKeyId);
-                cPk.addMethod(key.getPubKeyEncryptionGenerator(data.isHiddenRecipients()));
+                resolvedKeys.encryptionKeys.add(keyRing.getPublicKey(subKeyId));
                 log.add(LogType.MSG_PSE_KEY_OK, indent + 1,
                         KeyFormattingUtils.convertKeyIdToHex(subKeyId));
             }
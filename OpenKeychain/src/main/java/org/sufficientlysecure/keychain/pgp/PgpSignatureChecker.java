@@ -201,8 +201,12 @@ class PgpSignatureChecker {
     }
 
     public void updateSignatureWithCleartext(byte[] clearText) throws IOException, SignatureException {
+        updateSignatureWithCleartext(new ByteArrayInputStream(clearText));
+    }
+
+    public void updateSignatureWithCleartext(InputStream clearText) throws IOException, SignatureException {
 
-        InputStream sigIn = new BufferedInputStream(new ByteArrayInputStream(clearText));
+        InputStream sigIn = new BufferedInputStream(clearText);
 
         ByteArrayOutputStream outputBuffer = new ByteArrayOutputStream();
 
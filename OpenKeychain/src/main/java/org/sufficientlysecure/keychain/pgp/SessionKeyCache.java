@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
+
+import org.bouncycastle.openpgp.operator.jcajce.CachingDataDecryptorFactory.SessionKeyStore;
+
+
+/**
+ * A process-wide cache of decrypted session keys, so that decrypting the same
+ * message again (e.g. when a mail client re-renders a thread) does not repeat the
+ * private key operation or security token interaction.
+ * <p/>
+ * Entries are keyed by subkey id and the encoded MPI of the encrypted session key,
+ * and expire after a fixed time. The number of entries is bounded, least recently
+ * used entries are evicted first. Session data is copied in and out of the cache,
+ * and wiped when an entry is removed.
+ */
+public class SessionKeyCache {
+
+    private static final int MAX_ENTRIES = 256;
+    private static final long TIME_TO_LIVE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private static SessionKeyCache sInstance;
+
+    private final int mMaxEntries;
+    private final long mTimeToLiveMillis;
+    private final LinkedHashMap<CacheKey, CacheEntry> mEntries;
+
+    public static synchronized SessionKeyCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new SessionKeyCache(MAX_ENTRIES, TIME_TO_LIVE_MILLIS);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    SessionKeyCache(int maxEntries, long timeToLiveMillis) {
+        mMaxEntries = maxEntries;
+        mTimeToLiveMillis = timeToLiveMillis;
+        mEntries = new LinkedHashMap<>(maxEntries + 1, 1.0f, true);
+    }
+
+    /** Returns a view of this cache for session keys encrypted to the given subkey. */
+    public SessionKeyStore forKey(final long subKeyId) {
+        return new SessionKeyStore() {
+            @Override
+            public byte[] get(ByteBuffer encryptedSessionKey) {
+                return SessionKeyCache.this.get(subKeyId, encryptedSessionKey);
+            }
+
+            @Override
+            public void put(ByteBuffer encryptedSessionKey, byte[] sessionData) {
+                SessionKeyCache.this.put(subKeyId, encryptedSessionKey, sessionData);
+            }
+        };
+    }
+
+    public synchronized byte[] get(long subKeyId, ByteBuffer encryptedSessionKey) {
+        CacheKey key = new CacheKey(subKeyId, encryptedSessionKey);
+        CacheEntry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired(now())) {
+            mEntries.remove(key);
+            entry.wipe();
+            return null;
+        }
+        return Arrays.copyOf(entry.mSessionData, entry.mSessionData.length);
+    }
+
+    public synchronized void put(long subKeyId, ByteBuffer encryptedSessionKey, byte[] sessionData) {
+        long now = now();
+        removeExpired(now);
+
+        // copy the key as well, we don't own the caller's buffer
+        byte[] encryptedSessionKeyBytes = new byte[encryptedSessionKey.remaining()];
+        encryptedSessionKey.duplicate().get(encryptedSessionKeyBytes);
+
+        CacheKey key = new CacheKey(subKeyId, ByteBuffer.wrap(encryptedSessionKeyBytes));
+        CacheEntry previous = mEntries.put(key, new CacheEntry(
+                Arrays.copyOf(sessionData, sessionData.length), now + mTimeToLiveMillis));
+        if (previous != null) {
+            previous.wipe();
+        }
+
+        Iterator<CacheEntry> it = mEntries.values().iterator();
+        while (mEntries.size() > mMaxEntries && it.hasNext()) {
+            it.next().wipe();
+            it.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        for (CacheEntry entry : mEntries.values()) {
+            entry.wipe();
+        }
+        mEntries.clear();
+    }
+
+    @VisibleForTesting
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    @VisibleForTesting
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    private void removeExpired(long now) {
+        Iterator<Map.Entry<CacheKey, CacheEntry>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            CacheEntry entry = it.next().getValue();
+            if (entry.isExpired(now)) {
+                entry.wipe();
+                it.remove();
+            }
+        }
+    }
+
+    private static class CacheKey {
+        private final long mSubKeyId;
+        private final ByteBuffer mEncryptedSessionKey;
+
+        CacheKey(long subKeyId, ByteBuffer encryptedSessionKey) {
+            mSubKeyId = subKeyId;
+            mEncryptedSessionKey = encryptedSessionKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return mSubKeyId == other.mSubKeyId && mEncryptedSessionKey.equals(other.mEncryptedSessionKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (mSubKeyId ^ (mSubKeyId >>> 32)) + mEncryptedSessionKey.hashCode();
+        }
+    }
+
+    private static class CacheEntry {
+        private final byte[] mSessionData;
+        private final long mExpiresAt;
+
+        CacheEntry(byte[] sessionData, long expiresAt) {
+            mSessionData = sessionData;
+            mExpiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now >= mExpiresAt;
+        }
+
+        void wipe() {
+            Arrays.fill(mSessionData, (byte) 0);
+        }
+    }
+
+}
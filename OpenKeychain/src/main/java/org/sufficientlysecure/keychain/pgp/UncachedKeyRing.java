@@ -27,14 +27,12 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.TimeZone;
-import java.util.TreeSet;
 
 import android.support.annotation.VisibleForTesting;
 
@@ -188,6 +186,18 @@ public class UncachedKeyRing {
         return false;
     }
 
+    /** Returns true if any key of this ring carries a non-exportable signature, see canonicalize. */
+    public boolean hasLocalSignatures() {
+        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(mRing.getPublicKeys())) {
+            for (PGPSignature sig : new IterableIterator<PGPSignature>(key.getSignatures())) {
+                if (new WrappedSignature(sig).isLocal()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     public static IteratorWithIOThrow<UncachedKeyRing> fromStream(InputStream rawStream) {
         final InputStream stream = rawStream.markSupported() ? rawStream: new BufferedInputStream(rawStream);
 
@@ -1146,21 +1156,7 @@ public class UncachedKeyRing {
         }
 
         // remember which certs we already added. this is cheaper than semantic deduplication
-        Set<byte[]> certs = new TreeSet<>(new Comparator<byte[]>() {
-            public int compare(byte[] left, byte[] right) {
-                // check for length equality
-                if (left.length != right.length) {
-                    return left.length - right.length;
-                }
-                // compare byte-by-byte
-                for (int i = 0; i < left.length; i++) {
-                    if (left[i] != right[i]) {
-                        return (left[i] & 0xff) - (right[i] & 0xff);
-                    }
-                }
-                // ok they're the same
-                return 0;
-        }});
+        CertificateDigestSet certs = new CertificateDigestSet();
 
         try {
             PGPKeyRing result = mRing;
@@ -1169,7 +1165,7 @@ public class UncachedKeyRing {
             // Pre-load all existing certificates
             for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(result.getPublicKeys())) {
                 for (PGPSignature cert : new IterableIterator<PGPSignature>(key.getSignatures())) {
-                    certs.add(cert.getEncoded());
+                    certs.add(cert);
                 }
             }
 
@@ -1202,12 +1198,10 @@ public class UncachedKeyRing {
                         continue;
                     }
 
-                    byte[] encoded = cert.getEncoded();
                     // Known cert, skip it
-                    if (certs.contains(encoded)) {
+                    if (!certs.add(cert)) {
                         continue;
                     }
-                    certs.add(encoded);
                     modified = PGPPublicKey.addCertification(modified, cert);
                     newCerts += 1;
                 }
@@ -1233,13 +1227,11 @@ public class UncachedKeyRing {
                         if (cert.getKeyID() != masterKeyId && isSecret()) {
                             continue;
                         }
-                        byte[] encoded = cert.getEncoded();
                         // Known cert, skip it
-                        if (certs.contains(encoded)) {
+                        if (!certs.add(cert)) {
                             continue;
                         }
                         newCerts += 1;
-                        certs.add(encoded);
                         modified = PGPPublicKey.addCertification(modified, rawUserId, cert);
                     }
                 }
@@ -1258,13 +1250,11 @@ public class UncachedKeyRing {
                         if (cert.getKeyID() != masterKeyId && isSecret()) {
                             continue;
                         }
-                        byte[] encoded = cert.getEncoded();
                         // Known cert, skip it
-                        if (certs.contains(encoded)) {
+                        if (!certs.add(cert)) {
                             continue;
                         }
                         newCerts += 1;
-                        certs.add(encoded);
                         modified = PGPPublicKey.addCertification(modified, vector, cert);
                     }
                 }
@@ -18,6 +18,8 @@
 package org.sufficientlysecure.keychain.provider;
 
 
+import java.util.List;
+
 import android.net.Uri;
 
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
@@ -58,6 +60,16 @@ public class CachedPublicKeyRing extends KeyRing {
     @Override
     public long getMasterKeyId() throws PgpKeyNotFoundException {
         try {
+            // resolving a subkey doesn't need the full unified query
+            List<String> pathSegments = mUri.getPathSegments();
+            if (pathSegments.size() == 4 && KeychainContract.PATH_FIND.equals(pathSegments.get(1))
+                    && KeychainContract.PATH_BY_SUBKEY.equals(pathSegments.get(2))) {
+                try {
+                    return mKeyRepository.getMasterKeyId(Long.parseLong(pathSegments.get(3)));
+                } catch (NumberFormatException e) {
+                    throw new PgpKeyNotFoundException("Malformed find by subkey query!");
+                }
+            }
             Object data = mKeyRepository.getGenericData(mUri,
                     KeychainContract.KeyRings.MASTER_KEY_ID, KeyRepository.FIELD_TYPE_INTEGER);
             return (Long) data;
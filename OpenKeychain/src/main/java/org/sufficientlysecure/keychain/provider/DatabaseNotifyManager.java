@@ -10,17 +10,28 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 
 public class DatabaseNotifyManager {
     private ContentResolver contentResolver;
+    private KeyRingCache keyRingCache;
+    private SubKeyIdIndex subKeyIdIndex;
 
     public static DatabaseNotifyManager create(Context context) {
         ContentResolver contentResolver = context.getContentResolver();
-        return new DatabaseNotifyManager(contentResolver);
+        KeyRingCache keyRingCache = KeyRingCache.getInstance(context);
+        SubKeyIdIndex subKeyIdIndex = SubKeyIdIndex.getInstance(context);
+        return new DatabaseNotifyManager(contentResolver, keyRingCache, subKeyIdIndex);
     }
 
-    private DatabaseNotifyManager(ContentResolver contentResolver) {
+    private DatabaseNotifyManager(ContentResolver contentResolver, KeyRingCache keyRingCache,
+            SubKeyIdIndex subKeyIdIndex) {
         this.contentResolver = contentResolver;
+        this.keyRingCache = keyRingCache;
+        this.subKeyIdIndex = subKeyIdIndex;
     }
 
     public void notifyKeyChange(long masterKeyId) {
+        // invalidate synchronously here, other processes are notified through the content observer
+        keyRingCache.invalidate(masterKeyId);
+        subKeyIdIndex.invalidate(masterKeyId);
+
         Uri uri = KeyRings.buildGenericKeyRingUri(masterKeyId);
         contentResolver.notifyChange(uri, null);
     }
@@ -55,24 +55,33 @@ public class KeyRepository {
 
     final ContentResolver contentResolver;
     final LocalPublicKeyStorage mLocalPublicKeyStorage;
+    // may be null, in which case keyrings are always loaded from the database
+    final KeyRingCache mKeyRingCache;
+    // may be null, in which case subkey ids are always resolved in the database
+    final SubKeyIdIndex mSubKeyIdIndex;
     OperationLog mLog;
     int mIndent;
 
     public static KeyRepository create(Context context) {
         ContentResolver contentResolver = context.getContentResolver();
         LocalPublicKeyStorage localPublicKeyStorage = LocalPublicKeyStorage.getInstance(context);
+        KeyRingCache keyRingCache = KeyRingCache.getInstance(context);
+        SubKeyIdIndex subKeyIdIndex = SubKeyIdIndex.getInstance(context);
 
-        return new KeyRepository(contentResolver, localPublicKeyStorage);
+        return new KeyRepository(contentResolver, localPublicKeyStorage, keyRingCache, subKeyIdIndex);
     }
 
-    private KeyRepository(ContentResolver contentResolver, LocalPublicKeyStorage localPublicKeyStorage) {
-        this(contentResolver, localPublicKeyStorage, new OperationLog(), 0);
+    private KeyRepository(ContentResolver contentResolver, LocalPublicKeyStorage localPublicKeyStorage,
+            KeyRingCache keyRingCache, SubKeyIdIndex subKeyIdIndex) {
+        this(contentResolver, localPublicKeyStorage, keyRingCache, subKeyIdIndex, new OperationLog(), 0);
     }
 
     KeyRepository(ContentResolver contentResolver, LocalPublicKeyStorage localPublicKeyStorage,
-            OperationLog log, int indent) {
+            KeyRingCache keyRingCache, SubKeyIdIndex subKeyIdIndex, OperationLog log, int indent) {
         this.contentResolver = contentResolver;
         mLocalPublicKeyStorage = localPublicKeyStorage;
+        mKeyRingCache = keyRingCache;
+        mSubKeyIdIndex = subKeyIdIndex;
         mIndent = indent;
         mLog = log;
     }
@@ -166,8 +175,20 @@ public class KeyRepository {
     }
 
     public long getMasterKeyId(long subKeyId) throws NotFoundException {
-        return (Long) getGenericData(KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(subKeyId),
+        if (mSubKeyIdIndex != null) {
+            Long masterKeyId = mSubKeyIdIndex.getMasterKeyId(subKeyId);
+            if (masterKeyId != null) {
+                return masterKeyId;
+            }
+        }
+
+        // keys imported in another process only reach the index once its observer is notified
+        long masterKeyId = (Long) getGenericData(KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(subKeyId),
                 KeyRings.MASTER_KEY_ID, FIELD_TYPE_INTEGER);
+        if (mSubKeyIdIndex != null) {
+            mSubKeyIdIndex.invalidate(masterKeyId);
+        }
+        return masterKeyId;
     }
 
     public CachedPublicKeyRing getCachedPublicKeyRing(Uri queryUri) throws PgpKeyNotFoundException {
@@ -180,10 +201,24 @@ public class KeyRepository {
     }
 
     public CanonicalizedPublicKeyRing getCanonicalizedPublicKeyRing(long id) throws NotFoundException {
-        return getCanonicalizedPublicKeyRing(KeyRings.buildUnifiedKeyRingUri(id));
+        if (mKeyRingCache != null) {
+            CanonicalizedPublicKeyRing cachedKeyRing = mKeyRingCache.getPublicKeyRing(id);
+            if (cachedKeyRing != null) {
+                return cachedKeyRing;
+            }
+        }
+        return queryCanonicalizedPublicKeyRing(KeyRings.buildUnifiedKeyRingUri(id), false);
     }
 
     public CanonicalizedPublicKeyRing getCanonicalizedPublicKeyRing(Uri queryUri) throws NotFoundException {
+        return queryCanonicalizedPublicKeyRing(queryUri, true);
+    }
+
+    private CanonicalizedPublicKeyRing queryCanonicalizedPublicKeyRing(Uri queryUri, boolean checkCache)
+            throws NotFoundException {
+        // this must be obtained before the data is loaded, see KeyRingCache
+        long cacheGeneration = mKeyRingCache != null ? mKeyRingCache.getGeneration() : 0;
+
         Cursor cursor = contentResolver.query(queryUri,
                 new String[] { KeyRings.MASTER_KEY_ID, KeyRings.VERIFIED }, null, null, null);
         try {
@@ -191,8 +226,19 @@ public class KeyRepository {
                 long masterKeyId = cursor.getLong(0);
                 int verified = cursor.getInt(1);
 
+                if (checkCache && mKeyRingCache != null) {
+                    CanonicalizedPublicKeyRing cachedKeyRing = mKeyRingCache.getPublicKeyRing(masterKeyId);
+                    if (cachedKeyRing != null) {
+                        return cachedKeyRing;
+                    }
+                }
+
                 byte[] publicKeyData = loadPublicKeyRingData(masterKeyId);
-                return new CanonicalizedPublicKeyRing(publicKeyData, verified);
+                CanonicalizedPublicKeyRing keyRing = new CanonicalizedPublicKeyRing(publicKeyData, verified);
+                if (mKeyRingCache != null) {
+                    mKeyRingCache.putPublicKeyRing(cacheGeneration, keyRing, publicKeyData.length);
+                }
+                return keyRing;
             } else {
                 throw new NotFoundException("Key not found!");
             }
@@ -204,10 +250,24 @@ public class KeyRepository {
     }
 
     public CanonicalizedSecretKeyRing getCanonicalizedSecretKeyRing(long id) throws NotFoundException {
-        return getCanonicalizedSecretKeyRing(KeyRings.buildUnifiedKeyRingUri(id));
+        if (mKeyRingCache != null) {
+            CanonicalizedSecretKeyRing cachedKeyRing = mKeyRingCache.getSecretKeyRing(id);
+            if (cachedKeyRing != null) {
+                return cachedKeyRing;
+            }
+        }
+        return queryCanonicalizedSecretKeyRing(KeyRings.buildUnifiedKeyRingUri(id), false);
     }
 
     public CanonicalizedSecretKeyRing getCanonicalizedSecretKeyRing(Uri queryUri) throws NotFoundException {
+        return queryCanonicalizedSecretKeyRing(queryUri, true);
+    }
+
+    private CanonicalizedSecretKeyRing queryCanonicalizedSecretKeyRing(Uri queryUri, boolean checkCache)
+            throws NotFoundException {
+        // this must be obtained before the data is loaded, see KeyRingCache
+        long cacheGeneration = mKeyRingCache != null ? mKeyRingCache.getGeneration() : 0;
+
         Cursor cursor = contentResolver.query(queryUri,
                 new String[] { KeyRings.MASTER_KEY_ID, KeyRings.VERIFIED, KeyRings.HAS_ANY_SECRET }, null, null, null);
         try {
@@ -219,8 +279,19 @@ public class KeyRepository {
                     throw new NotFoundException("No secret key available or unknown public key!");
                 }
 
+                if (checkCache && mKeyRingCache != null) {
+                    CanonicalizedSecretKeyRing cachedKeyRing = mKeyRingCache.getSecretKeyRing(masterKeyId);
+                    if (cachedKeyRing != null) {
+                        return cachedKeyRing;
+                    }
+                }
+
                 byte[] secretKeyData = loadSecretKeyRingData(masterKeyId);
-                return new CanonicalizedSecretKeyRing(secretKeyData, verified);
+                CanonicalizedSecretKeyRing keyRing = new CanonicalizedSecretKeyRing(secretKeyData, verified);
+                if (mKeyRingCache != null) {
+                    mKeyRingCache.putSecretKeyRing(cacheGeneration, keyRing, secretKeyData.length);
+                }
+                return keyRing;
             } else {
                 throw new NotFoundException("Key not found!");
             }
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import timber.log.Timber;
+
+
+/**
+ * A process-wide LRU cache of parsed keyrings, keyed by master key id.
+ * <p/>
+ * The size of the cache is bounded by the encoded size of the cached keyrings.
+ * Entries are invalidated by DatabaseNotifyManager.notifyKeyChange, directly in
+ * the process which made the change, and through a ContentObserver in all others.
+ * <p/>
+ * A keyring which is loaded while an invalidation happens is not added, so a
+ * cache entry never predates the last change to its keyring.
+ */
+public class KeyRingCache {
+
+    private static final int MAX_ENCODED_SIZE = 2 * 1024 * 1024;
+
+    private static KeyRingCache sInstance;
+    private static ContentResolver sObservedResolver;
+    private static InvalidatingObserver sObserver;
+
+    private final int mMaxEncodedSize;
+    private final LinkedHashMap<Long, CacheEntry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private int mEncodedSize;
+    // incremented on each invalidation, to detect races with concurrent loads
+    private long mGeneration;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+
+    public static synchronized KeyRingCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new KeyRingCache(MAX_ENCODED_SIZE);
+            sObservedResolver = context.getApplicationContext().getContentResolver();
+            sObserver = new InvalidatingObserver(sInstance);
+            sObservedResolver.registerContentObserver(KeyRings.CONTENT_URI, true, sObserver);
+        }
+        return sInstance;
+    }
+
+    /** Drops the instance, so the next one uses the database of the next test. */
+    @VisibleForTesting
+    public static synchronized void resetInstance() {
+        if (sInstance != null) {
+            sObservedResolver.unregisterContentObserver(sObserver);
+            sInstance = null;
+            sObservedResolver = null;
+            sObserver = null;
+        }
+    }
+
+    @VisibleForTesting
+    KeyRingCache(int maxEncodedSize) {
+        mMaxEncodedSize = maxEncodedSize;
+    }
+
+    @Nullable
+    public synchronized CanonicalizedPublicKeyRing getPublicKeyRing(long masterKeyId) {
+        CacheEntry entry = mEntries.get(masterKeyId);
+        if (entry == null || entry.mPublicKeyRing == null) {
+            mMissCount += 1;
+            return null;
+        }
+        mHitCount += 1;
+        return entry.mPublicKeyRing;
+    }
+
+    @Nullable
+    public synchronized CanonicalizedSecretKeyRing getSecretKeyRing(long masterKeyId) {
+        CacheEntry entry = mEntries.get(masterKeyId);
+        if (entry == null || entry.mSecretKeyRing == null) {
+            mMissCount += 1;
+            return null;
+        }
+        mHitCount += 1;
+        return entry.mSecretKeyRing;
+    }
+
+    /** Returns a token to pass to the put methods, which is used to detect concurrent invalidations. */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    public synchronized void putPublicKeyRing(long generation, CanonicalizedPublicKeyRing keyRing, int encodedSize) {
+        put(generation, keyRing, encodedSize);
+    }
+
+    public synchronized void putSecretKeyRing(long generation, CanonicalizedSecretKeyRing keyRing, int encodedSize) {
+        put(generation, keyRing, encodedSize);
+    }
+
+    private void put(long generation, CanonicalizedKeyRing keyRing, int encodedSize) {
+        if (generation != mGeneration || encodedSize > mMaxEncodedSize) {
+            return;
+        }
+
+        long masterKeyId = keyRing.getMasterKeyId();
+        CacheEntry entry = mEntries.get(masterKeyId);
+        if (entry == null) {
+            entry = new CacheEntry();
+            mEntries.put(masterKeyId, entry);
+        }
+        mEncodedSize -= entry.getEncodedSize();
+        if (keyRing instanceof CanonicalizedSecretKeyRing) {
+            entry.mSecretKeyRing = (CanonicalizedSecretKeyRing) keyRing;
+            entry.mSecretEncodedSize = encodedSize;
+        } else {
+            entry.mPublicKeyRing = (CanonicalizedPublicKeyRing) keyRing;
+            entry.mPublicEncodedSize = encodedSize;
+        }
+        mEncodedSize += entry.getEncodedSize();
+
+        Iterator<CacheEntry> it = mEntries.values().iterator();
+        while (mEncodedSize > mMaxEncodedSize && it.hasNext()) {
+            CacheEntry eldest = it.next();
+            mEncodedSize -= eldest.getEncodedSize();
+            it.remove();
+            mEvictionCount += 1;
+        }
+    }
+
+    public synchronized void invalidate(long masterKeyId) {
+        mGeneration += 1;
+        CacheEntry entry = mEntries.remove(masterKeyId);
+        if (entry != null) {
+            mEncodedSize -= entry.getEncodedSize();
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        mGeneration += 1;
+        mEntries.clear();
+        mEncodedSize = 0;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    @VisibleForTesting
+    synchronized int getEncodedSize() {
+        return mEncodedSize;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "KeyRingCache{entries=" + mEntries.size() + ", encodedSize=" + mEncodedSize
+                + ", hits=" + mHitCount + ", misses=" + mMissCount + ", evictions=" + mEvictionCount + "}";
+    }
+
+    private static class CacheEntry {
+        CanonicalizedPublicKeyRing mPublicKeyRing;
+        CanonicalizedSecretKeyRing mSecretKeyRing;
+        int mPublicEncodedSize;
+        int mSecretEncodedSize;
+
+        int getEncodedSize() {
+            return mPublicEncodedSize + mSecretEncodedSize;
+        }
+    }
+
+    private static class InvalidatingObserver extends ContentObserver {
+        private final KeyRingCache mCache;
+
+        InvalidatingObserver(KeyRingCache cache) {
+            super(null);
+            mCache = cache;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            // no uri before api level 16
+            mCache.invalidateAll();
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            List<String> pathSegments = uri != null ? uri.getPathSegments() : null;
+            if (pathSegments == null || pathSegments.size() < 2) {
+                mCache.invalidateAll();
+                return;
+            }
+            try {
+                mCache.invalidate(Long.parseLong(pathSegments.get(1)));
+            } catch (NumberFormatException e) {
+                Timber.d("Unknown uri in key change notification: %s", uri);
+                mCache.invalidateAll();
+            }
+        }
+    }
+
+}
@@ -24,8 +24,10 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.TreeSet;
 
 import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
@@ -63,6 +65,7 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.KeySignatures;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.Preferences;
@@ -82,6 +85,7 @@ import timber.log.Timber;
  */
 public class KeyWritableRepository extends KeyRepository {
     private static final int MAX_CACHED_KEY_SIZE = 1024 * 50;
+    private static final int TRUST_DB_BATCH_SIZE = 200;
 
     private final Context context;
     private final LastUpdateInteractor lastUpdateInteractor;
@@ -91,22 +95,25 @@ public class KeyWritableRepository extends KeyRepository {
         LocalPublicKeyStorage localPublicKeyStorage = LocalPublicKeyStorage.getInstance(context);
         LastUpdateInteractor lastUpdateInteractor = LastUpdateInteractor.create(context);
         DatabaseNotifyManager databaseNotifyManager = DatabaseNotifyManager.create(context);
+        KeyRingCache keyRingCache = KeyRingCache.getInstance(context);
+        SubKeyIdIndex subKeyIdIndex = SubKeyIdIndex.getInstance(context);
 
-        return new KeyWritableRepository(context, localPublicKeyStorage, lastUpdateInteractor,
-                databaseNotifyManager);
+        return new KeyWritableRepository(context, localPublicKeyStorage, keyRingCache, subKeyIdIndex,
+                lastUpdateInteractor, new OperationLog(), 0, databaseNotifyManager);
     }
 
     @VisibleForTesting
     KeyWritableRepository(Context context, LocalPublicKeyStorage localPublicKeyStorage,
             LastUpdateInteractor lastUpdateInteractor, DatabaseNotifyManager databaseNotifyManager) {
-        this(context, localPublicKeyStorage, lastUpdateInteractor, new OperationLog(), 0,
+        // no caches here, the keyring cache is specific to the default storage
+        this(context, localPublicKeyStorage, null, null, lastUpdateInteractor, new OperationLog(), 0,
                 databaseNotifyManager);
     }
 
     private KeyWritableRepository(Context context, LocalPublicKeyStorage localPublicKeyStorage,
-            LastUpdateInteractor lastUpdateInteractor, OperationLog log, int indent,
-            DatabaseNotifyManager databaseNotifyManager) {
-        super(context.getContentResolver(), localPublicKeyStorage, log, indent);
+            KeyRingCache keyRingCache, SubKeyIdIndex subKeyIdIndex, LastUpdateInteractor lastUpdateInteractor,
+            OperationLog log, int indent, DatabaseNotifyManager databaseNotifyManager) {
+        super(context.getContentResolver(), localPublicKeyStorage, keyRingCache, subKeyIdIndex, log, indent);
 
         this.context = context;
         this.databaseNotifyManager = databaseNotifyManager;
@@ -114,11 +121,25 @@ public class KeyWritableRepository extends KeyRepository {
     }
 
     private LongSparseArray<CanonicalizedPublicKey> getTrustedMasterKeys() {
+        return getTrustedMasterKeys(null);
+    }
+
+    /**
+     * Returns the master keys whose certifications we trust, which are those of keys with a secret
+     * part that are not revoked. If masterKeyIds is not null, only those keys are considered.
+     */
+    private LongSparseArray<CanonicalizedPublicKey> getTrustedMasterKeys(List<Long> masterKeyIds) {
+        String selection = KeyRings.HAS_ANY_SECRET + " = 1 AND " + KeyRings.IS_REVOKED + " = 0";
+        if (masterKeyIds != null) {
+            selection += " AND " + Tables.KEYS + "." + KeyRings.MASTER_KEY_ID + " IN ("
+                    + buildIdList(masterKeyIds) + ")";
+        }
+
         Cursor cursor = contentResolver.query(KeyRings.buildUnifiedKeyRingsUri(), new String[] {
                 KeyRings.MASTER_KEY_ID,
                 // we pick from cache only information that is not easily available from keyrings
                 KeyRings.HAS_ANY_SECRET, KeyRings.VERIFIED
-        }, KeyRings.HAS_ANY_SECRET + " = 1", null, null);
+        }, selection, null, null);
 
         try {
             LongSparseArray<CanonicalizedPublicKey> result = new LongSparseArray<>();
@@ -180,23 +201,53 @@ public class KeyWritableRepository extends KeyRepository {
      * to inserting. All public data is effectively re-inserted, secret keyrings are left deleted
      * and need to be saved externally to be preserved past the operation.
      */
-    @SuppressWarnings("unchecked")
     private int saveCanonicalizedPublicKeyRing(CanonicalizedPublicKeyRing keyRing, boolean selfCertsAreTrusted) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        int result = buildPublicKeyRingOperations(keyRing, selfCertsAreTrusted, getTrustedMasterKeys(), operations);
+        if ((result & SaveKeyringResult.RESULT_ERROR) == SaveKeyringResult.RESULT_ERROR) {
+            return result;
+        }
 
-        // start with ok result
-        int result = SaveKeyringResult.SAVED_PUBLIC;
+        log(LogType.MSG_IP_APPLY_BATCH);
+        return applyPublicKeyRingOperations(keyRing.getMasterKeyId(), result, operations);
+    }
+
+    private int applyPublicKeyRingOperations(long masterKeyId, int result,
+            ArrayList<ContentProviderOperation> operations) {
+        try {
+            ContentProviderResult[] results =
+                    contentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+            return finishPublicKeyRingSave(masterKeyId, result, results[0]);
+        } catch (RemoteException e) {
+            log(LogType.MSG_IP_ERROR_REMOTE_EX);
+            Timber.e(e, "RemoteException during import");
+            return SaveKeyringResult.RESULT_ERROR;
+        } catch (OperationApplicationException e) {
+            log(LogType.MSG_IP_ERROR_OP_EXC);
+            Timber.e(e, "OperationApplicationException during import");
+            return SaveKeyringResult.RESULT_ERROR;
+        }
+    }
+
+    /**
+     * Builds the operations which replace the database entries of a public keyring. The first
+     * operation always deletes the old version of the keyring, its result tells whether this
+     * was an update.
+     */
+    @SuppressWarnings("unchecked")
+    private int buildPublicKeyRingOperations(CanonicalizedPublicKeyRing keyRing, boolean selfCertsAreTrusted,
+            LongSparseArray<CanonicalizedPublicKey> trustedKeys, ArrayList<ContentProviderOperation> operations) {
 
         long masterKeyId = keyRing.getMasterKeyId();
-        UncachedPublicKey masterKey = keyRing.getPublicKey();
 
-        ArrayList<ContentProviderOperation> operations;
         try {
 
             log(LogType.MSG_IP_PREPARE);
             mIndent += 1;
 
-            // save all keys and userIds included in keyRing object in database
-            operations = new ArrayList<>();
+            // delete old version of this keyRing (from database only!), which also deletes all keys and userIds
+            // on cascade. this happens in the same transaction as the inserts below.
+            operations.add(ContentProviderOperation.newDelete(KeyRingData.buildPublicKeyRingUri(masterKeyId)).build());
 
             log(LogType.MSG_IP_INSERT_KEYRING);
             try {
@@ -274,294 +325,323 @@ public class KeyWritableRepository extends KeyRepository {
             }
             mIndent -= 1;
 
-            // get a list of owned secret keys, for verification filtering
-            LongSparseArray<CanonicalizedPublicKey> trustedKeys = getTrustedMasterKeys();
-
-            // classify and order user ids. primary are moved to the front, revoked to the back,
-            // otherwise the order in the keyfile is preserved.
-            List<UserPacketItem> uids = new ArrayList<>();
-
             List<Long> signerKeyIds = new ArrayList<>();
+            List<UserPacketItem> uids = classifyUserPackets(keyRing, trustedKeys, signerKeyIds);
+
+            // remember certifiers we don't have a trusted key for, see updateTrustDb
+            for (long signerKeyId : signerKeyIds) {
+                operations.add(ContentProviderOperation.newInsert(KeySignatures.CONTENT_URI)
+                        .withValue(KeySignatures.MASTER_KEY_ID, masterKeyId)
+                        .withValue(KeySignatures.SIGNER_KEY_ID, signerKeyId)
+                        .build());
+            }
 
-            if (trustedKeys.size() == 0) {
-                log(LogType.MSG_IP_UID_CLASSIFYING_ZERO);
-            } else {
-                log(LogType.MSG_IP_UID_CLASSIFYING, trustedKeys.size());
+            // iterate and put into db
+            for (int userIdRank = 0; userIdRank < uids.size(); userIdRank++) {
+                operations.add(buildUserIdOperations(masterKeyId, uids.get(userIdRank), userIdRank));
+            }
+            for (StoredCert storedCert : getStoredCerts(uids, selfCertsAreTrusted)) {
+                operations.add(buildCertOperations(
+                        masterKeyId, storedCert.rank, storedCert.cert, storedCert.verified));
             }
+
+        } catch (IOException e) {
+            log(LogType.MSG_IP_ERROR_IO_EXC);
+            Timber.e(e, "IOException during import");
+            return SaveKeyringResult.RESULT_ERROR;
+        } finally {
+            mIndent -= 1;
+        }
+
+        ContentProviderOperation lastUpdateReinsertOp = getLastUpdatedReinsertOperationByMasterKeyId(masterKeyId);
+        if (lastUpdateReinsertOp != null) {
+            operations.add(lastUpdateReinsertOp);
+        }
+
+        // this must come last, the summary is computed from all rows written above
+        operations.add(buildKeySummaryOperation(masterKeyId));
+
+        return SaveKeyringResult.SAVED_PUBLIC;
+    }
+
+    /**
+     * Classifies the user ids and user attributes of a keyring, and verifies their certificates
+     * by the given trusted keys. The returned items are in the order they are stored in, the
+     * key ids of certifiers of user ids which are not trusted are added to unknownSignerKeyIds.
+     */
+    private List<UserPacketItem> classifyUserPackets(CanonicalizedPublicKeyRing keyRing,
+            LongSparseArray<CanonicalizedPublicKey> trustedKeys, List<Long> unknownSignerKeyIds)
+            throws IOException {
+        long masterKeyId = keyRing.getMasterKeyId();
+        UncachedPublicKey masterKey = keyRing.getPublicKey();
+
+        // classify and order user ids. primary are moved to the front, revoked to the back,
+        // otherwise the order in the keyfile is preserved.
+        List<UserPacketItem> uids = new ArrayList<>();
+
+        if (trustedKeys.size() == 0) {
+            log(LogType.MSG_IP_UID_CLASSIFYING_ZERO);
+        } else {
+            log(LogType.MSG_IP_UID_CLASSIFYING, trustedKeys.size());
+        }
+        mIndent += 1;
+        for (byte[] rawUserId : masterKey.getUnorderedRawUserIds()) {
+            String userId = Utf8Util.fromUTF8ByteArrayReplaceBadEncoding(rawUserId);
+            UserPacketItem item = new UserPacketItem();
+            item.position = uids.size();
+            uids.add(item);
+            OpenPgpUtils.UserId splitUserId = KeyRing.splitUserId(userId);
+            item.userId = userId;
+            item.name = splitUserId.name;
+            item.email = splitUserId.email;
+            item.comment = splitUserId.comment;
+            int unknownCerts = 0;
+
+            log(LogType.MSG_IP_UID_PROCESSING, userId);
             mIndent += 1;
-            for (byte[] rawUserId : masterKey.getUnorderedRawUserIds()) {
-                String userId = Utf8Util.fromUTF8ByteArrayReplaceBadEncoding(rawUserId);
-                UserPacketItem item = new UserPacketItem();
-                uids.add(item);
-                OpenPgpUtils.UserId splitUserId = KeyRing.splitUserId(userId);
-                item.userId = userId;
-                item.name = splitUserId.name;
-                item.email = splitUserId.email;
-                item.comment = splitUserId.comment;
-                int unknownCerts = 0;
-
-                log(LogType.MSG_IP_UID_PROCESSING, userId);
-                mIndent += 1;
-                // look through signatures for this specific key
-                for (WrappedSignature cert : new IterableIterator<>(
-                        masterKey.getSignaturesForRawId(rawUserId))) {
-                    long certId = cert.getKeyId();
-                    // self signature
-                    if (certId == masterKeyId) {
-
-                        // NOTE self-certificates are already verified during canonicalization,
-                        // AND we know there is at most one cert plus at most one revocation
-                        if (!cert.isRevocation()) {
-                            item.selfCert = cert;
-                            item.isPrimary = cert.isPrimaryUserId();
-                        } else {
-                            item.selfRevocation = cert;
-                            log(LogType.MSG_IP_UID_REVOKED);
-                        }
-                        continue;
+            // look through signatures for this specific key
+            for (WrappedSignature cert : new IterableIterator<>(
+                    masterKey.getSignaturesForRawId(rawUserId))) {
+                long certId = cert.getKeyId();
+                // self signature
+                if (certId == masterKeyId) {
+
+                    // NOTE self-certificates are already verified during canonicalization,
+                    // AND we know there is at most one cert plus at most one revocation
+                    if (!cert.isRevocation()) {
+                        item.selfCert = cert;
+                        item.isPrimary = cert.isPrimaryUserId();
+                    } else {
+                        item.selfRevocation = cert;
+                        log(LogType.MSG_IP_UID_REVOKED);
+                    }
+                    continue;
 
+                }
+
+                // do we have a trusted key for this?
+                if (trustedKeys.indexOfKey(certId) < 0) {
+                    if (!unknownSignerKeyIds.contains(certId)) {
+                        unknownSignerKeyIds.add(certId);
                     }
+                    unknownCerts += 1;
+                    continue;
+                }
 
-                    // do we have a trusted key for this?
-                    if (trustedKeys.indexOfKey(certId) < 0) {
-                        if (!signerKeyIds.contains(certId)) {
-                            operations.add(ContentProviderOperation.newInsert(KeySignatures.CONTENT_URI)
-                                    .withValue(KeySignatures.MASTER_KEY_ID, masterKeyId)
-                                    .withValue(KeySignatures.SIGNER_KEY_ID, certId)
-                                    .build());
-                            signerKeyIds.add(certId);
-                        }
-                        unknownCerts += 1;
+                // verify signatures from known private keys
+                CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
+
+                try {
+                    cert.init(trustedKey);
+                    // if it doesn't certify, leave a note and skip
+                    if (!cert.verifySignature(masterKey, rawUserId)) {
+                        log(LogType.MSG_IP_UID_CERT_BAD);
                         continue;
                     }
 
-                    // verify signatures from known private keys
-                    CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
+                    log(cert.isRevocation()
+                                    ? LogType.MSG_IP_UID_CERT_GOOD_REVOKE
+                                    : LogType.MSG_IP_UID_CERT_GOOD,
+                            KeyFormattingUtils.convertKeyIdToHexShort(trustedKey.getKeyId())
+                    );
 
-                    try {
-                        cert.init(trustedKey);
-                        // if it doesn't certify, leave a note and skip
-                        if (!cert.verifySignature(masterKey, rawUserId)) {
-                            log(LogType.MSG_IP_UID_CERT_BAD);
+                    // check if there is a previous certificate
+                    WrappedSignature prev = item.trustedCerts.get(cert.getKeyId());
+                    if (prev != null) {
+                        // if it's newer, skip this one
+                        if (prev.getCreationTime().after(cert.getCreationTime())) {
+                            log(LogType.MSG_IP_UID_CERT_OLD);
                             continue;
                         }
-
-                        log(cert.isRevocation()
-                                        ? LogType.MSG_IP_UID_CERT_GOOD_REVOKE
-                                        : LogType.MSG_IP_UID_CERT_GOOD,
-                                KeyFormattingUtils.convertKeyIdToHexShort(trustedKey.getKeyId())
-                        );
-
-                        // check if there is a previous certificate
-                        WrappedSignature prev = item.trustedCerts.get(cert.getKeyId());
-                        if (prev != null) {
-                            // if it's newer, skip this one
-                            if (prev.getCreationTime().after(cert.getCreationTime())) {
-                                log(LogType.MSG_IP_UID_CERT_OLD);
-                                continue;
-                            }
-                            // if the previous one was a non-revokable certification, no need to look further
-                            if (!prev.isRevocation() && !prev.isRevokable()) {
-                                log(LogType.MSG_IP_UID_CERT_NONREVOKE);
-                                continue;
-                            }
-                            log(LogType.MSG_IP_UID_CERT_NEW);
+                        // if the previous one was a non-revokable certification, no need to look further
+                        if (!prev.isRevocation() && !prev.isRevokable()) {
+                            log(LogType.MSG_IP_UID_CERT_NONREVOKE);
+                            continue;
                         }
-                        item.trustedCerts.put(cert.getKeyId(), cert);
-
-                    } catch (PgpGeneralException e) {
-                        log(LogType.MSG_IP_UID_CERT_ERROR,
-                                KeyFormattingUtils.convertKeyIdToHex(cert.getKeyId()));
+                        log(LogType.MSG_IP_UID_CERT_NEW);
                     }
+                    item.trustedCerts.put(cert.getKeyId(), cert);
 
+                } catch (PgpGeneralException e) {
+                    log(LogType.MSG_IP_UID_CERT_ERROR,
+                            KeyFormattingUtils.convertKeyIdToHex(cert.getKeyId()));
                 }
 
-                if (unknownCerts > 0) {
-                    log(LogType.MSG_IP_UID_CERTS_UNKNOWN, unknownCerts);
-                }
-                mIndent -= 1;
+            }
 
+            if (unknownCerts > 0) {
+                log(LogType.MSG_IP_UID_CERTS_UNKNOWN, unknownCerts);
             }
             mIndent -= 1;
 
-            ArrayList<WrappedUserAttribute> userAttributes = masterKey.getUnorderedUserAttributes();
-            // Don't spam the log if there aren't even any attributes
-            if (!userAttributes.isEmpty()) {
-                log(LogType.MSG_IP_UAT_CLASSIFYING);
-            }
+        }
+        mIndent -= 1;
 
-            mIndent += 1;
-            for (WrappedUserAttribute userAttribute : userAttributes) {
+        ArrayList<WrappedUserAttribute> userAttributes = masterKey.getUnorderedUserAttributes();
+        // Don't spam the log if there aren't even any attributes
+        if (!userAttributes.isEmpty()) {
+            log(LogType.MSG_IP_UAT_CLASSIFYING);
+        }
 
-                UserPacketItem item = new UserPacketItem();
-                uids.add(item);
-                item.type = userAttribute.getType();
-                item.attributeData = userAttribute.getEncoded();
+        mIndent += 1;
+        for (WrappedUserAttribute userAttribute : userAttributes) {
+
+            UserPacketItem item = new UserPacketItem();
+            item.position = uids.size();
+            uids.add(item);
+            item.type = userAttribute.getType();
+            item.attributeData = userAttribute.getEncoded();
+
+            int unknownCerts = 0;
+
+            switch (item.type) {
+                case WrappedUserAttribute.UAT_IMAGE:
+                    log(LogType.MSG_IP_UAT_PROCESSING_IMAGE);
+                    break;
+                default:
+                    log(LogType.MSG_IP_UAT_PROCESSING_UNKNOWN);
+                    break;
+            }
+            mIndent += 1;
+            // look through signatures for this specific key
+            for (WrappedSignature cert : new IterableIterator<>(
+                    masterKey.getSignaturesForUserAttribute(userAttribute))) {
+                long certId = cert.getKeyId();
+                // self signature
+                if (certId == masterKeyId) {
+
+                    // NOTE self-certificates are already verified during canonicalization,
+                    // AND we know there is at most one cert plus at most one revocation
+                    // AND the revocation only exists if there is no newer certification
+                    if (!cert.isRevocation()) {
+                        item.selfCert = cert;
+                    } else {
+                        item.selfRevocation = cert;
+                        log(LogType.MSG_IP_UAT_REVOKED);
+                    }
+                    continue;
 
-                int unknownCerts = 0;
+                }
 
-                switch (item.type) {
-                    case WrappedUserAttribute.UAT_IMAGE:
-                        log(LogType.MSG_IP_UAT_PROCESSING_IMAGE);
-                        break;
-                    default:
-                        log(LogType.MSG_IP_UAT_PROCESSING_UNKNOWN);
-                        break;
+                // do we have a trusted key for this?
+                if (trustedKeys.indexOfKey(certId) < 0) {
+                    unknownCerts += 1;
+                    continue;
                 }
-                mIndent += 1;
-                // look through signatures for this specific key
-                for (WrappedSignature cert : new IterableIterator<>(
-                        masterKey.getSignaturesForUserAttribute(userAttribute))) {
-                    long certId = cert.getKeyId();
-                    // self signature
-                    if (certId == masterKeyId) {
-
-                        // NOTE self-certificates are already verified during canonicalization,
-                        // AND we know there is at most one cert plus at most one revocation
-                        // AND the revocation only exists if there is no newer certification
-                        if (!cert.isRevocation()) {
-                            item.selfCert = cert;
-                        } else {
-                            item.selfRevocation = cert;
-                            log(LogType.MSG_IP_UAT_REVOKED);
-                        }
-                        continue;
 
-                    }
+                // verify signatures from known private keys
+                CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
 
-                    // do we have a trusted key for this?
-                    if (trustedKeys.indexOfKey(certId) < 0) {
-                        unknownCerts += 1;
+                try {
+                    cert.init(trustedKey);
+                    // if it doesn't certify, leave a note and skip
+                    if (!cert.verifySignature(masterKey, userAttribute)) {
+                        log(LogType.MSG_IP_UAT_CERT_BAD);
                         continue;
                     }
 
-                    // verify signatures from known private keys
-                    CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
+                    log(cert.isRevocation()
+                                    ? LogType.MSG_IP_UAT_CERT_GOOD_REVOKE
+                                    : LogType.MSG_IP_UAT_CERT_GOOD,
+                            KeyFormattingUtils.convertKeyIdToHexShort(trustedKey.getKeyId())
+                    );
 
-                    try {
-                        cert.init(trustedKey);
-                        // if it doesn't certify, leave a note and skip
-                        if (!cert.verifySignature(masterKey, userAttribute)) {
-                            log(LogType.MSG_IP_UAT_CERT_BAD);
+                    // check if there is a previous certificate
+                    WrappedSignature prev = item.trustedCerts.get(cert.getKeyId());
+                    if (prev != null) {
+                        // if it's newer, skip this one
+                        if (prev.getCreationTime().after(cert.getCreationTime())) {
+                            log(LogType.MSG_IP_UAT_CERT_OLD);
                             continue;
                         }
-
-                        log(cert.isRevocation()
-                                        ? LogType.MSG_IP_UAT_CERT_GOOD_REVOKE
-                                        : LogType.MSG_IP_UAT_CERT_GOOD,
-                                KeyFormattingUtils.convertKeyIdToHexShort(trustedKey.getKeyId())
-                        );
-
-                        // check if there is a previous certificate
-                        WrappedSignature prev = item.trustedCerts.get(cert.getKeyId());
-                        if (prev != null) {
-                            // if it's newer, skip this one
-                            if (prev.getCreationTime().after(cert.getCreationTime())) {
-                                log(LogType.MSG_IP_UAT_CERT_OLD);
-                                continue;
-                            }
-                            // if the previous one was a non-revokable certification, no need to look further
-                            if (!prev.isRevocation() && !prev.isRevokable()) {
-                                log(LogType.MSG_IP_UAT_CERT_NONREVOKE);
-                                continue;
-                            }
-                            log(LogType.MSG_IP_UAT_CERT_NEW);
+                        // if the previous one was a non-revokable certification, no need to look further
+                        if (!prev.isRevocation() && !prev.isRevokable()) {
+                            log(LogType.MSG_IP_UAT_CERT_NONREVOKE);
+                            continue;
                         }
-                        item.trustedCerts.put(cert.getKeyId(), cert);
-
-                    } catch (PgpGeneralException e) {
-                        log(LogType.MSG_IP_UAT_CERT_ERROR,
-                                KeyFormattingUtils.convertKeyIdToHex(cert.getKeyId()));
+                        log(LogType.MSG_IP_UAT_CERT_NEW);
                     }
+                    item.trustedCerts.put(cert.getKeyId(), cert);
 
+                } catch (PgpGeneralException e) {
+                    log(LogType.MSG_IP_UAT_CERT_ERROR,
+                            KeyFormattingUtils.convertKeyIdToHex(cert.getKeyId()));
                 }
 
-                if (unknownCerts > 0) {
-                    log(LogType.MSG_IP_UAT_CERTS_UNKNOWN, unknownCerts);
-                }
-                mIndent -= 1;
+            }
 
+            if (unknownCerts > 0) {
+                log(LogType.MSG_IP_UAT_CERTS_UNKNOWN, unknownCerts);
             }
             mIndent -= 1;
 
-            log(LogType.MSG_IP_UID_REORDER);
-            // primary before regular before revoked (see UserIdItem.compareTo)
-            // this is a stable sort, so the order of keys is otherwise preserved.
-            Collections.sort(uids);
-            // iterate and put into db
-            for (int userIdRank = 0; userIdRank < uids.size(); userIdRank++) {
-                UserPacketItem item = uids.get(userIdRank);
-                operations.add(buildUserIdOperations(masterKeyId, item, userIdRank));
-
-                if (item.selfRevocation != null) {
-                    operations.add(buildCertOperations(masterKeyId, userIdRank, item.selfRevocation,
-                            Certs.VERIFIED_SELF));
-                    // don't bother with trusted certs if the uid is revoked, anyways
-                    continue;
-                }
+        }
+        mIndent -= 1;
 
-                if (item.selfCert == null) {
-                    throw new AssertionError("User ids MUST be self-certified at this point!!");
-                }
+        log(LogType.MSG_IP_UID_REORDER);
+        // primary before regular before revoked (see UserIdItem.compareTo)
+        // the order of keys is otherwise preserved.
+        Collections.sort(uids);
 
-                operations.add(buildCertOperations(masterKeyId, userIdRank, item.selfCert,
-                        selfCertsAreTrusted ? Certs.VERIFIED_SECRET : Certs.VERIFIED_SELF));
+        return uids;
+    }
 
-                // iterate over signatures
-                for (int i = 0; i < item.trustedCerts.size(); i++) {
-                    WrappedSignature sig = item.trustedCerts.valueAt(i);
-                    // if it's a revocation
-                    if (sig.isRevocation()) {
-                        // don't further process it
-                        continue;
-                    }
-                    // otherwise, build database operation
-                    operations.add(buildCertOperations(
-                            masterKeyId, userIdRank, sig, Certs.VERIFIED_SECRET));
-                }
+    /**
+     * Returns the certificates which are stored for the given user packets, in the order
+     * returned by classifyUserPackets. These are the self certificates, and the non-revocation
+     * certificates by trusted keys of user packets which are not revoked.
+     */
+    private static List<StoredCert> getStoredCerts(List<UserPacketItem> uids, boolean selfCertsAreTrusted) {
+        List<StoredCert> result = new ArrayList<>();
+        for (int userIdRank = 0; userIdRank < uids.size(); userIdRank++) {
+            UserPacketItem item = uids.get(userIdRank);
+
+            if (item.selfRevocation != null) {
+                result.add(new StoredCert(userIdRank, item.selfRevocation, Certs.VERIFIED_SELF));
+                // don't bother with trusted certs if the uid is revoked, anyways
+                continue;
             }
 
-        } catch (IOException e) {
-            log(LogType.MSG_IP_ERROR_IO_EXC);
-            Timber.e(e, "IOException during import");
-            return SaveKeyringResult.RESULT_ERROR;
-        } finally {
-            mIndent -= 1;
-        }
+            if (item.selfCert == null) {
+                throw new AssertionError("User ids MUST be self-certified at this point!!");
+            }
 
-        ContentProviderOperation lastUpdateReinsertOp = getLastUpdatedReinsertOperationByMasterKeyId(masterKeyId);
-        if (lastUpdateReinsertOp != null) {
-            operations.add(lastUpdateReinsertOp);
-        }
+            result.add(new StoredCert(userIdRank, item.selfCert,
+                    selfCertsAreTrusted ? Certs.VERIFIED_SECRET : Certs.VERIFIED_SELF));
 
-        try {
-            // delete old version of this keyRing (from database only!), which also deletes all keys and userIds on cascade
-            int deleted = contentResolver.delete(
-                    KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
-            if (deleted > 0) {
-                log(LogType.MSG_IP_DELETE_OLD_OK);
-                result |= SaveKeyringResult.UPDATED;
-            } else {
-                log(LogType.MSG_IP_DELETE_OLD_FAIL);
+            // iterate over signatures
+            for (int i = 0; i < item.trustedCerts.size(); i++) {
+                WrappedSignature sig = item.trustedCerts.valueAt(i);
+                // if it's a revocation
+                if (sig.isRevocation()) {
+                    // don't further process it
+                    continue;
+                }
+                result.add(new StoredCert(userIdRank, sig, Certs.VERIFIED_SECRET));
             }
+        }
+        return result;
+    }
 
-            log(LogType.MSG_IP_APPLY_BATCH);
-            contentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
-            databaseNotifyManager.notifyKeyChange(masterKeyId);
+    private int finishPublicKeyRingSave(long masterKeyId, int result, ContentProviderResult deleteResult) {
+        if (deleteResult.count != null && deleteResult.count > 0) {
+            log(LogType.MSG_IP_DELETE_OLD_OK);
+            result |= SaveKeyringResult.UPDATED;
+        } else {
+            log(LogType.MSG_IP_DELETE_OLD_FAIL);
+        }
 
-            log(LogType.MSG_IP_SUCCESS);
-            return result;
+        databaseNotifyManager.notifyKeyChange(masterKeyId);
 
-        } catch (RemoteException e) {
-            log(LogType.MSG_IP_ERROR_REMOTE_EX);
-            Timber.e(e, "RemoteException during import");
-            return SaveKeyringResult.RESULT_ERROR;
-        } catch (OperationApplicationException e) {
-            log(LogType.MSG_IP_ERROR_OP_EXC);
-            Timber.e(e, "OperationApplicationException during import");
-            return SaveKeyringResult.RESULT_ERROR;
-        }
+        log(LogType.MSG_IP_SUCCESS);
+        return result;
+    }
 
+    private ContentProviderOperation buildKeySummaryOperation(long masterKeyId) {
+        return ContentProviderOperation
+                .newInsert(KeyRings.buildKeySummaryUri(masterKeyId))
+                .withValue(KeyRings.MASTER_KEY_ID, masterKeyId)
+                .build();
     }
 
     private ContentProviderOperation getLastUpdatedReinsertOperationByMasterKeyId(long masterKeyId) {
@@ -587,11 +667,13 @@ public class KeyWritableRepository extends KeyRepository {
     private void writePublicKeyRing(CanonicalizedPublicKeyRing keyRing, long masterKeyId,
             ArrayList<ContentProviderOperation> operations) throws IOException {
         byte[] encodedKey = keyRing.getEncoded();
-        mLocalPublicKeyStorage.writePublicKey(masterKeyId, encodedKey);
+        boolean storeInDatabase = encodedKey.length < MAX_CACHED_KEY_SIZE;
+        // if the database has no copy, the keyring must be on disk before the database refers to it
+        mLocalPublicKeyStorage.writePublicKey(masterKeyId, encodedKey, !storeInDatabase);
 
         ContentValues values = new ContentValues();
         values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
-        if (encodedKey.length < MAX_CACHED_KEY_SIZE) {
+        if (storeInDatabase) {
             values.put(KeyRingData.KEY_RING_DATA, encodedKey);
         } else {
             values.put(KeyRingData.KEY_RING_DATA, (byte[]) null);
@@ -639,6 +721,13 @@ public class KeyWritableRepository extends KeyRepository {
         WrappedSignature selfCert;
         WrappedSignature selfRevocation;
         LongSparseArray<WrappedSignature> trustedCerts = new LongSparseArray<>();
+        // position in the keyring, and whether certs by keys not classified with it are trusted
+        int position;
+        boolean hasOtherTrustedCerts = false;
+
+        boolean isTrusted() {
+            return trustedCerts.size() > 0 || hasOtherTrustedCerts;
+        }
 
         @Override
         public int compareTo(@NonNull UserPacketItem o) {
@@ -655,14 +744,27 @@ public class KeyWritableRepository extends KeyRepository {
             }
             // if one is *trusted* but the other isn't, that one comes first
             // this overrides the primary attribute, even!
-            if ((trustedCerts.size() == 0) != (o.trustedCerts.size() == 0)) {
-                return trustedCerts.size() > o.trustedCerts.size() ? -1 : 1;
+            if (isTrusted() != o.isTrusted()) {
+                return isTrusted() ? -1 : 1;
             }
             // if one key is primary but the other isn't, the primary one always comes first
             if (isPrimary != o.isPrimary) {
                 return isPrimary ? -1 : 1;
             }
-            return 0;
+            // otherwise, keep the order of the keyring
+            return position - o.position;
+        }
+    }
+
+    private static class StoredCert {
+        final int rank;
+        final WrappedSignature cert;
+        final int verified;
+
+        StoredCert(int rank, WrappedSignature cert, int verified) {
+            this.rank = rank;
+            this.cert = cert;
+            this.verified = verified;
         }
     }
 
@@ -746,6 +848,13 @@ public class KeyWritableRepository extends KeyRepository {
                 // with has_secret = 1
             }
 
+            // secret key availability changed, update the summary accordingly
+            ContentValues summaryValues = new ContentValues();
+            summaryValues.put(KeyRings.MASTER_KEY_ID, masterKeyId);
+            contentResolver.insert(KeyRings.buildKeySummaryUri(masterKeyId), summaryValues);
+
+            databaseNotifyManager.notifyKeyChange(masterKeyId);
+
             log(LogType.MSG_IS_SUCCESS);
             return result;
 
@@ -768,6 +877,21 @@ public class KeyWritableRepository extends KeyRepository {
             ArrayList<CanonicalizedKeyRing> canKeyRings,
             boolean forceRefresh,
             boolean skipSave) {
+        PreparedKeyRing preparedKeyRing = preparePublicKeyRing(publicRing, expectedFingerprint, canKeyRings,
+                forceRefresh);
+        return savePreparedKeyRing(preparedKeyRing, skipSave);
+    }
+
+    /**
+     * Merges an UncachedKeyRing of the public variant with the data already in the database, and
+     * canonicalizes it, but does not write anything. The returned keyring is saved with
+     * savePreparedKeyRing, on this same repository.
+     * <p>
+     * This is the expensive part of savePublicKeyRing, and only reads from the database. It may
+     * run concurrently with other preparations, as long as each uses its own repository.
+     */
+    public PreparedKeyRing preparePublicKeyRing(UncachedKeyRing publicRing, byte[] expectedFingerprint,
+            ArrayList<CanonicalizedKeyRing> canKeyRings, boolean forceRefresh) {
 
         try {
             long masterKeyId = publicRing.getMasterKeyId();
@@ -776,7 +900,7 @@ public class KeyWritableRepository extends KeyRepository {
 
             if (publicRing.isSecret()) {
                 log(LogType.MSG_IP_BAD_TYPE_SECRET);
-                return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                return preparationFailed();
             }
 
             CanonicalizedPublicKeyRing canPublicRing;
@@ -793,13 +917,13 @@ public class KeyWritableRepository extends KeyRepository {
 
                 // If this is null, there is an error in the log so we can just return
                 if (publicRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return preparationFailed();
                 }
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
                 canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
                 if (canPublicRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return preparationFailed();
                 }
                 if (canKeyRings != null) canKeyRings.add(canPublicRing);
 
@@ -807,7 +931,8 @@ public class KeyWritableRepository extends KeyRepository {
                 if (!forceRefresh && Arrays.hashCode(publicRing.getEncoded())
                         == Arrays.hashCode(oldPublicRing.getEncoded())) {
                     log(LogType.MSG_IP_SUCCESS_IDENTICAL);
-                    return new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, canPublicRing);
+                    return new PreparedKeyRing(this,
+                            new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, canPublicRing));
                 }
             } catch (NotFoundException e) {
                 // Not an issue, just means we are dealing with a new keyring.
@@ -815,7 +940,7 @@ public class KeyWritableRepository extends KeyRepository {
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
                 canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
                 if (canPublicRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return preparationFailed();
                 }
                 if (canKeyRings != null) canKeyRings.add(canPublicRing);
             }
@@ -830,12 +955,12 @@ public class KeyWritableRepository extends KeyRepository {
                 log(LogType.MSG_IP_MERGE_SECRET);
                 secretRing = secretRing.merge(publicRing, mLog, mIndent);
                 if (secretRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return preparationFailed();
                 }
                 // This has always been a secret key ring, this is a safe cast
                 canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
                 if (canSecretRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return preparationFailed();
                 }
 
             } catch (NotFoundException e) {
@@ -848,40 +973,16 @@ public class KeyWritableRepository extends KeyRepository {
             if (expectedFingerprint != null) {
                 if (!canPublicRing.containsBoundSubkey(expectedFingerprint)) {
                     log(LogType.MSG_IP_FINGERPRINT_ERROR);
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return preparationFailed();
                 } else {
                     log(LogType.MSG_IP_FINGERPRINT_OK);
                 }
             }
 
-            int result;
-            if (skipSave) {
-                // skip save method, set fixed result
-                result = SaveKeyringResult.SAVED_PUBLIC
-                        | (alreadyExists ? SaveKeyringResult.UPDATED : 0);
-            } else {
-                result = saveCanonicalizedPublicKeyRing(canPublicRing, canSecretRing != null);
-            }
-
-            // Save the saved keyring (if any)
-            if (canSecretRing != null) {
-                int secretResult;
-                if (skipSave) {
-                    // skip save method, set fixed result
-                    secretResult = SaveKeyringResult.SAVED_SECRET;
-                } else {
-                    secretResult = saveCanonicalizedSecretKeyRing(canSecretRing);
-                }
-
-                if ((secretResult & SaveKeyringResult.RESULT_ERROR) != SaveKeyringResult.RESULT_ERROR) {
-                    result |= SaveKeyringResult.SAVED_SECRET;
-                }
-            }
-
-            return new SaveKeyringResult(result, mLog, canPublicRing);
+            return new PreparedKeyRing(this, false, alreadyExists, canPublicRing, canSecretRing);
         } catch (IOException e) {
             log(LogType.MSG_IP_ERROR_IO_EXC);
-            return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+            return preparationFailed();
         } finally {
             mIndent -= 1;
         }
@@ -907,6 +1008,17 @@ public class KeyWritableRepository extends KeyRepository {
     public SaveKeyringResult saveSecretKeyRing(UncachedKeyRing secretRing,
                                                ArrayList<CanonicalizedKeyRing> canKeyRings,
                                                boolean skipSave) {
+        PreparedKeyRing preparedKeyRing = prepareSecretKeyRing(secretRing, canKeyRings);
+        return savePreparedKeyRing(preparedKeyRing, skipSave);
+    }
+
+    /**
+     * Merges an UncachedKeyRing of the secret variant with the data already in the database, and
+     * canonicalizes both the secret and the public keyring, but does not write anything. See
+     * preparePublicKeyRing.
+     */
+    public PreparedKeyRing prepareSecretKeyRing(UncachedKeyRing secretRing,
+            ArrayList<CanonicalizedKeyRing> canKeyRings) {
 
         try {
             long masterKeyId = secretRing.getMasterKeyId();
@@ -915,7 +1027,7 @@ public class KeyWritableRepository extends KeyRepository {
 
             if (!secretRing.isSecret()) {
                 log(LogType.MSG_IS_BAD_TYPE_PUBLIC);
-                return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                return preparationFailed();
             }
 
             CanonicalizedSecretKeyRing canSecretRing;
@@ -932,14 +1044,14 @@ public class KeyWritableRepository extends KeyRepository {
 
                 // If this is null, there is an error in the log so we can just return
                 if (secretRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return preparationFailed();
                 }
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
                 // This is a safe cast, because we made sure this is a secret ring above
                 canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
                 if (canSecretRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return preparationFailed();
                 }
                 if (canKeyRings != null) canKeyRings.add(canSecretRing);
 
@@ -948,7 +1060,7 @@ public class KeyWritableRepository extends KeyRepository {
                         == Arrays.hashCode(oldSecretRing.getEncoded())) {
                     log(LogType.MSG_IS_SUCCESS_IDENTICAL,
                             KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
-                    return new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, null);
+                    return new PreparedKeyRing(this, new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, null));
                 }
             } catch (NotFoundException e) {
                 // Not an issue, just means we are dealing with a new keyring
@@ -970,7 +1082,7 @@ public class KeyWritableRepository extends KeyRepository {
                     }
 
                     if (canSecretRing == null) {
-                        return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                        return preparationFailed();
                     }
                 }
                 if (canKeyRings != null) canKeyRings.add(canSecretRing);
@@ -985,7 +1097,7 @@ public class KeyWritableRepository extends KeyRepository {
                 log(LogType.MSG_IS_MERGE_PUBLIC);
                 publicRing = oldPublicRing.merge(secretRing, mLog, mIndent);
                 if (publicRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    return preparationFailed();
                 }
 
             } catch (NotFoundException e) {
@@ -996,110 +1108,648 @@ public class KeyWritableRepository extends KeyRepository {
             CanonicalizedPublicKeyRing canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog,
                     mIndent);
             if (canPublicRing == null) {
-                return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                return preparationFailed();
             }
 
-            int publicResult;
-            if (skipSave) {
-                // skip save method, set fixed result
-                publicResult = SaveKeyringResult.SAVED_PUBLIC;
-            } else {
-                publicResult = saveCanonicalizedPublicKeyRing(canPublicRing, true);
-            }
+            return new PreparedKeyRing(this, true, alreadyExists, canPublicRing, canSecretRing);
+        } catch (IOException e) {
+            log(LogType.MSG_IS_ERROR_IO_EXC);
+            return preparationFailed();
+        } finally {
+            mIndent -= 1;
+        }
+    }
 
-            if ((publicResult & SaveKeyringResult.RESULT_ERROR) == SaveKeyringResult.RESULT_ERROR) {
-                return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+    public SaveKeyringResult saveSecretKeyRing(UncachedKeyRing secretRing) {
+        return saveSecretKeyRing(secretRing, null, false);
+    }
+
+    private PreparedKeyRing preparationFailed() {
+        return new PreparedKeyRing(this, new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null));
+    }
+
+    /**
+     * Saves a keyring which was prepared by preparePublicKeyRing or prepareSecretKeyRing. The log
+     * entries are added to the log of the repository the keyring was prepared on.
+     * <p>
+     * The preparation merged the keyring with the database state at that time, so no other save
+     * of the same key may happen in between.
+     */
+    public SaveKeyringResult savePreparedKeyRing(PreparedKeyRing preparedKeyRing, boolean skipSave) {
+        if (preparedKeyRing.result != null) {
+            return preparedKeyRing.result;
+        }
+        return preparedKeyRing.repository.writePreparedKeyRing(preparedKeyRing, skipSave);
+    }
+
+    private SaveKeyringResult writePreparedKeyRing(PreparedKeyRing preparedKeyRing, boolean skipSave) {
+        CanonicalizedPublicKeyRing canPublicRing = preparedKeyRing.canPublicRing;
+        CanonicalizedSecretKeyRing canSecretRing = preparedKeyRing.canSecretRing;
+        boolean alreadyExists = preparedKeyRing.alreadyExists;
+
+        mIndent += 1;
+        try {
+            if (preparedKeyRing.isSecret) {
+                int publicResult;
+                if (skipSave) {
+                    // skip save method, set fixed result
+                    publicResult = SaveKeyringResult.SAVED_PUBLIC;
+                } else {
+                    publicResult = saveCanonicalizedPublicKeyRing(canPublicRing, true);
+                }
+
+                if ((publicResult & SaveKeyringResult.RESULT_ERROR) == SaveKeyringResult.RESULT_ERROR) {
+                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                }
+
+                int result;
+                if (skipSave) {
+                    // skip save method, set fixed result
+                    result = SaveKeyringResult.SAVED_SECRET
+                            | (alreadyExists ? SaveKeyringResult.UPDATED : 0);
+                } else {
+                    result = saveCanonicalizedSecretKeyRing(canSecretRing);
+                }
+
+                return new SaveKeyringResult(result, mLog, canSecretRing);
             }
 
             int result;
             if (skipSave) {
                 // skip save method, set fixed result
-                result = SaveKeyringResult.SAVED_SECRET
+                result = SaveKeyringResult.SAVED_PUBLIC
                         | (alreadyExists ? SaveKeyringResult.UPDATED : 0);
             } else {
-                result = saveCanonicalizedSecretKeyRing(canSecretRing);
+                result = saveCanonicalizedPublicKeyRing(canPublicRing, canSecretRing != null);
             }
 
-            return new SaveKeyringResult(result, mLog, canSecretRing);
-        } catch (IOException e) {
-            log(LogType.MSG_IS_ERROR_IO_EXC);
-            return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+            // Save the saved keyring (if any)
+            if (canSecretRing != null) {
+                int secretResult;
+                if (skipSave) {
+                    // skip save method, set fixed result
+                    secretResult = SaveKeyringResult.SAVED_SECRET;
+                } else {
+                    secretResult = saveCanonicalizedSecretKeyRing(canSecretRing);
+                }
+
+                if ((secretResult & SaveKeyringResult.RESULT_ERROR) != SaveKeyringResult.RESULT_ERROR) {
+                    result |= SaveKeyringResult.SAVED_SECRET;
+                }
+            }
+
+            return new SaveKeyringResult(result, mLog, canPublicRing);
         } finally {
             mIndent -= 1;
         }
     }
 
-    public SaveKeyringResult saveSecretKeyRing(UncachedKeyRing secretRing) {
-        return saveSecretKeyRing(secretRing, null, false);
+    /**
+     * Saves a list of prepared keyrings, in order, and returns their results in the same order.
+     * <p>
+     * Public keyrings without a secret part, which is the common case for bulk imports, are
+     * written in a single transaction per run of consecutive keyrings. This is a lot faster than
+     * saving them one by one, where sqlite syncs its journal for every single keyring. All other
+     * keyrings are saved individually, as with savePreparedKeyRing.
+     * <p>
+     * The keyrings must all have different master key ids, and each must have been prepared on
+     * a separate repository.
+     */
+    public List<SaveKeyringResult> savePreparedKeyRings(List<PreparedKeyRing> preparedKeyRings) {
+        SaveKeyringResult[] results = new SaveKeyringResult[preparedKeyRings.size()];
+
+        ArrayList<Integer> batch = new ArrayList<>();
+        for (int i = 0; i < results.length; i++) {
+            PreparedKeyRing preparedKeyRing = preparedKeyRings.get(i);
+            if (preparedKeyRing.result != null) {
+                results[i] = preparedKeyRing.result;
+            } else if (preparedKeyRing.canSecretRing == null) {
+                batch.add(i);
+            } else {
+                savePublicKeyRingBatch(preparedKeyRings, batch, results);
+                batch.clear();
+                results[i] = savePreparedKeyRing(preparedKeyRing, false);
+            }
+        }
+        savePublicKeyRingBatch(preparedKeyRings, batch, results);
+
+        return Arrays.asList(results);
     }
 
+    private void savePublicKeyRingBatch(List<PreparedKeyRing> preparedKeyRings, List<Integer> batch,
+            SaveKeyringResult[] results) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        // secret keys are never part of a batch, so this is the same for all keyrings in it
+        LongSparseArray<CanonicalizedPublicKey> trustedKeys = getTrustedMasterKeys();
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        List<ArrayList<ContentProviderOperation>> keyRingOperations = new ArrayList<>(batch.size());
+        int[] offsets = new int[batch.size()];
+        int[] batchResults = new int[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            PreparedKeyRing preparedKeyRing = preparedKeyRings.get(batch.get(i));
+            KeyWritableRepository repository = preparedKeyRing.repository;
+
+            repository.mIndent += 1;
+            ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+            batchResults[i] = repository.buildPublicKeyRingOperations(
+                    preparedKeyRing.canPublicRing, false, trustedKeys, ops);
+            if ((batchResults[i] & SaveKeyringResult.RESULT_ERROR) == SaveKeyringResult.RESULT_ERROR) {
+                keyRingOperations.add(null);
+                continue;
+            }
+            repository.log(LogType.MSG_IP_APPLY_BATCH);
+
+            keyRingOperations.add(ops);
+            offsets[i] = operations.size();
+            operations.addAll(ops);
+        }
+
+        ContentProviderResult[] operationResults;
+        try {
+            operationResults = contentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            // the whole transaction was rolled back, retry individually to isolate the broken keyrings
+            Timber.e(e, "Batched save failed, saving keyrings one by one");
+            operationResults = null;
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            PreparedKeyRing preparedKeyRing = preparedKeyRings.get(batch.get(i));
+            KeyWritableRepository repository = preparedKeyRing.repository;
+
+            int result = batchResults[i];
+            ArrayList<ContentProviderOperation> ops = keyRingOperations.get(i);
+            if (ops != null && operationResults != null) {
+                result = repository.finishPublicKeyRingSave(
+                        preparedKeyRing.getMasterKeyId(), result, operationResults[offsets[i]]);
+            } else if (ops != null) {
+                result = repository.applyPublicKeyRingOperations(preparedKeyRing.getMasterKeyId(), result, ops);
+            }
+            repository.mIndent -= 1;
+
+            boolean success = (result & SaveKeyringResult.RESULT_ERROR) != SaveKeyringResult.RESULT_ERROR;
+            results[batch.get(i)] = new SaveKeyringResult(result, repository.mLog,
+                    success ? preparedKeyRing.canPublicRing : null);
+        }
+    }
+
+    /**
+     * Returns a new repository on the same database and caches, but with a log of its own. Since
+     * repositories keep a log of the operation they are used in, they must not be shared between
+     * threads. Operations which save keyrings concurrently use one fork per keyring.
+     */
+    public KeyWritableRepository fork() {
+        return new KeyWritableRepository(context, mLocalPublicKeyStorage, mKeyRingCache, mSubKeyIdIndex,
+                lastUpdateInteractor, new OperationLog(), 0, databaseNotifyManager);
+    }
+
+    /**
+     * A keyring which has been merged with the database state and canonicalized, ready to be
+     * saved. If anything went wrong, or the keyring does not need to be saved, this holds the
+     * final result instead.
+     */
+    public static class PreparedKeyRing {
+        private final KeyWritableRepository repository;
+        private final SaveKeyringResult result;
+
+        private final boolean isSecret;
+        private final boolean alreadyExists;
+        private final CanonicalizedPublicKeyRing canPublicRing;
+        private final CanonicalizedSecretKeyRing canSecretRing;
+
+        private PreparedKeyRing(KeyWritableRepository repository, SaveKeyringResult result) {
+            this.repository = repository;
+            this.result = result;
+            this.isSecret = false;
+            this.alreadyExists = false;
+            this.canPublicRing = null;
+            this.canSecretRing = null;
+        }
+
+        private PreparedKeyRing(KeyWritableRepository repository, boolean isSecret, boolean alreadyExists,
+                CanonicalizedPublicKeyRing canPublicRing, CanonicalizedSecretKeyRing canSecretRing) {
+            this.repository = repository;
+            this.result = null;
+            this.isSecret = isSecret;
+            this.alreadyExists = alreadyExists;
+            this.canPublicRing = canPublicRing;
+            this.canSecretRing = canSecretRing;
+        }
+
+        private long getMasterKeyId() {
+            return canPublicRing.getMasterKeyId();
+        }
+    }
+
+    /**
+     * Updates the verification state of certificates after the trust in the given master keys
+     * changed, i.e. after their secret keys were imported or deleted, or after they were revoked.
+     * If the trust database was not initialized yet, all keys are updated instead.
+     * <p>
+     * The keys which need to be looked at are found through the key_signatures table, which holds
+     * certifications by untrusted keys, and the certs table, which holds those by trusted keys.
+     * On these keys, only certificates by the given master keys are verified, and only the
+     * rows of certificates which changed are written, in one transaction per batch of keys.
+     * Keys where this changes the order of user ids are saved completely, since their ranks
+     * change as well.
+     */
     @NonNull
     public UpdateTrustResult updateTrustDb(List<Long> signerMasterKeyIds, Progressable progress) {
         OperationLog log = new OperationLog();
 
         log.add(LogType.MSG_TRUST, 0);
 
-        Cursor cursor;
+        List<Long> masterKeyIds;
+        LongSparseArray<CanonicalizedPublicKey> trustedKeys;
         Preferences preferences = Preferences.getPreferences(context);
         boolean isTrustDbInitialized = preferences.isKeySignaturesTableInitialized();
         if (!isTrustDbInitialized) {
             log.add(LogType.MSG_TRUST_INITIALIZE, 1);
-            cursor = contentResolver.query(KeyRings.buildUnifiedKeyRingsUri(),
-                    new String[] { KeyRings.MASTER_KEY_ID }, null, null, null);
+            masterKeyIds = getAllMasterKeyIds();
+            trustedKeys = getTrustedMasterKeys();
+            signerMasterKeyIds = null;
         } else {
-            String[] signerMasterKeyIdStrings = new String[signerMasterKeyIds.size()];
-            int i = 0;
             for (Long masterKeyId : signerMasterKeyIds) {
                 log.add(LogType.MSG_TRUST_KEY, 1, KeyFormattingUtils.beautifyKeyId(masterKeyId));
-                signerMasterKeyIdStrings[i++] = Long.toString(masterKeyId);
             }
+            masterKeyIds = getCertifiedMasterKeyIds(signerMasterKeyIds);
+            trustedKeys = getTrustedMasterKeys(signerMasterKeyIds);
+        }
+
+        int totalKeys = masterKeyIds.size();
+        if (totalKeys == 0) {
+            log.add(LogType.MSG_TRUST_COUNT_NONE, 1);
+        } else {
+            if (progress != null) {
+                progress.setProgress(R.string.progress_update_trust, 0, totalKeys);
+            }
+            log.add(LogType.MSG_TRUST_COUNT, 1, totalKeys);
+        }
 
-            cursor = contentResolver.query(KeyRings.buildUnifiedKeyRingsFilterBySigner(),
-                    new String[] { KeyRings.MASTER_KEY_ID }, null, signerMasterKeyIdStrings, null);
+        for (int i = 0; i < totalKeys; i += TRUST_DB_BATCH_SIZE) {
+            List<Long> batch = masterKeyIds.subList(i, Math.min(totalKeys, i + TRUST_DB_BATCH_SIZE));
+            if (!updateTrustBatch(batch, trustedKeys, signerMasterKeyIds, log)) {
+                return new UpdateTrustResult(UpdateTrustResult.RESULT_ERROR, log);
+            }
+            if (progress != null) {
+                progress.setProgress(i + batch.size(), totalKeys);
+            }
         }
 
+        if (!isTrustDbInitialized) {
+            preferences.setKeySignaturesTableInitialized();
+        }
+
+        log.add(LogType.MSG_TRUST_OK, 1);
+        return new UpdateTrustResult(UpdateTrustResult.RESULT_OK, log);
+    }
+
+    private List<Long> getAllMasterKeyIds() {
+        Cursor cursor = contentResolver.query(KeyRings.buildUnifiedKeyRingsUri(),
+                new String[] { KeyRings.MASTER_KEY_ID }, null, null, null);
         if (cursor == null) {
             throw new IllegalStateException();
         }
 
-        int totalKeys = cursor.getCount();
-        int processedKeys = 0;
+        try {
+            ArrayList<Long> result = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                result.add(cursor.getLong(0));
+            }
+            return result;
+        } finally {
+            cursor.close();
+        }
+    }
 
-        if (totalKeys == 0) {
-            log.add(LogType.MSG_TRUST_COUNT_NONE, 1);
-        } else {
-            progress.setProgress(R.string.progress_update_trust, 0, totalKeys);
-            log.add(LogType.MSG_TRUST_COUNT, 1, totalKeys);
+    /**
+     * Returns the master key ids of all keys which have certifications by one of the given keys.
+     * These are the edges of the key_signatures table for untrusted signers, plus the rows of the
+     * certs table for trusted ones.
+     */
+    private List<Long> getCertifiedMasterKeyIds(List<Long> signerMasterKeyIds) {
+        TreeSet<Long> result = new TreeSet<>();
+        if (signerMasterKeyIds.isEmpty()) {
+            return new ArrayList<>(result);
+        }
+
+        String[] signerMasterKeyIdStrings = new String[signerMasterKeyIds.size()];
+        for (int i = 0; i < signerMasterKeyIdStrings.length; i++) {
+            signerMasterKeyIdStrings[i] = Long.toString(signerMasterKeyIds.get(i));
         }
 
+        Cursor cursor = contentResolver.query(KeyRings.buildUnifiedKeyRingsFilterBySigner(),
+                new String[] { KeyRings.MASTER_KEY_ID }, null, signerMasterKeyIdStrings, null);
+        if (cursor == null) {
+            throw new IllegalStateException();
+        }
         try {
             while (cursor.moveToNext()) {
-                try {
-                    long masterKeyId = cursor.getLong(0);
+                result.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        cursor = contentResolver.query(Certs.buildCertsUri(), new String[] { Certs.MASTER_KEY_ID },
+                Certs.KEY_ID_CERTIFIER + " IN (" + buildIdList(signerMasterKeyIds) + ") AND "
+                        + Certs.KEY_ID_CERTIFIER + " != " + Certs.MASTER_KEY_ID, null, null);
+        if (cursor == null) {
+            throw new IllegalStateException();
+        }
+        try {
+            while (cursor.moveToNext()) {
+                result.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * Verifies the certificates of a batch of keys against the trusted keys, and writes all
+     * changes to the certs table in a single transaction.
+     * <p>
+     * If signerMasterKeyIds is null, all certificates are verified, and the key_signatures entries
+     * of all keys are written. Otherwise, only certificates by those signers are verified and
+     * written, and trustedKeys must hold only the trusted ones among them. Stored certificates by
+     * other keys are left untouched, but still count towards the order of user ids.
+     */
+    private boolean updateTrustBatch(List<Long> masterKeyIds, LongSparseArray<CanonicalizedPublicKey> trustedKeys,
+            List<Long> signerMasterKeyIds, OperationLog log) {
+        LongSparseArray<List<CertRow>> certRows = loadCertRows(masterKeyIds);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        ArrayList<Long> changedMasterKeyIds = new ArrayList<>();
+        ArrayList<Long> reorderedMasterKeyIds = new ArrayList<>();
 
-                    byte[] pubKeyData = loadPublicKeyRingData(masterKeyId);
-                    UncachedKeyRing uncachedKeyRing = UncachedKeyRing.decodeFromData(pubKeyData);
+        for (long masterKeyId : masterKeyIds) {
+            try {
+                CanonicalizedPublicKeyRing keyRing =
+                        new CanonicalizedPublicKeyRing(loadPublicKeyRingData(masterKeyId), 0);
+
+                List<CertRow> existingRows = certRows.get(masterKeyId);
+                if (existingRows == null) {
+                    existingRows = new ArrayList<>();
+                }
 
-                    clearLog();
-                    SaveKeyringResult result = savePublicKeyRing(uncachedKeyRing, true);
+                // the verification log of each key is not interesting here, so it's discarded
+                clearLog();
+                List<Long> unknownSignerKeyIds = new ArrayList<>();
+                List<UserPacketItem> uids = classifyUserPackets(keyRing, trustedKeys, unknownSignerKeyIds);
 
-                    log.add(result, 1);
-                    progress.setProgress(processedKeys++, totalKeys);
-                } catch (NotFoundException | PgpGeneralException | IOException e) {
-                    Timber.e(e, "Error updating trust database");
-                    return new UpdateTrustResult(UpdateTrustResult.RESULT_ERROR, log);
+                // find the rank each user packet is stored at, by its self certificate
+                int[] storedRanks = findStoredRanks(masterKeyId, uids, existingRows);
+                if (storedRanks == null) {
+                    reorderedMasterKeyIds.add(masterKeyId);
+                    continue;
                 }
+
+                List<CertRow> affectedRows = new ArrayList<>();
+                for (CertRow row : existingRows) {
+                    if (row.certifierKeyId == masterKeyId) {
+                        continue;
+                    }
+                    if (signerMasterKeyIds == null || signerMasterKeyIds.contains(row.certifierKeyId)) {
+                        affectedRows.add(row);
+                    } else {
+                        // a trusted certificate we did not verify again, see UserPacketItem.isTrusted
+                        for (UserPacketItem item : uids) {
+                            if (storedRanks[item.position] == row.rank) {
+                                item.hasOtherTrustedCerts = true;
+                            }
+                        }
+                    }
+                }
+
+                // if the order of user packets changes, so do their ranks
+                Collections.sort(uids);
+                boolean isReordered = false;
+                for (int rank = 0; rank < uids.size(); rank++) {
+                    if (storedRanks[uids.get(rank).position] != rank) {
+                        isReordered = true;
+                        break;
+                    }
+                }
+                if (isReordered) {
+                    reorderedMasterKeyIds.add(masterKeyId);
+                    continue;
+                }
+
+                int operationCount = operations.size();
+                buildCertUpdateOperations(masterKeyId, getStoredCerts(uids, false), affectedRows, operations);
+                boolean changed = operations.size() > operationCount;
+
+                if (changed || signerMasterKeyIds == null) {
+                    for (long signerKeyId : unknownSignerKeyIds) {
+                        if (signerMasterKeyIds != null && !signerMasterKeyIds.contains(signerKeyId)) {
+                            continue;
+                        }
+                        operations.add(ContentProviderOperation.newInsert(KeySignatures.CONTENT_URI)
+                                .withValue(KeySignatures.MASTER_KEY_ID, masterKeyId)
+                                .withValue(KeySignatures.SIGNER_KEY_ID, signerKeyId)
+                                .build());
+                    }
+                }
+                if (changed) {
+                    operations.add(buildKeySummaryOperation(masterKeyId));
+                    changedMasterKeyIds.add(masterKeyId);
+                    log.add(LogType.MSG_TRUST_KEY_CHANGED, 2, KeyFormattingUtils.beautifyKeyId(masterKeyId));
+                }
+            } catch (NotFoundException | IOException e) {
+                Timber.e(e, "Error updating trust database");
+                return false;
             }
+        }
 
-            if (!isTrustDbInitialized) {
-                preferences.setKeySignaturesTableInitialized();
+        if (!operations.isEmpty()) {
+            try {
+                contentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+            } catch (RemoteException | OperationApplicationException e) {
+                Timber.e(e, "Error updating trust database");
+                return false;
             }
+        }
+        for (long masterKeyId : changedMasterKeyIds) {
+            databaseNotifyManager.notifyKeyChange(masterKeyId);
+        }
+
+        for (long masterKeyId : reorderedMasterKeyIds) {
+            log.add(LogType.MSG_TRUST_KEY_REORDER, 2, KeyFormattingUtils.beautifyKeyId(masterKeyId));
+            try {
+                UncachedKeyRing uncachedKeyRing = UncachedKeyRing.decodeFromData(loadPublicKeyRingData(masterKeyId));
+
+                clearLog();
+                SaveKeyringResult result = savePublicKeyRing(uncachedKeyRing, true);
+                log.add(result, 2);
+                if (!result.success()) {
+                    return false;
+                }
+            } catch (NotFoundException | PgpGeneralException | IOException e) {
+                Timber.e(e, "Error updating trust database");
+                return false;
+            }
+        }
 
-            log.add(LogType.MSG_TRUST_OK, 1);
-            return new UpdateTrustResult(UpdateTrustResult.RESULT_OK, log);
+        return true;
+    }
+
+    /**
+     * Returns the rank each of the given user packets is stored at, indexed by their position in
+     * the keyring, or null if they can't be matched. Every stored user packet has exactly one
+     * self certificate or revocation, which identifies it.
+     */
+    private static int[] findStoredRanks(long masterKeyId, List<UserPacketItem> uids,
+            List<CertRow> existingRows) throws IOException {
+        int selfCertCount = 0;
+        for (CertRow row : existingRows) {
+            if (row.certifierKeyId == masterKeyId) {
+                selfCertCount += 1;
+            }
+        }
+        if (selfCertCount != uids.size()) {
+            return null;
+        }
+
+        int[] storedRanks = new int[uids.size()];
+        for (UserPacketItem item : uids) {
+            WrappedSignature selfCert = item.selfRevocation != null ? item.selfRevocation : item.selfCert;
+            byte[] encoded = selfCert.getEncoded();
+
+            CertRow storedRow = null;
+            for (CertRow row : existingRows) {
+                if (row.certifierKeyId == masterKeyId && Arrays.equals(row.data, encoded)) {
+                    storedRow = row;
+                    break;
+                }
+            }
+            if (storedRow == null) {
+                return null;
+            }
+            storedRanks[item.position] = storedRow.rank;
+        }
+        return storedRanks;
+    }
+
+    /**
+     * Builds the operations which bring the given stored certificates by other keys in line with
+     * the verified ones: new certificates are inserted, certificates which are no longer verified
+     * are deleted, and for all others only the verified column is updated, if necessary.
+     */
+    private void buildCertUpdateOperations(long masterKeyId, List<StoredCert> storedCerts,
+            List<CertRow> existingRows, ArrayList<ContentProviderOperation> operations) throws IOException {
+        String certSelection = Certs.MASTER_KEY_ID + " = ? AND " + Certs.RANK + " = ? AND "
+                + Certs.KEY_ID_CERTIFIER + " = ?";
+
+        for (StoredCert storedCert : storedCerts) {
+            long certifierKeyId = storedCert.cert.getKeyId();
+            if (certifierKeyId == masterKeyId) {
+                continue;
+            }
+
+            CertRow row = findCertRow(existingRows, storedCert.rank, certifierKeyId);
+            long creation = storedCert.cert.getCreationTime().getTime() / 1000;
+            if (row == null || row.creation != creation) {
+                // certs are inserted with replace semantics, this also overwrites older certs
+                operations.add(buildCertOperations(masterKeyId, storedCert.rank, storedCert.cert, storedCert.verified));
+            } else if (row.verified != storedCert.verified) {
+                operations.add(ContentProviderOperation.newUpdate(Certs.buildCertsUri())
+                        .withValue(Certs.VERIFIED, storedCert.verified)
+                        .withSelection(certSelection, new String[] {
+                                Long.toString(masterKeyId), Integer.toString(row.rank), Long.toString(certifierKeyId)
+                        })
+                        .build());
+            }
+        }
+
+        for (CertRow row : existingRows) {
+            if (row.certifierKeyId == masterKeyId || findStoredCert(storedCerts, row) != null) {
+                continue;
+            }
+            operations.add(ContentProviderOperation.newDelete(Certs.buildCertsUri())
+                    .withSelection(certSelection, new String[] {
+                            Long.toString(masterKeyId), Integer.toString(row.rank), Long.toString(row.certifierKeyId)
+                    })
+                    .build());
+        }
+    }
+
+    /** Loads the rows of the certs table for a batch of keys, with a single query. */
+    private LongSparseArray<List<CertRow>> loadCertRows(List<Long> masterKeyIds) {
+        Cursor cursor = contentResolver.query(Certs.buildCertsUri(), new String[] {
+                Certs.MASTER_KEY_ID, Certs.RANK, Certs.KEY_ID_CERTIFIER, Certs.VERIFIED, Certs.CREATION, Certs.DATA
+        }, Certs.MASTER_KEY_ID + " IN (" + buildIdList(masterKeyIds) + ")", null, null);
+
+        LongSparseArray<List<CertRow>> result = new LongSparseArray<>();
+        if (cursor == null) {
+            return result;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                long masterKeyId = cursor.getLong(0);
+                List<CertRow> rows = result.get(masterKeyId);
+                if (rows == null) {
+                    rows = new ArrayList<>();
+                    result.put(masterKeyId, rows);
+                }
+                rows.add(new CertRow(cursor.getInt(1), cursor.getLong(2), cursor.getInt(3), cursor.getLong(4),
+                        cursor.getBlob(5)));
+            }
         } finally {
             cursor.close();
         }
+        return result;
+    }
+
+    private static String buildIdList(List<Long> ids) {
+        StringBuilder result = new StringBuilder();
+        for (Long id : ids) {
+            if (result.length() > 0) {
+                result.append(", ");
+            }
+            result.append(id.longValue());
+        }
+        return result.toString();
+    }
+
+    private static CertRow findCertRow(List<CertRow> rows, int rank, long certifierKeyId) {
+        for (CertRow row : rows) {
+            if (row.rank == rank && row.certifierKeyId == certifierKeyId) {
+                return row;
+            }
+        }
+        return null;
+    }
+
+    private static StoredCert findStoredCert(List<StoredCert> storedCerts, CertRow row) {
+        for (StoredCert storedCert : storedCerts) {
+            if (storedCert.rank == row.rank && storedCert.cert.getKeyId() == row.certifierKeyId) {
+                return storedCert;
+            }
+        }
+        return null;
+    }
+
+    private static class CertRow {
+        final int rank;
+        final long certifierKeyId;
+        final int verified;
+        final long creation;
+        final byte[] data;
+
+        CertRow(int rank, long certifierKeyId, int verified, long creation, byte[] data) {
+            this.rank = rank;
+            this.certifierKeyId = certifierKeyId;
+            this.verified = verified;
+            this.creation = creation;
+            this.data = data;
+        }
     }
 
     /**
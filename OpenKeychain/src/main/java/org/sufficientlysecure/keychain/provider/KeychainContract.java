@@ -85,6 +85,23 @@ public class KeychainContract {
         String DATA = "data";
     }
 
+    interface KeySummaryColumns {
+        String VERIFIED = CertsColumns.VERIFIED;
+        String HAS_ANY_SECRET = "has_any_secret";
+
+        // for each capability, the usable subkey which expires last, and its expiry
+        String ENCRYPT_KEY_ID = "encrypt_key_id";
+        String ENCRYPT_KEY_EXPIRY = "encrypt_key_expiry";
+        String SIGN_SECRET_KEY_ID = "sign_secret_key_id";
+        String SIGN_SECRET_KEY_EXPIRY = "sign_secret_key_expiry";
+        String CERTIFY_SECRET_KEY_ID = "certify_secret_key_id";
+        String CERTIFY_SECRET_KEY_EXPIRY = "certify_secret_key_expiry";
+        String AUTHENTICATE_KEY_ID = "authenticate_key_id";
+        String AUTHENTICATE_KEY_EXPIRY = "authenticate_key_expiry";
+        String AUTHENTICATE_SECRET_KEY_ID = "authenticate_secret_key_id";
+        String AUTHENTICATE_SECRET_KEY_EXPIRY = "authenticate_secret_key_expiry";
+    }
+
     interface ApiAppsColumns {
         String PACKAGE_NAME = "package_name";
         String PACKAGE_CERTIFICATE = "package_signature";
@@ -140,6 +157,7 @@ public class KeychainContract {
     public static final String PATH_LINKED_IDS = "linked_ids";
     public static final String PATH_KEYS = "keys";
     public static final String PATH_CERTS = "certs";
+    public static final String PATH_SUMMARY = "summary";
 
     public static final String BASE_API_APPS = "api_apps";
     public static final String PATH_ALLOWED_KEYS = "allowed_keys";
@@ -198,6 +216,11 @@ public class KeychainContract {
                     .appendPath(PATH_UNIFIED).build();
         }
 
+        public static Uri buildKeySummaryUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId))
+                    .appendPath(PATH_SUMMARY).build();
+        }
+
         public static Uri buildUnifiedKeyRingsFindByEmailUri(String email) {
             return CONTENT_URI.buildUpon().appendPath(PATH_FIND)
                     .appendPath(PATH_BY_EMAIL).appendPath(email).build();
@@ -269,6 +292,10 @@ public class KeychainContract {
         public static final String CONTENT_ITEM_TYPE
                 = "vnd.android.cursor.item/vnd.org.sufficientlysecure.keychain.provider.keychain.keys";
 
+        public static Uri buildKeysUri() {
+            return CONTENT_URI.buildUpon().appendPath(PATH_KEYS).build();
+        }
+
         public static Uri buildKeysUri(long masterKeyId) {
             return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId)).appendPath(PATH_KEYS).build();
         }
@@ -418,6 +445,10 @@ public class KeychainContract {
         public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
                 .appendPath(BASE_KEY_RINGS).build();
 
+        public static Uri buildCertsUri() {
+            return CONTENT_URI.buildUpon().appendPath(PATH_CERTS).build();
+        }
+
         public static Uri buildCertsUri(long masterKeyId) {
             return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId)).appendPath(PATH_CERTS).build();
         }
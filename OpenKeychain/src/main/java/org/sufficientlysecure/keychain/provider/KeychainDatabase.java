@@ -36,6 +36,7 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAutocryptPeerColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.CertsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeySummaryColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeySignaturesColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeysColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.OverriddenWarnings;
@@ -55,7 +56,7 @@ import timber.log.Timber;
  */
 public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "openkeychain.db";
-    private static final int DATABASE_VERSION = 25;
+    private static final int DATABASE_VERSION = 27;
     private Context mContext;
 
     public interface Tables {
@@ -70,6 +71,7 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         String API_ALLOWED_KEYS = "api_allowed_keys";
         String OVERRIDDEN_WARNINGS = "overridden_warnings";
         String API_AUTOCRYPT_PEERS = "api_autocrypt_peers";
+        String KEY_SUMMARY = "key_summary";
     }
 
     private static final String CREATE_KEYRINGS_PUBLIC =
@@ -170,6 +172,56 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                     + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
                     + ")";
 
+    /**
+     * One row per key ring, holding everything the key lists need from the master key, its
+     * primary user id, its certs and its subkeys. This table is derived entirely from the
+     * others, and is rebuilt for a key ring by {@link #refreshKeySummary} after it is written.
+     * <p/>
+     * Subkey expiry must be checked at query time, so for each capability this holds the
+     * usable subkey which expires last rather than a flag.
+     */
+    private static final String CREATE_KEY_SUMMARY =
+            "CREATE TABLE IF NOT EXISTS " + Tables.KEY_SUMMARY + " ("
+                + KeysColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY, "
+
+                + KeysColumns.KEY_ID + " INTEGER, "
+                + KeysColumns.KEY_SIZE + " INTEGER, "
+                + KeysColumns.KEY_CURVE_OID + " TEXT, "
+                + KeysColumns.ALGORITHM + " INTEGER, "
+                + KeysColumns.FINGERPRINT + " BLOB, "
+                + KeysColumns.CAN_CERTIFY + " INTEGER, "
+                + KeysColumns.CAN_SIGN + " INTEGER, "
+                + KeysColumns.CAN_ENCRYPT + " INTEGER, "
+                + KeysColumns.CAN_AUTHENTICATE + " INTEGER, "
+                + KeysColumns.IS_REVOKED + " INTEGER, "
+                + KeysColumns.HAS_SECRET + " INTEGER, "
+                + KeysColumns.IS_SECURE + " INTEGER, "
+                + KeysColumns.CREATION + " INTEGER, "
+                + KeysColumns.EXPIRY + " INTEGER, "
+
+                + UserPacketsColumns.USER_ID + " TEXT, "
+                + UserPacketsColumns.NAME + " TEXT, "
+                + UserPacketsColumns.EMAIL + " TEXT, "
+                + UserPacketsColumns.COMMENT + " TEXT, "
+
+                + KeySummaryColumns.VERIFIED + " INTEGER, "
+                + KeySummaryColumns.HAS_ANY_SECRET + " INTEGER, "
+
+                + KeySummaryColumns.ENCRYPT_KEY_ID + " INTEGER, "
+                + KeySummaryColumns.ENCRYPT_KEY_EXPIRY + " INTEGER, "
+                + KeySummaryColumns.SIGN_SECRET_KEY_ID + " INTEGER, "
+                + KeySummaryColumns.SIGN_SECRET_KEY_EXPIRY + " INTEGER, "
+                + KeySummaryColumns.CERTIFY_SECRET_KEY_ID + " INTEGER, "
+                + KeySummaryColumns.CERTIFY_SECRET_KEY_EXPIRY + " INTEGER, "
+                + KeySummaryColumns.AUTHENTICATE_KEY_ID + " INTEGER, "
+                + KeySummaryColumns.AUTHENTICATE_KEY_EXPIRY + " INTEGER, "
+                + KeySummaryColumns.AUTHENTICATE_SECRET_KEY_ID + " INTEGER, "
+                + KeySummaryColumns.AUTHENTICATE_SECRET_KEY_EXPIRY + " INTEGER, "
+
+                + "FOREIGN KEY(" + KeysColumns.MASTER_KEY_ID + ") REFERENCES "
+                    + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
+            + ")";
+
     private static final String CREATE_API_AUTOCRYPT_PEERS =
             "CREATE TABLE IF NOT EXISTS " + Tables.API_AUTOCRYPT_PEERS + " ("
                     + ApiAutocryptPeerColumns.PACKAGE_NAME + " TEXT NOT NULL, "
@@ -232,6 +284,7 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         db.execSQL(CREATE_API_APPS_ALLOWED_KEYS);
         db.execSQL(CREATE_OVERRIDDEN_WARNINGS);
         db.execSQL(CREATE_API_AUTOCRYPT_PEERS);
+        db.execSQL(CREATE_KEY_SUMMARY);
 
         db.execSQL("CREATE INDEX keys_by_rank ON keys (" + KeysColumns.RANK + ", " + KeysColumns.MASTER_KEY_ID + ");");
         db.execSQL("CREATE INDEX uids_by_rank ON user_packets (" + UserPacketsColumns.RANK + ", "
@@ -240,6 +293,7 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 + CertsColumns.VERIFIED + ", " + CertsColumns.MASTER_KEY_ID + ");");
         db.execSQL("CREATE INDEX uids_by_email ON user_packets ("
                 + UserPacketsColumns.EMAIL + ");");
+        db.execSQL("CREATE INDEX keys_by_key_id ON keys (" + KeysColumns.KEY_ID + ");");
 
         Preferences.getPreferences(mContext).setKeySignaturesTableInitialized();
     }
@@ -456,9 +510,119 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 db.execSQL("CREATE INDEX IF NOT EXISTS uids_by_email ON user_packets (email);");
                 db.execSQL("DROP INDEX keys_by_rank");
                 db.execSQL("CREATE INDEX keys_by_rank ON keys(rank, master_key_id);");
+
+            case 25:
+                db.execSQL(CREATE_KEY_SUMMARY);
+                refreshKeySummary(db, null);
+
+            case 26:
+                db.execSQL("CREATE INDEX IF NOT EXISTS keys_by_key_id ON keys (key_id);");
+        }
+    }
+
+    /**
+     * (Re-)computes the key_summary row of the given key ring, or of all key rings if
+     * masterKeyId is null. Must be called whenever keys, user ids, certs or the secret
+     * key ring of a key ring change. Rows of deleted key rings are removed by cascade.
+     */
+    static void refreshKeySummary(SQLiteDatabase db, Long masterKeyId) {
+        String sql = "INSERT OR REPLACE INTO " + Tables.KEY_SUMMARY + " ("
+                    + KeysColumns.MASTER_KEY_ID + ", "
+                    + KeysColumns.KEY_ID + ", "
+                    + KeysColumns.KEY_SIZE + ", "
+                    + KeysColumns.KEY_CURVE_OID + ", "
+                    + KeysColumns.ALGORITHM + ", "
+                    + KeysColumns.FINGERPRINT + ", "
+                    + KeysColumns.CAN_CERTIFY + ", "
+                    + KeysColumns.CAN_SIGN + ", "
+                    + KeysColumns.CAN_ENCRYPT + ", "
+                    + KeysColumns.CAN_AUTHENTICATE + ", "
+                    + KeysColumns.IS_REVOKED + ", "
+                    + KeysColumns.HAS_SECRET + ", "
+                    + KeysColumns.IS_SECURE + ", "
+                    + KeysColumns.CREATION + ", "
+                    + KeysColumns.EXPIRY + ", "
+                    + UserPacketsColumns.USER_ID + ", "
+                    + UserPacketsColumns.NAME + ", "
+                    + UserPacketsColumns.EMAIL + ", "
+                    + UserPacketsColumns.COMMENT + ", "
+                    + KeySummaryColumns.VERIFIED + ", "
+                    + KeySummaryColumns.HAS_ANY_SECRET + ", "
+                    + KeySummaryColumns.ENCRYPT_KEY_ID + ", "
+                    + KeySummaryColumns.ENCRYPT_KEY_EXPIRY + ", "
+                    + KeySummaryColumns.SIGN_SECRET_KEY_ID + ", "
+                    + KeySummaryColumns.SIGN_SECRET_KEY_EXPIRY + ", "
+                    + KeySummaryColumns.CERTIFY_SECRET_KEY_ID + ", "
+                    + KeySummaryColumns.CERTIFY_SECRET_KEY_EXPIRY + ", "
+                    + KeySummaryColumns.AUTHENTICATE_KEY_ID + ", "
+                    + KeySummaryColumns.AUTHENTICATE_KEY_EXPIRY + ", "
+                    + KeySummaryColumns.AUTHENTICATE_SECRET_KEY_ID + ", "
+                    + KeySummaryColumns.AUTHENTICATE_SECRET_KEY_EXPIRY
+                + ") SELECT "
+                    + "k." + KeysColumns.MASTER_KEY_ID + ", "
+                    + "k." + KeysColumns.KEY_ID + ", "
+                    + "k." + KeysColumns.KEY_SIZE + ", "
+                    + "k." + KeysColumns.KEY_CURVE_OID + ", "
+                    + "k." + KeysColumns.ALGORITHM + ", "
+                    + "k." + KeysColumns.FINGERPRINT + ", "
+                    + "k." + KeysColumns.CAN_CERTIFY + ", "
+                    + "k." + KeysColumns.CAN_SIGN + ", "
+                    + "k." + KeysColumns.CAN_ENCRYPT + ", "
+                    + "k." + KeysColumns.CAN_AUTHENTICATE + ", "
+                    + "k." + KeysColumns.IS_REVOKED + ", "
+                    + "k." + KeysColumns.HAS_SECRET + ", "
+                    + "k." + KeysColumns.IS_SECURE + ", "
+                    + "k." + KeysColumns.CREATION + ", "
+                    + "k." + KeysColumns.EXPIRY + ", "
+                    + "u." + UserPacketsColumns.USER_ID + ", "
+                    + "u." + UserPacketsColumns.NAME + ", "
+                    + "u." + UserPacketsColumns.EMAIL + ", "
+                    + "u." + UserPacketsColumns.COMMENT + ", "
+                    + "(SELECT c." + CertsColumns.VERIFIED + " FROM " + Tables.CERTS + " AS c"
+                        + " WHERE c." + CertsColumns.MASTER_KEY_ID + " = k." + KeysColumns.MASTER_KEY_ID
+                        + " AND c." + CertsColumns.VERIFIED + " = " + KeychainContract.Certs.VERIFIED_SECRET
+                        + " LIMIT 1), "
+                    + "EXISTS (SELECT 1 FROM " + Tables.KEY_RINGS_SECRET + " AS s"
+                        + " WHERE s." + KeyRingsColumns.MASTER_KEY_ID + " = k." + KeysColumns.MASTER_KEY_ID + "), "
+                    + usableSubkey(KeysColumns.KEY_ID, KeysColumns.CAN_ENCRYPT, false) + ", "
+                    + usableSubkey(KeysColumns.EXPIRY, KeysColumns.CAN_ENCRYPT, false) + ", "
+                    + usableSubkey(KeysColumns.KEY_ID, KeysColumns.CAN_SIGN, true) + ", "
+                    + usableSubkey(KeysColumns.EXPIRY, KeysColumns.CAN_SIGN, true) + ", "
+                    + usableSubkey(KeysColumns.KEY_ID, KeysColumns.CAN_CERTIFY, true) + ", "
+                    + usableSubkey(KeysColumns.EXPIRY, KeysColumns.CAN_CERTIFY, true) + ", "
+                    + usableSubkey(KeysColumns.KEY_ID, KeysColumns.CAN_AUTHENTICATE, false) + ", "
+                    + usableSubkey(KeysColumns.EXPIRY, KeysColumns.CAN_AUTHENTICATE, false) + ", "
+                    + usableSubkey(KeysColumns.KEY_ID, KeysColumns.CAN_AUTHENTICATE, true) + ", "
+                    + usableSubkey(KeysColumns.EXPIRY, KeysColumns.CAN_AUTHENTICATE, true)
+                + " FROM " + Tables.KEYS + " AS k"
+                // we KNOW that the rank zero user packet is a user id!
+                + " INNER JOIN " + Tables.USER_PACKETS + " AS u ON ("
+                    + "u." + UserPacketsColumns.MASTER_KEY_ID + " = k." + KeysColumns.MASTER_KEY_ID
+                    + " AND u." + UserPacketsColumns.RANK + " = 0)"
+                + " WHERE k." + KeysColumns.RANK + " = 0";
+
+        if (masterKeyId == null) {
+            db.execSQL(sql);
+        } else {
+            db.execSQL(sql + " AND k." + KeysColumns.MASTER_KEY_ID + " = ?", new Object[] { masterKeyId });
         }
     }
 
+    /**
+     * Subquery for the given column of the non-revoked, secure subkey with the given capability
+     * which expires last, preferring subkeys which don't expire at all.
+     */
+    private static String usableSubkey(String column, String capability, boolean requireSecret) {
+        return "(SELECT sub." + column + " FROM " + Tables.KEYS + " AS sub"
+                + " WHERE sub." + KeysColumns.MASTER_KEY_ID + " = k." + KeysColumns.MASTER_KEY_ID
+                + " AND sub." + KeysColumns.IS_REVOKED + " = 0"
+                + " AND sub." + KeysColumns.IS_SECURE + " = 1"
+                + " AND sub." + capability + " = 1"
+                + (requireSecret ? " AND sub." + KeysColumns.HAS_SECRET + " > 1" : "")
+                + " ORDER BY sub." + KeysColumns.EXPIRY + " IS NULL DESC, sub." + KeysColumns.EXPIRY + " DESC"
+                + " LIMIT 1)";
+    }
+
     @Override
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         // Downgrade is ok for the debug version, makes it easier to work with branches
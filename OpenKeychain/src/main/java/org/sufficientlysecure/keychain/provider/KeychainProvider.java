@@ -18,14 +18,18 @@
 package org.sufficientlysecure.keychain.provider;
 
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -45,6 +49,7 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeySignatures;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeySummaryColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
@@ -62,6 +67,8 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
     private static final int KEY_RINGS_PUBLIC = 102;
     private static final int KEY_RINGS_SECRET = 103;
     private static final int KEY_RINGS_USER_IDS = 104;
+    private static final int KEY_RINGS_KEYS = 105;
+    private static final int KEY_RINGS_CERTS = 106;
 
     private static final int KEY_RING_UNIFIED = 200;
     private static final int KEY_RING_KEYS = 201;
@@ -72,6 +79,7 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
     private static final int KEY_RING_CERTS_SPECIFIC = 206;
     private static final int KEY_RING_LINKED_IDS = 207;
     private static final int KEY_RING_LINKED_ID_CERTS = 208;
+    private static final int KEY_RING_SUMMARY = 209;
 
     private static final int API_APPS = 301;
     private static final int API_APPS_BY_PACKAGE_NAME = 302;
@@ -110,6 +118,8 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
          * key_rings/public
          * key_rings/secret
          * key_rings/user_ids
+         * key_rings/keys
+         * key_rings/certs
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
@@ -124,6 +134,12 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
                         + "/" + KeychainContract.PATH_USER_IDS,
                 KEY_RINGS_USER_IDS);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
+                        + "/" + KeychainContract.PATH_KEYS,
+                KEY_RINGS_KEYS);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
+                        + "/" + KeychainContract.PATH_CERTS,
+                KEY_RINGS_CERTS);
 
         /*
          * find by criteria other than master key id
@@ -159,6 +175,7 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
          * key_rings/_/secret
          * key_rings/_/certs
          * key_rings/_/certs/_/_
+         * key_rings/_/summary
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
@@ -189,6 +206,9 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
                         + KeychainContract.PATH_CERTS + "/*/*",
                 KEY_RING_CERTS_SPECIFIC);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
+                        + KeychainContract.PATH_SUMMARY,
+                KEY_RING_SUMMARY);
 
         /*
          * API apps
@@ -262,6 +282,7 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
             case KEY_RING_PUBLIC:
                 return KeyRings.CONTENT_ITEM_TYPE;
 
+            case KEY_RINGS_KEYS:
             case KEY_RING_KEYS:
                 return Keys.CONTENT_TYPE;
 
@@ -316,6 +337,10 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
             case KEY_RINGS_FIND_BY_SUBKEY:
             case KEY_RINGS_FIND_BY_USER_ID:
             case KEY_RINGS_FILTER_BY_SIGNER: {
+                long now = new Date().getTime() / 1000;
+
+                // The key_summary table is aliased as "keys" here, so selections and sort orders
+                // qualified with the keys table work on both.
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(KeyRings._ID, Tables.KEYS + ".oid AS _id");
                 projectionMap.put(KeyRings.MASTER_KEY_ID, Tables.KEYS + "." + Keys.MASTER_KEY_ID);
@@ -332,40 +357,40 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
                 projectionMap.put(KeyRings.EXPIRY, Tables.KEYS + "." + Keys.EXPIRY);
                 projectionMap.put(KeyRings.ALGORITHM, Tables.KEYS + "." + Keys.ALGORITHM);
                 projectionMap.put(KeyRings.FINGERPRINT, Tables.KEYS + "." + Keys.FINGERPRINT);
-                projectionMap.put(KeyRings.USER_ID, Tables.USER_PACKETS + "." + UserPackets.USER_ID);
-                projectionMap.put(KeyRings.NAME, Tables.USER_PACKETS + "." + UserPackets.NAME);
-                projectionMap.put(KeyRings.EMAIL, Tables.USER_PACKETS + "." + UserPackets.EMAIL);
-                projectionMap.put(KeyRings.COMMENT, Tables.USER_PACKETS + "." + UserPackets.COMMENT);
+                projectionMap.put(KeyRings.USER_ID, Tables.KEYS + "." + KeyRings.USER_ID);
+                projectionMap.put(KeyRings.NAME, Tables.KEYS + "." + KeyRings.NAME);
+                projectionMap.put(KeyRings.EMAIL, Tables.KEYS + "." + KeyRings.EMAIL);
+                projectionMap.put(KeyRings.COMMENT, Tables.KEYS + "." + KeyRings.COMMENT);
                 projectionMap.put(KeyRings.HAS_DUPLICATE_USER_ID,
                             "(EXISTS (SELECT * FROM " + Tables.USER_PACKETS + " AS dups"
                                 + " WHERE dups." + UserPackets.MASTER_KEY_ID
                                     + " != " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
                                 + " AND dups." + UserPackets.RANK + " = 0"
                                 + " AND dups." + UserPackets.NAME
-                                    + " = " + Tables.USER_PACKETS + "." + UserPackets.NAME + " COLLATE NOCASE"
+                                    + " = " + Tables.KEYS + "." + KeyRings.NAME + " COLLATE NOCASE"
                                 + " AND dups." + UserPackets.EMAIL
-                                    + " = " + Tables.USER_PACKETS + "." + UserPackets.EMAIL + " COLLATE NOCASE"
+                                    + " = " + Tables.KEYS + "." + KeyRings.EMAIL + " COLLATE NOCASE"
                                 + ")) AS " + KeyRings.HAS_DUPLICATE_USER_ID);
-                projectionMap.put(KeyRings.VERIFIED, Tables.CERTS + "." + Certs.VERIFIED);
+                projectionMap.put(KeyRings.VERIFIED, Tables.KEYS + "." + KeySummaryColumns.VERIFIED);
                 projectionMap.put(KeyRings.HAS_SECRET, Tables.KEYS + "." + KeyRings.HAS_SECRET);
-                projectionMap.put(KeyRings.HAS_ANY_SECRET,
-                        "(EXISTS (SELECT * FROM " + Tables.KEY_RINGS_SECRET + " WHERE "
-                                + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " = "
-                                + Tables.KEY_RINGS_SECRET + "." + KeyRingData.MASTER_KEY_ID
-                                + ")) AS " + KeyRings.HAS_ANY_SECRET);
-                projectionMap.put(KeyRings.HAS_ENCRYPT,
-                        "kE." + Keys.KEY_ID + " AS " + KeyRings.HAS_ENCRYPT);
-                projectionMap.put(KeyRings.HAS_SIGN_SECRET,
-                        "kS." + Keys.KEY_ID + " AS " + KeyRings.HAS_SIGN_SECRET);
-                projectionMap.put(KeyRings.HAS_AUTHENTICATE,
-                        "kA." + Keys.KEY_ID + " AS " + KeyRings.HAS_AUTHENTICATE);
-                projectionMap.put(KeyRings.HAS_AUTHENTICATE_SECRET,
-                        "kA." + Keys.KEY_ID + " AS " + KeyRings.HAS_AUTHENTICATE_SECRET);
-                projectionMap.put(KeyRings.HAS_CERTIFY_SECRET,
-                        "kC." + Keys.KEY_ID + " AS " + KeyRings.HAS_CERTIFY_SECRET);
+                projectionMap.put(KeyRings.HAS_ANY_SECRET, Tables.KEYS + "." + KeySummaryColumns.HAS_ANY_SECRET);
+                projectionMap.put(KeyRings.HAS_ENCRYPT, unexpiredSubkey(
+                        KeySummaryColumns.ENCRYPT_KEY_ID, KeySummaryColumns.ENCRYPT_KEY_EXPIRY, now, KeyRings.HAS_ENCRYPT));
+                projectionMap.put(KeyRings.HAS_SIGN_SECRET, unexpiredSubkey(
+                        KeySummaryColumns.SIGN_SECRET_KEY_ID, KeySummaryColumns.SIGN_SECRET_KEY_EXPIRY, now,
+                        KeyRings.HAS_SIGN_SECRET));
+                projectionMap.put(KeyRings.HAS_AUTHENTICATE, unexpiredSubkey(
+                        KeySummaryColumns.AUTHENTICATE_KEY_ID, KeySummaryColumns.AUTHENTICATE_KEY_EXPIRY, now,
+                        KeyRings.HAS_AUTHENTICATE));
+                projectionMap.put(KeyRings.HAS_AUTHENTICATE_SECRET, unexpiredSubkey(
+                        KeySummaryColumns.AUTHENTICATE_SECRET_KEY_ID, KeySummaryColumns.AUTHENTICATE_SECRET_KEY_EXPIRY, now,
+                        KeyRings.HAS_AUTHENTICATE_SECRET));
+                projectionMap.put(KeyRings.HAS_CERTIFY_SECRET, unexpiredSubkey(
+                        KeySummaryColumns.CERTIFY_SECRET_KEY_ID, KeySummaryColumns.CERTIFY_SECRET_KEY_EXPIRY, now,
+                        KeyRings.HAS_CERTIFY_SECRET));
                 projectionMap.put(KeyRings.IS_EXPIRED,
                         "(" + Tables.KEYS + "." + Keys.EXPIRY + " IS NOT NULL AND " + Tables.KEYS + "." + Keys.EXPIRY
-                                + " < " + new Date().getTime() / 1000 + ") AS " + KeyRings.IS_EXPIRED);
+                                + " < " + now + ") AS " + KeyRings.IS_EXPIRED);
                 projectionMap.put(KeyRings.API_KNOWN_TO_PACKAGE_NAMES,
                         "GROUP_CONCAT(DISTINCT aTI." + ApiAutocryptPeer.PACKAGE_NAME + ") AS "
                         + KeyRings.API_KNOWN_TO_PACKAGE_NAMES);
@@ -379,102 +404,33 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
                 List<String> plist = Arrays.asList(projection);
 
                 qb.setTables(
-                    Tables.KEYS
-                        + " INNER JOIN " + Tables.USER_PACKETS + " ON ("
-                                    + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " = "
-                                    + Tables.USER_PACKETS + "." + UserPackets.MASTER_KEY_ID
-                            // we KNOW that the rank zero user packet is a user id!
-                            + " AND " + Tables.USER_PACKETS + "." + UserPackets.RANK + " = 0"
-                        + ") LEFT JOIN " + Tables.CERTS + " ON ("
-                            + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " = "
-                            + Tables.CERTS + "." + KeyRings.MASTER_KEY_ID
-                            + " AND " + Tables.CERTS + "." + Certs.VERIFIED
-                                + " = " + Certs.VERIFIED_SECRET
-                        + ")"
-                        // fairly expensive joins following, only do when requested
-                        + (plist.contains(KeyRings.HAS_ENCRYPT) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kE ON ("
-                                +"kE." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kE." + Keys.IS_REVOKED + " = 0"
-                                + " AND kE." + Keys.IS_SECURE + " = 1"
-                                + " AND kE." + Keys.CAN_ENCRYPT + " = 1"
-                                + " AND ( kE." + Keys.EXPIRY + " IS NULL OR kE." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                            + ")" : "")
-                        + (plist.contains(KeyRings.HAS_SIGN_SECRET) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kS ON ("
-                                +"kS." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kS." + Keys.IS_REVOKED + " = 0"
-                                + " AND kS." + Keys.IS_SECURE + " = 1"
-                                + " AND kS." + Keys.CAN_SIGN + " = 1"
-                                + " AND kS." + Keys.HAS_SECRET + " > 1"
-                                + " AND ( kS." + Keys.EXPIRY + " IS NULL OR kS." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                            + ")" : "")
-                        + (plist.contains(KeyRings.HAS_AUTHENTICATE) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kA ON ("
-                                    +"kA." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                    + " AND kA." + Keys.IS_REVOKED + " = 0"
-                                    + " AND kA." + Keys.IS_SECURE + " = 1"
-                                    + " AND kA." + Keys.CAN_AUTHENTICATE + " = 1"
-                                    + " AND ( kA." + Keys.EXPIRY + " IS NULL OR kA." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                                    + ")" : "")
-                        + (plist.contains(KeyRings.HAS_AUTHENTICATE_SECRET) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kA ON ("
-                                    +"kA." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                    + " AND kA." + Keys.IS_REVOKED + " = 0"
-                                    + " AND kA." + Keys.IS_SECURE + " = 1"
-                                    + " AND kA." + Keys.CAN_AUTHENTICATE + " = 1"
-                                    + " AND kA." + Keys.HAS_SECRET + " > 1"
-                                    + " AND ( kA." + Keys.EXPIRY + " IS NULL OR kA." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                                    + ")" : "")
-                        + (plist.contains(KeyRings.HAS_CERTIFY_SECRET) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kC ON ("
-                                +"kC." + Keys.MASTER_KEY_ID
-                                + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kC." + Keys.IS_REVOKED + " = 0"
-                                + " AND kC." + Keys.IS_SECURE + " = 1"
-                                + " AND kC." + Keys.CAN_CERTIFY + " = 1"
-                                + " AND kC." + Keys.HAS_SECRET + " > 1"
-                                + " AND ( kC." + Keys.EXPIRY + " IS NULL OR kC." + Keys.EXPIRY
-                                + " >= " + new Date().getTime() / 1000 + " )"
-                                + ")" : "")
+                    Tables.KEY_SUMMARY + " AS " + Tables.KEYS
                         + (plist.contains(KeyRings.API_KNOWN_TO_PACKAGE_NAMES) ?
                             " LEFT JOIN " + Tables.API_AUTOCRYPT_PEERS + " AS aTI ON ("
                                     +"aTI." + Keys.MASTER_KEY_ID
                                     + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
                                     + ")" : "")
                     );
-                qb.appendWhere(Tables.KEYS + "." + Keys.RANK + " = 0");
-                // in case there are multiple verifying certificates
+                // in case there are multiple autocrypt peers
                 groupBy = Tables.KEYS + "." + Keys.MASTER_KEY_ID;
 
                 switch(match) {
                     case KEY_RING_UNIFIED: {
-                        qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " = ");
+                        qb.appendWhere(Tables.KEYS + "." + Keys.MASTER_KEY_ID + " = ");
                         qb.appendWhereEscapeString(uri.getPathSegments().get(1));
                         break;
                     }
                     case KEY_RINGS_FIND_BY_SUBKEY: {
                         try {
                             String subkey = Long.valueOf(uri.getLastPathSegment()).toString();
-                            qb.appendWhere(" AND EXISTS ("
-                                    + " SELECT 1 FROM " + Tables.KEYS + " AS tmp"
-                                    + " WHERE tmp." + UserPackets.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                    + " AND tmp." + Keys.KEY_ID + " = " + subkey + ""
+                            // uncorrelated, so this is a lookup in the keys_by_key_id index
+                            qb.appendWhere(Tables.KEYS + "." + Keys.MASTER_KEY_ID + " IN ("
+                                    + " SELECT tmp." + Keys.MASTER_KEY_ID + " FROM " + Tables.KEYS + " AS tmp"
+                                    + " WHERE tmp." + Keys.KEY_ID + " = " + subkey
                                     + ")");
                         } catch(NumberFormatException e) {
                             Timber.e(e, "Malformed find by subkey query!");
-                            qb.appendWhere(" AND 0");
+                            qb.appendWhere("0");
                         }
                         break;
                     }
@@ -485,7 +441,7 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
                             signerKeyIds.append(',').append(selectionArgs[i]);
                         }
 
-                        qb.appendWhere(" AND EXISTS (SELECT 1 FROM " + Tables.KEY_SIGNATURES + " WHERE " +
+                        qb.appendWhere("EXISTS (SELECT 1 FROM " + Tables.KEY_SIGNATURES + " WHERE " +
                                 Tables.KEY_SIGNATURES + "." + KeySignatures.MASTER_KEY_ID + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID +
                                 " AND " +
                                 Tables.KEY_SIGNATURES + "." + KeySignatures.SIGNER_KEY_ID + " IN (" + signerKeyIds + ")" +
@@ -518,7 +474,7 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
                             gotCondition = true;
                         }
                         if(gotCondition) {
-                            qb.appendWhere(" AND EXISTS ("
+                            qb.appendWhere("EXISTS ("
                                 + " SELECT 1 FROM " + Tables.USER_PACKETS + " AS tmp"
                                     + " WHERE tmp." + UserPackets.MASTER_KEY_ID
                                             + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
@@ -527,14 +483,14 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
                         } else {
                             // TODO better way to do this?
                             Timber.e("Malformed find by email query!");
-                            qb.appendWhere(" AND 0");
+                            qb.appendWhere("0");
                         }
                         break;
                     }
                 }
 
                 if (TextUtils.isEmpty(sortOrder)) {
-                    sortOrder = Tables.USER_PACKETS + "." + UserPackets.USER_ID + " ASC";
+                    sortOrder = Tables.KEYS + "." + KeyRings.USER_ID + " ASC";
                 }
 
                 // uri to watch is all /key_rings/
@@ -543,6 +499,7 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
                 break;
             }
 
+            case KEY_RINGS_KEYS:
             case KEY_RING_KEYS: {
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(Keys._ID, Tables.KEYS + ".oid AS _id");
@@ -565,8 +522,10 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
                 qb.setProjectionMap(projectionMap);
 
                 qb.setTables(Tables.KEYS);
-                qb.appendWhere(Keys.MASTER_KEY_ID + " = ");
-                qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                if (match == KEY_RING_KEYS) {
+                    qb.appendWhere(Keys.MASTER_KEY_ID + " = ");
+                    qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                }
 
                 break;
             }
@@ -715,6 +674,24 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
                 break;
             }
 
+            case KEY_RINGS_CERTS: {
+                // plain certs table, without the user id joins, for bulk trust updates
+                HashMap<String, String> projectionMap = new HashMap<>();
+                projectionMap.put(Certs._ID, Tables.CERTS + ".oid AS " + Certs._ID);
+                projectionMap.put(Certs.MASTER_KEY_ID, Tables.CERTS + "." + Certs.MASTER_KEY_ID);
+                projectionMap.put(Certs.RANK, Tables.CERTS + "." + Certs.RANK);
+                projectionMap.put(Certs.VERIFIED, Tables.CERTS + "." + Certs.VERIFIED);
+                projectionMap.put(Certs.TYPE, Tables.CERTS + "." + Certs.TYPE);
+                projectionMap.put(Certs.CREATION, Tables.CERTS + "." + Certs.CREATION);
+                projectionMap.put(Certs.KEY_ID_CERTIFIER, Tables.CERTS + "." + Certs.KEY_ID_CERTIFIER);
+                projectionMap.put(Certs.DATA, Tables.CERTS + "." + Certs.DATA);
+                qb.setProjectionMap(projectionMap);
+
+                qb.setTables(Tables.CERTS);
+
+                break;
+            }
+
             case AUTOCRYPT_PEERS_BY_MASTER_KEY_ID:
             case AUTOCRYPT_PEERS_BY_PACKAGE_NAME:
             case AUTOCRYPT_PEERS_BY_PACKAGE_NAME_AND_TRUST_ID: {
@@ -901,6 +878,11 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
                     keyId = values.getAsLong(UserPackets.MASTER_KEY_ID);
                     break;
                 }
+                case KEY_RING_SUMMARY: {
+                    keyId = Long.parseLong(uri.getPathSegments().get(1));
+                    KeychainDatabase.refreshKeySummary(db, keyId);
+                    break;
+                }
                 case KEY_RING_CERTS: {
                     // we replace here, keeping only the latest signature
                     // TODO this would be better handled in savePublicKeyRing directly!
@@ -926,6 +908,8 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
                 }
                 case API_APPS: {
                     db.insert(Tables.API_APPS, null, values);
+                    // the remote api caches permission decisions, see CallerPermissionCache
+                    getContext().getContentResolver().notifyChange(ApiApps.CONTENT_URI, null);
                     break;
                 }
                 case API_ALLOWED_KEYS: {
@@ -993,6 +977,14 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
                 break;
             }
 
+            case KEY_RINGS_CERTS: {
+                if (TextUtils.isEmpty(additionalSelection)) {
+                    throw new UnsupportedOperationException("Certs may only be deleted by selection!");
+                }
+                count = db.delete(Tables.CERTS, additionalSelection, selectionArgs);
+                break;
+            }
+
             case AUTOCRYPT_PEERS_BY_PACKAGE_NAME_AND_TRUST_ID: {
                 String packageName = uri.getPathSegments().get(2);
                 String autocryptPeer = uri.getPathSegments().get(3);
@@ -1015,6 +1007,7 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
             case API_APPS_BY_PACKAGE_NAME: {
                 count = db.delete(Tables.API_APPS, buildDefaultApiAppsSelection(uri, additionalSelection),
                         selectionArgs);
+                contentResolver.notifyChange(ApiApps.CONTENT_URI, null);
                 break;
             }
             case API_ALLOWED_KEYS: {
@@ -1057,9 +1050,18 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
                     count = db.update(Tables.KEYS, values, actualSelection, selectionArgs);
                     break;
                 }
+                case KEY_RINGS_CERTS: {
+                    if (values.size() != 1 || !values.containsKey(Certs.VERIFIED)) {
+                        throw new UnsupportedOperationException(
+                                "Only verified column may be updated!");
+                    }
+                    count = db.update(Tables.CERTS, values, selection, selectionArgs);
+                    break;
+                }
                 case API_APPS_BY_PACKAGE_NAME: {
                     count = db.update(Tables.API_APPS, values,
                             buildDefaultApiAppsSelection(uri, selection), selectionArgs);
+                    getContext().getContentResolver().notifyChange(ApiApps.CONTENT_URI, null);
                     break;
                 }
                 case UPDATED_KEYS: {
@@ -1101,6 +1103,34 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
         return count;
     }
 
+    /**
+     * Applies all operations in a single transaction. A keyring is thus either written completely
+     * or not at all, and large batches don't require a journal sync for every single row.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = getDb().getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the id of the given subkey of the key_summary table, or NULL if it has expired by now.
+     */
+    private static String unexpiredSubkey(String keyIdColumn, String expiryColumn, long now, String alias) {
+        return "(CASE WHEN " + Tables.KEYS + "." + expiryColumn + " IS NULL"
+                + " OR " + Tables.KEYS + "." + expiryColumn + " >= " + now
+                + " THEN " + Tables.KEYS + "." + keyIdColumn + " END) AS " + alias;
+    }
+
     /**
      * Build default selection statement for API apps. If no extra selection is specified only build
      * where clause with rowId
@@ -18,83 +18,109 @@
 package org.sufficientlysecure.keychain.provider;
 
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 
 import android.content.Context;
+import android.support.annotation.VisibleForTesting;
 
-import okhttp3.internal.Util;
+import timber.log.Timber;
 
 
-class LocalPublicKeyStorage {
+/**
+ * Stores public keyrings on disk. The keyrings live in a {@link SegmentBlobStore}, keyrings
+ * from the former one-file-per-key storage are moved there the first time they are read.
+ */
+public class LocalPublicKeyStorage {
     private static final String FORMAT_STR_PUBLIC_KEY = "0x%016x.pub";
     private static final String PUBLIC_KEYS_DIR_NAME = "public_keys";
+    private static final String PUBLIC_KEY_STORE_DIR_NAME = "public_key_store";
 
+    private static LocalPublicKeyStorage sInstance;
 
     private final File localPublicKeysDir;
+    private final SegmentBlobStore publicKeyStore;
 
 
-    public static LocalPublicKeyStorage getInstance(Context context) {
-        File localPublicKeysDir = new File(context.getFilesDir(), PUBLIC_KEYS_DIR_NAME);
-        return new LocalPublicKeyStorage(localPublicKeysDir);
+    public static synchronized LocalPublicKeyStorage getInstance(Context context) {
+        // the store must only be opened once per process
+        if (sInstance == null) {
+            sInstance = new LocalPublicKeyStorage(context.getFilesDir());
+        }
+        return sInstance;
     }
 
-    private LocalPublicKeyStorage(File localPublicKeysDir) {
-        this.localPublicKeysDir = localPublicKeysDir;
+    /** Drops the instance, so the next one uses the files directory of the next test. */
+    @VisibleForTesting
+    public static synchronized void resetInstance() {
+        if (sInstance != null) {
+            try {
+                sInstance.publicKeyStore.close();
+            } catch (IOException e) {
+                Timber.e(e, "Error closing public key store");
+            }
+            sInstance = null;
+        }
     }
 
-    private File getPublicKeyFile(long masterKeyId) throws IOException {
-        if (!localPublicKeysDir.exists()) {
-            localPublicKeysDir.mkdir();
-        }
-        if (!localPublicKeysDir.isDirectory()) {
-            throw new IOException("Failed creating public key directory!");
-        }
+    private LocalPublicKeyStorage(File filesDir) {
+        this.localPublicKeysDir = new File(filesDir, PUBLIC_KEYS_DIR_NAME);
+        this.publicKeyStore = new SegmentBlobStore(new File(filesDir, PUBLIC_KEY_STORE_DIR_NAME));
+    }
 
+    private File getLegacyPublicKeyFile(long masterKeyId) {
         String keyFilename = String.format(FORMAT_STR_PUBLIC_KEY, masterKeyId);
         return new File(localPublicKeysDir, keyFilename);
     }
 
-    void writePublicKey(long masterKeyId, byte[] encoded) throws IOException {
-        File publicKeyFile = getPublicKeyFile(masterKeyId);
+    /**
+     * @param sync if true, the keyring is synced to disk before this method returns. This should be
+     *             done where there is no other copy of the keyring.
+     */
+    void writePublicKey(long masterKeyId, byte[] encoded, boolean sync) throws IOException {
+        publicKeyStore.write(masterKeyId, encoded, sync);
+        deleteLegacyPublicKey(masterKeyId);
+    }
 
-        FileOutputStream fileOutputStream = new FileOutputStream(publicKeyFile);
-        try {
-            fileOutputStream.write(encoded);
-        } finally {
-            Util.closeQuietly(fileOutputStream);
+    byte[] readPublicKey(long masterKeyId) throws IOException {
+        byte[] data = publicKeyStore.read(masterKeyId);
+        if (data != null) {
+            return data;
         }
+        return migrateLegacyPublicKey(masterKeyId);
     }
 
-    byte[] readPublicKey(long masterKeyId) throws IOException {
-        File publicKeyFile = getPublicKeyFile(masterKeyId);
+    private byte[] migrateLegacyPublicKey(long masterKeyId) throws IOException {
+        File publicKeyFile = getLegacyPublicKeyFile(masterKeyId);
 
+        byte[] data;
         try {
-            FileInputStream fileInputStream = new FileInputStream(publicKeyFile);
-            return readIntoByteArray(fileInputStream);
+            RandomAccessFile file = new RandomAccessFile(publicKeyFile, "r");
+            try {
+                data = new byte[(int) file.length()];
+                file.readFully(data);
+            } finally {
+                file.close();
+            }
         } catch (FileNotFoundException e) {
             return null;
         }
-    }
-
-    private static byte[] readIntoByteArray(FileInputStream fileInputStream) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
-        byte[] buf = new byte[128];
-        int bytesRead;
-        while ((bytesRead = fileInputStream.read(buf)) != -1) {
-            baos.write(buf, 0, bytesRead);
-        }
-
-        return baos.toByteArray();
+        Timber.d("Moving public key %016x into the key store", masterKeyId);
+        publicKeyStore.write(masterKeyId, data, true);
+        deleteLegacyPublicKey(masterKeyId);
+        return data;
     }
 
     void deletePublicKey(long masterKeyId) throws IOException {
-        File publicKeyFile = getPublicKeyFile(masterKeyId);
+        publicKeyStore.delete(masterKeyId);
+        deleteLegacyPublicKey(masterKeyId);
+    }
+
+    private void deleteLegacyPublicKey(long masterKeyId) throws IOException {
+        File publicKeyFile = getLegacyPublicKeyFile(masterKeyId);
         if (publicKeyFile.exists()) {
             boolean deleteSuccess = publicKeyFile.delete();
             if (!deleteSuccess) {
@@ -0,0 +1,523 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import timber.log.Timber;
+
+
+/**
+ * An append-only store of blobs by id, kept in a small number of segment files.
+ * <p/>
+ * Each write appends a record to the last segment, and a new segment is started once it grows
+ * beyond the segment size. The location of the latest record for each id is kept in an index in
+ * memory, which is built from the record headers when the store is first used. Reads copy the
+ * data out of a memory mapping of its segment. Only the lookup in the index is serialized, the
+ * copying runs concurrently, so parallel reads of large blobs don't wait for each other. Once
+ * outdated records take up more than half of the store, the live ones are copied into new
+ * segments and the old ones are deleted.
+ * <p/>
+ * Every record carries a checksum, which is verified when the record is first scanned. Records
+ * cut off or garbled by a crash end the scan of their segment, so they never hide the intact
+ * record they were meant to replace, and they are dropped before the next write. Writes may be
+ * synced to disk where the store holds the only copy of the data.
+ * <p/>
+ * The store is shared between the app's processes. Writes are serialized by a file lock, and
+ * readers learn about writes from other processes through a counter in a shared memory mapping,
+ * so a read of an unchanged store does not touch the file system at all.
+ */
+class SegmentBlobStore {
+
+    private static final Pattern SEGMENT_FILE_PATTERN = Pattern.compile("segment-(\\d{8})\\.dat");
+    private static final String SEGMENT_FILE_FORMAT = "segment-%08d.dat";
+    private static final String STATE_FILE_NAME = "store.state";
+
+    private static final int RECORD_MAGIC = 0x4b424c42;
+    // magic, id, length, crc32 of the data
+    private static final int HEADER_SIZE = 4 + 8 + 4 + 4;
+    // a record of this length marks its id as deleted
+    private static final int TOMBSTONE = -1;
+    private static final int CRC_CHUNK_SIZE = 8 * 1024;
+
+    // the state file holds counters of changes and compactions, and serves as lock file
+    private static final int STATE_SIZE = 16;
+    private static final int STATE_CHANGE_COUNT = 0;
+    private static final int STATE_COMPACTION_COUNT = 8;
+
+    private static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final long DEFAULT_MIN_COMPACTION_GARBAGE = 4 * 1024 * 1024;
+
+    private final File mDirectory;
+    private final long mSegmentSize;
+    private final long mMinCompactionGarbage;
+
+    private final HashMap<Long, Location> mIndex = new HashMap<>();
+    private final TreeMap<Integer, Segment> mSegments = new TreeMap<>();
+    private int mNextSegmentNumber = 1;
+    private long mTotalBytes;
+    private long mLiveBytes;
+
+    private RandomAccessFile mStateFile;
+    private MappedByteBuffer mState;
+    private long mSeenChangeCount;
+    private long mSeenCompactionCount;
+    private boolean mNeedsFullScan = true;
+
+    private static class Segment {
+        final int mNumber;
+        final File mFile;
+        // length of the complete records in this segment
+        long mLength;
+        MappedByteBuffer mMapping;
+
+        Segment(int number, File file) {
+            mNumber = number;
+            mFile = file;
+        }
+    }
+
+    private static class RecordMapping {
+        final ByteBuffer mMapping;
+        final Location mLocation;
+
+        RecordMapping(ByteBuffer mapping, Location location) {
+            mMapping = mapping;
+            mLocation = location;
+        }
+    }
+
+    private static class Location {
+        final long mId;
+        final Segment mSegment;
+        final long mOffset;
+        final int mLength;
+        final int mCrc;
+
+        Location(long id, Segment segment, long offset, int length, int crc) {
+            mId = id;
+            mSegment = segment;
+            mOffset = offset;
+            mLength = length;
+            mCrc = crc;
+        }
+
+        long getRecordSize() {
+            return HEADER_SIZE + mLength;
+        }
+    }
+
+    SegmentBlobStore(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MIN_COMPACTION_GARBAGE);
+    }
+
+    @VisibleForTesting
+    SegmentBlobStore(File directory, long segmentSize, long minCompactionGarbage) {
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        mMinCompactionGarbage = minCompactionGarbage;
+    }
+
+    /** Returns the data stored for the id, or null if there is none. */
+    @Nullable
+    byte[] read(long id) throws IOException {
+        try {
+            return copyRecord(findRecord(id, false));
+        } catch (IOException e) {
+            // most likely, the segment was compacted away by another process in the meantime
+            Timber.d(e, "Error reading blob, rescanning store");
+        }
+        return copyRecord(findRecord(id, true));
+    }
+
+    /**
+     * Looks up the record of the id. The returned mapping stays valid even if the segment is
+     * compacted away later on, so the data can be copied out of it without holding the lock.
+     */
+    @Nullable
+    private synchronized RecordMapping findRecord(long id, boolean rescan) throws IOException {
+        openState();
+        if (rescan) {
+            mNeedsFullScan = true;
+        }
+        refreshIfChanged();
+
+        Location location = mIndex.get(id);
+        return location != null ? mapRecord(location) : null;
+    }
+
+    /**
+     * Stores data for the id, replacing any previous data.
+     *
+     * @param sync if true, the data is synced to disk before this method returns
+     */
+    synchronized void write(long id, byte[] data, boolean sync) throws IOException {
+        openState();
+        FileLock lock = mStateFile.getChannel().lock(0, Long.MAX_VALUE, false);
+        try {
+            scanChanges(true);
+            appendRecord(id, data, sync);
+            compactIfWorthwhile();
+            publishChange();
+        } finally {
+            lock.release();
+        }
+    }
+
+    synchronized void delete(long id) throws IOException {
+        openState();
+        FileLock lock = mStateFile.getChannel().lock(0, Long.MAX_VALUE, false);
+        try {
+            scanChanges(true);
+            if (!mIndex.containsKey(id)) {
+                return;
+            }
+            appendRecord(id, null, false);
+            compactIfWorthwhile();
+            publishChange();
+        } finally {
+            lock.release();
+        }
+    }
+
+    /** Closes the state file, which is opened again on the next access. */
+    synchronized void close() throws IOException {
+        if (mStateFile != null) {
+            mStateFile.close();
+            mStateFile = null;
+            mState = null;
+        }
+    }
+
+    private void openState() throws IOException {
+        // the channel is closed if a thread is interrupted while it waits for the lock
+        if (mStateFile != null && mStateFile.getChannel().isOpen()) {
+            return;
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Failed creating blob store directory!");
+        }
+        mStateFile = new RandomAccessFile(new File(mDirectory, STATE_FILE_NAME), "rw");
+        if (mState == null) {
+            if (mStateFile.length() < STATE_SIZE) {
+                mStateFile.setLength(STATE_SIZE);
+            }
+            mState = mStateFile.getChannel().map(MapMode.READ_WRITE, 0, STATE_SIZE);
+        }
+    }
+
+    private void refreshIfChanged() throws IOException {
+        if (!mNeedsFullScan && mState.getLong(STATE_CHANGE_COUNT) == mSeenChangeCount) {
+            return;
+        }
+        FileLock lock = mStateFile.getChannel().lock(0, Long.MAX_VALUE, true);
+        try {
+            scanChanges(false);
+        } finally {
+            lock.release();
+        }
+    }
+
+    private void publishChange() {
+        mSeenChangeCount += 1;
+        mState.putLong(STATE_CHANGE_COUNT, mSeenChangeCount);
+    }
+
+    /**
+     * Brings the index up to date with the segment files. The caller must hold the store lock,
+     * and if it holds it exclusively, incomplete or corrupt records at the end of a segment are
+     * cut off.
+     */
+    private void scanChanges(boolean exclusive) throws IOException {
+        long compactionCount = mState.getLong(STATE_COMPACTION_COUNT);
+        if (mNeedsFullScan || compactionCount != mSeenCompactionCount) {
+            mIndex.clear();
+            mSegments.clear();
+            mTotalBytes = 0;
+            mLiveBytes = 0;
+            mSeenCompactionCount = compactionCount;
+            mNeedsFullScan = false;
+        }
+        mSeenChangeCount = mState.getLong(STATE_CHANGE_COUNT);
+
+        String[] fileNames = mDirectory.list();
+        if (fileNames != null) {
+            for (String fileName : fileNames) {
+                Matcher matcher = SEGMENT_FILE_PATTERN.matcher(fileName);
+                if (!matcher.matches()) {
+                    continue;
+                }
+                int number = Integer.parseInt(matcher.group(1));
+                if (!mSegments.containsKey(number)) {
+                    mSegments.put(number, new Segment(number, new File(mDirectory, fileName)));
+                }
+                mNextSegmentNumber = Math.max(mNextSegmentNumber, number + 1);
+            }
+        }
+
+        // later records replace earlier ones, so segments must be scanned in order
+        for (Segment segment : mSegments.values()) {
+            scanSegment(segment, exclusive);
+        }
+    }
+
+    private void scanSegment(Segment segment, boolean exclusive) throws IOException {
+        long fileLength = segment.mFile.length();
+        if (fileLength == segment.mLength) {
+            return;
+        }
+
+        RandomAccessFile file = new RandomAccessFile(segment.mFile, exclusive ? "rw" : "r");
+        try {
+            MappedByteBuffer mapping = file.getChannel().map(MapMode.READ_ONLY, 0, fileLength);
+            byte[] chunk = new byte[CRC_CHUNK_SIZE];
+            long offset = segment.mLength;
+            while (offset + HEADER_SIZE <= fileLength) {
+                mapping.position((int) offset);
+                int magic = mapping.getInt();
+                long id = mapping.getLong();
+                int length = mapping.getInt();
+                int crc = mapping.getInt();
+                if (magic != RECORD_MAGIC || length < TOMBSTONE
+                        || offset + HEADER_SIZE + Math.max(0, length) > fileLength) {
+                    break;
+                }
+                // the header may have made it to disk without the data, e.g. after a crash
+                if (length != TOMBSTONE && computeCrc(mapping, chunk, length) != crc) {
+                    Timber.w("Checksum mismatch at %d in %s", offset, segment.mFile.getName());
+                    break;
+                }
+                indexRecord(segment, offset, id, length, crc);
+                offset += HEADER_SIZE + Math.max(0, length);
+            }
+            segment.mLength = offset;
+            segment.mMapping = mapping;
+
+            if (exclusive && offset < fileLength) {
+                Timber.w("Dropping %d bytes of incomplete or corrupt records from %s",
+                        fileLength - offset, segment.mFile.getName());
+                segment.mMapping = null;
+                file.getChannel().truncate(offset);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /** Computes the checksum of the length bytes at the position of the buffer, using chunk for copying. */
+    private static int computeCrc(ByteBuffer buffer, byte[] chunk, int length) {
+        CRC32 crc = new CRC32();
+        int remaining = length;
+        while (remaining > 0) {
+            int count = Math.min(remaining, chunk.length);
+            buffer.get(chunk, 0, count);
+            crc.update(chunk, 0, count);
+            remaining -= count;
+        }
+        return (int) crc.getValue();
+    }
+
+    private void indexRecord(Segment segment, long offset, long id, int length, int crc) {
+        Location previous;
+        if (length == TOMBSTONE) {
+            previous = mIndex.remove(id);
+            mTotalBytes += HEADER_SIZE;
+        } else {
+            Location location = new Location(id, segment, offset, length, crc);
+            previous = mIndex.put(id, location);
+            mTotalBytes += location.getRecordSize();
+            mLiveBytes += location.getRecordSize();
+        }
+        if (previous != null) {
+            mLiveBytes -= previous.getRecordSize();
+        }
+    }
+
+    private void appendRecord(long id, @Nullable byte[] data, boolean sync) throws IOException {
+        int length = data != null ? data.length : TOMBSTONE;
+        int recordSize = HEADER_SIZE + (data != null ? data.length : 0);
+
+        CRC32 crc = new CRC32();
+        if (data != null) {
+            crc.update(data);
+        }
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.putInt(RECORD_MAGIC).putLong(id).putInt(length).putInt((int) crc.getValue());
+        if (data != null) {
+            record.put(data);
+        }
+        record.flip();
+
+        Segment segment = getSegmentForAppend(recordSize);
+        RandomAccessFile file = new RandomAccessFile(segment.mFile, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            long position = segment.mLength;
+            while (record.hasRemaining()) {
+                position += channel.write(record, position);
+            }
+            if (sync) {
+                channel.force(false);
+            }
+        } finally {
+            file.close();
+        }
+
+        indexRecord(segment, segment.mLength, id, length, (int) crc.getValue());
+        segment.mLength += recordSize;
+    }
+
+    private Segment getSegmentForAppend(int recordSize) {
+        Segment segment = mSegments.isEmpty() ? null : mSegments.lastEntry().getValue();
+        if (segment == null || segment.mLength > 0 && segment.mLength + recordSize > mSegmentSize) {
+            int number = mNextSegmentNumber++;
+            segment = new Segment(number, new File(mDirectory, String.format(SEGMENT_FILE_FORMAT, number)));
+            mSegments.put(number, segment);
+        }
+        return segment;
+    }
+
+    private byte[] readRecord(Location location) throws IOException {
+        return copyRecord(mapRecord(location));
+    }
+
+    private RecordMapping mapRecord(Location location) throws IOException {
+        Segment segment = location.mSegment;
+        long end = location.mOffset + location.getRecordSize();
+        if (segment.mMapping == null || segment.mMapping.capacity() < end) {
+            RandomAccessFile file = new RandomAccessFile(segment.mFile, "r");
+            try {
+                segment.mMapping = file.getChannel().map(MapMode.READ_ONLY, 0, segment.mLength);
+            } finally {
+                file.close();
+            }
+        }
+
+        // a duplicate, so its position is independent of other readers
+        return new RecordMapping(segment.mMapping.duplicate(), location);
+    }
+
+    @Nullable
+    private static byte[] copyRecord(@Nullable RecordMapping record) throws IOException {
+        if (record == null) {
+            return null;
+        }
+        Location location = record.mLocation;
+        ByteBuffer buffer = record.mMapping;
+        buffer.position((int) (location.mOffset + HEADER_SIZE));
+        byte[] data = new byte[location.mLength];
+        buffer.get(data);
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if ((int) crc.getValue() != location.mCrc) {
+            throw new IOException("Checksum mismatch in " + location.mSegment.mFile.getName());
+        }
+        return data;
+    }
+
+    private void compactIfWorthwhile() {
+        long garbage = mTotalBytes - mLiveBytes;
+        if (garbage < mMinCompactionGarbage || garbage <= mLiveBytes) {
+            return;
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            // the old segments are only deleted once everything is copied, so nothing is lost
+            Timber.e(e, "Error compacting blob store");
+            mNeedsFullScan = true;
+        }
+    }
+
+    /**
+     * Copies all live records into new segments, and deletes the old ones. If this is interrupted,
+     * the copies in the new segments simply take precedence over the originals on the next scan.
+     */
+    private void compact() throws IOException {
+        Timber.d("Compacting blob store, %d of %d bytes are live", mLiveBytes, mTotalBytes);
+
+        ArrayList<Location> liveRecords = new ArrayList<>(mIndex.values());
+        // copy in storage order, which reads the old segments sequentially
+        Collections.sort(liveRecords, new Comparator<Location>() {
+            @Override
+            public int compare(Location lhs, Location rhs) {
+                if (lhs.mSegment.mNumber != rhs.mSegment.mNumber) {
+                    return lhs.mSegment.mNumber < rhs.mSegment.mNumber ? -1 : 1;
+                }
+                return lhs.mOffset < rhs.mOffset ? -1 : (lhs.mOffset == rhs.mOffset ? 0 : 1);
+            }
+        });
+        ArrayList<Segment> oldSegments = new ArrayList<>(mSegments.values());
+
+        mIndex.clear();
+        mSegments.clear();
+        mTotalBytes = 0;
+        mLiveBytes = 0;
+        for (Location location : liveRecords) {
+            byte[] data;
+            try {
+                data = readRecord(location);
+            } catch (IOException e) {
+                Timber.e(e, "Dropping unreadable blob %d during compaction", location.mId);
+                continue;
+            }
+            appendRecord(location.mId, data, false);
+        }
+
+        for (Segment segment : mSegments.values()) {
+            RandomAccessFile file = new RandomAccessFile(segment.mFile, "rw");
+            try {
+                file.getChannel().force(false);
+            } finally {
+                file.close();
+            }
+        }
+
+        // in order, so an interrupted compaction never leaves a record without its later tombstone
+        for (Segment segment : oldSegments) {
+            segment.mMapping = null;
+            if (!segment.mFile.delete()) {
+                Timber.e("Could not delete compacted segment %s", segment.mFile.getName());
+            }
+        }
+
+        mSeenCompactionCount += 1;
+        mState.putLong(STATE_COMPACTION_COUNT, mSeenCompactionCount);
+    }
+
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.support.v4.util.LongSparseArray;
+
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
+import timber.log.Timber;
+
+
+/**
+ * A process-wide in-memory map from subkey ids to master key ids.
+ * <p/>
+ * Resolving a key id is the first step of every decryption and verification,
+ * so this is kept in memory after being loaded once, either on first use or
+ * when the API service starts. It is invalidated the same way as the
+ * KeyRingCache, but only the subkeys of changed keyrings are reloaded, and
+ * only once they are needed.
+ */
+public class SubKeyIdIndex {
+
+    private static SubKeyIdIndex sInstance;
+    private static InvalidatingObserver sObserver;
+
+    private final ContentResolver mContentResolver;
+    // null if not loaded yet, or after invalidateAll()
+    private LongSparseArray<Long> mMasterKeyIds;
+    // the reverse of mMasterKeyIds, so a keyring's entries can be removed without a scan
+    private HashMap<Long, long[]> mSubKeyIds;
+    // keyrings whose subkeys were removed from the map, but not yet reloaded
+    private final HashSet<Long> mStaleMasterKeyIds = new HashSet<>();
+
+    public static synchronized SubKeyIdIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SubKeyIdIndex(context.getApplicationContext().getContentResolver());
+            sObserver = new InvalidatingObserver(sInstance);
+            sInstance.mContentResolver.registerContentObserver(KeyRings.CONTENT_URI, true, sObserver);
+        }
+        return sInstance;
+    }
+
+    /** Drops the instance, so the next one uses the database of the next test. */
+    @VisibleForTesting
+    public static synchronized void resetInstance() {
+        if (sInstance != null) {
+            sInstance.mContentResolver.unregisterContentObserver(sObserver);
+            sInstance = null;
+            sObserver = null;
+        }
+    }
+
+    @VisibleForTesting
+    SubKeyIdIndex(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+
+    /** Returns the master key id of the keyring which contains the given subkey, or null if there is none. */
+    @Nullable
+    public synchronized Long getMasterKeyId(long subKeyId) {
+        if (mMasterKeyIds == null) {
+            loadAll();
+        } else if (!mStaleMasterKeyIds.isEmpty()) {
+            reloadStale();
+        }
+        return mMasterKeyIds != null ? mMasterKeyIds.get(subKeyId) : null;
+    }
+
+    /** Loads the index, if it isn't already. This should be called from a background thread. */
+    public synchronized void warmUp() {
+        if (mMasterKeyIds == null) {
+            loadAll();
+        }
+    }
+
+    /** Drops the subkeys of the given keyring, which are reloaded on the next lookup. */
+    public synchronized void invalidate(long masterKeyId) {
+        if (mMasterKeyIds == null) {
+            return;
+        }
+        long[] subKeyIds = mSubKeyIds.remove(masterKeyId);
+        if (subKeyIds != null) {
+            for (long subKeyId : subKeyIds) {
+                // the same key id may occur in another keyring, whose entry stays
+                Long indexedMasterKeyId = mMasterKeyIds.get(subKeyId);
+                if (indexedMasterKeyId != null && indexedMasterKeyId == masterKeyId) {
+                    mMasterKeyIds.remove(subKeyId);
+                }
+            }
+        }
+        mStaleMasterKeyIds.add(masterKeyId);
+    }
+
+    public synchronized void invalidateAll() {
+        mMasterKeyIds = null;
+        mSubKeyIds = null;
+        mStaleMasterKeyIds.clear();
+    }
+
+    @VisibleForTesting
+    synchronized boolean isLoaded() {
+        return mMasterKeyIds != null && mStaleMasterKeyIds.isEmpty();
+    }
+
+    private void loadAll() {
+        Cursor cursor = mContentResolver.query(Keys.buildKeysUri(),
+                new String[] { Keys.KEY_ID, Keys.MASTER_KEY_ID }, null, null, Keys.KEY_ID + " ASC");
+        if (cursor == null) {
+            Timber.e("Error loading subkey index!");
+            return;
+        }
+        try {
+            LongSparseArray<Long> masterKeyIds = new LongSparseArray<>(cursor.getCount());
+            HashMap<Long, long[]> subKeyIds = new HashMap<>();
+            while (cursor.moveToNext()) {
+                long subKeyId = cursor.getLong(0);
+                long masterKeyId = cursor.getLong(1);
+                // sorted by key id, so this doesn't need to search
+                masterKeyIds.append(subKeyId, masterKeyId);
+                addSubKeyId(subKeyIds, masterKeyId, subKeyId);
+            }
+            mMasterKeyIds = masterKeyIds;
+            mSubKeyIds = subKeyIds;
+            mStaleMasterKeyIds.clear();
+            Timber.d("Loaded subkey index with %d entries", masterKeyIds.size());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void reloadStale() {
+        for (Long masterKeyId : mStaleMasterKeyIds) {
+            Cursor cursor = mContentResolver.query(Keys.buildKeysUri(masterKeyId),
+                    new String[] { Keys.KEY_ID }, null, null, null);
+            if (cursor == null) {
+                Timber.e("Error reloading subkey index!");
+                mMasterKeyIds = null;
+                mSubKeyIds = null;
+                break;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    long subKeyId = cursor.getLong(0);
+                    mMasterKeyIds.put(subKeyId, masterKeyId);
+                    addSubKeyId(mSubKeyIds, masterKeyId, subKeyId);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        mStaleMasterKeyIds.clear();
+    }
+
+    private static void addSubKeyId(HashMap<Long, long[]> subKeyIds, Long masterKeyId, long subKeyId) {
+        long[] existing = subKeyIds.get(masterKeyId);
+        if (existing == null) {
+            subKeyIds.put(masterKeyId, new long[] { subKeyId });
+        } else {
+            long[] extended = Arrays.copyOf(existing, existing.length + 1);
+            extended[existing.length] = subKeyId;
+            subKeyIds.put(masterKeyId, extended);
+        }
+    }
+
+    private static class InvalidatingObserver extends ContentObserver {
+        private final SubKeyIdIndex mIndex;
+
+        InvalidatingObserver(SubKeyIdIndex index) {
+            super(null);
+            mIndex = index;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            // no uri before api level 16
+            mIndex.invalidateAll();
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            List<String> pathSegments = uri != null ? uri.getPathSegments() : null;
+            if (pathSegments == null || pathSegments.size() < 2) {
+                mIndex.invalidateAll();
+                return;
+            }
+            try {
+                mIndex.invalidate(Long.parseLong(pathSegments.get(1)));
+            } catch (NumberFormatException e) {
+                Timber.d("Unknown uri in key change notification: %s", uri);
+                mIndex.invalidateAll();
+            }
+        }
+    }
+
+}
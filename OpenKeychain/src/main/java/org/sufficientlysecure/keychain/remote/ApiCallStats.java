@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.remote;
+
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.os.SystemClock;
+
+
+/**
+ * Collects latency and throughput of API calls per action, for diagnosis of performance problems
+ * with API clients. The numbers of a running service can be inspected with
+ * {@code adb shell dumpsys activity service org.sufficientlysecure.keychain/.remote.OpenPgpService2}.
+ */
+class ApiCallStats {
+
+    private final long mStartTime = SystemClock.elapsedRealtime();
+    private final TreeMap<String, ActionStats> mActionStats = new TreeMap<>();
+
+    private static class ActionStats {
+        long count;
+        long totalWaitMillis;
+        long totalMillis;
+        long maxMillis;
+    }
+
+    /**
+     * Records a finished call.
+     *
+     * @param waitMillis time the call waited for its turn, included in totalMillis
+     * @param totalMillis time from the start of the call to its result
+     */
+    synchronized void recordCall(String action, long waitMillis, long totalMillis) {
+        ActionStats stats = mActionStats.get(action);
+        if (stats == null) {
+            stats = new ActionStats();
+            mActionStats.put(action, stats);
+        }
+        stats.count += 1;
+        stats.totalWaitMillis += waitMillis;
+        stats.totalMillis += totalMillis;
+        stats.maxMillis = Math.max(stats.maxMillis, totalMillis);
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        long uptimeSeconds = Math.max(1, (SystemClock.elapsedRealtime() - mStartTime) / 1000);
+        writer.println("API calls in the last " + uptimeSeconds + "s:");
+        for (Map.Entry<String, ActionStats> entry : mActionStats.entrySet()) {
+            ActionStats stats = entry.getValue();
+            writer.println(String.format(Locale.ENGLISH,
+                    "  %s: %d calls (%.2f/s), avg %dms (waiting %dms), max %dms",
+                    entry.getKey(), stats.count, (double) stats.count / uptimeSeconds,
+                    stats.totalMillis / stats.count, stats.totalWaitMillis / stats.count, stats.maxMillis));
+        }
+    }
+
+}
@@ -31,6 +31,7 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.Signature;
 import android.os.Binder;
+import android.support.annotation.VisibleForTesting;
 
 import org.openintents.openpgp.OpenPgpError;
 import org.openintents.openpgp.util.OpenPgpApi;
@@ -46,12 +47,19 @@ public class ApiPermissionHelper {
 
     private final Context mContext;
     private final ApiDataAccessObject mApiDao;
+    private final CallerPermissionCache mCallerPermissionCache;
     private PackageManager mPackageManager;
 
     public ApiPermissionHelper(Context context, ApiDataAccessObject apiDao) {
+        this(context, apiDao, CallerPermissionCache.getInstance(context));
+    }
+
+    @VisibleForTesting
+    ApiPermissionHelper(Context context, ApiDataAccessObject apiDao, CallerPermissionCache callerPermissionCache) {
         mContext = context;
         mPackageManager = context.getPackageManager();
         mApiDao = apiDao;
+        mCallerPermissionCache = callerPermissionCache;
     }
 
     public static class WrongPackageCertificateException extends Exception {
@@ -182,14 +190,28 @@ public class ApiPermissionHelper {
         return isUidAllowed(Binder.getCallingUid());
     }
 
+    /**
+     * Returns true if the caller with the given uid already passed the permission check, and that
+     * decision is still cached. Only such trusted callers get their calls processed concurrently.
+     */
+    public boolean isTrustedCaller(int uid) {
+        return mCallerPermissionCache.isAllowed(uid);
+    }
+
     private boolean isUidAllowed(int uid)
             throws WrongPackageCertificateException {
 
+        if (mCallerPermissionCache.isAllowed(uid)) {
+            return true;
+        }
+        long generation = mCallerPermissionCache.getGeneration();
+
         String[] callingPackages = mPackageManager.getPackagesForUid(uid);
 
         // is calling package allowed to use this service?
         for (String currentPkg : callingPackages) {
             if (isPackageAllowed(currentPkg)) {
+                mCallerPermissionCache.putAllowed(uid, currentPkg, generation);
                 return true;
             }
         }
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.remote;
+
+
+import java.util.concurrent.Semaphore;
+
+import android.util.SparseArray;
+
+
+/**
+ * Limits how many API calls of a single caller are processed at once. Calls beyond the limit
+ * wait in line, in the order they came in, so a caller pushing hundreds of requests at once
+ * doesn't oversubscribe the CPU, and calls of other apps keep getting processed.
+ * <p/>
+ * Waiting calls block their binder thread. Once all binder threads of the process are busy,
+ * further calls block in the caller, which slows it down to the rate its calls are processed.
+ */
+class CallerConcurrencyLimiter {
+
+    private final int mMaxConcurrentCalls;
+    // fair, so waiting calls are processed in order
+    private final SparseArray<Semaphore> mCallerPermits = new SparseArray<>();
+
+    CallerConcurrencyLimiter(int maxConcurrentCalls) {
+        mMaxConcurrentCalls = maxConcurrentCalls;
+    }
+
+    /**
+     * Waits until the caller may run another call. Each call to this must be paired with
+     * {@link #release}.
+     */
+    void acquire(int uid) throws InterruptedException {
+        getPermits(uid).acquire();
+    }
+
+    void release(int uid) {
+        getPermits(uid).release();
+    }
+
+    /** Returns the number of calls of the given caller that are waiting for their turn. */
+    int getQueueLength(int uid) {
+        return getPermits(uid).getQueueLength();
+    }
+
+    private synchronized Semaphore getPermits(int uid) {
+        Semaphore permits = mCallerPermits.get(uid);
+        if (permits == null) {
+            permits = new Semaphore(mMaxConcurrentCalls, true);
+            mCallerPermits.put(uid, permits);
+        }
+        return permits;
+    }
+
+}
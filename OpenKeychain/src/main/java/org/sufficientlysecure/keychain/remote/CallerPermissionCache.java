@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.remote;
+
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.support.annotation.VisibleForTesting;
+
+import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
+import timber.log.Timber;
+
+
+/**
+ * Remembers which calling uids were found to be allowed to use the API, and for which package
+ * the certificate check succeeded. Repeated calls of a registered app then skip the package
+ * manager and database lookups. Only positive decisions are cached.
+ * <p/>
+ * The remote API runs in processes of its own, so the cache is cleared whenever the registered
+ * apps change in the content provider. This covers apps that are uninstalled, which are removed
+ * by {@link PackageUninstallReceiver}, as well as apps the user deletes from the settings.
+ * Decisions for a package are also dropped when it is installed, replaced or removed, since its
+ * certificate may have changed.
+ */
+public class CallerPermissionCache {
+
+    private static CallerPermissionCache sInstance;
+    private static Context sRegisteredContext;
+    private static ContentObserver sObserver;
+    private static BroadcastReceiver sPackageReceiver;
+
+    // calling uid -> package whose certificate was verified
+    private final Map<Integer, String> mAllowedUids = new ConcurrentHashMap<>();
+    private long mGeneration;
+
+    static synchronized CallerPermissionCache getInstance(Context context) {
+        if (sInstance == null) {
+            final CallerPermissionCache cache = new CallerPermissionCache();
+            sRegisteredContext = context.getApplicationContext();
+
+            // a null handler delivers changes right on the binder thread
+            sObserver = new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    Timber.d("Registered apps changed, clearing caller permission cache");
+                    cache.clear();
+                }
+            };
+            sRegisteredContext.getContentResolver().registerContentObserver(ApiApps.CONTENT_URI, true, sObserver);
+
+            // must be registered at runtime, package broadcasts aren't delivered to manifest receivers on O+
+            IntentFilter packageFilter = new IntentFilter();
+            packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            packageFilter.addDataScheme("package");
+            sPackageReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    Uri uri = intent.getData();
+                    if (uri != null) {
+                        cache.removePackage(uri.getEncodedSchemeSpecificPart());
+                    }
+                }
+            };
+            sRegisteredContext.registerReceiver(sPackageReceiver, packageFilter);
+
+            sInstance = cache;
+        }
+        return sInstance;
+    }
+
+    /** Drops the instance, so the next one is registered with the application of the next test. */
+    @VisibleForTesting
+    public static synchronized void resetInstance() {
+        if (sInstance != null) {
+            sRegisteredContext.getContentResolver().unregisterContentObserver(sObserver);
+            sRegisteredContext.unregisterReceiver(sPackageReceiver);
+            sInstance = null;
+            sRegisteredContext = null;
+            sObserver = null;
+            sPackageReceiver = null;
+        }
+    }
+
+    boolean isAllowed(int uid) {
+        return mAllowedUids.containsKey(uid);
+    }
+
+    /**
+     * Returns the current generation of the cache, which must be passed to
+     * {@link #putAllowed(int, String, long)} after the permission check.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Remembers the uid as allowed, unless the cache was cleared since the given generation.
+     * That way a check which raced with a change of the registered apps is not cached.
+     */
+    synchronized void putAllowed(int uid, String packageName, long generation) {
+        if (generation == mGeneration) {
+            mAllowedUids.put(uid, packageName);
+        }
+    }
+
+    synchronized void removePackage(String packageName) {
+        mGeneration++;
+        Iterator<String> it = mAllowedUids.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().equals(packageName)) {
+                Timber.d("Package %s changed, dropping its cached permission", packageName);
+                it.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        mGeneration++;
+        mAllowedUids.clear();
+    }
+
+}
@@ -18,9 +18,11 @@
 package org.sufficientlysecure.keychain.remote;
 
 
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -31,6 +33,7 @@ import java.util.List;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
+import android.os.Binder;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.Message;
@@ -75,6 +78,7 @@ import org.sufficientlysecure.keychain.provider.KeychainContract;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainExternalContract.AutocryptStatus;
 import org.sufficientlysecure.keychain.provider.OverriddenWarningsRepository;
+import org.sufficientlysecure.keychain.provider.SubKeyIdIndex;
 import org.sufficientlysecure.keychain.remote.OpenPgpServiceKeyIdExtractor.KeyIdResult;
 import org.sufficientlysecure.keychain.remote.OpenPgpServiceKeyIdExtractor.KeyIdResultStatus;
 import org.sufficientlysecure.keychain.service.BackupKeyringParcel;
@@ -96,6 +100,10 @@ public class OpenPgpService extends Service {
     public static final List<Integer> SUPPORTED_VERSIONS =
             Collections.unmodifiableList(Arrays.asList(7, 8, 9, 10, 11, 12));
 
+    private static final CallerConcurrencyLimiter sCallerLimiter = new CallerConcurrencyLimiter(
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+    private static final ApiCallStats sCallStats = new ApiCallStats();
+
     private ApiPermissionHelper mApiPermissionHelper;
     private KeyRepository mKeyRepository;
     private ApiDataAccessObject mApiDao;
@@ -110,6 +118,15 @@ public class OpenPgpService extends Service {
         mApiPermissionHelper = new ApiPermissionHelper(this, mApiDao);
         mApiPendingIntentFactory = new ApiPendingIntentFactory(getBaseContext());
         mKeyIdExtractor = OpenPgpServiceKeyIdExtractor.getInstance(getContentResolver(), mApiPendingIntentFactory);
+
+        // resolving key ids is the first step of every decryption and verification
+        final SubKeyIdIndex subKeyIdIndex = SubKeyIdIndex.getInstance(this);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                subKeyIdIndex.warmUp();
+            }
+        }, "SubKeyIdIndexWarmUp").start();
     }
 
     private Intent signImpl(Intent data, InputStream inputStream,
@@ -990,13 +1007,31 @@ public class OpenPgpService extends Service {
         InputStream inputStream =
                 (input != null) ? new ParcelFileDescriptor.AutoCloseInputStream(input) : null;
 
+        int callingUid = Binder.getCallingUid();
         try {
             long startTime = SystemClock.elapsedRealtime();
             Timber.i("API call: %s", data.getAction());
-            Intent result = executeInternalWithStreams(data, inputStream, outputStream);
-            long elapsedTime = SystemClock.elapsedRealtime() - startTime;
-            Timber.i("Elapsed time: %d", elapsedTime);
-            return result;
+
+            // calls of a trusted caller beyond the limit wait here, on their binder thread
+            boolean limited = mApiPermissionHelper.isTrustedCaller(callingUid);
+            if (limited) {
+                sCallerLimiter.acquire(callingUid);
+            }
+            long waitTime = SystemClock.elapsedRealtime() - startTime;
+            try {
+                Intent result = executeInternalWithStreams(data, inputStream, outputStream);
+                long elapsedTime = SystemClock.elapsedRealtime() - startTime;
+                Timber.i("Elapsed time: %d (waited %d)", elapsedTime, waitTime);
+                sCallStats.recordCall(String.valueOf(data.getAction()), waitTime, elapsedTime);
+                return result;
+            } finally {
+                if (limited) {
+                    sCallerLimiter.release(callingUid);
+                }
+            }
+        } catch (InterruptedException e) {
+            Timber.e(e, "Interrupted while waiting for other calls of the same caller");
+            return createErrorResultIntent(OpenPgpError.GENERIC_ERROR, "interrupted");
         } finally {
             // always close input and output file descriptors even in createErrorPendingIntent cases
             if (inputStream != null) {
@@ -1095,6 +1130,11 @@ public class OpenPgpService extends Service {
 
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        sCallStats.dump(writer);
+    }
+
     @NonNull
     private static Progressable createMessengerProgressable(final Messenger messenger) {
         return new Progressable() {
@@ -26,12 +26,15 @@ import org.openintents.openpgp.IOpenPgpService2;
 import timber.log.Timber;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 public class OpenPgpService2 extends OpenPgpService {
 
-    private Map<Long, ParcelFileDescriptor> mOutputPipeMap = new HashMap<Long, ParcelFileDescriptor>();
+    // accessed from concurrent binder threads
+    private Map<Long, ParcelFileDescriptor> mOutputPipeMap =
+            Collections.synchronizedMap(new HashMap<Long, ParcelFileDescriptor>());
 
     private long createKey(int id) {
         int callingPid = Binder.getCallingPid();
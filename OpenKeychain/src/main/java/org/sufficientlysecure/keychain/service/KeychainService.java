@@ -34,6 +34,7 @@ import org.sufficientlysecure.keychain.operations.BaseOperation;
 import org.sufficientlysecure.keychain.operations.BenchmarkOperation;
 import org.sufficientlysecure.keychain.operations.CertifyOperation;
 import org.sufficientlysecure.keychain.operations.ChangeUnlockOperation;
+import org.sufficientlysecure.keychain.operations.DecryptBatchOperation;
 import org.sufficientlysecure.keychain.operations.DeleteOperation;
 import org.sufficientlysecure.keychain.operations.EditKeyOperation;
 import org.sufficientlysecure.keychain.operations.ImportOperation;
@@ -44,6 +45,7 @@ import org.sufficientlysecure.keychain.operations.RevokeOperation;
 import org.sufficientlysecure.keychain.operations.SignEncryptOperation;
 import org.sufficientlysecure.keychain.operations.UploadOperation;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
+import org.sufficientlysecure.keychain.pgp.DecryptBatchParcel;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
 import org.sufficientlysecure.keychain.pgp.Progressable;
@@ -58,7 +60,7 @@ import timber.log.Timber;
  * This Service contains all important long lasting operations for OpenKeychain. It receives Intents with
  * data from the activities or other apps, executes them, and stops itself after doing them.
  */
-public class KeychainService extends Service implements Progressable {
+public class KeychainService extends Service {
 
     // messenger for communication (hack)
     public static final String EXTRA_MESSENGER = "messenger";
@@ -66,21 +68,22 @@ public class KeychainService extends Service implements Progressable {
     // extras for operation
     public static final String EXTRA_OPERATION_INPUT = "op_input";
     public static final String EXTRA_CRYPTO_INPUT = "crypto_input";
+    // whether the user is waiting for the operation, which then runs before background operations
+    public static final String EXTRA_FOREGROUND = "foreground";
 
     public static final String ACTION_CANCEL = "action_cancel";
 
     // this attribute can possibly merged with the one above? not sure...
     private AtomicBoolean mActionCanceled = new AtomicBoolean(false);
 
-    ThreadLocal<Messenger> mMessenger = new ThreadLocal<>();
-
     @Override
     public IBinder onBind(Intent intent) {
         return null;
     }
 
     /**
-     * This is run on the main thread, we need to spawn a runnable which runs on another thread for the actual operation
+     * This is run on the main thread, the actual operation is scheduled to run on one of the pools of
+     * {@link OperationScheduler}
      */
     @Override
     public int onStartCommand(final Intent intent, int flags, int startId) {
@@ -98,8 +101,10 @@ public class KeychainService extends Service implements Progressable {
 
                 Bundle extras = intent.getExtras();
 
-                // Set messenger for communication (for this particular thread)
-                mMessenger.set(extras.getParcelable(EXTRA_MESSENGER));
+                // messenger for communication, bound to this operation rather than the thread running it,
+                // since pool threads and the helpers of parallel operations are shared between operations
+                Messenger messenger = extras.getParcelable(EXTRA_MESSENGER);
+                OperationProgress progress = new OperationProgress(messenger);
 
                 // Input
                 Parcelable inputParcel = extras.getParcelable(EXTRA_OPERATION_INPUT);
@@ -113,112 +118,124 @@ public class KeychainService extends Service implements Progressable {
                 KeyWritableRepository databaseInteractor =
                         KeyWritableRepository.create(outerThis);
                 if (inputParcel instanceof SignEncryptParcel) {
-                    op = new SignEncryptOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
+                    op = new SignEncryptOperation(outerThis, databaseInteractor, progress, mActionCanceled);
                 } else if (inputParcel instanceof PgpDecryptVerifyInputParcel) {
-                    op = new PgpDecryptVerifyOperation(outerThis, databaseInteractor, outerThis);
+                    op = new PgpDecryptVerifyOperation(outerThis, databaseInteractor, progress);
+                } else if (inputParcel instanceof DecryptBatchParcel) {
+                    op = new DecryptBatchOperation(outerThis, databaseInteractor, progress, mActionCanceled);
                 } else if (inputParcel instanceof SaveKeyringParcel) {
-                    op = new EditKeyOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
+                    op = new EditKeyOperation(outerThis, databaseInteractor, progress, mActionCanceled);
                 } else if (inputParcel instanceof  ChangeUnlockParcel) {
-                    op = new ChangeUnlockOperation(outerThis, databaseInteractor, outerThis);
+                    op = new ChangeUnlockOperation(outerThis, databaseInteractor, progress);
                 } else if (inputParcel instanceof RevokeKeyringParcel) {
-                    op = new RevokeOperation(outerThis, databaseInteractor, outerThis);
+                    op = new RevokeOperation(outerThis, databaseInteractor, progress);
                 } else if (inputParcel instanceof CertifyActionsParcel) {
-                    op = new CertifyOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
+                    op = new CertifyOperation(outerThis, databaseInteractor, progress, mActionCanceled);
                 } else if (inputParcel instanceof DeleteKeyringParcel) {
-                    op = new DeleteOperation(outerThis, databaseInteractor, outerThis);
+                    op = new DeleteOperation(outerThis, databaseInteractor, progress);
                 } else if (inputParcel instanceof PromoteKeyringParcel) {
-                    op = new PromoteKeyOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
+                    op = new PromoteKeyOperation(outerThis, databaseInteractor, progress, mActionCanceled);
                 } else if (inputParcel instanceof ImportKeyringParcel) {
-                    op = new ImportOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
+                    op = new ImportOperation(outerThis, databaseInteractor, progress, mActionCanceled);
                 } else if (inputParcel instanceof BackupKeyringParcel) {
-                    op = new BackupOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
+                    op = new BackupOperation(outerThis, databaseInteractor, progress, mActionCanceled);
                 } else if (inputParcel instanceof UploadKeyringParcel) {
-                    op = new UploadOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
+                    op = new UploadOperation(outerThis, databaseInteractor, progress, mActionCanceled);
                 } else if (inputParcel instanceof KeybaseVerificationParcel) {
-                    op = new KeybaseVerificationOperation(outerThis, databaseInteractor, outerThis);
+                    op = new KeybaseVerificationOperation(outerThis, databaseInteractor, progress);
                 } else if (inputParcel instanceof InputDataParcel) {
-                    op = new InputDataOperation(outerThis, databaseInteractor, outerThis);
+                    op = new InputDataOperation(outerThis, databaseInteractor, progress);
                 } else if (inputParcel instanceof BenchmarkInputParcel) {
-                    op = new BenchmarkOperation(outerThis, databaseInteractor, outerThis);
+                    op = new BenchmarkOperation(outerThis, databaseInteractor, progress);
                 } else {
                     throw new AssertionError("Unrecognized input parcel in KeychainService!");
                 }
 
                 @SuppressWarnings("unchecked") // this is unchecked, we make sure it's the correct op above!
                 OperationResult result = op.execute(inputParcel, cryptoInput);
-                sendMessageToHandler(MessageStatus.OKAY, result);
-
+                progress.sendMessageToHandler(MessageStatus.OKAY, result);
             }
         };
 
-        Thread actionThread = new Thread(actionRunnable);
-        actionThread.start();
+        Parcelable inputParcel = intent.getParcelableExtra(EXTRA_OPERATION_INPUT);
+        boolean foreground = intent.getBooleanExtra(EXTRA_FOREGROUND, false);
+        OperationScheduler.getInstance().execute(
+                OperationScheduler.getOperationClass(inputParcel), foreground, actionRunnable);
 
         return START_NOT_STICKY;
     }
 
-    private void sendMessageToHandler(MessageStatus status, Integer arg2, Bundle data) {
+    /** Reports the progress and result of a single operation to the messenger it was started with. */
+    private class OperationProgress implements Progressable {
+        private final Messenger mMessenger;
 
-        Message msg = Message.obtain();
-        assert msg != null;
-        msg.arg1 = status.ordinal();
-        if (arg2 != null) {
-            msg.arg2 = arg2;
-        }
-        if (data != null) {
-            msg.setData(data);
+        OperationProgress(Messenger messenger) {
+            mMessenger = messenger;
         }
 
-        try {
-            mMessenger.get().send(msg);
-        } catch (RemoteException e) {
-            Timber.w(e, "Exception sending message, Is handler present?");
-        } catch (NullPointerException e) {
-            Timber.w(e, "Messenger is null!");
-        }
-    }
+        private void sendMessageToHandler(MessageStatus status, Integer arg2, Bundle data) {
 
-    private void sendMessageToHandler(MessageStatus status, OperationResult data) {
-        Bundle bundle = new Bundle();
-        bundle.putParcelable(OperationResult.EXTRA_RESULT, data);
-        sendMessageToHandler(status, null, bundle);
-    }
+            Message msg = Message.obtain();
+            assert msg != null;
+            msg.arg1 = status.ordinal();
+            if (arg2 != null) {
+                msg.arg2 = arg2;
+            }
+            if (data != null) {
+                msg.setData(data);
+            }
 
-    private void sendMessageToHandler(MessageStatus status) {
-        sendMessageToHandler(status, null, null);
-    }
+            try {
+                mMessenger.send(msg);
+            } catch (RemoteException e) {
+                Timber.w(e, "Exception sending message, Is handler present?");
+            } catch (NullPointerException e) {
+                Timber.w(e, "Messenger is null!");
+            }
+        }
 
-    /**
-     * Set progress of ProgressDialog by sending message to handler on UI thread
-     */
-    @Override
-    public void setProgress(String message, int progress, int max) {
-        Timber.d("Send message by setProgress with progress=" + progress + ", max="
-                + max);
+        private void sendMessageToHandler(MessageStatus status, OperationResult data) {
+            Bundle bundle = new Bundle();
+            bundle.putParcelable(OperationResult.EXTRA_RESULT, data);
+            sendMessageToHandler(status, null, bundle);
+        }
 
-        Bundle data = new Bundle();
-        if (message != null) {
-            data.putString(ServiceProgressHandler.DATA_MESSAGE, message);
+        private void sendMessageToHandler(MessageStatus status) {
+            sendMessageToHandler(status, null, null);
         }
-        data.putInt(ServiceProgressHandler.DATA_PROGRESS, progress);
-        data.putInt(ServiceProgressHandler.DATA_PROGRESS_MAX, max);
 
-        sendMessageToHandler(MessageStatus.UPDATE_PROGRESS, null, data);
-    }
+        /**
+         * Set progress of ProgressDialog by sending message to handler on UI thread
+         */
+        @Override
+        public void setProgress(String message, int progress, int max) {
+            Timber.d("Send message by setProgress with progress=" + progress + ", max="
+                    + max);
+
+            Bundle data = new Bundle();
+            if (message != null) {
+                data.putString(ServiceProgressHandler.DATA_MESSAGE, message);
+            }
+            data.putInt(ServiceProgressHandler.DATA_PROGRESS, progress);
+            data.putInt(ServiceProgressHandler.DATA_PROGRESS_MAX, max);
 
-    @Override
-    public void setProgress(int resourceId, int progress, int max) {
-        setProgress(getString(resourceId), progress, max);
-    }
+            sendMessageToHandler(MessageStatus.UPDATE_PROGRESS, null, data);
+        }
 
-    @Override
-    public void setProgress(int progress, int max) {
-        setProgress(null, progress, max);
-    }
+        @Override
+        public void setProgress(int resourceId, int progress, int max) {
+            setProgress(KeychainService.this.getString(resourceId), progress, max);
+        }
 
-    @Override
-    public void setPreventCancel() {
-        sendMessageToHandler(MessageStatus.PREVENT_CANCEL);
+        @Override
+        public void setProgress(int progress, int max) {
+            setProgress(null, progress, max);
+        }
+
+        @Override
+        public void setPreventCancel() {
+            sendMessageToHandler(MessageStatus.PREVENT_CANCEL);
+        }
     }
 
 }
@@ -339,8 +339,9 @@ public class KeyserverSyncAdapterService extends Service {
     private ImportKeyResult directUpdate(Context context, ArrayList<ParcelableKeyRing> keyList,
                                          CryptoInputParcel cryptoInputParcel) {
         Timber.d("Starting normal update");
+        // keys are retrieved in bulk here, several at a time over parallel connections to the keyserver
         ImportOperation importOp = new ImportOperation(context,
-                KeyWritableRepository.create(context), null);
+                KeyWritableRepository.create(context), null, mCancelled);
         return importOp.execute(
                 ImportKeyringParcel.createImportKeyringParcel(keyList,
                         Preferences.getPreferences(context).getPreferredKeyserver()),
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import android.os.Parcelable;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import timber.log.Timber;
+
+
+/**
+ * Runs the operations of {@link KeychainService} on bounded thread pools, one for each class
+ * of operation. Crypto operations are limited to the number of cores, so bursts of requests
+ * queue up instead of oversubscribing the CPU. Network operations get a pool of their own, so
+ * a slow keyserver doesn't hold up crypto operations, and neither does a large batch of crypto
+ * operations hold up small interactive ones.
+ * <p/>
+ * Within each pool, foreground requests are run before background ones, and otherwise in the
+ * order they came in.
+ * <p/>
+ * Operations which split their work into parallel sub-tasks run them with
+ * {@link #invokeAll(List, int)}, which draws helper threads from the same CPU budget as the
+ * crypto pool, so the number of threads doing crypto never exceeds the number of cores.
+ */
+public class OperationScheduler {
+
+    public enum OperationClass {
+        /** CPU-bound crypto operations, e.g. encryption, decryption, key generation */
+        CPU(Math.max(2, Runtime.getRuntime().availableProcessors())),
+        /** I/O-bound operations which talk to the network, e.g. import, upload */
+        IO(4),
+        /** short, latency-sensitive operations on single keys, e.g. delete, revoke */
+        INTERACTIVE(2);
+
+        final int mPoolSize;
+
+        OperationClass(int poolSize) {
+            mPoolSize = poolSize;
+        }
+    }
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static OperationScheduler sInstance;
+
+    private final ThreadPoolExecutor[] mExecutors = new ThreadPoolExecutor[OperationClass.values().length];
+    private final int[] mMaxQueueDepths = new int[OperationClass.values().length];
+    private final AtomicLong mSequence = new AtomicLong();
+    // one permit for each thread that may do CPU-bound work, held by crypto operations and helpers
+    private final Semaphore mCpuPermits;
+    private final ThreadPoolExecutor mHelperExecutor;
+
+    public static synchronized OperationScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new OperationScheduler();
+        }
+        return sInstance;
+    }
+
+    private OperationScheduler() {
+        this(0);
+    }
+
+    /** Creates a scheduler with the given pool size for all classes, or the default sizes if 0. */
+    @VisibleForTesting
+    OperationScheduler(int poolSize) {
+        for (OperationClass operationClass : OperationClass.values()) {
+            int size = poolSize > 0 ? poolSize : operationClass.mPoolSize;
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(size, size, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<Runnable>());
+            executor.allowCoreThreadTimeOut(true);
+            mExecutors[operationClass.ordinal()] = executor;
+        }
+        mCpuPermits = new Semaphore(mExecutors[OperationClass.CPU.ordinal()].getMaximumPoolSize());
+        // unbounded, the number of helpers is limited by the cpu permits
+        mHelperExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>());
+    }
+
+    public static OperationClass getOperationClass(Parcelable inputParcel) {
+        if (inputParcel instanceof ImportKeyringParcel || inputParcel instanceof UploadKeyringParcel
+                || inputParcel instanceof KeybaseVerificationParcel) {
+            return OperationClass.IO;
+        }
+        if (inputParcel instanceof DeleteKeyringParcel || inputParcel instanceof RevokeKeyringParcel
+                || inputParcel instanceof PromoteKeyringParcel || inputParcel instanceof ChangeUnlockParcel) {
+            return OperationClass.INTERACTIVE;
+        }
+        return OperationClass.CPU;
+    }
+
+    public void execute(OperationClass operationClass, boolean foreground, Runnable runnable) {
+        ThreadPoolExecutor executor = mExecutors[operationClass.ordinal()];
+        Semaphore permits = operationClass == OperationClass.CPU ? mCpuPermits : null;
+        executor.execute(new ScheduledOperation(runnable, permits, foreground, mSequence.getAndIncrement()));
+
+        int queueDepth = executor.getQueue().size();
+        synchronized (mMaxQueueDepths) {
+            if (queueDepth > mMaxQueueDepths[operationClass.ordinal()]) {
+                mMaxQueueDepths[operationClass.ordinal()] = queueDepth;
+            }
+        }
+        Timber.d("Scheduled " + (foreground ? "foreground" : "background") + " operation on "
+                + operationClass + " pool, active: " + executor.getActiveCount() + ", queued: " + queueDepth);
+    }
+
+    /** Returns the number of operations of the given class waiting for a thread. */
+    public int getQueueDepth(OperationClass operationClass) {
+        return mExecutors[operationClass.ordinal()].getQueue().size();
+    }
+
+    /** Returns the largest number of operations of the given class that were waiting at once. */
+    public int getMaxQueueDepth(OperationClass operationClass) {
+        synchronized (mMaxQueueDepths) {
+            return mMaxQueueDepths[operationClass.ordinal()];
+        }
+    }
+
+    public long getCompletedCount(OperationClass operationClass) {
+        return mExecutors[operationClass.ordinal()].getCompletedTaskCount();
+    }
+
+    /**
+     * Runs the given tasks and returns their results in the same order. The calling thread works
+     * on the tasks itself, and is joined by up to maxThreads - 1 helper threads, as many as the
+     * CPU budget has room for right now. Tasks must not throw.
+     * <p/>
+     * If the calling thread is interrupted, the helpers don't start any further tasks, and the
+     * InterruptedException is passed on.
+     */
+    public <T> List<T> invokeAll(List<? extends Callable<T>> tasks, int maxThreads) throws InterruptedException {
+        final TaskQueue<T> queue = new TaskQueue<>(tasks);
+
+        int maxHelpers = Math.min(maxThreads, tasks.size()) - 1;
+        ArrayList<Future<?>> helpers = new ArrayList<>();
+        while (helpers.size() < maxHelpers && mCpuPermits.tryAcquire()) {
+            helpers.add(mHelperExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        queue.work();
+                    } finally {
+                        mCpuPermits.release();
+                    }
+                }
+            }));
+        }
+        Timber.d("Running " + tasks.size() + " tasks with " + helpers.size() + " helper threads");
+
+        queue.work();
+        try {
+            for (Future<?> helper : helpers) {
+                helper.get();
+            }
+        } catch (InterruptedException e) {
+            queue.abandon();
+            throw e;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return queue.getResults();
+    }
+
+    @VisibleForTesting
+    int getAvailableCpuPermits() {
+        return mCpuPermits.availablePermits();
+    }
+
+    private static class TaskQueue<T> {
+        private final List<? extends Callable<T>> mTasks;
+        private final AtomicReferenceArray<T> mResults;
+        private final AtomicInteger mNext = new AtomicInteger();
+        private volatile boolean mAbandoned;
+
+        TaskQueue(List<? extends Callable<T>> tasks) {
+            mTasks = tasks;
+            mResults = new AtomicReferenceArray<>(tasks.size());
+        }
+
+        void work() {
+            int i;
+            while (!mAbandoned && (i = mNext.getAndIncrement()) < mTasks.size()) {
+                try {
+                    mResults.set(i, mTasks.get(i).call());
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        void abandon() {
+            mAbandoned = true;
+        }
+
+        List<T> getResults() {
+            ArrayList<T> results = new ArrayList<>(mResults.length());
+            for (int i = 0; i < mResults.length(); i++) {
+                results.add(mResults.get(i));
+            }
+            return results;
+        }
+    }
+
+    private static class ScheduledOperation implements Runnable, Comparable<ScheduledOperation> {
+        private final Runnable mRunnable;
+        private final Semaphore mPermits;
+        private final boolean mForeground;
+        private final long mSequence;
+
+        ScheduledOperation(Runnable runnable, Semaphore permits, boolean foreground, long sequence) {
+            mRunnable = runnable;
+            mPermits = permits;
+            mForeground = foreground;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            if (mPermits == null) {
+                mRunnable.run();
+                return;
+            }
+            // may briefly wait for the helpers of another operation to finish
+            mPermits.acquireUninterruptibly();
+            try {
+                mRunnable.run();
+            } finally {
+                mPermits.release();
+            }
+        }
+
+        @Override
+        public int compareTo(@NonNull ScheduledOperation other) {
+            if (mForeground != other.mForeground) {
+                return mForeground ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+}
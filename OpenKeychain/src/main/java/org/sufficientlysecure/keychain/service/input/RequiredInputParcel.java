@@ -307,6 +307,43 @@ public class RequiredInputParcel implements Parcelable {
 
     }
 
+    public static class SecurityTokenDecryptOperationsBuilder {
+        ArrayList<byte[]> mEncryptedSessionKeys = new ArrayList<>();
+        long mMasterKeyId;
+        long mSubKeyId;
+
+        public SecurityTokenDecryptOperationsBuilder(long masterKeyId, long subKeyId) {
+            mMasterKeyId = masterKeyId;
+            mSubKeyId = subKeyId;
+        }
+
+        public RequiredInputParcel build() {
+            byte[][] encryptedSessionKeys = new byte[mEncryptedSessionKeys.size()][];
+            mEncryptedSessionKeys.toArray(encryptedSessionKeys);
+
+            return new RequiredInputParcel(RequiredInputType.SECURITY_TOKEN_DECRYPT,
+                    encryptedSessionKeys, null, null, mMasterKeyId, mSubKeyId);
+        }
+
+        public boolean canAdd(RequiredInputParcel input) {
+            return input.mType == RequiredInputType.SECURITY_TOKEN_DECRYPT
+                    && input.getSubKeyId() == mSubKeyId;
+        }
+
+        public void addAll(RequiredInputParcel input) {
+            if (!canAdd(input)) {
+                throw new AssertionError("operation types and keys must match, this is a programming error!");
+            }
+
+            Collections.addAll(mEncryptedSessionKeys, input.mInputData);
+        }
+
+        public boolean isEmpty() {
+            return mEncryptedSessionKeys.isEmpty();
+        }
+
+    }
+
     public static class SecurityTokenKeyToCardOperationsBuilder {
         ArrayList<byte[]> mSubkeysToExport = new ArrayList<>();
         Long mMasterKeyId;
@@ -402,6 +402,15 @@ public class ImportKeysActivity extends BaseActivity implements ImportKeysListen
         mOpHelper.cryptoOperation();
     }
 
+    @Override
+    public void importKeysFromFile(Uri dataUri) {
+        // the import reads the file itself, which works for files of any size
+        ImportKeyringParcel inputParcel = ImportKeyringParcel.createFromUri(dataUri);
+        ImportKeysOperationCallback callback = new ImportKeysOperationCallback(this, inputParcel, null);
+        mOpHelper = new CryptoOperationHelper<>(1, this, callback, R.string.progress_importing);
+        mOpHelper.cryptoOperation();
+    }
+
     @Override
     public void handleResult(ImportKeyResult result, Integer position) {
         String intentAction = getIntent().getAction();
@@ -166,7 +166,12 @@ public class ImportKeysListFragment extends Fragment implements
         mBinding.basic.importKeys.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View view) {
-                mListener.importKeys(mAdapter.getEntries());
+                // all keys of a file are imported by reading it again, rather than caching them
+                if (mLoaderState instanceof BytesLoaderState && ((BytesLoaderState) mLoaderState).mDataUri != null) {
+                    mListener.importKeysFromFile(((BytesLoaderState) mLoaderState).mDataUri);
+                } else {
+                    mListener.importKeys(mAdapter.getEntries());
+                }
             }
         });
         mBinding.basic.listKeys.setOnClickListener(new OnClickListener() {
@@ -300,6 +300,8 @@ public class CryptoOperationHelper<T extends Parcelable, S extends OperationResu
 
         intent.putExtra(KeychainService.EXTRA_OPERATION_INPUT, operationInput);
         intent.putExtra(KeychainService.EXTRA_CRYPTO_INPUT, cryptoInput);
+        // with a progress dialog, the user has to wait for the operation
+        intent.putExtra(KeychainService.EXTRA_FOREGROUND, mProgressMessageResource != null);
 
         ServiceProgressHandler saveHandler = new ServiceProgressHandler(activity) {
             @Override
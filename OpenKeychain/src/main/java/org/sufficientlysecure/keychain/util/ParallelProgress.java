@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import org.sufficientlysecure.keychain.pgp.Progressable;
+
+
+/**
+ * Combines the progress of several operations which run in parallel into a
+ * single progress, in the same way ProgressScaler does for sequential ones.
+ * Each operation gets its own slot, all of which are weighted equally.
+ */
+public class ParallelProgress {
+
+    private static final int SLOT_MAX = 100;
+
+    private final Progressable mWrapped;
+    private final int[] mSlotProgress;
+    private int mTotalProgress;
+
+    public ParallelProgress(Progressable wrapped, int numSlots) {
+        mWrapped = wrapped;
+        mSlotProgress = new int[numSlots];
+    }
+
+    public Progressable getProgressable(final int slot) {
+        return new Progressable() {
+            @Override
+            public void setProgress(String message, int current, int total) {
+                int progress = updateSlot(slot, current, total);
+                if (mWrapped != null) {
+                    mWrapped.setProgress(message, progress, getMax());
+                }
+            }
+
+            @Override
+            public void setProgress(int resourceId, int current, int total) {
+                int progress = updateSlot(slot, current, total);
+                if (mWrapped != null) {
+                    mWrapped.setProgress(resourceId, progress, getMax());
+                }
+            }
+
+            @Override
+            public void setProgress(int current, int total) {
+                int progress = updateSlot(slot, current, total);
+                if (mWrapped != null) {
+                    mWrapped.setProgress(progress, getMax());
+                }
+            }
+
+            @Override
+            public void setPreventCancel() {
+                if (mWrapped != null) {
+                    mWrapped.setPreventCancel();
+                }
+            }
+        };
+    }
+
+    private int getMax() {
+        return mSlotProgress.length * SLOT_MAX;
+    }
+
+    private synchronized int updateSlot(int slot, int current, int total) {
+        int slotProgress = total > 0 ? Math.min(SLOT_MAX, SLOT_MAX * current / total) : 0;
+        mTotalProgress += slotProgress - mSlotProgress[slot];
+        mSlotProgress[slot] = slotProgress;
+        return mTotalProgress;
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.support.annotation.NonNull;
+
+
+/**
+ * An OutputStream which keeps data in memory up to a threshold, and moves it
+ * into a temporary file in the given directory beyond that. Once closed, the
+ * written data can be read back with {@link #getInputStream()}.
+ * <p/>
+ * This is used where data must be processed twice, but may be arbitrarily large.
+ * Callers must {@link #delete()} the buffer when done.
+ */
+public class SpillOverBuffer extends OutputStream {
+
+    private final File mSpillDirectory;
+    private final int mMemoryThreshold;
+
+    private ByteArrayOutputStream mMemoryOut;
+    private File mSpillFile;
+    private OutputStream mFileOut;
+    private long mSize;
+
+    public SpillOverBuffer(File spillDirectory, int memoryThreshold) {
+        mSpillDirectory = spillDirectory;
+        mMemoryThreshold = memoryThreshold;
+        mMemoryOut = new ByteArrayOutputStream();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+        if (mFileOut == null && mMemoryOut.size() + len > mMemoryThreshold) {
+            mSpillFile = File.createTempFile("spill", null, mSpillDirectory);
+            mFileOut = new BufferedOutputStream(new FileOutputStream(mSpillFile), StreamBufferPool.BUFFER_SIZE);
+            mMemoryOut.writeTo(mFileOut);
+            mMemoryOut = null;
+        }
+
+        if (mFileOut != null) {
+            mFileOut.write(b, off, len);
+        } else {
+            mMemoryOut.write(b, off, len);
+        }
+        mSize += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mFileOut != null) {
+            mFileOut.close();
+        }
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    public boolean isSpilled() {
+        return mSpillFile != null;
+    }
+
+    /** Returns a stream of the data written so far. The buffer must be closed before calling this. */
+    public InputStream getInputStream() throws IOException {
+        if (mSpillFile != null) {
+            return new BufferedInputStream(new FileInputStream(mSpillFile), StreamBufferPool.BUFFER_SIZE);
+        }
+        return new ByteArrayInputStream(mMemoryOut.toByteArray());
+    }
+
+    public void delete() {
+        try {
+            close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+        if (mSpillFile != null) {
+            // noinspection ResultOfMethodCallIgnored
+            mSpillFile.delete();
+            mSpillFile = null;
+        }
+        mMemoryOut = null;
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+
+/**
+ * A small, fixed size pool of copy buffers for the stream loops of crypto operations.
+ * <p/>
+ * Bouncy Castle's streams all work on byte arrays, so these are plain heap arrays
+ * rather than direct buffers. Buffers may contain plaintext, so they are wiped when
+ * they are returned to the pool. If the pool is exhausted, a fresh buffer is handed
+ * out, and if it is full, recycled buffers are simply dropped.
+ */
+public class StreamBufferPool {
+
+    public static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    private static final ArrayBlockingQueue<byte[]> sPool = new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+
+    private StreamBufferPool() {
+    }
+
+    public static byte[] obtain() {
+        byte[] buffer = sPool.poll();
+        if (buffer == null) {
+            buffer = new byte[BUFFER_SIZE];
+        }
+        return buffer;
+    }
+
+    public static void recycle(byte[] buffer) {
+        if (buffer == null || buffer.length != BUFFER_SIZE) {
+            return;
+        }
+        Arrays.fill(buffer, (byte) 0);
+        sPool.offer(buffer);
+    }
+
+}
@@ -1,8 +1,17 @@
 package org.sufficientlysecure.keychain;
 
+import java.lang.reflect.Method;
+
 import org.junit.runners.model.InitializationError;
+import org.robolectric.DefaultTestLifecycle;
 import org.robolectric.RobolectricTestRunner;
+import org.robolectric.TestLifecycle;
 import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.network.OkHttpClientFactory;
+import org.sufficientlysecure.keychain.provider.KeyRingCache;
+import org.sufficientlysecure.keychain.provider.LocalPublicKeyStorage;
+import org.sufficientlysecure.keychain.provider.SubKeyIdIndex;
+import org.sufficientlysecure.keychain.remote.CallerPermissionCache;
 
 public class KeychainTestRunner extends RobolectricTestRunner {
 
@@ -17,4 +26,22 @@ public class KeychainTestRunner extends RobolectricTestRunner {
                 .setConstants(WorkaroundBuildConfig.class)
                 .build();
     }
+
+    @Override
+    protected Class<? extends TestLifecycle> getTestLifecycleClass() {
+        return KeychainTestLifecycle.class;
+    }
+
+    /** Each test gets a fresh application, so process-wide instances bound to the last one are dropped. */
+    public static class KeychainTestLifecycle extends DefaultTestLifecycle {
+        @Override
+        public void afterTest(Method method) {
+            KeyRingCache.resetInstance();
+            SubKeyIdIndex.resetInstance();
+            LocalPublicKeyStorage.resetInstance();
+            CallerPermissionCache.resetInstance();
+            OkHttpClientFactory.reset();
+            super.afterTest(method);
+        }
+    }
 }
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.io.StringReader;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+
+@RunWith(KeychainTestRunner.class)
+public class HkpIndexParserTest {
+
+    private static final String INDEX = "info:1:3\n"
+            + "pub:0123456789ABCDEF0123456789ABCDEF01234567:1:2048:1400000000::\n"
+            + "uid:Alice <alice@example.com>:1400000000::\n"
+            + "uid:Universit%C3%A4t <alice@example.org>:1400000000::\n"
+            + "pub:123:1:2048:1400000000::\n"
+            + "uid:Broken <broken@example.com>:1400000000::\n"
+            + "pub:FEDCBA9876543210:17:1024:1300000000::r\n"
+            + "uid:Bob <bob@example.com>:1300000000::\n";
+
+    @Test
+    public void testParseIndex() throws Exception {
+        HkpIndexParser parser = new HkpIndexParser(new StringReader(INDEX), "example", null);
+
+        ImportKeysListEntry alice = parser.next();
+        Assert.assertNotNull(alice);
+        Assert.assertEquals("0x89abcdef01234567", alice.getKeyIdHex());
+        Assert.assertEquals(2, alice.getUserIds().size());
+        Assert.assertEquals("Universität <alice@example.org>", alice.getUserIds().get(1));
+        Assert.assertFalse(alice.isRevoked());
+
+        // the entry with a bad key id is skipped
+        ImportKeysListEntry bob = parser.next();
+        Assert.assertNotNull(bob);
+        Assert.assertEquals("0xfedcba9876543210", bob.getKeyIdHex());
+        Assert.assertTrue(bob.isRevoked());
+
+        Assert.assertNull(parser.next());
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Cache;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.keyimport.HkpKeyserverClient.PendingGet;
+import org.sufficientlysecure.keychain.keyimport.KeyserverClient.QueryFailedException;
+import org.sufficientlysecure.keychain.keyimport.KeyserverClient.QueryNotFoundException;
+import org.sufficientlysecure.keychain.network.OkHttpClientFactory;
+import org.sufficientlysecure.keychain.util.ParcelableProxy;
+
+
+@RunWith(KeychainTestRunner.class)
+public class HkpKeyserverClientTest {
+
+    private LocalKeyserver mKeyserver;
+    private HkpKeyserverClient mClient;
+
+    @Before
+    public void setUp() throws Exception {
+        mKeyserver = new LocalKeyserver();
+        mClient = HkpKeyserverClient.fromHkpKeyserverAddress(mKeyserver.getAddress());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mKeyserver.close();
+    }
+
+    @Test
+    public void testConcurrentGetsCompletingOutOfOrder() throws Exception {
+        int count = 4;
+        ArrayList<CountDownLatch> holds = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            mKeyserver.putKey(keyId(i), armoredKey(i));
+            holds.add(mKeyserver.holdResponse(keyId(i)));
+        }
+        CountDownLatch arrivals = mKeyserver.expectRequests(count);
+
+        List<PendingGet> pendingGets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            pendingGets.add(mClient.getAsync(keyId(i), ParcelableProxy.getForNoProxy()));
+        }
+
+        // no response has been sent yet, so all requests must be in flight at once
+        Assert.assertTrue("all gets should be in flight at the same time", arrivals.await(10, TimeUnit.SECONDS));
+
+        // answer the last request first
+        for (int i = count - 1; i >= 0; i--) {
+            holds.get(i).countDown();
+        }
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals("each get should return its own key", armoredKey(i), pendingGets.get(i).get());
+        }
+    }
+
+    @Test
+    public void testRepeatedGetIsRevalidated() throws Exception {
+        mKeyserver.putKey(keyId(1), armoredKey(1));
+        Cache httpCache = OkHttpClientFactory.getHttpCache();
+        Assert.assertNotNull("application must set up the http cache", httpCache);
+
+        Assert.assertEquals(armoredKey(1), mClient.get(keyId(1), ParcelableProxy.getForNoProxy()));
+        Assert.assertEquals("second get should return the cached key",
+                armoredKey(1), mClient.get(keyId(1), ParcelableProxy.getForNoProxy()));
+
+        Assert.assertEquals("second get should be a conditional request, answered with 304",
+                Arrays.asList(200, 304), mKeyserver.getResponseCodes());
+        Assert.assertEquals("both gets should go to the network", 2, httpCache.networkCount());
+        Assert.assertEquals("second get should count as a cache hit", 1, httpCache.hitCount());
+    }
+
+    @Test
+    public void testGetAsyncNotFound() throws Exception {
+        PendingGet pendingGet = mClient.getAsync(keyId(7), ParcelableProxy.getForNoProxy());
+        try {
+            pendingGet.get();
+            Assert.fail("missing key should not be found");
+        } catch (QueryNotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCancelPendingGet() throws Exception {
+        mKeyserver.putKey(keyId(1), armoredKey(1));
+        mKeyserver.putKey(keyId(2), armoredKey(2));
+        CountDownLatch hold = mKeyserver.holdResponse(keyId(1));
+        CountDownLatch arrivals = mKeyserver.expectRequests(1);
+
+        PendingGet cancelled = mClient.getAsync(keyId(1), ParcelableProxy.getForNoProxy());
+        Assert.assertTrue(arrivals.await(10, TimeUnit.SECONDS));
+        cancelled.cancel();
+
+        try {
+            cancelled.get();
+            Assert.fail("cancelled get should fail");
+        } catch (QueryNotFoundException e) {
+            Assert.fail("cancelled get should not be reported as not found");
+        } catch (QueryFailedException e) {
+            // expected
+        }
+
+        // the server only notices once it tries to answer
+        hold.countDown();
+        Assert.assertEquals("other gets should not be affected",
+                armoredKey(2), mClient.getAsync(keyId(2), ParcelableProxy.getForNoProxy()).get());
+        for (int i = 0; i < 100 && mKeyserver.getAbortedRequests() == 0; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("cancelled request should not be answered", 1, mKeyserver.getAbortedRequests());
+    }
+
+    private static String keyId(int i) {
+        return String.format("0x%016x", 0x1000L + i);
+    }
+
+    private static String armoredKey(int i) {
+        return "-----BEGIN PGP PUBLIC KEY BLOCK-----\n\nkey " + i + "\n-----END PGP PUBLIC KEY BLOCK-----";
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+
+@RunWith(KeychainTestRunner.class)
+public class ImportKeysListTest {
+
+    @Test
+    public void testDupesAreMergedByFingerprint() throws Exception {
+        ImportKeysList list = new ImportKeysList(2);
+
+        list.addAll(Arrays.asList(
+                createEntry(1, "Alice <alice@example.com>"), createEntry(2, "Bob <bob@example.com>")));
+        ImportKeysListEntry revokedAlice = createEntry(1, "Alice <alice@example.org>");
+        revokedAlice.setRevoked(true);
+        list.add(revokedAlice);
+
+        ArrayList<ImportKeysListEntry> snapshot = list.snapshot();
+        Assert.assertEquals(2, snapshot.size());
+        Assert.assertTrue("revocation must be merged", snapshot.get(0).isRevoked());
+        Assert.assertEquals(2, snapshot.get(0).getUserIds().size());
+    }
+
+    @Test
+    public void testSnapshotIsNotAffectedByMerges() throws Exception {
+        ImportKeysList list = new ImportKeysList(2);
+        list.add(createEntry(1, "Alice <alice@example.com>"));
+
+        ArrayList<ImportKeysListEntry> snapshot = list.snapshot();
+        ImportKeysListEntry revokedAlice = createEntry(1, "Alice <alice@example.org>");
+        revokedAlice.setRevoked(true);
+        list.add(revokedAlice);
+
+        Assert.assertFalse("merges must not reach earlier snapshots", snapshot.get(0).isRevoked());
+        Assert.assertEquals(1, snapshot.get(0).getUserIds().size());
+        Assert.assertTrue(list.snapshot().get(0).isRevoked());
+    }
+
+    @Test
+    public void testAwaitFinishedAdding() throws Exception {
+        ImportKeysList list = new ImportKeysList(2);
+        list.finishedAdding();
+        Assert.assertFalse(list.awaitFinishedAdding(10));
+
+        list.finishedAdding();
+        Assert.assertTrue(list.awaitFinishedAdding(10));
+    }
+
+    private static ImportKeysListEntry createEntry(int fingerprintByte, String userId) {
+        byte[] fingerprint = new byte[20];
+        Arrays.fill(fingerprint, (byte) fingerprintByte);
+
+        ImportKeysListEntry entry = new ImportKeysListEntry();
+        entry.setFingerprint(fingerprint);
+        entry.setUserIds(new ArrayList<>(Arrays.asList(userId)));
+        entry.setPrimaryUserId(userId);
+        return entry;
+    }
+
+}
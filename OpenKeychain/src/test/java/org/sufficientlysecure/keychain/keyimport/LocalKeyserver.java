@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A minimal HKP keyserver on localhost, which answers key lookups with canned responses. Each
+ * connection is served on a thread of its own, and responses may be held back until a latch
+ * is released, so tests can control the order in which concurrent requests complete. Keys are
+ * served with an ETag, and conditional requests for an unchanged key are answered with 304.
+ */
+public class LocalKeyserver implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("utf-8");
+    private static final long MAX_HOLD_SECONDS = 10;
+
+    private final ServerSocket mServerSocket;
+    private final Map<String, String> mKeys = new ConcurrentHashMap<>();
+    private final Map<String, CountDownLatch> mHolds = new ConcurrentHashMap<>();
+    private final List<String> mRequestedSearches = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Integer> mResponseCodes = Collections.synchronizedList(new ArrayList<Integer>());
+    private final AtomicInteger mAbortedRequests = new AtomicInteger();
+    private volatile CountDownLatch mArrivals = new CountDownLatch(0);
+
+    public LocalKeyserver() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "LocalKeyserver");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public HkpKeyserverAddress getAddress() {
+        return HkpKeyserverAddress.createFromUri("http://127.0.0.1:" + mServerSocket.getLocalPort());
+    }
+
+    /** Serves the given armored key for lookups of the search term, everything else is not found. */
+    public void putKey(String search, String armoredKey) {
+        mKeys.put(search.toLowerCase(), armoredKey);
+    }
+
+    /** Holds back the response for the search term until the returned latch is counted down. */
+    public CountDownLatch holdResponse(String search) {
+        CountDownLatch hold = new CountDownLatch(1);
+        mHolds.put(search.toLowerCase(), hold);
+        return hold;
+    }
+
+    /** Returns a latch which is counted down as each of the next count requests arrives. */
+    public CountDownLatch expectRequests(int count) {
+        mArrivals = new CountDownLatch(count);
+        return mArrivals;
+    }
+
+    /** Returns the search terms of all requests, in the order they arrived. */
+    public List<String> getRequestedSearches() {
+        synchronized (mRequestedSearches) {
+            return new ArrayList<>(mRequestedSearches);
+        }
+    }
+
+    /** Returns the status codes of all responses, in the order they were sent. */
+    public List<Integer> getResponseCodes() {
+        synchronized (mResponseCodes) {
+            return new ArrayList<>(mResponseCodes);
+        }
+    }
+
+    /** Returns the number of requests whose connection was closed before they were answered. */
+    public int getAbortedRequests() {
+        return mAbortedRequests.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mServerSocket.close();
+        for (CountDownLatch hold : mHolds.values()) {
+            hold.countDown();
+        }
+    }
+
+    private void acceptConnections() {
+        try {
+            while (true) {
+                final Socket socket = mServerSocket.accept();
+                Thread connectionThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serveConnection(socket);
+                    }
+                }, "LocalKeyserverConnection");
+                connectionThread.setDaemon(true);
+                connectionThread.start();
+            }
+        } catch (IOException e) {
+            // server socket was closed
+        }
+    }
+
+    private void serveConnection(Socket socket) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8));
+            OutputStream out = socket.getOutputStream();
+
+            // connections are kept alive, so serve requests until the client closes it
+            String requestLine;
+            while ((requestLine = in.readLine()) != null) {
+                String ifNoneMatch = null;
+                String header;
+                do {
+                    header = in.readLine();
+                    if (header != null && header.toLowerCase().startsWith("if-none-match:")) {
+                        ifNoneMatch = header.substring("if-none-match:".length()).trim();
+                    }
+                } while (header != null && !header.isEmpty());
+
+                String search = getSearchParameter(requestLine);
+                mRequestedSearches.add(search);
+                mArrivals.countDown();
+
+                CountDownLatch hold = search != null ? mHolds.get(search) : null;
+                if (hold != null && !hold.await(MAX_HOLD_SECONDS, TimeUnit.SECONDS)) {
+                    throw new IOException("response held back for too long");
+                }
+
+                String key = search != null ? mKeys.get(search) : null;
+                if (isClosedByClient(socket)) {
+                    mAbortedRequests.incrementAndGet();
+                    return;
+                }
+                if (key == null) {
+                    writeResponse(out, 404, null, "Not Found");
+                } else if (getETag(key).equals(ifNoneMatch)) {
+                    writeResponse(out, 304, getETag(key), null);
+                } else {
+                    writeResponse(out, 200, getETag(key), key);
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // connection closed
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    private static boolean isClosedByClient(Socket socket) {
+        // a client which cancels its call closes the connection, which shows as end of stream.
+        // clients don't send another request before the previous one is answered, so nothing
+        // of the next request is consumed here.
+        try {
+            socket.setSoTimeout(1);
+            try {
+                return socket.getInputStream().read() == -1;
+            } finally {
+                socket.setSoTimeout(0);
+            }
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private static String getSearchParameter(String requestLine) throws IOException {
+        // e.g. GET /pks/lookup?op=get&options=mr&search=0x1234 HTTP/1.1
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 2 || !parts[1].contains("?")) {
+            return null;
+        }
+        for (String parameter : parts[1].substring(parts[1].indexOf('?') + 1).split("&")) {
+            if (parameter.startsWith("search=")) {
+                return URLDecoder.decode(parameter.substring("search=".length()), "UTF-8").toLowerCase();
+            }
+        }
+        return null;
+    }
+
+    private static String getETag(String key) {
+        return "\"" + Integer.toHexString(key.hashCode()) + "\"";
+    }
+
+    private void writeResponse(OutputStream out, int code, String eTag, String body) throws IOException {
+        mResponseCodes.add(code);
+
+        StringBuilder head = new StringBuilder("HTTP/1.1 ").append(code).append(' ')
+                .append(code == 200 ? "OK" : code == 304 ? "Not Modified" : "Not Found").append("\r\n");
+        if (eTag != null) {
+            head.append("ETag: ").append(eTag).append("\r\n");
+        }
+        // a 304 has no body
+        byte[] bodyBytes = body != null ? body.getBytes(UTF_8) : null;
+        if (bodyBytes != null) {
+            head.append("Content-Type: text/plain; charset=utf-8\r\n")
+                    .append("Content-Length: ").append(bodyBytes.length).append("\r\n");
+        }
+        head.append("\r\n");
+
+        out.write(head.toString().getBytes(UTF_8));
+        if (bodyBytes != null) {
+            out.write(bodyBytes);
+        }
+        out.flush();
+    }
+
+}
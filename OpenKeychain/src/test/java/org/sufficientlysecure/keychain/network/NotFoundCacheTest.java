@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.network;
+
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.shadows.ShadowSystemClock;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+
+@RunWith(KeychainTestRunner.class)
+public class NotFoundCacheTest {
+
+    @Test
+    public void testNotFoundExpires() throws Exception {
+        NotFoundCache cache = new NotFoundCache(10, 1000);
+
+        Assert.assertFalse(cache.isNotFound("https://example.com/a"));
+        cache.putNotFound("https://example.com/a");
+        Assert.assertTrue(cache.isNotFound("https://example.com/a"));
+        Assert.assertFalse(cache.isNotFound("https://example.com/b"));
+
+        ShadowSystemClock.sleep(1001);
+        Assert.assertFalse("entry must expire", cache.isNotFound("https://example.com/a"));
+
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(3, cache.getMissCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        NotFoundCache cache = new NotFoundCache(2, 100000);
+
+        cache.putNotFound("a");
+        cache.putNotFound("b");
+        Assert.assertTrue(cache.isNotFound("a"));
+        cache.putNotFound("c");
+
+        Assert.assertTrue(cache.isNotFound("a"));
+        Assert.assertFalse("least recently used entry must be evicted", cache.isNotFound("b"));
+        Assert.assertTrue(cache.isNotFound("c"));
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.network;
+
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+
+import okhttp3.OkHttpClient;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class OkHttpClientFactoryTest {
+
+    @Test
+    public void testClientsAreReused() throws Exception {
+        URL url = new URL("https://keyserver.example.com/pks/lookup");
+
+        OkHttpClient client = OkHttpClientFactory.getClientPinnedIfAvailable(url, null);
+        Assert.assertSame("clients for the same settings must be reused",
+                client, OkHttpClientFactory.getClientPinnedIfAvailable(url, null));
+        Assert.assertNotSame("clients with different redirect policies must differ",
+                client, OkHttpClientFactory.getClientPinnedIfAvailableWithRedirects(url, null));
+    }
+
+    @Test
+    public void testClientsShareConnectionPool() throws Exception {
+        URL url = new URL("https://keyserver.example.com/pks/lookup");
+        Proxy proxy = new Proxy(Proxy.Type.SOCKS, InetSocketAddress.createUnresolved("127.0.0.1", 9050));
+
+        OkHttpClient directClient = OkHttpClientFactory.getClientPinnedIfAvailable(url, null);
+        OkHttpClient proxyClient = OkHttpClientFactory.getClientPinnedIfAvailable(url, proxy);
+
+        Assert.assertNotSame(directClient, proxyClient);
+        Assert.assertSame("proxied and direct clients must share the connection pool",
+                directClient.connectionPool(), proxyClient.connectionPool());
+        Assert.assertSame("all clients must share the connection pool",
+                directClient.connectionPool(), OkHttpClientFactory.getSimpleClient().connectionPool());
+        Assert.assertSame("clients for an equal proxy must be reused", proxyClient,
+                OkHttpClientFactory.getClientPinnedIfAvailable(url,
+                        new Proxy(Proxy.Type.SOCKS, InetSocketAddress.createUnresolved("127.0.0.1", 9050))));
+    }
+
+}
@@ -20,17 +20,20 @@ package org.sufficientlysecure.keychain.operations;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.security.Security;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 
 import android.app.Application;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.net.Uri;
+import android.support.annotation.NonNull;
 
 import org.bouncycastle.bcpg.sig.KeyFlags;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
@@ -71,6 +74,7 @@ import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -239,6 +243,24 @@ public class BackupOperationTest {
 
     }
 
+    @Test
+    public void testExportWithoutLocalSignatures_shouldExportStoredData() throws Exception {
+        KeyWritableRepository keyRepository = KeyWritableRepository.create(RuntimeEnvironment.application);
+        BackupOperation op = new BackupOperation(RuntimeEnvironment.application, keyRepository, null);
+
+        assertFalse("first keyring has no local signatures", mStaticRing1.hasLocalSignatures());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean result = op.exportKeysToStream(
+                new OperationLog(), new long[] { mStaticRing1.getMasterKeyId() }, false, true, out, null);
+
+        assertTrue("export must be a success", result);
+
+        UncachedKeyRing ring = UncachedKeyRing.decodeFromData(out.toByteArray());
+        Assert.assertArrayEquals("exported keyring must be the stored one",
+                keyRepository.loadPublicKeyRingData(mStaticRing1.getMasterKeyId()), ring.getEncoded());
+    }
+
     @Test
     public void testExportWithExtraHeaders() throws Exception {
         BackupOperation op = new BackupOperation(RuntimeEnvironment.application,
@@ -301,17 +323,9 @@ public class BackupOperationTest {
         Application spyApplication;
         ContentResolver mockResolver = mock(ContentResolver.class);
 
-        Uri fakePipedUri, fakeOutputUri;
+        Uri fakeOutputUri;
         ByteArrayOutputStream outStream; {
 
-            fakePipedUri = Uri.parse("content://fake/pipe/1");
-            PipedInputStream pipedInStream = new PipedInputStream(8192);
-            PipedOutputStream pipedOutStream = new PipedOutputStream(pipedInStream);
-            when(mockResolver.openOutputStream(fakePipedUri)).thenReturn(pipedOutStream);
-            when(mockResolver.openInputStream(fakePipedUri)).thenReturn(pipedInStream);
-            when(mockResolver.insert(eq(TemporaryFileProvider.CONTENT_URI), any(ContentValues.class)))
-                    .thenReturn(fakePipedUri);
-
             fakeOutputUri = Uri.parse("content://fake/out/1");
             outStream = new ByteArrayOutputStream();
             when(mockResolver.openOutputStream(fakeOutputUri)).thenReturn(outStream);
@@ -331,8 +345,7 @@ public class BackupOperationTest {
             CryptoInputParcel inputParcel = CryptoInputParcel.createCryptoInputParcel(passphrase);
             ExportResult result = op.execute(parcel, inputParcel);
 
-            verify(mockResolver).openOutputStream(fakePipedUri);
-            verify(mockResolver).openInputStream(fakePipedUri);
+            verify(mockResolver, never()).insert(eq(TemporaryFileProvider.CONTENT_URI), any(ContentValues.class));
             verify(mockResolver).openOutputStream(fakeOutputUri);
 
             assertTrue("export must succeed", result.success());
@@ -393,6 +406,47 @@ public class BackupOperationTest {
 
     }
 
+    @Test
+    public void testExportEncryptedFailingPartway() throws Exception {
+        // the export writes some of the key data, then fails
+        BackupOperation op = new BackupOperation(RuntimeEnvironment.application,
+                KeyWritableRepository.create(RuntimeEnvironment.application), null) {
+            @Override
+            boolean exportKeysToStream(OperationLog log, long[] masterKeyIds, boolean exportSecret,
+                    boolean exportPublic, OutputStream outStream, List<String> extraSecretKeyHeaders) {
+                return super.exportKeysToStream(log, masterKeyIds, exportSecret, exportPublic,
+                        new FilterOutputStream(outStream) {
+                            @Override
+                            public void write(@NonNull byte[] buffer, int offset, int count) throws IOException {
+                                out.write(buffer, offset, count / 2);
+                                throw new IOException("fake write error");
+                            }
+                        }, extraSecretKeyHeaders);
+            }
+        };
+
+        Passphrase passphrase = new Passphrase("abcde");
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+
+        BackupKeyringParcel parcel = BackupKeyringParcel.create(
+                new long[] { mStaticRing1.getMasterKeyId() }, false, true, true, null);
+        ExportResult result = op.execute(parcel, CryptoInputParcel.createCryptoInputParcel(passphrase), outStream);
+
+        assertFalse("export must fail", result.success());
+        Assert.assertTrue("should contain io error log entry",
+                result.getLog().containsType(LogType.MSG_BACKUP_ERROR_IO));
+
+        PgpDecryptVerifyOperation decryptOp = new PgpDecryptVerifyOperation(RuntimeEnvironment.application,
+                KeyWritableRepository.create(RuntimeEnvironment.application), null);
+        PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder()
+                .setAllowSymmetricDecryption(true)
+                .setInputBytes(outStream.toByteArray())
+                .build();
+        DecryptVerifyResult decryptResult =
+                decryptOp.execute(input, CryptoInputParcel.createCryptoInputParcel(passphrase));
+        assertFalse("truncated backup must not decrypt", decryptResult.success());
+    }
+
 
     /** This function checks whether or not there are any local signatures in a keyring. */
     private boolean checkForLocal(UncachedKeyRing ring) {
@@ -21,6 +21,7 @@ package org.sufficientlysecure.keychain.operations;
 import java.io.PrintStream;
 import java.security.Security;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Random;
 
@@ -37,6 +38,7 @@ import org.sufficientlysecure.keychain.KeychainTestRunner;
 import org.sufficientlysecure.keychain.operations.results.CertifyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.operations.results.UpdateTrustResult;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
@@ -51,6 +53,8 @@ import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel.SubkeyAdd;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.Preferences;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
 import org.sufficientlysecure.keychain.util.TestingUtils;
 
 @RunWith(KeychainTestRunner.class)
@@ -198,6 +202,76 @@ public class CertifyOperationTest {
     }
 
 
+    @Test
+    public void testUpdateTrustDb() throws Exception {
+        KeyWritableRepository repository = KeyWritableRepository.create(RuntimeEnvironment.application);
+        CertifyOperation op = new CertifyOperation(RuntimeEnvironment.application, repository, null, null);
+
+        CertifyActionsParcel.Builder actions = CertifyActionsParcel.builder(mStaticRing1.getMasterKeyId());
+        actions.addAction(CertifyAction.createForUserIds(mStaticRing2.getMasterKeyId(),
+                mStaticRing2.getPublicKey().getUnorderedUserIds()));
+        CertifyResult certifyResult = op.execute(actions.build(),
+                CryptoInputParcel.createCryptoInputParcel(new Date(), mKeyPhrase1));
+        Assert.assertTrue("certification must succeed", certifyResult.success());
+
+        UncachedKeyRing certifiedRing = repository
+                .getCanonicalizedPublicKeyRing(mStaticRing2.getMasterKeyId()).getUncachedKeyRing();
+
+        // import the certified key while the certifying key is unknown
+        repository.deleteKeyRing(mStaticRing1.getMasterKeyId());
+        repository.deleteKeyRing(mStaticRing2.getMasterKeyId());
+        repository.savePublicKeyRing(certifiedRing);
+        Assert.assertEquals("key must not be verified without the certifying key",
+                Certs.UNVERIFIED, repository.getCanonicalizedPublicKeyRing(mStaticRing2.getMasterKeyId())
+                        .getVerified());
+
+        repository.saveSecretKeyRing(mStaticRing1);
+        Preferences.getPreferences(RuntimeEnvironment.application).setKeySignaturesTableInitialized();
+        UpdateTrustResult result = repository.updateTrustDb(
+                Collections.singletonList(mStaticRing1.getMasterKeyId()), new ProgressScaler());
+
+        Assert.assertTrue("trust update must succeed", result.success());
+        Assert.assertTrue("certificates of the certified key must be updated",
+                result.getLog().containsType(LogType.MSG_TRUST_KEY_CHANGED));
+        Assert.assertEquals("key must be verified after the trust update",
+                Certs.VERIFIED_SECRET, repository.getCanonicalizedPublicKeyRing(mStaticRing2.getMasterKeyId())
+                        .getVerified());
+    }
+
+    @Test
+    public void testUpdateTrustDbAfterDelete() throws Exception {
+        KeyWritableRepository repository = KeyWritableRepository.create(RuntimeEnvironment.application);
+        CertifyOperation op = new CertifyOperation(RuntimeEnvironment.application, repository, null, null);
+
+        CertifyActionsParcel.Builder actions = CertifyActionsParcel.builder(mStaticRing1.getMasterKeyId());
+        actions.addAction(CertifyAction.createForUserIds(mStaticRing2.getMasterKeyId(),
+                mStaticRing2.getPublicKey().getUnorderedUserIds()));
+        CertifyResult certifyResult = op.execute(actions.build(),
+                CryptoInputParcel.createCryptoInputParcel(new Date(), mKeyPhrase1));
+        Assert.assertTrue("certification must succeed", certifyResult.success());
+        Preferences.getPreferences(RuntimeEnvironment.application).setKeySignaturesTableInitialized();
+
+        // deleting the certifying key must revoke trust in its certifications
+        repository.deleteKeyRing(mStaticRing1.getMasterKeyId());
+        UpdateTrustResult result = repository.updateTrustDb(
+                Collections.singletonList(mStaticRing1.getMasterKeyId()), new ProgressScaler());
+
+        Assert.assertTrue("trust update must succeed", result.success());
+        Assert.assertEquals("key must not be verified after the certifying key is deleted",
+                Certs.UNVERIFIED, repository.getCanonicalizedPublicKeyRing(mStaticRing2.getMasterKeyId())
+                        .getVerified());
+
+        // the certification is now tracked as one by an unknown key, and found again on re-import
+        repository.saveSecretKeyRing(mStaticRing1);
+        result = repository.updateTrustDb(
+                Collections.singletonList(mStaticRing1.getMasterKeyId()), new ProgressScaler());
+
+        Assert.assertTrue("trust update must succeed", result.success());
+        Assert.assertEquals("key must be verified again after the certifying key is re-imported",
+                Certs.VERIFIED_SECRET, repository.getCanonicalizedPublicKeyRing(mStaticRing2.getMasterKeyId())
+                        .getVerified());
+    }
+
     @Test
     public void testCertifySelf() throws Exception {
         CertifyOperation op = new CertifyOperation(RuntimeEnvironment.application,
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Date;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.results.DecryptBatchResult;
+import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.DecryptBatchParcel;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptData;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.TestingUtils;
+
+
+@RunWith(KeychainTestRunner.class)
+public class DecryptBatchOperationTest {
+
+    static UncachedKeyRing mStaticRing;
+    static Passphrase mKeyPhrase;
+
+    static PrintStream oldShadowStream;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        oldShadowStream = ShadowLog.stream;
+
+        mKeyPhrase = new Passphrase("RsKrW^raOPcnQ=ZJr-pP");
+        mStaticRing = KeyringTestingHelper.readRingFromResource("/test-keys/encrypt_decrypt_key_1.sec");
+    }
+
+    @Before
+    public void setUp() {
+        KeyWritableRepository databaseInteractor =
+                KeyWritableRepository.create(RuntimeEnvironment.application);
+
+        // don't log verbosely here, we're not here to test imports
+        ShadowLog.stream = oldShadowStream;
+
+        databaseInteractor.saveSecretKeyRing(mStaticRing);
+
+        // ok NOW log verbosely!
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testDecryptBatch() throws Exception {
+        int count = 4;
+        String[] plaintexts = new String[count];
+        ArrayList<PgpDecryptVerifyInputParcel> inputs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            plaintexts[i] = "dies ist plaintext nummer " + i + TestingUtils.genPassphrase(true);
+            inputs.add(PgpDecryptVerifyInputParcel.builder()
+                    .setInputBytes(encrypt(plaintexts[i]))
+                    .build());
+        }
+
+        DecryptBatchOperation op = new DecryptBatchOperation(RuntimeEnvironment.application,
+                KeyWritableRepository.create(RuntimeEnvironment.application), null, null);
+        DecryptBatchResult result = op.execute(DecryptBatchParcel.createDecryptBatchParcel(inputs),
+                CryptoInputParcel.createCryptoInputParcel(mKeyPhrase));
+
+        Assert.assertTrue("batch decryption must succeed", result.success());
+        Assert.assertEquals("batch decryption must return a result for each input",
+                count, result.getResults().size());
+        for (int i = 0; i < count; i++) {
+            DecryptVerifyResult fileResult = result.getResults().get(i);
+            Assert.assertTrue("decryption of each input must succeed", fileResult.success());
+            Assert.assertArrayEquals("results must be in input order, and equal the plaintext",
+                    plaintexts[i].getBytes(), fileResult.getOutputBytes());
+            Assert.assertEquals("only the first input must unlock the key, all others must reuse it",
+                    i > 0, fileResult.getLog().containsType(LogType.MSG_DC_UNLOCKED_SHARED));
+        }
+    }
+
+    @Test
+    public void testDecryptBatchEmpty() throws Exception {
+        DecryptBatchOperation op = new DecryptBatchOperation(RuntimeEnvironment.application,
+                KeyWritableRepository.create(RuntimeEnvironment.application), null, null);
+        DecryptBatchResult result = op.execute(
+                DecryptBatchParcel.createDecryptBatchParcel(new ArrayList<PgpDecryptVerifyInputParcel>()),
+                CryptoInputParcel.createCryptoInputParcel());
+
+        Assert.assertFalse("batch decryption without input must fail", result.success());
+        Assert.assertTrue(result.getLog().containsType(LogType.MSG_DB_ERROR_NO_INPUT));
+    }
+
+    private byte[] encrypt(String plaintext) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                KeyWritableRepository.create(RuntimeEnvironment.application), null);
+
+        InputData data = new InputData(in, in.available());
+
+        PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+        pgpData.setEncryptionMasterKeyIds(new long[] { mStaticRing.getMasterKeyId() });
+        pgpData.setSymmetricEncryptionAlgorithm(
+                PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags.AES_128);
+
+        PgpSignEncryptResult result = op.execute(pgpData.build(),
+                CryptoInputParcel.createCryptoInputParcel(new Date()), data, out);
+        Assert.assertTrue("encryption must succeed", result.success());
+
+        return out.toByteArray();
+    }
+
+}
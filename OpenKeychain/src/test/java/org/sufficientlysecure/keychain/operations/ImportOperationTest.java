@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Scanner;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.app.Application;
+import android.content.ContentResolver;
+import android.net.Uri;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.keyimport.LocalKeyserver;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
+import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.ParcelableProxy;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+
+@RunWith(KeychainTestRunner.class)
+public class ImportOperationTest {
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testImportInOrder() throws Exception {
+        UncachedKeyRing pubkey = readRingFromResource("/test-keys/symantec_public.asc");
+        UncachedKeyRing seckey = readRingFromResource("/test-keys/symantec_secret.asc");
+        UncachedKeyRing other = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+
+        // the secret key lacks self certificates, so it can only be imported after its public key.
+        // both are prepared concurrently, but the import must behave as if done one after another.
+        ArrayList<ParcelableKeyRing> entries = new ArrayList<>();
+        entries.add(ParcelableKeyRing.createFromEncodedBytes(pubkey.getEncoded()));
+        entries.add(ParcelableKeyRing.createFromEncodedBytes(other.getEncoded()));
+        entries.add(ParcelableKeyRing.createFromEncodedBytes(seckey.getEncoded()));
+        entries.add(ParcelableKeyRing.createFromEncodedBytes(new byte[] { 1, 2, 3 }));
+
+        KeyWritableRepository keyRepository = KeyWritableRepository.create(RuntimeEnvironment.application);
+        ImportOperation op = new ImportOperation(RuntimeEnvironment.application, keyRepository,
+                new ProgressScaler());
+        ImportKeyResult result = op.importKeyRings(entries.iterator(), entries.size(), null,
+                ParcelableProxy.getForNoProxy(), false);
+
+        Assert.assertEquals("all keys should be imported", 3, result.mNewKeys);
+        Assert.assertEquals("secret key should be imported", 1, result.mSecret);
+        Assert.assertEquals("garbage entry should be reported as bad", 1, result.mBadKeys);
+        Assert.assertArrayEquals("keys should be reported in import order",
+                new long[] { pubkey.getMasterKeyId(), other.getMasterKeyId(), seckey.getMasterKeyId() },
+                result.getImportedMasterKeyIds());
+        Assert.assertTrue("secret key should be imported",
+                keyRepository.getCachedPublicKeyRing(seckey.getMasterKeyId()).hasAnySecret());
+    }
+
+    @Test
+    public void testImportFromStream() throws Exception {
+        UncachedKeyRing pubkey = readRingFromResource("/test-keys/symantec_public.asc");
+        UncachedKeyRing other = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+
+        ByteArrayOutputStream keyFile = new ByteArrayOutputStream();
+        keyFile.write(pubkey.getEncoded());
+        keyFile.write(other.getEncoded());
+
+        ContentResolver mockResolver = mock(ContentResolver.class);
+        Uri fakeInputUri = Uri.parse("content://fake/keys");
+        when(mockResolver.openInputStream(fakeInputUri)).thenReturn(
+                new ByteArrayInputStream(keyFile.toByteArray()));
+        Application spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(mockResolver);
+
+        KeyWritableRepository keyRepository = KeyWritableRepository.create(RuntimeEnvironment.application);
+        ImportOperation op = new ImportOperation(spyApplication, keyRepository, new ProgressScaler());
+        ImportKeyResult result = op.execute(ImportKeyringParcel.createFromUri(fakeInputUri),
+                CryptoInputParcel.createCryptoInputParcel());
+
+        Assert.assertTrue("import from stream should succeed", result.success());
+        Assert.assertEquals("all keys in the stream should be imported", 2, result.mNewKeys);
+        Assert.assertArrayEquals(new long[] { pubkey.getMasterKeyId(), other.getMasterKeyId() },
+                result.getImportedMasterKeyIds());
+        Assert.assertEquals(other.getMasterKeyId(),
+                keyRepository.getCachedPublicKeyRing(other.getMasterKeyId()).getMasterKeyId());
+    }
+
+    @Test
+    public void testImportFromKeyserver() throws Exception {
+        String[] resources = {
+                "/test-keys/symantec_public.asc",
+                "/test-keys/mailvelope_07_no_key_flags.asc",
+                "/test-keys/eddsa-sample-1-pub.asc"
+        };
+        final LocalKeyserver keyserver = new LocalKeyserver();
+        try {
+            ArrayList<ParcelableKeyRing> entries = new ArrayList<>();
+            long[] masterKeyIds = new long[resources.length];
+            for (int i = 0; i < resources.length; i++) {
+                masterKeyIds[i] = readRingFromResource(resources[i]).getMasterKeyId();
+                String keyIdHex = KeyFormattingUtils.convertKeyIdToHex(masterKeyIds[i]);
+                keyserver.putKey(keyIdHex, readResource(resources[i]));
+                entries.add(ParcelableKeyRing.createFromReference(null, keyIdHex, null, null));
+            }
+            entries.add(ParcelableKeyRing.createFromReference(null, "0x0000000000001234", null, null));
+
+            // the first key is only sent once all retrievals are in flight, so it arrives last
+            final CountDownLatch firstKeyHold = keyserver.holdResponse(
+                    KeyFormattingUtils.convertKeyIdToHex(masterKeyIds[0]));
+            final CountDownLatch arrivals = keyserver.expectRequests(entries.size());
+            final AtomicBoolean allInFlight = new AtomicBoolean();
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        allInFlight.set(arrivals.await(10, TimeUnit.SECONDS));
+                    } catch (InterruptedException e) {
+                        // fall through, the key is released either way
+                    }
+                    firstKeyHold.countDown();
+                }
+            }).start();
+
+            KeyWritableRepository keyRepository = KeyWritableRepository.create(RuntimeEnvironment.application);
+            ImportOperation op = new ImportOperation(RuntimeEnvironment.application, keyRepository,
+                    new ProgressScaler());
+            ImportKeyResult result = op.importKeyRings(entries.iterator(), entries.size(), keyserver.getAddress(),
+                    ParcelableProxy.getForNoProxy(), false);
+
+            Assert.assertTrue("retrievals should be in flight at the same time", allInFlight.get());
+            Assert.assertEquals("all keys on the keyserver should be imported", 3, result.mNewKeys);
+            Assert.assertEquals("key not on the keyserver should be reported missing", 1, result.mMissingKeys);
+            Assert.assertArrayEquals("keys should be reported in import order", masterKeyIds,
+                    result.getImportedMasterKeyIds());
+            Assert.assertEquals("each key should be retrieved once", entries.size(),
+                    keyserver.getRequestedSearches().size());
+        } finally {
+            keyserver.close();
+        }
+    }
+
+    private String readResource(String name) {
+        Scanner scanner = new Scanner(ImportOperationTest.class.getResourceAsStream(name), "UTF-8");
+        try {
+            return scanner.useDelimiter("\\A").next();
+        } finally {
+            scanner.close();
+        }
+    }
+
+    private UncachedKeyRing readRingFromResource(String name) throws Exception {
+        return UncachedKeyRing.fromStream(ImportOperationTest.class.getResourceAsStream(name)).next();
+    }
+
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Date;
+
+import android.app.Application;
+import android.content.ContentResolver;
+import android.net.Uri;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openintents.openpgp.OpenPgpSignatureResult;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogEntryParcel;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.SubLogEntryParcel;
+import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.operations.results.SignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
+import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptData;
+import org.sufficientlysecure.keychain.pgp.SignEncryptParcel;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+
+@RunWith(KeychainTestRunner.class)
+public class SignEncryptOperationTest {
+
+    static UncachedKeyRing mStaticRing;
+    static Passphrase mKeyPhrase;
+
+    static PrintStream oldShadowStream;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        oldShadowStream = ShadowLog.stream;
+
+        mKeyPhrase = new Passphrase("RsKrW^raOPcnQ=ZJr-pP");
+        mStaticRing = KeyringTestingHelper.readRingFromResource("/test-keys/encrypt_decrypt_key_1.sec");
+    }
+
+    @Before
+    public void setUp() {
+        KeyWritableRepository databaseInteractor =
+                KeyWritableRepository.create(RuntimeEnvironment.application);
+
+        // don't log verbosely here, we're not here to test imports
+        ShadowLog.stream = oldShadowStream;
+
+        databaseInteractor.saveSecretKeyRing(mStaticRing);
+
+        // ok NOW log verbosely!
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testEncryptParallel() throws Exception {
+        PgpSignEncryptData.Builder data = PgpSignEncryptData.builder();
+        data.setEncryptionMasterKeyIds(new long[] { mStaticRing.getMasterKeyId() });
+        data.setSymmetricEncryptionAlgorithm(
+                PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags.AES_128);
+
+        signEncryptParallel(data.build(), CryptoInputParcel.createCryptoInputParcel(new Date()),
+                OpenPgpSignatureResult.RESULT_NO_SIGNATURE);
+    }
+
+    @Test
+    public void testSignEncryptParallel() throws Exception {
+        // the unlocked signing key is shared by all inputs
+        PgpSignEncryptData.Builder data = PgpSignEncryptData.builder();
+        data.setSignatureMasterKeyId(mStaticRing.getMasterKeyId());
+        data.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing, 1));
+        data.setEncryptionMasterKeyIds(new long[] { mStaticRing.getMasterKeyId() });
+        data.setSymmetricEncryptionAlgorithm(
+                PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags.AES_128);
+
+        SignEncryptResult result = signEncryptParallel(data.build(),
+                CryptoInputParcel.createCryptoInputParcel(new Date(), mKeyPhrase),
+                OpenPgpSignatureResult.RESULT_VALID_KEY_CONFIRMED);
+
+        // the lookup of the shared keys is logged once, before the results of the inputs
+        LogEntryParcel keysEntry = result.getLog().toList().get(1);
+        Assert.assertTrue("log must contain the lookup of the shared keys", keysEntry instanceof SubLogEntryParcel);
+        Assert.assertTrue("log must contain the lookup of the shared keys",
+                ((SubLogEntryParcel) keysEntry).getSubResult().getLog().containsType(LogType.MSG_PSE_KEY_OK));
+    }
+
+    /**
+     * Signs and/or encrypts several inputs of different sizes in one parcel, and checks that the results
+     * come back in input order, and that each output decrypts to its own input with the expected signature.
+     */
+    private SignEncryptResult signEncryptParallel(PgpSignEncryptData data, CryptoInputParcel cryptoInput,
+            int expectedSignatureResult) throws Exception {
+        int count = 4;
+        ContentResolver mockResolver = mock(ContentResolver.class);
+
+        byte[][] plaintexts = new byte[count][];
+        ByteArrayOutputStream[] outStreams = new ByteArrayOutputStream[count];
+        ArrayList<Uri> inputUris = new ArrayList<>();
+        ArrayList<Uri> outputUris = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            // the first input is the largest, so it is likely not the first one to finish
+            StringBuilder plaintext = new StringBuilder();
+            for (int j = 0; j < (count - i) * 1000; j++) {
+                plaintext.append("dies ist plaintext nummer ").append(i).append('\n');
+            }
+            plaintexts[i] = plaintext.toString().getBytes();
+            outStreams[i] = new ByteArrayOutputStream();
+
+            Uri inputUri = Uri.parse("content://fake/in/" + i);
+            Uri outputUri = Uri.parse("content://fake/out/" + i);
+            when(mockResolver.openInputStream(inputUri)).thenReturn(new ByteArrayInputStream(plaintexts[i]));
+            when(mockResolver.openOutputStream(outputUri)).thenReturn(outStreams[i]);
+            inputUris.add(inputUri);
+            outputUris.add(outputUri);
+        }
+
+        Application spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(mockResolver);
+
+        SignEncryptParcel input = SignEncryptParcel.builder(data)
+                .addInputUris(inputUris)
+                .addOutputUris(outputUris)
+                .build();
+
+        SignEncryptOperation op = new SignEncryptOperation(spyApplication,
+                KeyWritableRepository.create(RuntimeEnvironment.application), null, null);
+        SignEncryptResult result = op.execute(input, cryptoInput);
+
+        Assert.assertTrue("parallel sign/encrypt must succeed", result.success());
+        Assert.assertEquals("parallel sign/encrypt must return a result for each input",
+                count, result.getResults().size());
+
+        PgpDecryptVerifyOperation decryptOp = new PgpDecryptVerifyOperation(RuntimeEnvironment.application,
+                KeyWritableRepository.create(RuntimeEnvironment.application), null);
+        for (int i = 0; i < count; i++) {
+            PgpSignEncryptResult fileResult = result.getResults().get(i);
+            Assert.assertTrue("sign/encrypt of each input must succeed", fileResult.success());
+            Assert.assertArrayEquals("results must be in input order",
+                    outStreams[i].toByteArray(), fileResult.getOutputBytes());
+
+            PgpDecryptVerifyInputParcel decryptInput = PgpDecryptVerifyInputParcel.builder()
+                    .setInputBytes(outStreams[i].toByteArray())
+                    .build();
+            DecryptVerifyResult decryptResult =
+                    decryptOp.execute(decryptInput, CryptoInputParcel.createCryptoInputParcel(mKeyPhrase));
+            Assert.assertTrue("decryption of each output must succeed", decryptResult.success());
+            Assert.assertArrayEquals("each output must decrypt to its own input",
+                    plaintexts[i], decryptResult.getOutputBytes());
+            Assert.assertEquals("each output must carry the expected signature",
+                    expectedSignatureResult, decryptResult.getSignatureResult().getResult());
+        }
+
+        return result;
+    }
+
+}
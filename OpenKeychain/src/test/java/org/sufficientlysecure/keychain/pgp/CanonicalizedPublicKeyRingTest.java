@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.IOException;
+import java.security.Security;
+import java.util.Date;
+import java.util.Iterator;
+
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.util.Strings;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.pgp.PgpCertifyOperation.PgpCertifyResult;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel.CertifyAction;
+import org.sufficientlysecure.keychain.service.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.SubkeyAdd;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+
+/** Tests for CanonicalizedPublicKeyRing instances which only decode the core of a stored keyring up front. */
+@RunWith(KeychainTestRunner.class)
+public class CanonicalizedPublicKeyRingTest {
+
+    static UncachedKeyRing staticUncertifiedRing;
+    static CanonicalizedKeyRing staticCertifiedRing;
+    static CanonicalizedKeyRing staticCertifiedExpiringRing;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        ShadowLog.stream = System.out;
+
+        UncachedKeyRing ringA;
+        {
+            SaveKeyringParcel.Builder builder = SaveKeyringParcel.buildNewKeyringParcel();
+            builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(
+                    Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+            builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(
+                    Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.SIGN_DATA, 0L));
+            builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(
+                    Algorithm.ECDH, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS, 0L));
+            builder.addUserId("twi");
+            builder.addUserId("pink");
+            builder.addUserAttribute(WrappedUserAttribute.fromSubpacket(100,
+                    "sunshine, sunshine, ladybugs awake~".getBytes()));
+            builder.setNewUnlock(ChangeUnlockParcel.createUnLockParcelForNewKey(new Passphrase()));
+
+            ringA = new PgpKeyOperation(null).createSecretKeyRing(builder.build()).getRing();
+            ringA = ringA.canonicalize(new OperationLog(), 0).getUncachedKeyRing();
+        }
+
+        UncachedKeyRing ringB;
+        {
+            SaveKeyringParcel.Builder builder = SaveKeyringParcel.buildNewKeyringParcel();
+            builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(
+                    Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+            builder.addUserId("shy");
+            builder.setNewUnlock(ChangeUnlockParcel.createUnLockParcelForNewKey(new Passphrase()));
+
+            ringB = new PgpKeyOperation(null).createSecretKeyRing(builder.build()).getRing();
+            ringB = ringB.canonicalize(new OperationLog(), 0).getUncachedKeyRing();
+        }
+
+        UncachedKeyRing expiringRing;
+        {
+            // signing capable primary key which expires, so its self certificates carry flags and expiry
+            long expiry = new Date().getTime() / 1000 + 365 * 24 * 60 * 60;
+            SaveKeyringParcel.Builder builder = SaveKeyringParcel.buildNewKeyringParcel();
+            builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256,
+                    KeyFlags.CERTIFY_OTHER | KeyFlags.SIGN_DATA, expiry));
+            builder.addUserId("rarity");
+            builder.setNewUnlock(ChangeUnlockParcel.createUnLockParcelForNewKey(new Passphrase()));
+
+            expiringRing = new PgpKeyOperation(null).createSecretKeyRing(builder.build()).getRing();
+            expiringRing = expiringRing.canonicalize(new OperationLog(), 0).getUncachedKeyRing();
+        }
+
+        staticUncertifiedRing = ringA.extractPublicKeyRing();
+        staticCertifiedRing = certifyAllUserIds(staticUncertifiedRing, ringB);
+        staticCertifiedExpiringRing = certifyAllUserIds(expiringRing.extractPublicKeyRing(), ringB);
+    }
+
+    private static CanonicalizedKeyRing certifyAllUserIds(UncachedKeyRing uncertifiedRing,
+            UncachedKeyRing certifierRing) throws Exception {
+        CanonicalizedPublicKeyRing publicRing = new CanonicalizedPublicKeyRing(uncertifiedRing.getEncoded(), 0);
+        CanonicalizedSecretKey secretKey = new CanonicalizedSecretKeyRing(certifierRing.getEncoded(), 0).getSecretKey();
+        secretKey.unlock(new Passphrase());
+        CertifyAction action = CertifyAction.createForUserIds(
+                publicRing.getMasterKeyId(), publicRing.getPublicKey().getUnorderedUserIds());
+        PgpCertifyResult result = new PgpCertifyOperation().certify(
+                secretKey, publicRing, new OperationLog(), 0, action, null, new Date());
+        Assert.assertTrue("certification must succeed", result.success());
+
+        UncachedKeyRing merged = uncertifiedRing.merge(result.getCertifiedRing(), new OperationLog(), 0);
+        CanonicalizedKeyRing certifiedRing = merged.canonicalize(new OperationLog(), 0);
+        Assert.assertNotNull("certified keyring must canonicalize", certifiedRing);
+        return certifiedRing;
+    }
+
+    @Test
+    public void testCoreRingOmitsThirdPartyPackets() throws Exception {
+        byte[] encoded = staticCertifiedRing.getEncoded();
+        CanonicalizedPublicKeyRing ring = new CanonicalizedPublicKeyRing(encoded, 0);
+
+        PGPPublicKey coreMasterKey = ring.getCoreRing().getPublicKey();
+        Assert.assertFalse("core ring must not contain user attributes", coreMasterKey.getUserAttributes().hasNext());
+        Assert.assertEquals("core ring must only contain self certificates",
+                1, count(coreMasterKey.getSignaturesForID(Strings.toUTF8ByteArray("twi"))));
+        Assert.assertEquals("all subkeys must be in the core ring", 4, count(ring.getCoreRing().getPublicKeys()));
+
+        Assert.assertArrayEquals("encoding must be unaffected", encoded, ring.getEncoded());
+        Assert.assertArrayEquals("encoding of full ring must be unaffected",
+                encoded, ring.getUncachedKeyRing().getEncoded());
+    }
+
+    @Test
+    public void testCompleteKeyIsAvailable() throws Exception {
+        CanonicalizedPublicKeyRing ring = new CanonicalizedPublicKeyRing(staticCertifiedRing.getEncoded(), 0);
+
+        CanonicalizedPublicKey masterKey = ring.getPublicKey();
+        Assert.assertEquals("third-party certificates must be available from the master key",
+                2, count(masterKey.getSignaturesForRawId(Strings.toUTF8ByteArray("twi"))));
+        Assert.assertEquals("user attributes must be available from the master key",
+                1, masterKey.getUnorderedUserAttributes().size());
+        Assert.assertEquals(count(staticCertifiedRing.getPublicKey().getSignatures()),
+                count(masterKey.getSignatures()));
+    }
+
+    @Test
+    public void testLookupsMatchFullRing() throws Exception {
+        CanonicalizedPublicKeyRing ring = new CanonicalizedPublicKeyRing(staticCertifiedRing.getEncoded(), 0);
+
+        Assert.assertEquals(staticCertifiedRing.getMasterKeyId(), ring.getMasterKeyId());
+        Assert.assertArrayEquals(staticCertifiedRing.getFingerprint(), ring.getFingerprint());
+        Assert.assertEquals(staticCertifiedRing.getPrimaryUserIdWithFallback(), ring.getPrimaryUserIdWithFallback());
+        Assert.assertEquals(staticCertifiedRing.getUnorderedUserIds(), ring.getUnorderedUserIds());
+        Assert.assertEquals(staticCertifiedRing.getEncryptIds(), ring.getEncryptIds());
+        Assert.assertEquals(staticCertifiedRing.getSigningId(), ring.getSigningId());
+        Assert.assertEquals(staticCertifiedRing.getExpirationDate(), ring.getExpirationDate());
+        Assert.assertEquals(staticCertifiedRing.isRevoked(), ring.isRevoked());
+        Assert.assertEquals(staticCertifiedRing.isExpired(), ring.isExpired());
+        Assert.assertTrue(ring.getPublicKey(ring.getSigningId()).canSign());
+    }
+
+    @Test
+    public void testExpiryAndFlagsMatchFullRing() throws Exception {
+        // staticCertifiedExpiringRing was created from a PGPPublicKeyRing, so it's decoded in full
+        CanonicalizedPublicKeyRing ring = new CanonicalizedPublicKeyRing(staticCertifiedExpiringRing.getEncoded(), 0);
+        PGPPublicKey coreMasterKey = ring.getCoreRing().getPublicKey();
+        Assert.assertEquals("core ring must keep the self certificate and omit the third-party one",
+                1, count(coreMasterKey.getSignaturesForID(Strings.toUTF8ByteArray("rarity"))));
+
+        Assert.assertNotNull("full ring must have an expiry date", staticCertifiedExpiringRing.getExpirationDate());
+        Assert.assertEquals(staticCertifiedExpiringRing.getExpirationDate(), ring.getExpirationDate());
+        Assert.assertEquals(staticCertifiedExpiringRing.isExpired(), ring.isExpired());
+
+        Assert.assertTrue("full ring must be able to sign", staticCertifiedExpiringRing.getPublicKey().canSign());
+        Assert.assertTrue("core ring must be able to sign", ring.getPublicKey().canSign());
+        Assert.assertEquals(staticCertifiedExpiringRing.getPublicKey().getKeyUsage(),
+                ring.getPublicKey().getKeyUsage());
+        Assert.assertEquals(staticCertifiedExpiringRing.getSigningId(), ring.getSigningId());
+    }
+
+    @Test
+    public void testIndexWithoutThirdPartyPackets() throws Exception {
+        byte[] encoded = staticUncertifiedRing.getEncoded();
+        KeyRingPacketIndex index = KeyRingPacketIndex.indexPackets(encoded);
+
+        byte[] coreData = index.encodeCorePackets();
+        Assert.assertNotNull("user attribute must be omitted", coreData);
+        Assert.assertNull("keyring without third-party packets has nothing to omit",
+                KeyRingPacketIndex.indexPackets(coreData).encodeCorePackets());
+    }
+
+    @Test(expected = IOException.class)
+    public void testIndexRejectsTrailingData() throws Exception {
+        byte[] encoded = staticUncertifiedRing.getEncoded();
+        byte[] twice = new byte[encoded.length * 2];
+        System.arraycopy(encoded, 0, twice, 0, encoded.length);
+        System.arraycopy(encoded, 0, twice, encoded.length, encoded.length);
+        KeyRingPacketIndex.indexPackets(twice);
+    }
+
+    @Test(expected = IOException.class)
+    public void testIndexRejectsTruncatedData() throws Exception {
+        byte[] encoded = staticUncertifiedRing.getEncoded();
+        byte[] truncated = new byte[encoded.length - 1];
+        System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+        KeyRingPacketIndex.indexPackets(truncated);
+    }
+
+    private static int count(Iterator<?> it) {
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count += 1;
+        }
+        return count;
+    }
+
+}
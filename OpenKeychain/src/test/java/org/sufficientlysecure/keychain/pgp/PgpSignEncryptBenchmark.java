@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.SubkeyAdd;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.util.InputData;
+
+
+/**
+ * Throughput, latency and allocation benchmark for the low-level sign/encrypt
+ * and decrypt/verify paths.
+ * <p/>
+ * This is not run as part of the regular unit tests. Enable it with
+ * <pre>./gradlew testFdroidDebugUnitTest -Pkeychain.benchmark=true --tests '*PgpSignEncryptBenchmark'</pre>
+ * The parameter matrix can be narrowed down using the keychain.benchmark.keys,
+ * keychain.benchmark.sizes, keychain.benchmark.armor and keychain.benchmark.compression
+ * properties, all of which take comma separated lists. Payload sizes accept k, m and g
+ * suffixes, so the full range from 1k to 1g can be covered. Payloads are generated and
+ * discarded on the fly, only the ciphertext is held in a temporary file.
+ * <p/>
+ * This runs in the Robolectric test vm rather than as a separate JMH module, because
+ * the operations under test live in the application module and need a Context and a
+ * populated key database.
+ */
+@RunWith(KeychainTestRunner.class)
+public class PgpSignEncryptBenchmark {
+
+    static final String PROP_ENABLED = "keychain.benchmark";
+    static final String PROP_KEYS = "keychain.benchmark.keys";
+    static final String PROP_SIZES = "keychain.benchmark.sizes";
+    static final String PROP_ARMOR = "keychain.benchmark.armor";
+    static final String PROP_COMPRESSION = "keychain.benchmark.compression";
+    static final String PROP_WARMUP = "keychain.benchmark.warmup";
+    static final String PROP_ITERATIONS = "keychain.benchmark.iterations";
+
+    static final String DEFAULT_KEYS = "rsa2048,rsa4096,ed25519,p256";
+    static final String DEFAULT_SIZES = "1k,64k,1m,16m";
+    static final String DEFAULT_ARMOR = "false,true";
+    static final String DEFAULT_COMPRESSION = "uncompressed,zip,zlib,bzip2";
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Assume.assumeTrue("benchmark disabled, set -P" + PROP_ENABLED + "=true to run",
+                Boolean.getBoolean(PROP_ENABLED));
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        ShadowLog.stream = null;
+    }
+
+    @Test
+    public void benchmarkSignEncryptDecryptVerify() throws Exception {
+        KeyWritableRepository keyRepository = KeyWritableRepository.create(RuntimeEnvironment.application);
+
+        int warmup = Integer.getInteger(PROP_WARMUP, 2);
+        int iterations = Integer.getInteger(PROP_ITERATIONS, 10);
+
+        List<Result> results = new ArrayList<>();
+        for (String keyType : getListProperty(PROP_KEYS, DEFAULT_KEYS)) {
+            BenchmarkKeys keys = setUpKeys(keyRepository, keyType);
+
+            for (String size : getListProperty(PROP_SIZES, DEFAULT_SIZES)) {
+                long payloadSize = parseSize(size);
+                for (String armor : getListProperty(PROP_ARMOR, DEFAULT_ARMOR)) {
+                    for (String compression : getListProperty(PROP_COMPRESSION, DEFAULT_COMPRESSION)) {
+                        String name = String.format(Locale.ENGLISH, "%s/%s/%s/%s",
+                                keyType, size, Boolean.parseBoolean(armor) ? "armor" : "binary", compression);
+                        PgpSignEncryptData data = PgpSignEncryptData.builder()
+                                .setSignatureMasterKeyId(keys.signMasterKeyId)
+                                .setEncryptionMasterKeyIds(new long[] { keys.encryptMasterKeyId })
+                                .setEnableAsciiArmorOutput(Boolean.parseBoolean(armor))
+                                .setCompressionAlgorithm(parseCompression(compression))
+                                .build();
+
+                        results.addAll(runConfiguration(keyRepository, name, data, payloadSize, warmup, iterations));
+                    }
+                }
+            }
+        }
+
+        System.out.println(Result.HEADER);
+        for (Result result : results) {
+            System.out.println(result);
+        }
+    }
+
+    private List<Result> runConfiguration(KeyWritableRepository keyRepository, String name,
+            PgpSignEncryptData data, long payloadSize, int warmup, int iterations) throws Exception {
+        File ciphertextFile = File.createTempFile("benchmark", ".pgp");
+        try {
+            Sampler encryptSampler = new Sampler("encrypt " + name, payloadSize);
+            Sampler decryptSampler = new Sampler("decrypt " + name, payloadSize);
+
+            for (int i = -warmup; i < iterations; i++) {
+                boolean measure = i >= 0;
+
+                encryptSampler.start();
+                PgpSignEncryptOperation encryptOp = new PgpSignEncryptOperation(
+                        RuntimeEnvironment.application, keyRepository, null);
+                InputData inputData = new InputData(new RandomInputStream(payloadSize), payloadSize);
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(ciphertextFile), BUFFER_SIZE);
+                PgpSignEncryptResult encryptResult = encryptOp.execute(data,
+                        CryptoInputParcel.createCryptoInputParcel(new Date()), inputData, out);
+                encryptSampler.stop(measure);
+                Assert.assertTrue("encryption must succeed for " + name, encryptResult.success());
+
+                decryptSampler.start();
+                PgpDecryptVerifyOperation decryptOp = new PgpDecryptVerifyOperation(
+                        RuntimeEnvironment.application, keyRepository, null);
+                InputStream in = new BufferedInputStream(new FileInputStream(ciphertextFile), BUFFER_SIZE);
+                try {
+                    DecryptVerifyResult decryptResult = decryptOp.execute(
+                            PgpDecryptVerifyInputParcel.builder().build(),
+                            CryptoInputParcel.createCryptoInputParcel(),
+                            new InputData(in, ciphertextFile.length()), new DiscardOutputStream());
+                    decryptSampler.stop(measure);
+                    Assert.assertTrue("decryption must succeed for " + name, decryptResult.success());
+                } finally {
+                    in.close();
+                }
+            }
+
+            return Arrays.asList(encryptSampler.getResult(), decryptSampler.getResult());
+        } finally {
+            // noinspection ResultOfMethodCallIgnored
+            ciphertextFile.delete();
+        }
+    }
+
+    private static BenchmarkKeys setUpKeys(KeyWritableRepository keyRepository, String keyType) throws Exception {
+        switch (keyType) {
+            case "rsa2048":
+            case "rsa4096": {
+                int bits = Integer.parseInt(keyType.substring(3));
+                UncachedKeyRing ring = createKeyRing(
+                        SubkeyAdd.createSubkeyAdd(Algorithm.RSA, bits, null,
+                                KeyFlags.CERTIFY_OTHER | KeyFlags.SIGN_DATA, 0L),
+                        SubkeyAdd.createSubkeyAdd(Algorithm.RSA, bits, null, KeyFlags.ENCRYPT_COMMS, 0L));
+                Assert.assertTrue(keyRepository.saveSecretKeyRing(ring).success());
+                return new BenchmarkKeys(ring.getMasterKeyId(), ring.getMasterKeyId());
+            }
+            case "p256": {
+                UncachedKeyRing ring = createKeyRing(
+                        SubkeyAdd.createSubkeyAdd(Algorithm.ECDSA, 0, Curve.NIST_P256,
+                                KeyFlags.CERTIFY_OTHER | KeyFlags.SIGN_DATA, 0L),
+                        SubkeyAdd.createSubkeyAdd(Algorithm.ECDH, 0, Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS, 0L));
+                Assert.assertTrue(keyRepository.saveSecretKeyRing(ring).success());
+                return new BenchmarkKeys(ring.getMasterKeyId(), ring.getMasterKeyId());
+            }
+            case "ed25519": {
+                // PgpKeyOperation can't generate Cv25519 subkeys, use the keys from the test resources
+                UncachedKeyRing signRing = KeyringTestingHelper.readRingFromResource("/test-keys/eddsa-key.sec");
+                UncachedKeyRing encryptRing =
+                        KeyringTestingHelper.readRingFromResource("/test-keys/cv25519-key.sec.asc");
+                Assert.assertTrue(keyRepository.saveSecretKeyRing(signRing).success());
+                Assert.assertTrue(keyRepository.saveSecretKeyRing(encryptRing).success());
+                return new BenchmarkKeys(signRing.getMasterKeyId(), encryptRing.getMasterKeyId());
+            }
+            default:
+                throw new IllegalArgumentException("unknown key type: " + keyType);
+        }
+    }
+
+    private static UncachedKeyRing createKeyRing(SubkeyAdd... subkeys) {
+        SaveKeyringParcel.Builder builder = SaveKeyringParcel.buildNewKeyringParcel();
+        for (SubkeyAdd subkey : subkeys) {
+            builder.addSubkeyAdd(subkey);
+        }
+        builder.addUserId("benchmark");
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(builder.build());
+        Assert.assertTrue("benchmark key creation must succeed", result.success());
+        return result.getRing();
+    }
+
+    private static List<String> getListProperty(String name, String defaultValue) {
+        return Arrays.asList(System.getProperty(name, defaultValue).split(","));
+    }
+
+    static long parseSize(String size) {
+        size = size.trim().toLowerCase(Locale.ENGLISH);
+        long factor = 1;
+        switch (size.charAt(size.length() - 1)) {
+            case 'g':
+                factor <<= 10;
+            case 'm':
+                factor <<= 10;
+            case 'k':
+                factor <<= 10;
+                size = size.substring(0, size.length() - 1);
+        }
+        return Long.parseLong(size) * factor;
+    }
+
+    static int parseCompression(String compression) {
+        switch (compression.trim().toLowerCase(Locale.ENGLISH)) {
+            case "uncompressed":
+                return CompressionAlgorithmTags.UNCOMPRESSED;
+            case "zip":
+                return CompressionAlgorithmTags.ZIP;
+            case "zlib":
+                return CompressionAlgorithmTags.ZLIB;
+            case "bzip2":
+                return CompressionAlgorithmTags.BZIP2;
+            default:
+                throw new IllegalArgumentException("unknown compression algorithm: " + compression);
+        }
+    }
+
+    private static class BenchmarkKeys {
+        final long signMasterKeyId;
+        final long encryptMasterKeyId;
+
+        BenchmarkKeys(long signMasterKeyId, long encryptMasterKeyId) {
+            this.signMasterKeyId = signMasterKeyId;
+            this.encryptMasterKeyId = encryptMasterKeyId;
+        }
+    }
+
+    /** Measures wall time and allocated bytes of the current thread. */
+    private static class Sampler {
+        private final String name;
+        private final long payloadSize;
+        private final com.sun.management.ThreadMXBean threadBean;
+
+        private final List<Long> latenciesNanos = new ArrayList<>();
+        private long totalAllocatedBytes;
+
+        private long startNanos;
+        private long startAllocatedBytes;
+
+        Sampler(String name, long payloadSize) {
+            this.name = name;
+            this.payloadSize = payloadSize;
+            this.threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        }
+
+        void start() {
+            startAllocatedBytes = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            startNanos = System.nanoTime();
+        }
+
+        void stop(boolean measure) {
+            long elapsedNanos = System.nanoTime() - startNanos;
+            long allocatedBytes =
+                    threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - startAllocatedBytes;
+            if (measure) {
+                latenciesNanos.add(elapsedNanos);
+                totalAllocatedBytes += allocatedBytes;
+            }
+        }
+
+        Result getResult() {
+            long[] sorted = new long[latenciesNanos.size()];
+            long totalNanos = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = latenciesNanos.get(i);
+                totalNanos += sorted[i];
+            }
+            Arrays.sort(sorted);
+
+            Result result = new Result();
+            result.name = name;
+            result.ops = sorted.length;
+            result.throughputMibPerSecond = (payloadSize * sorted.length / (1024.0 * 1024.0)) / (totalNanos / 1e9);
+            result.p50Millis = percentile(sorted, 0.50) / 1e6;
+            result.p90Millis = percentile(sorted, 0.90) / 1e6;
+            result.p99Millis = percentile(sorted, 0.99) / 1e6;
+            result.maxMillis = sorted[sorted.length - 1] / 1e6;
+            result.allocatedBytesPerOp = totalAllocatedBytes / sorted.length;
+            return result;
+        }
+
+        private static long percentile(long[] sorted, double percentile) {
+            int index = (int) Math.ceil(percentile * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+        }
+    }
+
+    private static class Result {
+        static final String HEADER = String.format(Locale.ENGLISH, "%-48s %5s %10s %10s %10s %10s %10s %14s",
+                "benchmark", "ops", "MiB/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "alloc B/op");
+
+        String name;
+        int ops;
+        double throughputMibPerSecond;
+        double p50Millis, p90Millis, p99Millis, maxMillis;
+        long allocatedBytesPerOp;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "%-48s %5d %10.2f %10.2f %10.2f %10.2f %10.2f %14d",
+                    name, ops, throughputMibPerSecond, p50Millis, p90Millis, p99Millis, maxMillis,
+                    allocatedBytesPerOp);
+        }
+    }
+
+    /** Generates a fixed amount of pseudo-random data, without holding it in memory. */
+    private static class RandomInputStream extends InputStream {
+        private final Random random = new Random(0x1337);
+        private final byte[] chunk = new byte[BUFFER_SIZE];
+        private long remaining;
+
+        RandomInputStream(long size) {
+            remaining = size;
+            random.nextBytes(chunk);
+        }
+
+        @Override
+        public int read() {
+            if (remaining <= 0) {
+                return -1;
+            }
+            remaining -= 1;
+            return chunk[(int) (remaining % chunk.length)] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int count = (int) Math.min(Math.min(len, remaining), chunk.length);
+            // vary the chunk a little so compression has to do some actual work
+            chunk[random.nextInt(chunk.length)] = (byte) random.nextInt();
+            System.arraycopy(chunk, 0, b, off, count);
+            remaining -= count;
+            return count;
+        }
+    }
+
+    private static class DiscardOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.nio.ByteBuffer;
+
+import org.bouncycastle.openpgp.operator.jcajce.CachingDataDecryptorFactory.SessionKeyStore;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+
+@RunWith(KeychainTestRunner.class)
+public class SessionKeyCacheTest {
+
+    static final long TTL = 1000;
+
+    long mNow;
+    SessionKeyCache mCache;
+
+    @Before
+    public void setUp() {
+        mNow = 0;
+        mCache = new SessionKeyCache(3, TTL) {
+            @Override
+            long now() {
+                return mNow;
+            }
+        };
+    }
+
+    @Test
+    public void testPutGet() {
+        byte[] sessionData = { 1, 2, 3 };
+        mCache.put(1L, buf(10), sessionData);
+
+        Assert.assertArrayEquals(sessionData, mCache.get(1L, buf(10)));
+        Assert.assertNull("entries must be scoped by subkey id", mCache.get(2L, buf(10)));
+        Assert.assertNull(mCache.get(1L, buf(11)));
+
+        sessionData[0] = 0;
+        Assert.assertEquals("cache must keep its own copy of the session data", 1, mCache.get(1L, buf(10))[0]);
+    }
+
+    @Test
+    public void testStoreView() {
+        SessionKeyStore store = mCache.forKey(1L);
+        store.put(buf(10), new byte[] { 4 });
+
+        Assert.assertArrayEquals(new byte[] { 4 }, store.get(buf(10)));
+        Assert.assertNull(mCache.forKey(2L).get(buf(10)));
+    }
+
+    @Test
+    public void testExpiry() {
+        mCache.put(1L, buf(10), new byte[] { 1 });
+
+        mNow = TTL - 1;
+        Assert.assertNotNull(mCache.get(1L, buf(10)));
+
+        mNow = TTL;
+        Assert.assertNull("entry must expire after its time to live", mCache.get(1L, buf(10)));
+        Assert.assertEquals(0, mCache.size());
+    }
+
+    @Test
+    public void testBounded() {
+        mCache.put(1L, buf(1), new byte[] { 1 });
+        mCache.put(1L, buf(2), new byte[] { 2 });
+        mCache.put(1L, buf(3), new byte[] { 3 });
+
+        // touch the first entry, so the second is least recently used
+        mCache.get(1L, buf(1));
+        mCache.put(1L, buf(4), new byte[] { 4 });
+
+        Assert.assertEquals(3, mCache.size());
+        Assert.assertNotNull(mCache.get(1L, buf(1)));
+        Assert.assertNull("least recently used entry must be evicted", mCache.get(1L, buf(2)));
+        Assert.assertNotNull(mCache.get(1L, buf(3)));
+        Assert.assertNotNull(mCache.get(1L, buf(4)));
+    }
+
+    private static ByteBuffer buf(int value) {
+        return ByteBuffer.wrap(new byte[] { 0, (byte) value });
+    }
+
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.Security;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.PGPObjectFactory;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureList;
+import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
+import org.bouncycastle.util.Strings;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.pgp.PgpCertifyOperation.PgpCertifyResult;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel.CertifyAction;
+import org.sufficientlysecure.keychain.service.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.SubkeyAdd;
+import org.sufficientlysecure.keychain.util.IterableIterator;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+
+/**
+ * Benchmark for UncachedKeyRing.merge on keys with many third-party certificates.
+ * <p/>
+ * This is not run as part of the regular unit tests. Enable it with
+ * <pre>./gradlew testFdroidDebugUnitTest -Pkeychain.benchmark=true --tests '*UncachedKeyRingMergeBenchmark'</pre>
+ * The number of certificates on the key can be set with keychain.benchmark.certs, and
+ * defaults to 10000. Certificates are derived from a single real one by changing bytes of
+ * its signature value, since merge doesn't verify them and generating thousands of real
+ * ones would take most of the run.
+ */
+@RunWith(KeychainTestRunner.class)
+public class UncachedKeyRingMergeBenchmark {
+
+    static final String PROP_ENABLED = "keychain.benchmark";
+    static final String PROP_CERTS = "keychain.benchmark.certs";
+    static final String PROP_ITERATIONS = "keychain.benchmark.iterations";
+
+    private static final byte[] USER_ID = Strings.toUTF8ByteArray("twi");
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Assume.assumeTrue("benchmark disabled, set -P" + PROP_ENABLED + "=true to run",
+                Boolean.getBoolean(PROP_ENABLED));
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        ShadowLog.stream = null;
+    }
+
+    @Test
+    public void benchmarkMerge() throws Exception {
+        int numCerts = Integer.getInteger(PROP_CERTS, 10000);
+        int iterations = Integer.getInteger(PROP_ITERATIONS, 5);
+
+        UncachedKeyRing baseRing = createKeyRing();
+        PGPSignature template = createForeignCertificate(baseRing);
+
+        byte[] encoded = addCertificates(baseRing, template, numCerts).getEncoded();
+        // a later version of the same key, which picked up some new certificates
+        byte[] extendedEncoded = addCertificates(baseRing, template, numCerts + numCerts / 10).getEncoded();
+
+        // separately decoded copies, as for a key which is imported again
+        UncachedKeyRing ring = UncachedKeyRing.decodeFromData(encoded);
+        UncachedKeyRing sameRing = UncachedKeyRing.decodeFromData(encoded);
+        UncachedKeyRing extendedRing = UncachedKeyRing.decodeFromData(extendedEncoded);
+
+        System.out.println(String.format(Locale.ENGLISH, "%d certificates, %d kb encoded",
+                numCerts, encoded.length / 1024));
+
+        UncachedKeyRing merged = ring.merge(sameRing, new OperationLog(), 0);
+        Assert.assertArrayEquals("merging identical keyrings must not change anything", encoded, merged.getEncoded());
+        merged = ring.merge(extendedRing, new OperationLog(), 0);
+        @SuppressWarnings("unchecked")
+        Iterator<PGPSignature> mergedCerts = merged.getPublicKey().getPublicKey().getSignaturesForID(USER_ID);
+        Assert.assertEquals("merging must pick up all new certificates",
+                numCerts + numCerts / 10 + 1, count(mergedCerts));
+
+        benchmark("merge identical copies", iterations, () -> ring.merge(sameRing, new OperationLog(), 0));
+        benchmark("merge with 10% new certs", iterations, () -> ring.merge(extendedRing, new OperationLog(), 0));
+
+        // the deduplication step by itself, compared to the sorted set of encodings used before
+        PGPPublicKey masterKey = ring.getPublicKey().getPublicKey();
+        PGPPublicKey sameMasterKey = sameRing.getPublicKey().getPublicKey();
+        benchmark("dedup by sorted encodings", iterations, () -> {
+            Set<byte[]> certs = new TreeSet<>(new EncodingComparator());
+            for (PGPSignature cert : new IterableIterator<PGPSignature>(masterKey.getSignatures())) {
+                certs.add(cert.getEncoded());
+            }
+            for (PGPSignature cert : new IterableIterator<PGPSignature>(sameMasterKey.getSignatures())) {
+                Assert.assertTrue(certs.contains(cert.getEncoded()));
+            }
+        });
+        benchmark("dedup by digest", iterations, () -> {
+            CertificateDigestSet certs = new CertificateDigestSet();
+            for (PGPSignature cert : new IterableIterator<PGPSignature>(masterKey.getSignatures())) {
+                certs.add(cert);
+            }
+            for (PGPSignature cert : new IterableIterator<PGPSignature>(sameMasterKey.getSignatures())) {
+                Assert.assertFalse(certs.add(cert));
+            }
+        });
+    }
+
+    private static UncachedKeyRing createKeyRing() throws Exception {
+        SaveKeyringParcel.Builder builder = SaveKeyringParcel.buildNewKeyringParcel();
+        builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        builder.addUserId(Strings.fromUTF8ByteArray(USER_ID));
+        builder.setNewUnlock(ChangeUnlockParcel.createUnLockParcelForNewKey(new Passphrase()));
+
+        UncachedKeyRing ring = new PgpKeyOperation(null).createSecretKeyRing(builder.build()).getRing();
+        return ring.canonicalize(new OperationLog(), 0).getUncachedKeyRing();
+    }
+
+    private static PGPSignature createForeignCertificate(UncachedKeyRing secretRing) throws Exception {
+        UncachedKeyRing certifierRing = createKeyRing();
+        CanonicalizedPublicKeyRing publicRing =
+                new CanonicalizedPublicKeyRing(secretRing.extractPublicKeyRing().getEncoded(), 0);
+        CanonicalizedSecretKey certifierKey =
+                new CanonicalizedSecretKeyRing(certifierRing.getEncoded(), 0).getSecretKey();
+        certifierKey.unlock(new Passphrase());
+
+        CertifyAction action = CertifyAction.createForUserIds(
+                publicRing.getMasterKeyId(), publicRing.getPublicKey().getUnorderedUserIds());
+        PgpCertifyResult result = new PgpCertifyOperation().certify(
+                certifierKey, publicRing, new OperationLog(), 0, action, null, new Date());
+        Assert.assertTrue("certification must succeed", result.success());
+
+        PGPPublicKey certifiedKey = result.getCertifiedRing().getPublicKey().getPublicKey();
+        @SuppressWarnings("unchecked")
+        Iterator<PGPSignature> it = certifiedKey.getSignaturesForID(USER_ID);
+        for (PGPSignature cert : new IterableIterator<>(it)) {
+            if (cert.getKeyID() == certifierRing.getMasterKeyId()) {
+                return cert;
+            }
+        }
+        throw new AssertionError("certificate must be found");
+    }
+
+    /** Returns the public part of the given ring, with the given number of certificates added. */
+    private static UncachedKeyRing addCertificates(UncachedKeyRing secretRing, PGPSignature template,
+            int numCerts) throws Exception {
+        byte[] templateData = template.getEncoded();
+        PGPPublicKey masterKey = secretRing.extractPublicKeyRing().getPublicKey().getPublicKey();
+        for (int i = 0; i < numCerts; i++) {
+            masterKey = PGPPublicKey.addCertification(masterKey, USER_ID, deriveCertificate(templateData, i));
+        }
+        return new UncachedKeyRing(new PGPPublicKeyRing(masterKey.getEncoded(), new JcaKeyFingerprintCalculator()));
+    }
+
+    private static PGPSignature deriveCertificate(byte[] templateData, int number) throws IOException {
+        byte[] data = templateData.clone();
+        // the signature value comes last, overwrite its low bytes
+        for (int i = 0; i < 4; i++) {
+            data[data.length - 1 - i] = (byte) (number >> (8 * i));
+        }
+        PGPObjectFactory factory = new PGPObjectFactory(
+                new ByteArrayInputStream(data), new JcaKeyFingerprintCalculator());
+        return ((PGPSignatureList) factory.nextObject()).get(0);
+    }
+
+    private static int count(Iterator<?> it) {
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count += 1;
+        }
+        return count;
+    }
+
+    private static void benchmark(String name, int iterations, Task task) throws Exception {
+        // warm up
+        task.run();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            task.run();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format(Locale.ENGLISH, "%-28s %10.2f ms", name, elapsed / 1e6 / iterations));
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private static class EncodingComparator implements Comparator<byte[]> {
+        @Override
+        public int compare(byte[] left, byte[] right) {
+            if (left.length != right.length) {
+                return left.length - right.length;
+            }
+            for (int i = 0; i < left.length; i++) {
+                if (left[i] != right[i]) {
+                    return (left[i] & 0xff) - (right[i] & 0xff);
+                }
+            }
+            return 0;
+        }
+    }
+
+}
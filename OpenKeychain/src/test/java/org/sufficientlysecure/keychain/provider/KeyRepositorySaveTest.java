@@ -18,6 +18,8 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import android.database.Cursor;
+
 import org.bouncycastle.bcpg.sig.KeyFlags;
 import org.bouncycastle.util.encoders.Hex;
 import org.junit.Assert;
@@ -34,10 +36,13 @@ import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeyWritableRepository.PreparedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 
 @RunWith(KeychainTestRunner.class)
 public class KeyRepositorySaveTest {
@@ -245,6 +250,90 @@ public class KeyRepositorySaveTest {
 
     }
 
+    @Test public void testKeySummaryFollowsKeyRing() throws Exception {
+
+        UncachedKeyRing sec = readRingFromResource("/test-keys/divert_to_card_sec.asc");
+        long masterKeyId = sec.getMasterKeyId();
+        String[] projection = new String[] {
+                KeyRings.MASTER_KEY_ID, KeyRings.HAS_ANY_SECRET, KeyRings.HAS_ENCRYPT, KeyRings.HAS_SIGN_SECRET,
+                KeyRings.USER_ID
+        };
+
+        SaveKeyringResult result = mDatabaseInteractor.savePublicKeyRing(sec.extractPublicKeyRing());
+        Assert.assertTrue("import of public keyring should succeed", result.success());
+
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingUri(masterKeyId), projection, null, null, null);
+        try {
+            Assert.assertTrue("summary must exist after public import", cursor.moveToFirst());
+            Assert.assertEquals(0, cursor.getInt(1));
+            Assert.assertFalse("public key ring must have an encryption subkey", cursor.isNull(2));
+            Assert.assertTrue("public key ring must not have a secret signing subkey", cursor.isNull(3));
+            Assert.assertNotNull(cursor.getString(4));
+        } finally {
+            cursor.close();
+        }
+
+        result = mDatabaseInteractor.saveSecretKeyRing(sec);
+        Assert.assertTrue("import of secret keyring should succeed", result.success());
+
+        cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingUri(masterKeyId), projection, null, null, null);
+        try {
+            Assert.assertTrue("summary must exist after secret import", cursor.moveToFirst());
+            Assert.assertEquals(1, cursor.getInt(1));
+            Assert.assertFalse("secret key ring must have a secret signing subkey", cursor.isNull(3));
+        } finally {
+            cursor.close();
+        }
+
+        mDatabaseInteractor.deleteKeyRing(masterKeyId);
+
+        cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingsUri(), projection, null, null, null);
+        try {
+            Assert.assertEquals("summary must be removed with its key ring", 0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+
+    }
+
+    @Test public void testSavePreparedKeyRings() throws Exception {
+
+        UncachedKeyRing first = readRingFromResource("/test-keys/symantec_public.asc");
+        UncachedKeyRing sec = readRingFromResource("/test-keys/divert_to_card_sec.asc");
+        UncachedKeyRing last = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+
+        // the secret keyring in the middle splits this into two batches
+        List<PreparedKeyRing> preparedKeyRings = Arrays.asList(
+                mDatabaseInteractor.fork().preparePublicKeyRing(first, null, null, false),
+                mDatabaseInteractor.fork().prepareSecretKeyRing(sec, null),
+                mDatabaseInteractor.fork().preparePublicKeyRing(last, null, null, false));
+        List<SaveKeyringResult> results = mDatabaseInteractor.savePreparedKeyRings(preparedKeyRings);
+
+        Assert.assertEquals(3, results.size());
+        for (SaveKeyringResult result : results) {
+            Assert.assertTrue("batched save should succeed", result.success());
+            Assert.assertFalse("keys were not in the database before", result.updated());
+        }
+        Assert.assertEquals(first.getMasterKeyId(),
+                mDatabaseInteractor.getCanonicalizedPublicKeyRing(first.getMasterKeyId()).getMasterKeyId());
+        Assert.assertTrue("secret keyring must be saved in order",
+                mDatabaseInteractor.getCachedPublicKeyRing(sec.getMasterKeyId()).hasAnySecret());
+        Assert.assertEquals(last.getMasterKeyId(),
+                mDatabaseInteractor.getCanonicalizedPublicKeyRing(last.getMasterKeyId()).getMasterKeyId());
+
+        // saving the same keyrings again changes nothing, but must still be reported as updates
+        results = mDatabaseInteractor.savePreparedKeyRings(Arrays.asList(
+                mDatabaseInteractor.fork().preparePublicKeyRing(first, null, null, true),
+                mDatabaseInteractor.fork().preparePublicKeyRing(last, null, null, false)));
+        Assert.assertTrue("forced refresh should succeed", results.get(0).success());
+        Assert.assertTrue("forced refresh should be an update", results.get(0).updated());
+        Assert.assertTrue("identical keyring should be an update", results.get(1).updated());
+
+    }
+
     UncachedKeyRing readRingFromResource(String name) throws Exception {
         return UncachedKeyRing.fromStream(KeyRepositorySaveTest.class.getResourceAsStream(name)).next();
     }
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+
+
+@RunWith(KeychainTestRunner.class)
+public class KeyRingCacheTest {
+
+    static UncachedKeyRing mRing1, mRing2;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        mRing1 = KeyringTestingHelper.readRingFromResource("/test-keys/encrypt_decrypt_key_1.sec");
+        mRing2 = KeyringTestingHelper.readRingFromResource("/test-keys/encrypt_decrypt_key_2.sec");
+    }
+
+    @Test
+    public void testHitMiss() throws Exception {
+        KeyRingCache cache = new KeyRingCache(1024 * 1024);
+        CanonicalizedPublicKeyRing ring = canonicalizePublic(mRing1);
+        long masterKeyId = ring.getMasterKeyId();
+
+        Assert.assertNull(cache.getPublicKeyRing(masterKeyId));
+        cache.putPublicKeyRing(cache.getGeneration(), ring, 100);
+        Assert.assertSame(ring, cache.getPublicKeyRing(masterKeyId));
+        Assert.assertNull("public keyring must not be returned as secret", cache.getSecretKeyRing(masterKeyId));
+
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        KeyRingCache cache = new KeyRingCache(1024 * 1024);
+        CanonicalizedPublicKeyRing ring = canonicalizePublic(mRing1);
+        long masterKeyId = ring.getMasterKeyId();
+
+        cache.putPublicKeyRing(cache.getGeneration(), ring, 100);
+        cache.invalidate(masterKeyId);
+        Assert.assertNull(cache.getPublicKeyRing(masterKeyId));
+        Assert.assertEquals(0, cache.getEncodedSize());
+    }
+
+    @Test
+    public void testConcurrentInvalidation() throws Exception {
+        KeyRingCache cache = new KeyRingCache(1024 * 1024);
+        CanonicalizedPublicKeyRing ring = canonicalizePublic(mRing1);
+
+        // a keyring loaded before an invalidation must not be cached after it
+        long generation = cache.getGeneration();
+        cache.invalidate(ring.getMasterKeyId());
+        cache.putPublicKeyRing(generation, ring, 100);
+
+        Assert.assertNull(cache.getPublicKeyRing(ring.getMasterKeyId()));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        KeyRingCache cache = new KeyRingCache(150);
+        CanonicalizedPublicKeyRing ring1 = canonicalizePublic(mRing1);
+        CanonicalizedPublicKeyRing ring2 = canonicalizePublic(mRing2);
+
+        cache.putPublicKeyRing(cache.getGeneration(), ring1, 100);
+        cache.putPublicKeyRing(cache.getGeneration(), ring2, 100);
+
+        Assert.assertNull("least recently used keyring must be evicted", cache.getPublicKeyRing(ring1.getMasterKeyId()));
+        Assert.assertSame(ring2, cache.getPublicKeyRing(ring2.getMasterKeyId()));
+        Assert.assertEquals(1, cache.getEvictionCount());
+        Assert.assertEquals(100, cache.getEncodedSize());
+    }
+
+    @Test
+    public void testRepositoryInvalidatedOnSave() throws Exception {
+        KeyWritableRepository repository = KeyWritableRepository.create(RuntimeEnvironment.application);
+        repository.saveSecretKeyRing(mRing1);
+        long masterKeyId = mRing1.getMasterKeyId();
+
+        CanonicalizedPublicKeyRing first = repository.getCanonicalizedPublicKeyRing(masterKeyId);
+        Assert.assertSame("second lookup must be served from cache",
+                first, repository.getCanonicalizedPublicKeyRing(masterKeyId));
+
+        repository.deleteKeyRing(masterKeyId);
+        try {
+            repository.getCanonicalizedPublicKeyRing(masterKeyId);
+            Assert.fail("deleted keyring must not be returned from cache");
+        } catch (KeyRepository.NotFoundException e) {
+            // expected
+        }
+    }
+
+    private static CanonicalizedPublicKeyRing canonicalizePublic(UncachedKeyRing ring) throws Exception {
+        return (CanonicalizedPublicKeyRing) ring.extractPublicKeyRing().canonicalize(new OperationLog(), 0);
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+
+@RunWith(KeychainTestRunner.class)
+public class SegmentBlobStoreTest {
+
+    File mDirectory;
+
+    @Before
+    public void setUp() {
+        mDirectory = new File(RuntimeEnvironment.application.getFilesDir(), "blob_store");
+    }
+
+    @Test
+    public void testWriteReadDelete() throws Exception {
+        SegmentBlobStore store = new SegmentBlobStore(mDirectory);
+        byte[] data1 = randomBytes(1000), data2 = randomBytes(2000);
+
+        Assert.assertNull(store.read(1L));
+
+        store.write(1L, data1, false);
+        store.write(2L, data2, true);
+        Assert.assertArrayEquals(data1, store.read(1L));
+        Assert.assertArrayEquals(data2, store.read(2L));
+
+        byte[] data1New = randomBytes(500);
+        store.write(1L, data1New, false);
+        Assert.assertArrayEquals("later writes must replace earlier ones", data1New, store.read(1L));
+
+        store.delete(2L);
+        Assert.assertNull(store.read(2L));
+        Assert.assertArrayEquals(data1New, store.read(1L));
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        byte[] data1 = randomBytes(1000), data2 = randomBytes(2000);
+        {
+            SegmentBlobStore store = new SegmentBlobStore(mDirectory);
+            store.write(1L, randomBytes(100), false);
+            store.write(2L, data2, false);
+            store.write(3L, randomBytes(100), false);
+            store.write(1L, data1, false);
+            store.delete(3L);
+        }
+
+        SegmentBlobStore store = new SegmentBlobStore(mDirectory);
+        Assert.assertArrayEquals(data1, store.read(1L));
+        Assert.assertArrayEquals(data2, store.read(2L));
+        Assert.assertNull(store.read(3L));
+    }
+
+    @Test
+    public void testWritesOfOtherInstance() throws Exception {
+        // a second instance on the same directory stands in for another process
+        SegmentBlobStore writer = new SegmentBlobStore(mDirectory);
+        SegmentBlobStore reader = new SegmentBlobStore(mDirectory);
+        byte[] data1 = randomBytes(1000), data2 = randomBytes(1000);
+
+        writer.write(1L, data1, false);
+        Assert.assertArrayEquals(data1, reader.read(1L));
+
+        writer.write(1L, data2, false);
+        Assert.assertArrayEquals("reader must pick up changes", data2, reader.read(1L));
+
+        writer.delete(1L);
+        Assert.assertNull(reader.read(1L));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        SegmentBlobStore store = new SegmentBlobStore(mDirectory, 10 * 1024, 4 * 1024);
+        byte[] keep = randomBytes(1000);
+        store.write(0L, keep, false);
+
+        byte[] last = null;
+        for (int i = 0; i < 100; i++) {
+            last = randomBytes(1000);
+            store.write(1L, last, false);
+        }
+
+        Assert.assertArrayEquals(keep, store.read(0L));
+        Assert.assertArrayEquals(last, store.read(1L));
+        Assert.assertTrue("outdated records must be compacted away", countSegments() <= 2);
+
+        SegmentBlobStore reopened = new SegmentBlobStore(mDirectory);
+        Assert.assertArrayEquals(keep, reopened.read(0L));
+        Assert.assertArrayEquals(last, reopened.read(1L));
+    }
+
+    @Test
+    public void testIncompleteRecordIsDropped() throws Exception {
+        byte[] data1 = randomBytes(1000), data2 = randomBytes(1000);
+        new SegmentBlobStore(mDirectory).write(1L, data1, false);
+
+        // what's left of a write that was interrupted by a crash
+        File[] segments = mDirectory.listFiles();
+        for (File segment : segments) {
+            if (segment.getName().startsWith("segment-")) {
+                FileOutputStream out = new FileOutputStream(segment, true);
+                out.write(randomBytes(30));
+                out.close();
+            }
+        }
+
+        SegmentBlobStore store = new SegmentBlobStore(mDirectory);
+        Assert.assertArrayEquals(data1, store.read(1L));
+        store.write(2L, data2, false);
+        Assert.assertArrayEquals(data1, store.read(1L));
+        Assert.assertArrayEquals(data2, store.read(2L));
+
+        SegmentBlobStore reopened = new SegmentBlobStore(mDirectory);
+        Assert.assertArrayEquals(data2, reopened.read(2L));
+    }
+
+    @Test
+    public void testCorruptRecordIsDropped() throws Exception {
+        byte[] data1 = randomBytes(1000), data2 = randomBytes(1000);
+        new SegmentBlobStore(mDirectory).write(1L, data1, false);
+
+        // a later record for the same id whose header made it to disk, but not its data
+        ByteBuffer record = ByteBuffer.allocate(20 + 1000);
+        record.putInt(0x4b424c42).putLong(1L).putInt(1000).putInt(0x12345678).put(randomBytes(1000));
+        for (File segment : mDirectory.listFiles()) {
+            if (segment.getName().startsWith("segment-")) {
+                FileOutputStream out = new FileOutputStream(segment, true);
+                out.write(record.array());
+                out.close();
+            }
+        }
+
+        SegmentBlobStore store = new SegmentBlobStore(mDirectory);
+        Assert.assertArrayEquals("corrupt record must not replace the intact one", data1, store.read(1L));
+        store.write(2L, data2, false);
+        Assert.assertArrayEquals(data1, store.read(1L));
+        Assert.assertArrayEquals(data2, store.read(2L));
+
+        SegmentBlobStore reopened = new SegmentBlobStore(mDirectory);
+        Assert.assertArrayEquals(data1, reopened.read(1L));
+        Assert.assertArrayEquals(data2, reopened.read(2L));
+    }
+
+    private int countSegments() {
+        int count = 0;
+        for (String name : mDirectory.list()) {
+            if (name.startsWith("segment-")) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random().nextBytes(data);
+        return data;
+    }
+
+}
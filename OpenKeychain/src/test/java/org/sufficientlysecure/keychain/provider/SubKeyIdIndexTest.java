@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.security.Security;
+import java.util.Iterator;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.pgp.UncachedPublicKey;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+
+
+@RunWith(KeychainTestRunner.class)
+public class SubKeyIdIndexTest {
+
+    static UncachedKeyRing mRing1, mRing2;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        mRing1 = KeyringTestingHelper.readRingFromResource("/test-keys/encrypt_decrypt_key_1.sec");
+        mRing2 = KeyringTestingHelper.readRingFromResource("/test-keys/encrypt_decrypt_key_2.sec");
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        KeyWritableRepository repository = KeyWritableRepository.create(RuntimeEnvironment.application);
+        repository.saveSecretKeyRing(mRing1);
+        repository.saveSecretKeyRing(mRing2);
+
+        SubKeyIdIndex index = new SubKeyIdIndex(RuntimeEnvironment.application.getContentResolver());
+        assertAllSubkeysResolve(index, mRing1);
+        assertAllSubkeysResolve(index, mRing2);
+        Assert.assertNull("unknown key id must not resolve", index.getMasterKeyId(0x1234567890abcdefL));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        KeyWritableRepository repository = KeyWritableRepository.create(RuntimeEnvironment.application);
+        repository.saveSecretKeyRing(mRing1);
+        repository.saveSecretKeyRing(mRing2);
+
+        SubKeyIdIndex index = new SubKeyIdIndex(RuntimeEnvironment.application.getContentResolver());
+        index.warmUp();
+        Assert.assertTrue(index.isLoaded());
+
+        repository.deleteKeyRing(mRing1.getMasterKeyId());
+        index.invalidate(mRing1.getMasterKeyId());
+        Assert.assertNull("deleted keyring must not resolve", index.getMasterKeyId(mRing1.getMasterKeyId()));
+        assertAllSubkeysResolve(index, mRing2);
+
+        repository.saveSecretKeyRing(mRing1);
+        index.invalidate(mRing1.getMasterKeyId());
+        Assert.assertFalse("invalidated keyring must be reloaded lazily", index.isLoaded());
+        assertAllSubkeysResolve(index, mRing1);
+        Assert.assertTrue(index.isLoaded());
+    }
+
+    @Test
+    public void testRepositoryLookup() throws Exception {
+        KeyWritableRepository repository = KeyWritableRepository.create(RuntimeEnvironment.application);
+        repository.saveSecretKeyRing(mRing1);
+        long masterKeyId = mRing1.getMasterKeyId();
+
+        for (Iterator<UncachedPublicKey> it = mRing1.getPublicKeys(); it.hasNext(); ) {
+            long subKeyId = it.next().getKeyId();
+            Assert.assertEquals(masterKeyId, repository.getMasterKeyId(subKeyId));
+            Assert.assertEquals(masterKeyId, repository.getCachedPublicKeyRing(
+                    KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(subKeyId)).getMasterKeyId());
+        }
+
+        // invalidated through the DatabaseNotifyManager
+        repository.deleteKeyRing(masterKeyId);
+        try {
+            repository.getMasterKeyId(masterKeyId);
+            Assert.fail("deleted keyring must not resolve");
+        } catch (KeyRepository.NotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRepositoryFallsBackToDatabase() throws Exception {
+        // an index which isn't notified of changes, like the one of another process until its observer fires
+        SubKeyIdIndex index = new SubKeyIdIndex(RuntimeEnvironment.application.getContentResolver());
+        index.warmUp();
+        KeyRepository repository = new KeyRepository(RuntimeEnvironment.application.getContentResolver(),
+                LocalPublicKeyStorage.getInstance(RuntimeEnvironment.application), null, index,
+                new OperationLog(), 0);
+
+        KeyWritableRepository.create(RuntimeEnvironment.application).saveSecretKeyRing(mRing1);
+
+        long masterKeyId = mRing1.getMasterKeyId();
+        for (Iterator<UncachedPublicKey> it = mRing1.getPublicKeys(); it.hasNext(); ) {
+            Assert.assertEquals("keyring missing from the index must be found in the database",
+                    masterKeyId, repository.getMasterKeyId(it.next().getKeyId()));
+        }
+        assertAllSubkeysResolve(index, mRing1);
+    }
+
+    private static void assertAllSubkeysResolve(SubKeyIdIndex index, UncachedKeyRing ring) {
+        for (Iterator<UncachedPublicKey> it = ring.getPublicKeys(); it.hasNext(); ) {
+            Assert.assertEquals((Long) ring.getMasterKeyId(), index.getMasterKeyId(it.next().getKeyId()));
+        }
+    }
+
+}
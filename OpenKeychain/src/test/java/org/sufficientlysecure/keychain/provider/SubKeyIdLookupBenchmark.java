@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.Locale;
+import java.util.Random;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+
+
+/**
+ * Benchmark for resolving subkey ids to master key ids in a large database.
+ * <p/>
+ * This is not run as part of the regular unit tests. Enable it with
+ * <pre>./gradlew testFdroidDebugUnitTest -Pkeychain.benchmark=true --tests '*SubKeyIdLookupBenchmark'</pre>
+ * The number of subkeys in the database can be set with keychain.benchmark.subkeys,
+ * and defaults to 50000. Rows are written directly rather than by importing keys, so
+ * the database can be populated in reasonable time.
+ */
+@RunWith(KeychainTestRunner.class)
+public class SubKeyIdLookupBenchmark {
+
+    static final String PROP_ENABLED = "keychain.benchmark";
+    static final String PROP_SUBKEYS = "keychain.benchmark.subkeys";
+    static final String PROP_LOOKUPS = "keychain.benchmark.lookups";
+
+    private static final int SUBKEYS_PER_KEY_RING = 5;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Assume.assumeTrue("benchmark disabled, set -P" + PROP_ENABLED + "=true to run",
+                Boolean.getBoolean(PROP_ENABLED));
+        ShadowLog.stream = null;
+    }
+
+    @Test
+    public void benchmarkSubKeyIdLookup() throws Exception {
+        int numSubkeys = Integer.getInteger(PROP_SUBKEYS, 50000);
+        int numLookups = Integer.getInteger(PROP_LOOKUPS, 1000);
+
+        SQLiteDatabase db = new KeychainDatabase(RuntimeEnvironment.application).getWritableDatabase();
+        long[] subKeyIds = populate(db, numSubkeys);
+
+        // half of the lookups are for key ids which are not in the database, as for
+        // messages encrypted to several recipients
+        Random random = new Random(42);
+        long[] lookups = new long[numLookups];
+        for (int i = 0; i < numLookups; i++) {
+            lookups[i] = i % 2 == 0 ? subKeyIds[random.nextInt(subKeyIds.length)] : random.nextLong();
+        }
+
+        System.out.println(String.format(Locale.ENGLISH, "%d subkeys, %d lookups", numSubkeys, numLookups));
+
+        long scanFound = benchmark("table scan", lookups, subKeyId -> queryMasterKeyId(db,
+                "SELECT " + Keys.MASTER_KEY_ID + " FROM " + Tables.KEYS + " NOT INDEXED"
+                        + " WHERE " + Keys.KEY_ID + " = ?", subKeyId));
+        long indexFound = benchmark("keys_by_key_id index", lookups, subKeyId -> queryMasterKeyId(db,
+                "SELECT " + Keys.MASTER_KEY_ID + " FROM " + Tables.KEYS
+                        + " WHERE " + Keys.KEY_ID + " = ?", subKeyId));
+
+        ContentResolver contentResolver = RuntimeEnvironment.application.getContentResolver();
+        long providerFound = benchmark("provider find by subkey", lookups, subKeyId -> {
+            Cursor cursor = contentResolver.query(KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(subKeyId),
+                    new String[] { KeyRings.MASTER_KEY_ID }, null, null, null);
+            try {
+                return cursor != null && cursor.moveToFirst();
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        });
+
+        SubKeyIdIndex index = new SubKeyIdIndex(contentResolver);
+        long start = System.nanoTime();
+        index.warmUp();
+        System.out.println(String.format(Locale.ENGLISH, "%-28s %10.2f ms",
+                "in-memory index load", (System.nanoTime() - start) / 1e6));
+        long indexMapFound = benchmark("in-memory index", lookups, subKeyId -> index.getMasterKeyId(subKeyId) != null);
+
+        Assert.assertEquals(scanFound, indexFound);
+        Assert.assertEquals(scanFound, providerFound);
+        Assert.assertEquals(scanFound, indexMapFound);
+    }
+
+    private static long[] populate(SQLiteDatabase db, int numSubkeys) {
+        Random random = new Random(23);
+        long[] subKeyIds = new long[numSubkeys];
+
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            long masterKeyId = 0;
+            for (int i = 0; i < numSubkeys; i++) {
+                int rank = i % SUBKEYS_PER_KEY_RING;
+                long keyId = random.nextLong();
+                if (rank == 0) {
+                    masterKeyId = keyId;
+
+                    values.clear();
+                    values.put(KeyRings.MASTER_KEY_ID, masterKeyId);
+                    db.insertOrThrow(Tables.KEY_RINGS_PUBLIC, null, values);
+
+                    values.clear();
+                    values.put(UserPackets.MASTER_KEY_ID, masterKeyId);
+                    values.put(UserPackets.RANK, 0);
+                    values.put(UserPackets.USER_ID, "Benchmark " + i + " <benchmark" + i + "@example.com>");
+                    values.put(UserPackets.NAME, "Benchmark " + i);
+                    values.put(UserPackets.EMAIL, "benchmark" + i + "@example.com");
+                    values.put(UserPackets.IS_PRIMARY, 1);
+                    values.put(UserPackets.IS_REVOKED, 0);
+                    db.insertOrThrow(Tables.USER_PACKETS, null, values);
+                }
+
+                values.clear();
+                values.put(Keys.MASTER_KEY_ID, masterKeyId);
+                values.put(Keys.RANK, rank);
+                values.put(Keys.KEY_ID, keyId);
+                values.put(Keys.CAN_ENCRYPT, rank > 0 ? 1 : 0);
+                values.put(Keys.IS_REVOKED, 0);
+                values.put(Keys.IS_SECURE, 1);
+                values.put(Keys.HAS_SECRET, 0);
+                db.insertOrThrow(Tables.KEYS, null, values);
+
+                subKeyIds[i] = keyId;
+            }
+            KeychainDatabase.refreshKeySummary(db, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        return subKeyIds;
+    }
+
+    private static boolean queryMasterKeyId(SQLiteDatabase db, String sql, long subKeyId) {
+        Cursor cursor = db.rawQuery(sql, new String[] { Long.toString(subKeyId) });
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long benchmark(String name, long[] lookups, Lookup lookup) {
+        // warm up, and count how many of the lookups are found
+        long found = 0;
+        for (long subKeyId : lookups) {
+            if (lookup.lookup(subKeyId)) {
+                found += 1;
+            }
+        }
+
+        long start = System.nanoTime();
+        for (long subKeyId : lookups) {
+            lookup.lookup(subKeyId);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format(Locale.ENGLISH, "%-28s %10.2f us/lookup",
+                name, elapsed / 1e3 / lookups.length));
+        return found;
+    }
+
+    private interface Lookup {
+        boolean lookup(long subKeyId);
+    }
+
+}
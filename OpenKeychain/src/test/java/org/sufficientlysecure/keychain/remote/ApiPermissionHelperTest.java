@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.remote;
+
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.Signature;
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowBinder;
+import org.robolectric.shadows.ShadowLooper;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.provider.ApiDataAccessObject;
+import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+@RunWith(KeychainTestRunner.class)
+public class ApiPermissionHelperTest {
+    static final String PACKAGE_NAME = "test.package";
+    static final String OTHER_PACKAGE_NAME = "test.package.other";
+    static final byte[] PACKAGE_SIGNATURE = new byte[] { 1, 2, 3 };
+    static final int PACKAGE_UID = 42;
+
+    PackageManager packageManager;
+    ApiDataAccessObject apiDao;
+    ApiPermissionHelper apiPermissionHelper;
+
+
+    @Before
+    public void setUp() throws Exception {
+        packageManager = mock(PackageManager.class);
+        when(packageManager.getPackagesForUid(PACKAGE_UID)).thenReturn(new String[] { PACKAGE_NAME });
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.signatures = new Signature[] { new Signature(PACKAGE_SIGNATURE) };
+        packageInfo.packageName = PACKAGE_NAME;
+        when(packageManager.getPackageInfo(PACKAGE_NAME, PackageManager.GET_SIGNATURES)).thenReturn(packageInfo);
+
+        Context context = mock(Context.class);
+        when(context.getPackageManager()).thenReturn(packageManager);
+
+        apiDao = mock(ApiDataAccessObject.class);
+        when(apiDao.getApiAppCertificate(PACKAGE_NAME)).thenReturn(PACKAGE_SIGNATURE);
+
+        // the shared instance, which listens for changes of the registered apps and packages
+        CallerPermissionCache cache = CallerPermissionCache.getInstance(RuntimeEnvironment.application);
+        apiPermissionHelper = new ApiPermissionHelper(context, apiDao, cache);
+
+        ShadowBinder.setCallingUid(PACKAGE_UID);
+    }
+
+    @Test
+    public void isAllowed_shouldSkipChecksForCachedCaller() throws Exception {
+        assertTrue(apiPermissionHelper.isAllowedIgnoreErrors());
+        assertTrue(apiPermissionHelper.isAllowedIgnoreErrors());
+        assertTrue(apiPermissionHelper.isAllowedIgnoreErrors());
+
+        verify(packageManager, times(1)).getPackagesForUid(PACKAGE_UID);
+        verify(packageManager, times(1)).getPackageInfo(PACKAGE_NAME, PackageManager.GET_SIGNATURES);
+        verify(apiDao, times(1)).getApiAppCertificate(PACKAGE_NAME);
+    }
+
+    @Test
+    public void isTrustedCaller_shouldRequirePassedCheck() throws Exception {
+        assertFalse(apiPermissionHelper.isTrustedCaller(PACKAGE_UID));
+
+        assertTrue(apiPermissionHelper.isAllowedIgnoreErrors());
+
+        assertTrue(apiPermissionHelper.isTrustedCaller(PACKAGE_UID));
+    }
+
+    @Test
+    public void isAllowed_shouldNotCacheDeniedCaller() throws Exception {
+        when(apiDao.getApiAppCertificate(PACKAGE_NAME)).thenReturn(null);
+
+        assertFalse(apiPermissionHelper.isAllowedIgnoreErrors());
+        assertFalse(apiPermissionHelper.isAllowedIgnoreErrors());
+
+        verify(apiDao, times(2)).getApiAppCertificate(PACKAGE_NAME);
+    }
+
+    @Test
+    public void packageChange_shouldDropCachedCaller() throws Exception {
+        assertTrue(apiPermissionHelper.isAllowedIgnoreErrors());
+
+        sendPackageBroadcast(Intent.ACTION_PACKAGE_REPLACED, PACKAGE_NAME);
+
+        assertTrue(apiPermissionHelper.isAllowedIgnoreErrors());
+        verify(packageManager, times(2)).getPackageInfo(PACKAGE_NAME, PackageManager.GET_SIGNATURES);
+        verify(apiDao, times(2)).getApiAppCertificate(PACKAGE_NAME);
+    }
+
+    @Test
+    public void packageChange_shouldKeepCallersOfOtherPackages() throws Exception {
+        assertTrue(apiPermissionHelper.isAllowedIgnoreErrors());
+
+        sendPackageBroadcast(Intent.ACTION_PACKAGE_REMOVED, OTHER_PACKAGE_NAME);
+
+        assertTrue(apiPermissionHelper.isAllowedIgnoreErrors());
+        verify(apiDao, times(1)).getApiAppCertificate(PACKAGE_NAME);
+    }
+
+    @Test
+    public void registeredAppsChange_shouldDropCachedCaller() throws Exception {
+        assertTrue(apiPermissionHelper.isAllowedIgnoreErrors());
+
+        // e.g. the user removed the app in the settings
+        when(apiDao.getApiAppCertificate(PACKAGE_NAME)).thenReturn(null);
+        RuntimeEnvironment.application.getContentResolver().notifyChange(ApiApps.CONTENT_URI, null);
+
+        assertFalse(apiPermissionHelper.isAllowedIgnoreErrors());
+    }
+
+    private static void sendPackageBroadcast(String action, String packageName) {
+        Intent intent = new Intent(action, Uri.fromParts("package", packageName, null));
+        RuntimeEnvironment.application.sendBroadcast(intent);
+        ShadowLooper.idleMainLooper();
+    }
+
+}
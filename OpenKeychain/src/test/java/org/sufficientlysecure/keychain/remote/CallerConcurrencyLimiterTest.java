@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.remote;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(KeychainTestRunner.class)
+public class CallerConcurrencyLimiterTest {
+
+    private static final int UID = 1000;
+    private static final int OTHER_UID = 1001;
+
+    @Test
+    public void acquire_shouldLimitEachCallerSeparately() throws Exception {
+        CallerConcurrencyLimiter limiter = new CallerConcurrencyLimiter(2);
+        limiter.acquire(UID);
+        limiter.acquire(UID);
+
+        CountDownLatch waiterDone = startWaiter(limiter, 0, null);
+        awaitQueueLength(limiter, UID, 1);
+        assertFalse("third call must wait", waiterDone.await(50, TimeUnit.MILLISECONDS));
+
+        // doesn't block
+        limiter.acquire(OTHER_UID);
+        assertEquals(0, limiter.getQueueLength(OTHER_UID));
+
+        limiter.release(UID);
+        assertTrue("waiting call must run once a permit is released", waiterDone.await(5, TimeUnit.SECONDS));
+        assertEquals(0, limiter.getQueueLength(UID));
+    }
+
+    @Test
+    public void acquire_shouldProcessWaitingCallsInOrder() throws Exception {
+        CallerConcurrencyLimiter limiter = new CallerConcurrencyLimiter(1);
+        limiter.acquire(UID);
+
+        // calls are queued rather than turned away, however many there are
+        List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        int waiters = 8;
+        CountDownLatch[] done = new CountDownLatch[waiters];
+        for (int i = 0; i < waiters; i++) {
+            done[i] = startWaiter(limiter, i, order);
+            awaitQueueLength(limiter, UID, i + 1);
+        }
+
+        limiter.release(UID);
+        for (CountDownLatch latch : done) {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        }
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7), order);
+    }
+
+    /** Starts a call of the caller which, once it may run, records its index and finishes. */
+    private static CountDownLatch startWaiter(final CallerConcurrencyLimiter limiter, final int index,
+            final List<Integer> order) {
+        final CountDownLatch done = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    limiter.acquire(UID);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                if (order != null) {
+                    order.add(index);
+                    limiter.release(UID);
+                }
+                done.countDown();
+            }
+        }).start();
+        return done;
+    }
+
+    private static void awaitQueueLength(CallerConcurrencyLimiter limiter, int uid, int length)
+            throws InterruptedException {
+        while (limiter.getQueueLength(uid) < length) {
+            Thread.sleep(5);
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.remote;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class CallerPermissionCacheTest {
+
+    @Test
+    public void putAllowed_shouldBeCached() throws Exception {
+        CallerPermissionCache cache = new CallerPermissionCache();
+
+        cache.putAllowed(1000, "com.example", cache.getGeneration());
+
+        assertTrue(cache.isAllowed(1000));
+        assertFalse(cache.isAllowed(1001));
+    }
+
+    @Test
+    public void clear_shouldForgetAllowedCallers() throws Exception {
+        CallerPermissionCache cache = new CallerPermissionCache();
+        cache.putAllowed(1000, "com.example", cache.getGeneration());
+
+        cache.clear();
+
+        assertFalse(cache.isAllowed(1000));
+    }
+
+    @Test
+    public void removePackage_shouldOnlyForgetCallersOfThatPackage() throws Exception {
+        CallerPermissionCache cache = new CallerPermissionCache();
+        cache.putAllowed(1000, "com.example", cache.getGeneration());
+        cache.putAllowed(1001, "com.example.other", cache.getGeneration());
+
+        cache.removePackage("com.example");
+
+        assertFalse(cache.isAllowed(1000));
+        assertTrue(cache.isAllowed(1001));
+    }
+
+    @Test
+    public void putAllowed_withClearInBetween_shouldNotBeCached() throws Exception {
+        CallerPermissionCache cache = new CallerPermissionCache();
+        long generation = cache.getGeneration();
+
+        cache.clear();
+        cache.putAllowed(1000, "com.example", generation);
+
+        assertFalse(cache.isAllowed(1000));
+    }
+
+}
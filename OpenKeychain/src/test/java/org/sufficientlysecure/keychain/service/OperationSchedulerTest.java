@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.service.OperationScheduler.OperationClass;
+
+
+@RunWith(KeychainTestRunner.class)
+public class OperationSchedulerTest {
+
+    @Test
+    public void testForegroundOperationsRunFirst() throws Exception {
+        OperationScheduler scheduler = new OperationScheduler(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        // occupy the only thread of the pool, so everything after this is queued
+        scheduler.execute(OperationClass.INTERACTIVE, false, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+
+        scheduler.execute(OperationClass.INTERACTIVE, false, recordingRunnable("background", order, done));
+        scheduler.execute(OperationClass.INTERACTIVE, true, recordingRunnable("foreground", order, done));
+        Assert.assertEquals(2, scheduler.getQueueDepth(OperationClass.INTERACTIVE));
+
+        blocked.countDown();
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        Assert.assertEquals("foreground", order.get(0));
+        Assert.assertEquals("background", order.get(1));
+        Assert.assertEquals(2, scheduler.getMaxQueueDepth(OperationClass.INTERACTIVE));
+    }
+
+    @Test
+    public void testInvokeAllStaysWithinCpuBudget() throws Exception {
+        OperationScheduler scheduler = new OperationScheduler(2);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+
+        // a crypto operation holds one of the two cpu permits
+        scheduler.execute(OperationClass.CPU, false, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, scheduler.getAvailableCpuPermits());
+
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            final int value = i;
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int now = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), now));
+                    }
+                    Thread.sleep(10);
+                    running.decrementAndGet();
+                    return value;
+                }
+            });
+        }
+
+        List<Integer> results = scheduler.invokeAll(tasks, 4);
+
+        // the calling thread plus the one helper the budget had room for
+        Assert.assertTrue(maxRunning.get() <= 2);
+        for (int i = 0; i < 8; i++) {
+            Assert.assertEquals(Integer.valueOf(i), results.get(i));
+        }
+        Assert.assertEquals(1, scheduler.getAvailableCpuPermits());
+
+        blocked.countDown();
+    }
+
+    private static Runnable recordingRunnable(final String name, final List<String> order,
+            final CountDownLatch done) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+                done.countDown();
+            }
+        };
+    }
+
+}
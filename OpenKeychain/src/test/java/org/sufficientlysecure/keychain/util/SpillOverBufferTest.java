@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.util.Util;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+
+@RunWith(KeychainTestRunner.class)
+public class SpillOverBufferTest {
+
+    @Test
+    public void testBelowThreshold() throws Exception {
+        byte[] data = new byte[1000];
+        new Random().nextBytes(data);
+
+        SpillOverBuffer buffer = new SpillOverBuffer(RuntimeEnvironment.application.getCacheDir(), 1024);
+        buffer.write(data, 0, data.length);
+        buffer.close();
+
+        Assert.assertFalse("data below threshold must stay in memory", buffer.isSpilled());
+        Assert.assertEquals(data.length, buffer.getSize());
+        Assert.assertArrayEquals(data, readFully(buffer.getInputStream()));
+
+        buffer.delete();
+    }
+
+    @Test
+    public void testAboveThreshold() throws Exception {
+        byte[] data = new byte[10000];
+        new Random().nextBytes(data);
+
+        SpillOverBuffer buffer = new SpillOverBuffer(RuntimeEnvironment.application.getCacheDir(), 1024);
+        for (int i = 0; i < data.length; i += 100) {
+            buffer.write(data, i, 100);
+        }
+        buffer.close();
+
+        Assert.assertTrue("data above threshold must be moved to a file", buffer.isSpilled());
+        Assert.assertEquals(data.length, buffer.getSize());
+        Assert.assertArrayEquals(data, readFully(buffer.getInputStream()));
+
+        buffer.delete();
+        Assert.assertFalse(buffer.isSpilled());
+    }
+
+    private static byte[] readFully(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Util.copy(in, out);
+        return out.toByteArray();
+    }
+
+}
@@ -21,20 +21,44 @@ import org.bouncycastle.openpgp.operator.PublicKeyDataDecryptorFactory;
 
 public class CachingDataDecryptorFactory implements PublicKeyDataDecryptorFactory
 {
+    /**
+     * A store for session keys which outlives a single factory, keyed by the encoded
+     * MPI of the encrypted session key. Implementations must be thread-safe.
+     */
+    public interface SessionKeyStore
+    {
+        byte[] get(ByteBuffer encryptedSessionKey);
+
+        void put(ByteBuffer encryptedSessionKey, byte[] sessionData);
+    }
+
     private final PublicKeyDataDecryptorFactory mWrappedDecryptor;
     private final HashMap<ByteBuffer, byte[]> mSessionKeyCache;
+    private final SessionKeyStore mSessionKeyStore;
 
     private OperatorHelper mOperatorHelper;
 
     public CachingDataDecryptorFactory(String providerName, Map<ByteBuffer, byte[]> sessionKeyCache)
     {
-        this((PublicKeyDataDecryptorFactory) null, sessionKeyCache);
+        this(providerName, sessionKeyCache, null);
+    }
+
+    public CachingDataDecryptorFactory(String providerName, Map<ByteBuffer, byte[]> sessionKeyCache,
+            SessionKeyStore sessionKeyStore)
+    {
+        this((PublicKeyDataDecryptorFactory) null, sessionKeyCache, sessionKeyStore);
 
         mOperatorHelper = new OperatorHelper(new NamedJcaJceHelper(providerName));
     }
 
     public CachingDataDecryptorFactory(PublicKeyDataDecryptorFactory wrapped,
             Map<ByteBuffer, byte[]> sessionKeyCache)
+    {
+        this(wrapped, sessionKeyCache, null);
+    }
+
+    public CachingDataDecryptorFactory(PublicKeyDataDecryptorFactory wrapped,
+            Map<ByteBuffer, byte[]> sessionKeyCache, SessionKeyStore sessionKeyStore)
     {
         mSessionKeyCache = new HashMap<>();
         if (sessionKeyCache != null)
@@ -43,11 +67,27 @@ public class CachingDataDecryptorFactory implements PublicKeyDataDecryptorFactor
         }
 
         mWrappedDecryptor = wrapped;
+        mSessionKeyStore = sessionKeyStore;
     }
 
     public boolean hasCachedSessionData(PGPPublicKeyEncryptedData encData) throws PGPException {
         ByteBuffer bi = ByteBuffer.wrap(encData.getSessionKey()[0]);
-        return mSessionKeyCache.containsKey(bi);
+        return getCachedSessionData(bi) != null;
+    }
+
+    /** Looks up session data in this factory's cache, falling back to the shared store if there is one. */
+    private byte[] getCachedSessionData(ByteBuffer bi) {
+        byte[] sessionData = mSessionKeyCache.get(bi);
+        if (sessionData == null && mSessionKeyStore != null)
+        {
+            sessionData = mSessionKeyStore.get(bi);
+            if (sessionData != null)
+            {
+                // keep it locally, so it is part of getCachedSessionKeys()
+                mSessionKeyCache.put(bi, sessionData);
+            }
+        }
+        return sessionData;
     }
 
     public Map<ByteBuffer, byte[]> getCachedSessionKeys() {
@@ -61,8 +101,9 @@ public class CachingDataDecryptorFactory implements PublicKeyDataDecryptorFactor
     @Override
     public byte[] recoverSessionData(int keyAlgorithm, byte[][] secKeyData) throws PGPException {
         ByteBuffer bi = ByteBuffer.wrap(secKeyData[0]);  // encoded MPI
-        if (mSessionKeyCache.containsKey(bi)) {
-            return mSessionKeyCache.get(bi);
+        byte[] cachedSessionData = getCachedSessionData(bi);
+        if (cachedSessionData != null) {
+            return cachedSessionData;
         }
 
         if (mWrappedDecryptor == null) {
@@ -71,6 +112,9 @@ public class CachingDataDecryptorFactory implements PublicKeyDataDecryptorFactor
 
         byte[] sessionData = mWrappedDecryptor.recoverSessionData(keyAlgorithm, secKeyData);
         mSessionKeyCache.put(bi, sessionData);
+        if (mSessionKeyStore != null) {
+            mSessionKeyStore.put(bi, sessionData);
+        }
         return sessionData;
     }
 